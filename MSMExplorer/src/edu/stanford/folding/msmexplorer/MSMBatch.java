@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer;
+
+import edu.stanford.folding.msmexplorer.io.DecompressingInputStream;
+import edu.stanford.folding.msmexplorer.io.EQProbReader;
+import edu.stanford.folding.msmexplorer.io.MSMIOLib;
+import edu.stanford.folding.msmexplorer.io.NewlineDelimitedReader;
+import edu.stanford.folding.msmexplorer.io.SVGWriter;
+import edu.stanford.folding.msmexplorer.io.TiledImageWriter;
+import edu.stanford.folding.msmexplorer.tpt.TPTFactoryCM;
+import edu.stanford.folding.msmexplorer.tpt.TPTWindow;
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
+import edu.stanford.folding.msmexplorer.util.render.SelfRefEdgeRenderer;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import javax.imageio.ImageIO;
+import prefuse.Constants;
+import prefuse.Display;
+import prefuse.Visualization;
+import prefuse.action.ActionList;
+import prefuse.action.assignment.ColorAction;
+import prefuse.action.assignment.DataColorAction;
+import prefuse.action.assignment.DataSizeAction;
+import prefuse.action.filter.VisibilityFilter;
+import prefuse.action.layout.graph.ForceDirectedLayout;
+import prefuse.data.Graph;
+import prefuse.data.Tuple;
+import prefuse.data.expression.ColumnExpression;
+import prefuse.data.expression.parser.ExpressionParser;
+import prefuse.data.io.DataIOException;
+import prefuse.data.tuple.DefaultTupleSet;
+import prefuse.data.tuple.TupleSet;
+import prefuse.render.DefaultRendererFactory;
+import prefuse.render.LabelRenderer;
+import prefuse.util.ColorLib;
+import prefuse.util.GraphicsLib;
+import prefuse.util.display.DisplayLib;
+import prefuse.util.force.Force;
+import prefuse.visual.VisualItem;
+
+/**
+ * Command line front end for rendering models with no windows at all:
+ * each model is read, optionally run through TPT between a source and
+ * a target set, laid out with a force-directed layout and written as an
+ * image. Runs with java.awt.headless set, so it works on compute nodes
+ * without a display.
+ *
+ * Several models are processed at once in one JVM (see -j). Reading,
+ * TPT and layout run fully in parallel; painting is serialized, because
+ * prefuse's color and font caches are shared, unsynchronized statics.
+ * PNG encoding still runs on the worker pool while the next model
+ * paints.
+ *
+ * Usage: java -cp MSMExplorer.jar edu.stanford.folding.msmexplorer.MSMBatch
+ * [options] model...  (run with -h for the options)
+ *
+ * @author brycecr
+ */
+public class MSMBatch implements MSMConstants {
+
+	private static final String GRAPH = "graph";
+	private static final String NODES = "graph.nodes";
+	private static final String EDGES = "graph.edges";
+	private static final int kMARGIN = 20;
+
+	/** Held while any model's display paints; see the class comment. */
+	private static final Object kPAINT_LOCK = new Object();
+
+	private static final String kUSAGE =
+		"Usage: MSMBatch [options] model...\n"
+		+ "Renders each model (dat, mtx, npy/npz or GraphML, optionally gzipped)\n"
+		+ "to <output dir>/<model dir>_<model name>.<format>.\n"
+		+ "\n"
+		+ "  -p, --populations FILE  equilibrium populations for every model\n"
+		+ "                          (default: the model's own, else a\n"
+		+ "                          Populations/eqProb file next to it)\n"
+		+ "  -s, --source STATES     TPT source states, e.g. 0,4,10-12\n"
+		+ "  -t, --target STATES     TPT target states; with -s, draws only the\n"
+		+ "                          top flux paths between the two sets\n"
+		+ "  -n, --paths N           number of TPT paths to draw (default 3)\n"
+		+ "  -i, --iterations N      layout iterations (default 100)\n"
+		+ "      --gravity X         n-body force constant (default -40)\n"
+		+ "      --spring-length X   spring rest length (default 450, 200 with TPT)\n"
+		+ "      --size WxH          canvas size in pixels (default 1200x800)\n"
+		+ "      --scale X           raster export scale (default 1)\n"
+		+ "  -f, --format FMT        png, svg, svgz or another ImageIO format\n"
+		+ "                          (default png)\n"
+		+ "  -o, --output DIR        output directory (default .)\n"
+		+ "  -l, --list FILE         read model paths from FILE, one per line\n"
+		+ "  -j, --jobs N            models processed at once (default: one per\n"
+		+ "                          processor)\n"
+		+ "  -h, --help              show this message\n";
+
+	private File m_populations = null;
+	private int[] m_source = null;
+	private int[] m_target = null;
+	private int m_paths = 3;
+	private int m_iterations = 100;
+	private float m_gravity = -40.0f;
+	private float m_springLength = -1;
+	private int m_width = 1200;
+	private int m_height = 800;
+	private double m_scale = 1.0;
+	private String m_format = "png";
+	private File m_outDir = new File(".");
+	private int m_jobs = WorkerPool.getParallelism();
+	private final List<File> m_models = new ArrayList<File>();
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		MSMBatch batch = new MSMBatch();
+		try {
+			if (!batch.parseArgs(args)) {
+				System.out.print(kUSAGE);
+				return;
+			}
+		} catch (IllegalArgumentException iae) {
+			System.err.println("MSMBatch: " + iae.getMessage());
+			System.err.print(kUSAGE);
+			System.exit(2);
+		} catch (IOException ioe) {
+			System.err.println("MSMBatch: " + ioe.getMessage());
+			System.exit(2);
+		}
+
+		int failed = batch.run();
+		System.exit((failed == 0) ? 0 : 1);
+	}
+
+	/**
+	 * Reads options and model paths from args.
+	 *
+	 * @return false if only help was asked for
+	 * @throws IllegalArgumentException on a malformed option
+	 * @throws IOException if a model list can't be read
+	 */
+	public boolean parseArgs(String[] args) throws IOException {
+		for (int i = 0; i < args.length; ++i) {
+			String a = args[i];
+			if (a.equals("-h") || a.equals("--help")) {
+				return false;
+			} else if (!a.startsWith("-")) {
+				m_models.add(new File(a));
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + a);
+			}
+			String v = args[++i];
+			if (a.equals("-p") || a.equals("--populations")) {
+				m_populations = new File(v);
+			} else if (a.equals("-s") || a.equals("--source")) {
+				m_source = parseStates(v);
+			} else if (a.equals("-t") || a.equals("--target")) {
+				m_target = parseStates(v);
+			} else if (a.equals("-n") || a.equals("--paths")) {
+				m_paths = parsePositive(a, v);
+			} else if (a.equals("-i") || a.equals("--iterations")) {
+				m_iterations = parsePositive(a, v);
+			} else if (a.equals("--gravity")) {
+				m_gravity = Float.parseFloat(v);
+			} else if (a.equals("--spring-length")) {
+				m_springLength = Float.parseFloat(v);
+				if (!(m_springLength > 0)) {
+					throw new IllegalArgumentException("Spring length must be positive: " + v);
+				}
+			} else if (a.equals("--size")) {
+				String[] wh = v.toLowerCase().split("x");
+				if (wh.length != 2) {
+					throw new IllegalArgumentException("Size should look like 1200x800: " + v);
+				}
+				m_width = parsePositive(a, wh[0]);
+				m_height = parsePositive(a, wh[1]);
+			} else if (a.equals("--scale")) {
+				m_scale = Double.parseDouble(v);
+				if (!(m_scale > 0)) {
+					throw new IllegalArgumentException("Scale must be positive: " + v);
+				}
+			} else if (a.equals("-f") || a.equals("--format")) {
+				m_format = v.toLowerCase();
+			} else if (a.equals("-o") || a.equals("--output")) {
+				m_outDir = new File(v);
+			} else if (a.equals("-l") || a.equals("--list")) {
+				readModelList(new File(v));
+			} else if (a.equals("-j") || a.equals("--jobs")) {
+				m_jobs = parsePositive(a, v);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + a);
+			}
+		}
+
+		if ((m_source == null) != (m_target == null)) {
+			throw new IllegalArgumentException("TPT needs both --source and --target");
+		}
+		if (!(m_format.equals("svg") || m_format.equals("svgz")
+			|| ImageIO.getImageWritersByFormatName(m_format).hasNext())) {
+			throw new IllegalArgumentException("Unknown output format " + m_format);
+		}
+		if (m_models.isEmpty()) {
+			throw new IllegalArgumentException("No models given");
+		}
+		return true;
+	}
+
+	/**
+	 * Renders every model, m_jobs at a time, reporting each result on
+	 * stdout or stderr as it finishes.
+	 *
+	 * @return number of models that failed
+	 */
+	public int run() {
+		if (!m_outDir.isDirectory() && !m_outDir.mkdirs()) {
+			System.err.println("MSMBatch: could not create " + m_outDir);
+			return m_models.size();
+		}
+
+		ExecutorService exec = Executors.newFixedThreadPool(
+			Math.min(m_jobs, m_models.size()));
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for (final File model : m_models) {
+			results.add(exec.submit(new Callable<File>() {
+				public File call() throws Exception {
+					return render(model);
+				}
+			}));
+		}
+		exec.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); ++i) {
+			try {
+				System.out.println(m_models.get(i) + " -> " + results.get(i).get());
+			} catch (ExecutionException ee) {
+				++failed;
+				System.err.println(m_models.get(i) + " FAILED: " + ee.getCause());
+			} catch (InterruptedException ie) {
+				++failed;
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Load, analyze, lay out and export one model.
+	 *
+	 * @return the file written
+	 */
+	public File render(File model) throws Exception {
+		Graph g = MSMIOLib.getReader(model.getName()).readGraph(model.getAbsolutePath());
+
+		//populations the model already carries (e.g. GraphML) win over ones
+		//that just happen to sit next to it
+		File pops = m_populations;
+		if (pops == null && g.getNodeTable().getColumnNumber(EQPROB) < 0) {
+			pops = EQProbReader.findEqProbFile(model.getAbsoluteFile().getParentFile());
+		}
+		if (pops != null) {
+			EQProbReader.setEqProbs(g, NewlineDelimitedReader.parseDoubles(pops));
+		}
+
+		boolean tpt = (m_source != null);
+		if (tpt) {
+			runTPT(g);
+		}
+
+		Visualization vis = new Visualization();
+		vis.add(GRAPH, g);
+		LabelRenderer lr = new LabelRenderer(LABEL);
+		lr.setVerticalAlignment(Constants.CENTER);
+		lr.setRoundedCorner(8, 8);
+		vis.setRendererFactory(new DefaultRendererFactory(lr, new SelfRefEdgeRenderer()));
+
+		Display display = new Display(vis);
+		display.setSize(m_width, m_height);
+
+		//actions are run here directly rather than through vis.run, which
+		//would hand them to prefuse's single shared activity thread
+		ActionList actions = getActions(g, tpt);
+		vis.putAction("batch", actions);
+		actions.run(1.0);
+
+		File out = new File(m_outDir, getOutputName(model));
+		synchronized (kPAINT_LOCK) {
+			Rectangle2D bounds = vis.getBounds(Visualization.ALL_ITEMS);
+			GraphicsLib.expand(bounds, kMARGIN);
+			DisplayLib.fitViewToBounds(display, bounds, 0);
+			export(display, out);
+		}
+		return out;
+	}
+
+	/**
+	 * Marks the top m_paths flux paths between the source and target
+	 * states, the same way TPTWindow does.
+	 */
+	private void runTPT(Graph g) throws DataIOException {
+		if (g.getNodeTable().getColumnNumber(EQPROB) < 0) {
+			throw new DataIOException("TPT needs equilibrium populations; use --populations");
+		}
+		TupleSet source = getStates(g, m_source);
+		TupleSet target = getStates(g, m_target);
+		if (TPTWindow.overlap(source, target)) {
+			throw new IllegalArgumentException("Source and target sets overlap");
+		}
+
+		TPTWindow.initTPTColumns(g);
+		TPTFactoryCM tptCalc = new TPTFactoryCM(g, source, target);
+		if (!tptCalc.isCommittorConverged()) {
+			System.err.println("MSMBatch: committor solve did not converge (residual "
+				+ tptCalc.getCommittorResidual() + "); TPT results may be wrong");
+		}
+		for (Iterator<?> tuples = source.tuples(); tuples.hasNext();) {
+			((Tuple) tuples.next()).set("tptGroup", 1);
+		}
+		for (Iterator<?> tuples = target.tuples(); tuples.hasNext();) {
+			((Tuple) tuples.next()).set("tptGroup", 2);
+		}
+		TPTWindow.setNumPaths(tptCalc, g, m_paths);
+	}
+
+	/**
+	 * The coloring, sizing and layout for one model: the main window's
+	 * look for a whole model, TPTWindow's for a set of paths.
+	 */
+	private ActionList getActions(Graph g, boolean tpt) {
+		ActionList actions = new ActionList();
+
+		if (tpt) {
+			actions.add(new VisibilityFilter(GRAPH, new ColumnExpression("inTPT")));
+
+			ColorAction fill = new ColorAction(NODES, VisualItem.FILLCOLOR, ColorLib.rgb(124, 252, 0));
+			fill.add(ExpressionParser.predicate("[tptGroup] == 1"), ColorLib.rgb(240, 120, 120));
+			fill.add(ExpressionParser.predicate("[tptGroup] == 2"), ColorLib.rgb(120, 200, 240));
+			actions.add(fill);
+			actions.add(new ColorAction(EDGES, VisualItem.STROKECOLOR, ColorLib.gray(200)));
+			actions.add(new ColorAction(EDGES, VisualItem.FILLCOLOR, ColorLib.gray(200)));
+
+			DataSizeAction edgeWeight = new DataSizeAction(EDGES, "flux", 200, Constants.LOG_SCALE);
+			edgeWeight.setMinimumSize(1);
+			edgeWeight.setMaximumSize(400);
+			actions.add(edgeWeight);
+		} else {
+			actions.add(new ColorAction(NODES, VisualItem.FILLCOLOR, ColorLib.rgb(179, 255, 156)));
+
+			DataColorAction edgeColor = new DataColorAction(EDGES, TPROB,
+				Constants.NUMERICAL, VisualItem.STROKECOLOR,
+				ColorLib.getGrayscalePalette());
+			edgeColor.setBinCount(10);
+			edgeColor.setScale(Constants.QUANTILE_SCALE);
+			actions.add(edgeColor);
+
+			DataColorAction edgeFill = new DataColorAction(EDGES, TPROB,
+				Constants.NUMERICAL, VisualItem.FILLCOLOR,
+				ColorLib.getGrayscalePalette());
+			edgeFill.setBinCount(10);
+			edgeFill.setScale(Constants.QUANTILE_SCALE);
+			actions.add(edgeFill);
+		}
+		actions.add(new ColorAction(NODES, VisualItem.TEXTCOLOR, ColorLib.rgb(0, 0, 0)));
+		actions.add(new ColorAction(NODES, VisualItem.STROKECOLOR, ColorLib.gray(50)));
+
+		if (g.getNodeTable().getColumnNumber(EQPROB) >= 0) {
+			DataSizeAction nodeSize = new DataSizeAction(NODES, EQPROB, 50, Constants.LOG_SCALE);
+			nodeSize.setMaximumSize(50.0);
+			actions.add(nodeSize);
+		}
+
+		ForceDirectedLayout layout = new ForceDirectedLayout(GRAPH, false, true);
+		layout.setIterations(m_iterations);
+		//same forces as the interactive windows
+		Force[] forces = layout.getForceSimulator().getForces();
+		Force nBody = forces[0];
+		Force spring = forces[2];
+		nBody.setMinValue(0, Math.min(-40.0f, m_gravity));
+		nBody.setParameter(0, m_gravity);
+		spring.setMinValue(0, .00000099f);
+		if (!tpt) {
+			nBody.setParameter(1, -1);
+			spring.setParameter(0, .00001f);
+		}
+		float length = (m_springLength > 0) ? m_springLength : (tpt ? 200f : 450f);
+		spring.setMaxValue(1, Math.max(3200f, length));
+		spring.setParameter(1, length);
+		actions.add(layout);
+		return actions;
+	}
+
+	private void export(Display display, File out) throws IOException {
+		if (m_format.equals("png")) {
+			new TiledImageWriter(display, m_scale).write(out);
+			return;
+		}
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+		try {
+			if (m_format.equals("svgz")) {
+				os = new GZIPOutputStream(os);
+			}
+			if (m_format.startsWith("svg")) {
+				SVGWriter.writeSVG(display, os, m_scale);
+			} else if (!display.saveImage(os, m_format, m_scale)) {
+				throw new IOException("Could not write " + out);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Output name for a model: its directory and file name, less
+	 * compression and file extensions, so that the usual one-model-per-
+	 * directory layout (Micro10/tProb.mtx, ...) doesn't collide.
+	 */
+	private String getOutputName(File model) {
+		String name = DecompressingInputStream.stripCompression(model.getName());
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		File dir = model.getAbsoluteFile().getParentFile();
+		if (dir != null && dir.getName().length() > 0) {
+			name = dir.getName() + "_" + name;
+		}
+		return name + "." + m_format;
+	}
+
+	private void readModelList(File list) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					m_models.add(new File(line));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private TupleSet getStates(Graph g, int[] states) {
+		TupleSet set = new DefaultTupleSet();
+		for (int s : states) {
+			if (s >= g.getNodeCount()) {
+				throw new IllegalArgumentException("State " + s
+					+ " out of range; the model has " + g.getNodeCount());
+			}
+			set.addTuple(g.getNode(s));
+		}
+		return set;
+	}
+
+	/**
+	 * Parses a state list such as "0,4,10-12".
+	 */
+	static int[] parseStates(String s) {
+		ArrayList<Integer> states = new ArrayList<Integer>();
+		for (String part : s.split(",")) {
+			part = part.trim();
+			if (part.length() == 0) {
+				continue;
+			}
+			int dash = part.indexOf('-', 1);
+			try {
+				int lo = Integer.parseInt((dash < 0) ? part : part.substring(0, dash).trim());
+				int hi = (dash < 0) ? lo : Integer.parseInt(part.substring(dash + 1).trim());
+				if (lo < 0 || hi < lo) {
+					throw new IllegalArgumentException("Bad state range " + part);
+				}
+				for (int i = lo; i <= hi; ++i) {
+					states.add(i);
+				}
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Bad state list " + s);
+			}
+		}
+		if (states.isEmpty()) {
+			throw new IllegalArgumentException("Empty state list");
+		}
+		int[] arr = new int[states.size()];
+		for (int i = 0; i < arr.length; ++i) {
+			arr[i] = states.get(i);
+		}
+		return arr;
+	}
+
+	private static int parsePositive(String opt, String v) {
+		try {
+			int n = Integer.parseInt(v.trim());
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException nfe) {
+			//fall through
+		}
+		throw new IllegalArgumentException(opt + " needs a positive integer, not " + v);
+	}
+}
@@ -20,6 +20,8 @@ package edu.stanford.folding.msmexplorer;
 import edu.stanford.folding.msmexplorer.io.ColumnChooserDialog;
 import edu.stanford.folding.msmexplorer.io.ExportMSMImageAction;
 import edu.stanford.folding.msmexplorer.io.MSMIOLib;
+import edu.stanford.folding.msmexplorer.io.ModelWatcher;
+import edu.stanford.folding.msmexplorer.io.StreamingGraphMLReader;
 import edu.stanford.folding.msmexplorer.io.hierarchy.HierarchyBundle;
 import edu.stanford.folding.msmexplorer.tpt.TPTSetupBox;
 import edu.stanford.folding.msmexplorer.tpt.TPTWindow;
@@ -41,6 +43,7 @@ import edu.stanford.folding.msmexplorer.util.ui.FocusControlWithDeselect;
 import edu.stanford.folding.msmexplorer.util.ui.JValueSliderFlammable;
 import edu.stanford.folding.msmexplorer.util.ui.PDBServer;
 import edu.stanford.folding.msmexplorer.util.ui.Picture;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
 import edu.stanford.folding.msmexplorer.util.ui.VisualizationSettingsDialog;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -62,6 +65,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -74,6 +78,7 @@ import javax.swing.ButtonModel;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
@@ -118,7 +123,6 @@ import prefuse.data.Table;
 import prefuse.data.Tuple;
 import prefuse.data.event.TupleSetListener;
 import prefuse.data.expression.OrPredicate;
-import prefuse.data.io.GraphMLReader;
 import prefuse.data.query.NumberRangeModel;
 import prefuse.data.query.SearchQueryBinding;
 import prefuse.data.search.KeywordSearchTupleSet;
@@ -184,7 +188,11 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 	// new objects. This could probably be done better, but it seems to 
 	// mostly serve the purpose for now (no noticeable performance loss)
 	private HierarchyBundle hierarchy = null; // holds the hierarchy data
+	private int hierarchyLevel = 0; // level of hierarchy on display
 	private JPanel harchPanel = null; // panel with hierarchy gui elements
+	private ModelWatcher watcher = null; // keeps the graph in step with its files
+	private JCheckBoxMenuItem watchItem = null; // menu toggle for watcher
+	private Graph m_graph = null; // the model shown, not the vis's VisualGraph of it
 
 	private boolean autoRange = true; //whether to set axis ranges automatically
 
@@ -1103,9 +1111,28 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 				if (zoomSlider.isEnabled() && !zoomSlider.getValueIsAdjusting()) {
 					assert hierarchy != null;
 					//	MSMExplorer.this.getImagePath();
+					Graph next;
+					boolean canceled = false;
+					try {
+						next = loadLevel(hierarchy, pos);
+					} catch (CancellationException ce) {
+						next = null;
+						canceled = true;
+					}
+					if (next == null) {
+						if (!canceled) {
+							reportLevelFailure(pos);
+						}
+						//back to the level we're showing, without reloading it
+						zoomSlider.setEnabled(false);
+						zoomSlider.setValue(hierarchyLevel);
+						zoomSlider.setEnabled(true);
+						return;
+					}
 					JFrame toDie = MSMExplorer.this.frame;
-					MSMExplorer msme = graphView(hierarchy.graphs[pos], "label");
+					MSMExplorer msme = graphView(next, "label");
 					msme.setHierarchy(hierarchy, pos);
+					handOffWatching(msme);
 					toDie.dispose();
 				}
 			}
@@ -1144,7 +1171,7 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 						}
 					}
 					overSlider.setValue(overSlider.getMaximum());
-				} else if (top < hierarchy.graphs.length - 1) {
+				} else if (top < hierarchy.getLevelCount() - 1) {
 					MSMExplorer.this.setAggregates(bottom, top);
 					if (g.getNodeTable().getColumnNumber("mapping") >= 0) {
 						axisFields.remove("mapping");
@@ -1284,6 +1311,20 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 			}
 		});
 
+		final JCheckBoxMenuItem watchFiles = new JCheckBoxMenuItem("Watch Files for Changes");
+		watchItem = watchFiles;
+		watchFiles.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent ae) {
+				if (watchFiles.isSelected()) {
+					watchFiles.setSelected(startWatching());
+				} else {
+					stopWatching();
+				}
+			}
+		});
+		watchFiles.setToolTipText("<html>Update this model in place whenever its tProb, "
+			+ "<br>populations or mapping files are rewritten.</html>");
+
 		JMenuItem importColumn = new JMenuItem("Add Data Column");
 		importColumn.addActionListener( new ActionListener() {
 			public void actionPerformed(ActionEvent ae) {
@@ -1300,10 +1341,12 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 
 		JMenu fileMenu = new JMenu("File");
 		fileMenu.add(new OpenMSMAction(this));
+		fileMenu.add(new EstimateMSMAction(this));
 		fileMenu.add(new OpenHierarchyAction());
 		fileMenu.addSeparator();
 		fileMenu.add(importColumn);
 		fileMenu.add(setImageLoc);
+		fileMenu.add(watchFiles);
 		fileMenu.addSeparator();
 		fileMenu.add(new SaveMSMAction(g, this));
 		fileMenu.add(saveSVG);
@@ -1342,6 +1385,11 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 				m_vis.run("animate");
 			}
 
+			@Override
+			public void windowClosed(WindowEvent e) {
+				stopWatching();
+			}
+
 			@Override
 			public void windowDeactivated(WindowEvent e) {
 				// Stop layout, unless you are adjusting forces
@@ -1369,16 +1417,17 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 	 */
 	public void setHierarchy(HierarchyBundle hb, int pos) {
 		hierarchy = hb;
+		hierarchyLevel = pos;
 		JSlider zoomSlider = (JSlider) harchPanel.getComponent(0);
-		zoomSlider.setMaximum(hb.graphs.length - 1);
+		zoomSlider.setMaximum(hb.getLevelCount() - 1);
 		zoomSlider.setValue(pos);
-		zoomSlider.setLabelTable(MSMIOLib.getHierarchyLabels(hb.graphs));
+		zoomSlider.setLabelTable(MSMIOLib.getHierarchyLabels(hb));
 
 		JSlider overSlider = (JSlider) harchPanel.getComponent(1);
-		overSlider.setMaximum(hb.graphs.length - 1);
+		overSlider.setMaximum(hb.getLevelCount() - 1);
 		overSlider.setMinimum(0);
-		overSlider.setValue(hb.graphs.length - 1);
-		overSlider.setLabelTable(MSMIOLib.getAltHierarchyLabels(hb.graphs));
+		overSlider.setValue(hb.getLevelCount() - 1);
+		overSlider.setLabelTable(MSMIOLib.getAltHierarchyLabels(hb));
 
 		zoomSlider.setEnabled(true);
 		overSlider.setEnabled(true);
@@ -1409,7 +1458,7 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 			JOptionPane.showMessageDialog(this, "Cannot display"
 				+ "an overlay on top of the highest level"
 				+ "of the hieararchy.");
-			overSlider.setValue(hierarchy.graphs.length);
+			overSlider.setValue(hierarchy.getLevelCount());
 			return;
 
 		} else if (bottom == top) {
@@ -1495,6 +1544,13 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 		DefaultRendererFactory drf = (DefaultRendererFactory) m_vis.getRendererFactory();
 
 		// update graph
+		if (g != m_graph) {
+			stopWatching(); //it was watching the old graph's files
+			if (watchItem != null) {
+				watchItem.setSelected(false);
+			}
+		}
+		m_graph = g;
 		m_vis.removeGroup(GRAPH);
 		VisualGraph vg = m_vis.addGraph(GRAPH, g);
 		m_vis.setValue(EDGES, null, VisualItem.INTERACTIVE, Boolean.FALSE);
@@ -1663,7 +1719,7 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 		Graph g;
 
 		try {
-			g = new GraphMLReader().readGraph(datafile);
+			g = new StreamingGraphMLReader().readGraph(datafile);
 		} catch (Exception e) {
 			Logger.getLogger(MSMExplorer.class.getName()).log(Level.WARNING, null, e);
 			JOptionPane.showMessageDialog(null, "Could not open graph at "+datafile
@@ -1722,6 +1778,154 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 		}
 	}
 	
+	/**
+	 * Get a level of hb, reading it behind a progress dialog if it isn't
+	 * loaded yet so the EDT keeps painting while it comes in.
+	 *
+	 * @return the level's graph, or null if it could not be read
+	 * @throws CancellationException if the user hit Cancel
+	 */
+	private Graph loadLevel(final HierarchyBundle hb, final int level) {
+		if (hb.isLoaded(level)) {
+			return hb.getGraph(level);
+		}
+		try {
+			return ProgressDialog.run(frame, "Loading Level", "Reading level "
+				+ level + " of the hierarchy...", null,
+				new ProgressDialog.Task<Graph>() {
+					public Graph run(ProgressDialog.Progress p) {
+						Graph g = hb.getGraph(level);
+						//the read can't be stopped part way, but it can be ignored
+						if (p.isCanceled()) {
+							throw new CancellationException();
+						}
+						return g;
+					}
+				});
+		} catch (CancellationException ce) {
+			throw ce;
+		} catch (Exception e) {
+			Logger.getLogger(MSMExplorer.class.getName()).log(Level.WARNING,
+				"Could not load hierarchy level " + level, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Tell the user a hierarchy level couldn't be loaded, and why.
+	 */
+	private void reportLevelFailure(int level) {
+		Throwable why = hierarchy.getLoadFailure(level);
+		String reason;
+		if (why instanceof InterruptedException) {
+			reason = "Loading was interrupted.";
+		} else if (why != null && why.getMessage() != null) {
+			reason = why.getMessage();
+		} else {
+			reason = "See the log for details.";
+		}
+		JOptionPane.showMessageDialog(frame, "Could not load level " + level
+			+ " of the hierarchy:\n"
+			+ reason + "\nStaying on the current level.",
+			"Hierarchy Level Failed", JOptionPane.WARNING_MESSAGE);
+	}
+
+	/**
+	 * Start watching the files behind the graph being shown, so that
+	 * changes to them are applied to it in place.
+	 *
+	 * @return true if there were files to watch and watching started
+	 */
+	private boolean startWatching() {
+		stopWatching();
+		//edit the model itself; the VisualGraph's cascaded tables follow it
+		Graph g = m_graph;
+		ModelWatcher w = new ModelWatcher(g, m_vis, new ModelWatcher.Listener() {
+			public void modelChanged(ModelWatcher.Change c) {
+				applyFileChange(c);
+			}
+		});
+
+		if (hierarchy != null) {
+			int level = ((JSlider) harchPanel.getComponent(0)).getValue();
+			w.watchTProb(hierarchy.getTProbFile(level));
+			w.watchEqProb(hierarchy.getEqProbFile(level));
+			for (String mapping : hierarchy.mappings) {
+				if (mapping != null) {
+					w.watchMapping(new File(mapping));
+				}
+			}
+		} else {
+			File[] sources = MSMIOLib.getSourceFiles(g);
+			if (sources != null) {
+				w.watchTProb(sources[0]);
+				w.watchEqProb(sources[1]);
+			}
+		}
+
+		if (!w.hasFiles()) {
+			JOptionPane.showMessageDialog(frame, "This graph wasn't opened from "
+				+ "tProb or hierarchy files, so there is nothing to watch.",
+				"Nothing to Watch", JOptionPane.INFORMATION_MESSAGE);
+			return false;
+		}
+		try {
+			w.start();
+		} catch (IOException ioe) {
+			JOptionPane.showMessageDialog(frame, "Could not watch the files "
+				+ "for this graph: " + ioe.getMessage(),
+				"Watch Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		watcher = w;
+		return true;
+	}
+
+	private void stopWatching() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * If this view is watching its files, stop, and have next (the view
+	 * replacing this one, showing another level) watch its own instead.
+	 */
+	private void handOffWatching(MSMExplorer next) {
+		if (watcher == null) {
+			return;
+		}
+		stopWatching();
+		next.watchItem.setSelected(next.startWatching());
+	}
+
+	/**
+	 * Refresh whatever depends on a watched file that has just been
+	 * applied to the graph.
+	 */
+	private void applyFileChange(ModelWatcher.Change c) {
+		if (c.error != null) {
+			JOptionPane.showMessageDialog(frame, c.error + ".\nReopen the model "
+				+ "to see the new version.", "Model Changed", JOptionPane.WARNING_MESSAGE);
+			return;
+		}
+		Logger.getLogger(MSMExplorer.class.getName()).log(Level.INFO,
+			"{0} changed: {1} updated, {2} added, {3} removed",
+			new Object[] {c.file.getName(), c.updated, c.added, c.removed});
+
+		if (c.kind == ModelWatcher.EQPROB_FILE) {
+			m_vis.run("nodeSize");
+		} else if (c.kind == ModelWatcher.MAPPING_FILE && hierarchy != null) {
+			int bottom = ((JSlider) harchPanel.getComponent(0)).getValue();
+			int top = ((JSlider) harchPanel.getComponent(1)).getValue();
+			if (top >= 0 && top < bottom && top < hierarchy.getLevelCount() - 1) {
+				setAggregates(bottom, top);
+			}
+		}
+		m_vis.run("draw");
+	}
+
 	// ------------------------------------------------------------------------
 	//  Utility classes
 	// ------------------------------------------------------------------------
@@ -1736,14 +1940,23 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 		public void actionPerformed(ActionEvent ae) {
 			HierarchyBundle newHierarchy = MSMIOLib.openMSMHierarchy(MSMExplorer.this);
 			if (newHierarchy == null || newHierarchy.graphs == null
-				|| newHierarchy.mappings == null || newHierarchy.graphs.length < 1) {
+				|| newHierarchy.mappings == null || newHierarchy.getLevelCount() < 1) {
+				return;
+			}
+			Graph first;
+			try {
+				first = loadLevel(newHierarchy, 0);
+			} catch (CancellationException ce) {
+				return;
+			}
+			if (first == null) {
 				return;
 			}
 			hierarchy = newHierarchy;
 			
 			//MSMExplorer.this.getImagePath();
 			MSMExplorer.this.frame.dispose();
-			MSMExplorer msme = graphView(hierarchy.graphs[0], "label");
+			MSMExplorer msme = graphView(first, "label");
 			msme.setHierarchy(hierarchy, 0);
 		}
 	}
@@ -1775,7 +1988,33 @@ public class MSMExplorer extends JPanel implements MSMConstants {
 				graphView(g, "label");
 			}
 		}
-	} 
+	}
+
+	public class EstimateMSMAction extends AbstractAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private MSMExplorer m_view;
+
+		/**
+		 * Constructor, initializes name, vis
+		 * @param the MSMExplorer instance to affect
+		 */
+		public EstimateMSMAction(MSMExplorer view) {
+			m_view = view;
+			this.putValue(AbstractAction.NAME, "Estimate From Counts...");
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			Graph g = MSMIOLib.estimateMSM(m_view);
+
+			if (g != null) {
+				m_view.getImagePath();
+				frame.dispose();
+				graphView(g, "label");
+			}
+		}
+	}
 
 	public class SaveMSMAction extends AbstractAction {
 
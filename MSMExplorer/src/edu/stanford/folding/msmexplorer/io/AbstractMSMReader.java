@@ -18,19 +18,210 @@
 package edu.stanford.folding.msmexplorer.io;
 
 import edu.stanford.folding.msmexplorer.MSMConstants;
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JOptionPane;
+import prefuse.data.Graph;
 import prefuse.data.Table;
 import prefuse.data.io.AbstractGraphReader;
+import prefuse.data.io.DataIOException;
 
 /**
  * An abstract superclass for building nodes. This used to be more useful.
  * Maybe it will be useful again...
  *
+ * These days it also routes each file to the right load path: compressed
+ * files are decompressed on a background thread, large local files are
+ * memory-mapped and handed to readMapped for parallel parsing, and the
+ * rest go through the subclass's readGraph(InputStream).
+ *
  * @author brycecr
  */
 public abstract class AbstractMSMReader extends AbstractGraphReader implements MSMConstants {
 
+	//files smaller than this aren't worth mapping and splitting up
+	protected static final long kPARALLEL_THRESHOLD = 8L << 20;
+
+	//smallest chunk we bother handing to a worker
+	private static final long kMIN_CHUNK = 4L << 20;
+
+	//chunks per worker, so one slow chunk doesn't hold up the rest
+	private static final int kCHUNKS_PER_WORKER = 4;
+
 	protected Table m_nodeTable;
 	protected Table m_edgeTable;
 
-	
+	private boolean m_parallel = true;
+
+	/**
+	 * Turn the memory-mapped, multi-threaded load path on or off. It is on
+	 * by default and only used for uncompressed local files larger than a
+	 * few megabytes; everything else goes through the stream reader.
+	 *
+	 * @param parallel whether to allow parallel loading
+	 */
+	public void setParallel(boolean parallel) {
+		m_parallel = parallel;
+	}
+
+	public boolean isParallel() {
+		return m_parallel;
+	}
+
+	/**
+	 * Parallel load path over a whole (uncompressed, local) file.
+	 *
+	 * @param fc channel over the file to read
+	 * @param size size of the file in bytes
+	 * @return the graph read
+	 */
+	protected abstract Graph readMapped(FileChannel fc, long size)
+		throws IOException, DataIOException, InterruptedException;
+
+	/**
+	 * Compressed local files are decompressed on a background thread
+	 * while we parse; everything else is left to prefuse.
+	 */
+	@Override
+	public Graph readGraph(String location) throws DataIOException {
+		File f = new File(location);
+		if (!f.isFile()) {
+			return super.readGraph(location);
+		} else if (!DecompressingInputStream.isCompressed(location)) {
+			return readGraph(f);
+		}
+
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			return readGraph(is);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException ioe) {
+					//nothing useful to do
+				}
+			}
+		}
+	}
+
+	@Override
+	public Graph readGraph(File f) throws DataIOException {
+		if (!m_parallel || f.length() < kPARALLEL_THRESHOLD
+			|| DecompressingInputStream.isCompressed(f.getName())) {
+			return super.readGraph(f);
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel fc = raf.getChannel();
+			return readMapped(fc, fc.size());
+		} catch (InterruptedException ie) {
+			throw new DataIOException("Interrupted while reading " + f.getName(), ie);
+		} catch (IOException ioex) {
+			throw new DataIOException("Memory-mapped read failure on " + f.getName(), ioex);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ioex) {
+					//nothing useful to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Split [start, size) into roughly equal ranges, pushing every
+	 * interior boundary just past the next newline so that no line
+	 * straddles two chunks.
+	 */
+	protected static long[] getChunkBounds(FileChannel fc, long start, long size)
+		throws IOException {
+		int workers = WorkerPool.getParallelism();
+		long chunk = Math.max(kMIN_CHUNK, (size - start) / (workers * kCHUNKS_PER_WORKER));
+		//keep well inside the 2GB limit on a single mapping
+		chunk = Math.min(chunk, Integer.MAX_VALUE / 2);
+
+		long[] bounds = new long[(int)((size - start) / chunk) + 2];
+		int n = 0;
+		bounds[n++] = start;
+		ByteBuffer scan = ByteBuffer.allocate(4096);
+		long pos = start + chunk;
+		while (pos < size) {
+			long nl = -1;
+			while (nl < 0 && pos < size) {
+				scan.clear();
+				int read = fc.read(scan, pos);
+				if (read <= 0) {
+					break;
+				}
+				for (int i = 0; i < read; ++i) {
+					if (scan.get(i) == '\n') {
+						nl = pos + i + 1;
+						break;
+					}
+				}
+				if (nl < 0) {
+					pos += read;
+				}
+			}
+			if (nl < 0 || nl >= size) {
+				break;
+			}
+			bounds[n++] = nl;
+			pos = nl + chunk;
+		}
+		bounds[n++] = size;
+		return Arrays.copyOf(bounds, n);
+	}
+
+	/**
+	 * Run the chunk parsers on the WorkerPool and wait for all of them,
+	 * rethrowing the first failure.
+	 */
+	protected static void runChunks(List<? extends Callable<Void>> chunks)
+		throws DataIOException, InterruptedException {
+		for (Future<Void> fut : WorkerPool.get().invokeAll(chunks)) {
+			try {
+				fut.get();
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof DataIOException) {
+					throw (DataIOException)ee.getCause();
+				}
+				throw new DataIOException("Parallel read failure", ee.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Wrap up the tables, complaining if some probabilities looked off.
+	 */
+	protected Graph buildGraph(boolean notify) {
+		if (notify && GraphicsEnvironment.isHeadless()) {
+			Logger.getLogger(AbstractMSMReader.class.getName()).log(Level.WARNING,
+				"Some transition probabilities are not between 0 and 1");
+		} else if (notify) {
+			JOptionPane.showMessageDialog(null, "Some of your transition probabilities are not between 0 and 1..."
+				+ "\nIf that sounds wrong, check the graph you're loading.", "Wonky TProbs", JOptionPane.WARNING_MESSAGE);
+		}
+		return new Graph(m_nodeTable, m_edgeTable, true);
+	}
 }
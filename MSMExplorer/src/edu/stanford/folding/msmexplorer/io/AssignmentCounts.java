@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Builds a transition count matrix from an MSMBuilder assignments file
+ * (Assignments.h5: one row of state indices per trajectory, padded with
+ * -1) at a chosen lag time.
+ *
+ * Trajectories are read a chunk's worth of rows at a time and the bands
+ * are counted in parallel on the WorkerPool. Each band collects its
+ * transitions as packed (from, to) keys, sorts them and run-length
+ * encodes them; the bands' counts are then merged into one
+ * SparseEdgeTable.
+ *
+ * @author brycecr
+ */
+public class AssignmentCounts {
+
+	/** Dataset names MSMBuilder has used for the assignments, in order of preference. */
+	private static final String[] NAMES = {"Data", "arr_0", "assignments"};
+
+	//bands smaller than this many frames aren't worth a task of their own
+	private static final long kMIN_BAND_FRAMES = 1 << 16;
+
+	private AssignmentCounts() {
+		//prevent instantiation
+	}
+
+	/**
+	 * Count transitions at lag with a sliding window, as MSMBuilder does
+	 * by default.
+	 *
+	 * @see #count(File, int, boolean, ProgressDialog.Progress)
+	 */
+	public static SparseEdgeTable count(File f, int lag) throws DataIOException {
+		return count(f, lag, true, ProgressDialog.NONE);
+	}
+
+	/**
+	 * Count the transitions (a[t], a[t + lag]) in every trajectory of the
+	 * assignments file f. Pairs touching a negative (unassigned or
+	 * padding) frame are skipped.
+	 *
+	 * @param f assignments HDF5 file
+	 * @param lag lag time in frames, at least 1
+	 * @param sliding count from every frame if true; from every lag-th
+	 * frame otherwise
+	 * @param p progress to report to and check for cancellation
+	 * @return the count matrix, with as many rows as the largest state
+	 * index seen plus one
+	 */
+	public static SparseEdgeTable count(File f, final int lag, final boolean sliding,
+		ProgressDialog.Progress p) throws DataIOException {
+		if (lag < 1) {
+			throw new IllegalArgumentException("Lag time must be at least 1: " + lag);
+		}
+		if (p == null) {
+			p = ProgressDialog.NONE;
+		}
+
+		HDF5File h5 = new HDF5File(f);
+		try {
+			final HDF5File.Dataset data = getAssignments(h5);
+			int trajs = data.getRowCount();
+			int len = data.getRowLength();
+
+			//whole chunks per band, enough frames per band to be worth it
+			int step = Math.max(1, data.getRowsPerChunk());
+			while ((long)step * len < kMIN_BAND_FRAMES && step < trajs) {
+				step += Math.max(1, data.getRowsPerChunk());
+			}
+
+			List<Callable<long[][]>> bands = new ArrayList<Callable<long[][]>>();
+			for (int first = 0; first < trajs; first += step) {
+				final int start = first;
+				final int count = Math.min(step, trajs - first);
+				bands.add(new Callable<long[][]>() {
+					public long[][] call() throws DataIOException {
+						return countBand(data.readRows(start, count), count, lag, sliding);
+					}
+				});
+			}
+
+			List<Future<long[][]>> futures = new ArrayList<Future<long[][]>>(bands.size());
+			for (Callable<long[][]> band : bands) {
+				futures.add(WorkerPool.get().submit(band));
+			}
+
+			List<long[][]> counted = new ArrayList<long[][]>(bands.size());
+			try {
+				for (int i = 0; i < futures.size(); ++i) {
+					if (p.isCanceled()) {
+						throw new CancellationException("Counting cancelled");
+					}
+					counted.add(futures.get(i).get());
+					p.setProgress(i + 1, futures.size());
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new DataIOException("Interrupted while counting " + f.getName(), ie);
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof DataIOException) {
+					throw (DataIOException)ee.getCause();
+				}
+				throw new DataIOException(ee.getCause());
+			} finally {
+				for (Future<long[][]> fut : futures) {
+					fut.cancel(false);
+				}
+			}
+			return merge(counted);
+		} finally {
+			h5.close();
+		}
+	}
+
+	/**
+	 * The assignments dataset: by one of the names MSMBuilder uses, or
+	 * else the first object in the file.
+	 */
+	private static HDF5File.Dataset getAssignments(HDF5File h5) throws DataIOException {
+		for (String name : NAMES) {
+			HDF5File.Dataset d = h5.getDataset(name);
+			if (d != null) {
+				return d;
+			}
+		}
+		if (h5.getNames().isEmpty()) {
+			throw new DataIOException("No datasets in assignments file");
+		}
+		return h5.getDataset(h5.getNames().get(0));
+	}
+
+	/**
+	 * Count one band of trajectories.
+	 *
+	 * @return {sorted distinct (from << 32 | to) keys, their counts}
+	 */
+	private static long[][] countBand(int[] rows, int count, int lag, boolean sliding) {
+		int len = rows.length / Math.max(1, count);
+		int stride = sliding ? 1 : lag;
+		long[] keys = new long[Math.max(16, count * Math.max(0, (len - lag) / stride + 1))];
+		int n = 0;
+		for (int r = 0; r < count; ++r) {
+			int base = r * len;
+			for (int t = 0; t + lag < len; t += stride) {
+				int from = rows[base + t];
+				int to = rows[base + t + lag];
+				if (from < 0 || to < 0) {
+					continue;
+				}
+				keys[n++] = ((long)from << 32) | to;
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		return runLength(keys, n);
+	}
+
+	/**
+	 * Collapse sorted keys into distinct keys and counts.
+	 */
+	private static long[][] runLength(long[] keys, int n) {
+		long[] outKeys = new long[n];
+		long[] outCounts = new long[n];
+		int m = -1;
+		for (int i = 0; i < n; ++i) {
+			if (m >= 0 && keys[i] == outKeys[m]) {
+				outCounts[m]++;
+			} else {
+				outKeys[++m] = keys[i];
+				outCounts[m] = 1;
+			}
+		}
+		return new long[][] {Arrays.copyOf(outKeys, m + 1), Arrays.copyOf(outCounts, m + 1)};
+	}
+
+	/**
+	 * Merge the bands' counts pairwise, summing counts of keys seen in
+	 * more than one band.
+	 */
+	private static SparseEdgeTable merge(List<long[][]> bands) throws DataIOException {
+		List<long[][]> level = bands;
+		while (level.size() > 1) {
+			List<long[][]> next = new ArrayList<long[][]>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				next.add((i + 1 < level.size()) ? merge(level.get(i), level.get(i + 1))
+					: level.get(i));
+			}
+			level = next;
+		}
+		long[][] merged = level.isEmpty() ? new long[][] {new long[0], new long[0]}
+			: level.get(0);
+
+		int nnz = merged[0].length;
+		int[] sources = new int[nnz];
+		int[] targets = new int[nnz];
+		double[] vals = new double[nnz];
+		int states = 0;
+		for (int i = 0; i < nnz; ++i) {
+			sources[i] = (int)(merged[0][i] >>> 32);
+			targets[i] = (int)merged[0][i];
+			vals[i] = merged[1][i];
+			states = Math.max(states, Math.max(sources[i], targets[i]) + 1);
+		}
+		return SparseEdgeTable.fromTriplets(states, sources, targets, vals, nnz);
+	}
+
+	private static long[][] merge(long[][] a, long[][] b) {
+		long[] keys = new long[a[0].length + b[0].length];
+		long[] counts = new long[keys.length];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < a[0].length || j < b[0].length) {
+			if (j == b[0].length || (i < a[0].length && a[0][i] < b[0][j])) {
+				keys[n] = a[0][i];
+				counts[n++] = a[1][i++];
+			} else if (i == a[0].length || b[0][j] < a[0][i]) {
+				keys[n] = b[0][j];
+				counts[n++] = b[1][j++];
+			} else {
+				keys[n] = a[0][i];
+				counts[n++] = a[1][i++] + b[1][j++];
+			}
+		}
+		return new long[][] {Arrays.copyOf(keys, n), Arrays.copyOf(counts, n)};
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Decoder for blosc (version 1) compressed buffers, the default
+ * compression PyTables uses for MSMBuilder's HDF5 files, plus the byte
+ * unshuffle shared with HDF5's own shuffle filter.
+ *
+ * Handles the blosclz, lz4 and zlib codecs with or without byte
+ * shuffling. Snappy, zstd and bit shuffling are not supported.
+ *
+ * @author brycecr
+ */
+class Blosc {
+
+	private static final int kHEADER = 16;
+
+	private static final int DOSHUFFLE = 0x01;
+	private static final int MEMCPYED = 0x02;
+	private static final int DOBITSHUFFLE = 0x04;
+	private static final int DONTSPLIT = 0x10;
+
+	private static final int BLOSCLZ = 0;
+	private static final int LZ4 = 1;
+	private static final int ZLIB = 3;
+
+	//blosclz's far-match offset bias
+	private static final int kMAX_DISTANCE = 8191;
+
+	private Blosc() {
+		//prevent instantiation
+	}
+
+	/**
+	 * Decompress one blosc buffer.
+	 */
+	static byte[] decompress(byte[] in) throws DataIOException {
+		if (in.length < kHEADER) {
+			throw new DataIOException("Truncated blosc buffer");
+		}
+		int flags = in[2] & 0xFF;
+		int typesize = in[3] & 0xFF;
+		int nbytes = getInt(in, 4);
+		int blocksize = getInt(in, 8);
+		byte[] out = new byte[nbytes];
+
+		if ((flags & MEMCPYED) != 0) {
+			System.arraycopy(in, kHEADER, out, 0, nbytes);
+			return out;
+		} else if ((flags & DOBITSHUFFLE) != 0 && typesize > 1) {
+			throw new DataIOException("Bit-shuffled blosc buffers are not supported");
+		}
+		int codec = flags >> 5;
+		boolean shuffle = (flags & DOSHUFFLE) != 0 && typesize > 1;
+
+		int nblocks = (nbytes + blocksize - 1) / blocksize;
+		byte[] block = new byte[blocksize];
+		for (int b = 0; b < nblocks; ++b) {
+			int start = getInt(in, kHEADER + 4 * b);
+			int bsize = Math.min(blocksize, nbytes - b * blocksize);
+			boolean leftover = bsize < blocksize;
+			int nsplits = ((flags & DONTSPLIT) == 0 && !leftover && typesize <= 16
+				&& blocksize / typesize >= 128) ? typesize : 1;
+			int neblock = bsize / nsplits;
+
+			int ip = start;
+			int op = 0;
+			for (int s = 0; s < nsplits; ++s) {
+				int csize = getInt(in, ip);
+				ip += 4;
+				if (csize == neblock) {
+					System.arraycopy(in, ip, block, op, neblock);
+				} else {
+					int got = decode(codec, in, ip, csize, block, op, neblock);
+					if (got != neblock) {
+						throw new DataIOException("Corrupt blosc block");
+					}
+				}
+				ip += csize;
+				op += neblock;
+			}
+
+			if (shuffle) {
+				unshuffle(block, 0, bsize, typesize, out, b * blocksize);
+			} else {
+				System.arraycopy(block, 0, out, b * blocksize, bsize);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Undo a byte shuffle of data with elements of typesize bytes.
+	 */
+	static byte[] unshuffle(byte[] data, int typesize) {
+		byte[] out = new byte[data.length];
+		unshuffle(data, 0, data.length, typesize, out, 0);
+		return out;
+	}
+
+	private static void unshuffle(byte[] in, int off, int len, int typesize,
+		byte[] out, int outOff) {
+		int n = len / typesize;
+		for (int j = 0; j < typesize; ++j) {
+			int src = off + j * n;
+			for (int i = 0; i < n; ++i) {
+				out[outOff + i * typesize + j] = in[src + i];
+			}
+		}
+		//a partial trailing element is stored as is
+		int rest = n * typesize;
+		System.arraycopy(in, off + rest, out, outOff + rest, len - rest);
+	}
+
+	private static int decode(int codec, byte[] in, int ip, int len, byte[] out, int op,
+		int maxout) throws DataIOException {
+		try {
+			switch (codec) {
+				case BLOSCLZ:
+					return blosclz(in, ip, len, out, op, maxout);
+				case LZ4:
+					return lz4(in, ip, len, out, op, maxout);
+				case ZLIB:
+					return zlib(in, ip, len, out, op, maxout);
+				default:
+					throw new DataIOException("Unsupported blosc codec " + codec);
+			}
+		} catch (ArrayIndexOutOfBoundsException aioobe) {
+			throw new DataIOException("Corrupt blosc block", aioobe);
+		}
+	}
+
+	/**
+	 * BloscLZ, a FastLZ variant: runs of literals and back references
+	 * with 13 bit (or, via an escape, 16 bit) distances.
+	 */
+	private static int blosclz(byte[] in, int ip, int len, byte[] out, int op, int maxout) {
+		int ipLimit = ip + len;
+		int start = op;
+		int end = op + maxout;
+		int ctrl = in[ip++] & 31;
+		boolean loop = true;
+		do {
+			if (ctrl >= 32) {
+				int mlen = (ctrl >> 5) - 1;
+				int ofs = (ctrl & 31) << 8;
+				int ref = op - ofs;
+				int code;
+				if (mlen == 7 - 1) {
+					do {
+						code = in[ip++] & 0xFF;
+						mlen += code;
+					} while (code == 255);
+				}
+				code = in[ip++] & 0xFF;
+				ref -= code;
+				if (code == 255 && ofs == (31 << 8)) {
+					ofs = (in[ip++] & 0xFF) << 8;
+					ofs += in[ip++] & 0xFF;
+					ref = op - ofs - kMAX_DISTANCE;
+				}
+				if (ip < ipLimit) {
+					ctrl = in[ip++] & 0xFF;
+				} else {
+					loop = false;
+				}
+				ref--;
+				mlen += 3;
+				if (op + mlen > end || ref < start) {
+					return -1;
+				}
+				//byte by byte: the match may overlap what it's writing
+				for (int k = 0; k < mlen; ++k) {
+					out[op++] = out[ref++];
+				}
+			} else {
+				ctrl++;
+				if (op + ctrl > end || ip + ctrl > ipLimit) {
+					return -1;
+				}
+				System.arraycopy(in, ip, out, op, ctrl);
+				ip += ctrl;
+				op += ctrl;
+				loop = ip < ipLimit;
+				if (loop) {
+					ctrl = in[ip++] & 0xFF;
+				}
+			}
+		} while (loop);
+		return op - start;
+	}
+
+	/**
+	 * An LZ4 block (no frame).
+	 */
+	private static int lz4(byte[] in, int ip, int len, byte[] out, int op, int maxout) {
+		int ipLimit = ip + len;
+		int start = op;
+		int end = op + maxout;
+		while (ip < ipLimit) {
+			int token = in[ip++] & 0xFF;
+			int lit = token >>> 4;
+			if (lit == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					lit += b;
+				} while (b == 255);
+			}
+			if (op + lit > end) {
+				return -1;
+			}
+			System.arraycopy(in, ip, out, op, lit);
+			ip += lit;
+			op += lit;
+			if (ip >= ipLimit) {
+				break; //last sequence has only literals
+			}
+			int ofs = (in[ip] & 0xFF) | ((in[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			int mlen = token & 15;
+			if (mlen == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					mlen += b;
+				} while (b == 255);
+			}
+			mlen += 4;
+			int ref = op - ofs;
+			if (ofs == 0 || ref < start || op + mlen > end) {
+				return -1;
+			}
+			for (int k = 0; k < mlen; ++k) {
+				out[op++] = out[ref++];
+			}
+		}
+		return op - start;
+	}
+
+	private static int zlib(byte[] in, int ip, int len, byte[] out, int op, int maxout)
+		throws DataIOException {
+		Inflater inf = new Inflater();
+		try {
+			inf.setInput(in, ip, len);
+			int n = 0;
+			while (n < maxout && !inf.finished()) {
+				int got = inf.inflate(out, op + n, maxout - n);
+				if (got == 0 && inf.needsInput()) {
+					break;
+				}
+				n += got;
+			}
+			return n;
+		} catch (DataFormatException dfe) {
+			throw new DataIOException("Corrupt zlib block in blosc buffer", dfe);
+		} finally {
+			inf.end();
+		}
+	}
+
+	private static int getInt(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8)
+			| ((b[pos + 2] & 0xFF) << 16) | ((b[pos + 3] & 0xFF) << 24);
+	}
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * A tokenizer for the whitespace delimited numeric text files MSMExplorer
+ * reads (MatrixMarket .mtx, dense .dat and newline delimited files).
+ * Ints and doubles are parsed straight out of a byte buffer, so reading a
+ * matrix does not create a String per line and per token the way
+ * readLine/split/parseDouble does.
+ *
+ * Tokens may be separated by any run of spaces, tabs or carriage returns.
+ * Newlines end a record: nextInt and nextDouble never cross a newline,
+ * so a short line is reported instead of silently eating the next one.
+ *
+ * Doubles are correctly rounded, so they match Double.parseDouble bit
+ * for bit. A mantissa of at most 2^53 with a decimal exponent within 22
+ * takes Clinger's fast path (one exact multiply or divide). Anything
+ * else with up to 19 significant digits, which covers %.17g and %.18e,
+ * goes through the Eisel-Lemire algorithm: one 64 x 128 bit multiply by
+ * a truncated power of ten, which either rounds correctly or says it
+ * can't tell. Longer mantissas are truncated to 19 digits and accepted
+ * only when the truncated and next-larger mantissas round to the same
+ * double. What's left (ambiguous halfway cases, subnormals, overflow,
+ * nan, inf) is handed to Double.parseDouble.
+ *
+ * @author brycecr
+ */
+public class ByteTokenizer {
+
+	private static final int kBUFFER_SIZE = 1 << 16;
+
+	//no sane number is longer than this; we keep at least this many
+	//bytes buffered when starting a token so tokens are contiguous
+	private static final int kMAX_TOKEN = 128;
+
+	//significant digits that always fit in an unsigned long; any more
+	//are truncated
+	private static final int kMAX_DIGITS = 19;
+
+	private static final long kMAX_EXACT_MANTISSA = 1L << 53;
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+		1e21, 1e22
+	};
+
+	//10^kMIN_POW10 .. 10^kMAX_POW10 as 128 bit mantissas, normalized so
+	//the top bit is set and rounded down; smaller or larger exponents
+	//underflow or overflow any 19 digit mantissa anyway
+	private static final int kMIN_POW10 = -348;
+	private static final int kMAX_POW10 = 347;
+	private static final long[] POW10_HI = new long[kMAX_POW10 - kMIN_POW10 + 1];
+	private static final long[] POW10_LO = new long[kMAX_POW10 - kMIN_POW10 + 1];
+
+	static {
+		BigInteger ten = BigInteger.TEN;
+		for (int e = kMIN_POW10; e <= kMAX_POW10; ++e) {
+			BigInteger m;
+			if (e >= 0) {
+				m = ten.pow(e);
+				int shift = 128 - m.bitLength();
+				m = (shift >= 0) ? m.shiftLeft(shift) : m.shiftRight(-shift);
+			} else {
+				//floor(2^k / 10^-e), with k picked to leave 128 bits
+				BigInteger d = ten.pow(-e);
+				m = BigInteger.ONE.shiftLeft(127 + d.bitLength()).divide(d);
+			}
+			POW10_HI[e - kMIN_POW10] = m.shiftRight(64).longValue();
+			POW10_LO[e - kMIN_POW10] = m.longValue();
+		}
+	}
+
+	private final InputStream m_is;  //null when reading a fixed buffer
+	private final ByteBuffer m_buf;
+	private int m_pos;
+	private int m_lim;
+	private boolean m_eof;
+	private int m_line = 1;
+
+	/**
+	 * Tokenize the contents of an InputStream through an internal buffer.
+	 *
+	 * @param is stream to read. Not closed by the tokenizer.
+	 */
+	public ByteTokenizer(InputStream is) {
+		this(is, kBUFFER_SIZE);
+	}
+
+	/**
+	 * Tokenize the contents of an InputStream through an internal buffer
+	 * of (at least) the given size.
+	 *
+	 * @param is stream to read. Not closed by the tokenizer.
+	 * @param bufferSize size of the read buffer in bytes
+	 */
+	public ByteTokenizer(InputStream is, int bufferSize) {
+		m_is = is;
+		m_buf = ByteBuffer.allocate(Math.max(bufferSize, 2 * kMAX_TOKEN));
+		m_pos = 0;
+		m_lim = 0;
+		m_eof = false;
+	}
+
+	/**
+	 * Tokenize the bytes between the buffer's current position and its
+	 * limit. The buffer may be direct or memory-mapped; its position
+	 * is not modified.
+	 *
+	 * @param buf bytes to tokenize
+	 */
+	public ByteTokenizer(ByteBuffer buf) {
+		m_is = null;
+		m_buf = buf;
+		m_pos = buf.position();
+		m_lim = buf.limit();
+		m_eof = true;
+	}
+
+	/**
+	 * Point a tokenizer built over a ByteBuffer at a new range of that
+	 * buffer, so one tokenizer can parse many small fields (e.g. XML
+	 * text) that get copied into the same buffer.
+	 *
+	 * @param position index of the first byte to read
+	 * @param limit index one past the last byte to read
+	 */
+	void reset(int position, int limit) {
+		assert m_is == null;
+		m_pos = position;
+		m_lim = limit;
+		m_line = 1;
+	}
+
+	/**
+	 * @return the current (1-indexed) line number, for error reporting
+	 */
+	public int getLineNumber() {
+		return m_line;
+	}
+
+	/**
+	 * Only meaningful for tokenizers built over a ByteBuffer, where it
+	 * says how far into the buffer we've read.
+	 *
+	 * @return index of the next unread byte in the backing buffer
+	 */
+	public int position() {
+		return m_pos;
+	}
+
+	/**
+	 * Make sure at least n bytes are buffered, if the stream has that many
+	 * left.
+	 *
+	 * @return true if at least one byte is available
+	 */
+	private boolean fill(int n) throws IOException {
+		if (m_lim - m_pos >= n || m_eof) {
+			return m_lim > m_pos;
+		}
+
+		byte[] arr = m_buf.array();
+		int rem = m_lim - m_pos;
+		System.arraycopy(arr, m_pos, arr, 0, rem);
+		m_pos = 0;
+		m_lim = rem;
+		while (m_lim < arr.length) {
+			int read = m_is.read(arr, m_lim, arr.length - m_lim);
+			if (read < 0) {
+				m_eof = true;
+				break;
+			}
+			m_lim += read;
+		}
+		return m_lim > m_pos;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private boolean isDelimiter(int p) {
+		if (p >= m_lim) {
+			return true;
+		}
+		byte b = m_buf.get(p);
+		return b == '\n' || isBlank(b);
+	}
+
+	/**
+	 * Skip spaces, tabs and carriage returns but not newlines.
+	 *
+	 * @return the next byte, or -1 at end of input
+	 */
+	private int skipBlanks() throws IOException {
+		while (true) {
+			if (m_pos >= m_lim && !fill(1)) {
+				return -1;
+			}
+			byte b = m_buf.get(m_pos);
+			if (!isBlank(b)) {
+				return b;
+			}
+			m_pos++;
+		}
+	}
+
+	/**
+	 * Advance to the first token of the next non-blank line. If the
+	 * current line still has tokens, stays on the current line.
+	 *
+	 * @return false at end of input
+	 */
+	public boolean nextRecord() throws IOException {
+		while (true) {
+			int b = skipBlanks();
+			if (b < 0) {
+				return false;
+			}
+			if (b != '\n') {
+				return true;
+			}
+			m_pos++;
+			m_line++;
+		}
+	}
+
+	/**
+	 * @return true if there are no more tokens on the current line
+	 */
+	public boolean endOfRecord() throws IOException {
+		int b = skipBlanks();
+		return b < 0 || b == '\n';
+	}
+
+	/**
+	 * Discard the rest of the current line, including its newline.
+	 */
+	public void skipRecord() throws IOException {
+		while (true) {
+			if (m_pos >= m_lim && !fill(1)) {
+				return;
+			}
+			if (m_buf.get(m_pos++) == '\n') {
+				m_line++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skip blank lines and any lines whose first token starts with marker
+	 * (for instance the '%' comment lines in MatrixMarket files).
+	 *
+	 * @param marker comment character
+	 * @return false at end of input
+	 */
+	public boolean skipComments(char marker) throws IOException {
+		while (nextRecord()) {
+			if (m_buf.get(m_pos) != marker) {
+				return true;
+			}
+			skipRecord();
+		}
+		return false;
+	}
+
+	/**
+	 * Position at the start of the next token on this line and make sure
+	 * the whole token is in the buffer.
+	 *
+	 * @return index one past the end of the token
+	 */
+	private int startToken() throws IOException {
+		int b = skipBlanks();
+		if (b < 0 || b == '\n') {
+			throw new NumberFormatException("Missing value on line " + m_line);
+		}
+		fill(kMAX_TOKEN);
+		int end = m_pos;
+		while (!isDelimiter(end)) {
+			end++;
+		}
+		if (end == m_lim && !m_eof) {
+			throw new NumberFormatException("Token too long on line " + m_line);
+		}
+		return end;
+	}
+
+	private NumberFormatException parseError(int start, int end) {
+		return new NumberFormatException("Could not parse \""
+			+ tokenString(start, end) + "\" on line " + m_line);
+	}
+
+	private String tokenString(int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int p = start; p < end; ++p) {
+			sb.append((char) m_buf.get(p));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse the next token on the current line as an int.
+	 *
+	 * @throws NumberFormatException if the line has no more tokens or
+	 * the token is not an int
+	 */
+	public int nextInt() throws IOException {
+		int end = startToken();
+		int start = m_pos;
+		int p = start;
+
+		boolean neg = false;
+		byte b = m_buf.get(p);
+		if (b == '-' || b == '+') {
+			neg = (b == '-');
+			p++;
+		}
+		if (p == end) {
+			throw parseError(start, end);
+		}
+
+		long val = 0;
+		for (; p < end; ++p) {
+			int d = m_buf.get(p) - '0';
+			if (d < 0 || d > 9 || val > Integer.MAX_VALUE) {
+				throw parseError(start, end);
+			}
+			val = val * 10 + d;
+		}
+		val = neg ? -val : val;
+		if (val > Integer.MAX_VALUE || val < Integer.MIN_VALUE) {
+			throw parseError(start, end);
+		}
+
+		m_pos = end;
+		return (int) val;
+	}
+
+	/**
+	 * Parse the next token on the current line as a double.
+	 *
+	 * @throws NumberFormatException if the line has no more tokens or
+	 * the token is not a number
+	 */
+	public double nextDouble() throws IOException {
+		int end = startToken();
+		int start = m_pos;
+		int p = start;
+
+		boolean neg = false;
+		byte b = m_buf.get(p);
+		if (b == '-' || b == '+') {
+			neg = (b == '-');
+			p++;
+		}
+
+		long mant = 0;     //unsigned
+		int sig = 0;
+		int exp = 0;
+		boolean truncated = false;
+		boolean digits = false;
+		for (; p < end; ++p) {
+			int d = m_buf.get(p) - '0';
+			if (d < 0 || d > 9) {
+				break;
+			}
+			digits = true;
+			if (sig < kMAX_DIGITS) {
+				mant = mant * 10 + d;
+				if (mant != 0) {
+					sig++;
+				}
+			} else {
+				truncated |= (d != 0);
+				exp++;
+			}
+		}
+		if (p < end && m_buf.get(p) == '.') {
+			for (++p; p < end; ++p) {
+				int d = m_buf.get(p) - '0';
+				if (d < 0 || d > 9) {
+					break;
+				}
+				digits = true;
+				if (sig < kMAX_DIGITS) {
+					mant = mant * 10 + d;
+					if (mant != 0) {
+						sig++;
+					}
+					exp--;
+				} else {
+					truncated |= (d != 0);
+				}
+			}
+		}
+		if (digits && p < end && (m_buf.get(p) == 'e' || m_buf.get(p) == 'E')) {
+			p++;
+			boolean eneg = false;
+			if (p < end && (m_buf.get(p) == '-' || m_buf.get(p) == '+')) {
+				eneg = (m_buf.get(p) == '-');
+				p++;
+			}
+			int e = 0;
+			int estart = p;
+			for (; p < end; ++p) {
+				int d = m_buf.get(p) - '0';
+				if (d < 0 || d > 9) {
+					break;
+				}
+				if (e < 100000) {
+					e = e * 10 + d;
+				}
+			}
+			if (p == estart) {
+				digits = false;
+			}
+			exp += eneg ? -e : e;
+		}
+
+		m_pos = end;
+
+		if (!digits || p != end) {
+			return slowDouble(start, end);
+		}
+		if (mant == 0) {
+			return neg ? -0.0d : 0.0d;
+		}
+
+		if (!truncated && mant >= 0 && mant <= kMAX_EXACT_MANTISSA && exp >= -22 && exp <= 22) {
+			// both operands exact, so a single correctly rounded op
+			double val = (exp < 0) ? mant / POW10[-exp] : mant * POW10[exp];
+			return neg ? -val : val;
+		}
+
+		long bits = eiselLemire(mant, exp);
+		if (bits >= 0 && truncated && eiselLemire(mant + 1, exp) != bits) {
+			//the dropped digits could matter
+			bits = -1;
+		}
+		if (bits < 0) {
+			return slowDouble(start, end);
+		}
+		double val = Double.longBitsToDouble(bits);
+		return neg ? -val : val;
+	}
+
+	/**
+	 * The Eisel-Lemire algorithm: round mant * 10^exp to the nearest
+	 * double from the top bits of mant times a truncated 128 bit 10^exp.
+	 * Gives up when the truncation leaves it unable to tell which way to
+	 * round, or when the result isn't a normal double.
+	 *
+	 * @param mant nonzero unsigned mantissa
+	 * @return bits of the (positive) double, or -1 if it can't say
+	 */
+	private static long eiselLemire(long mant, int exp) {
+		if (exp < kMIN_POW10 || exp > kMAX_POW10) {
+			return -1;
+		}
+		int clz = Long.numberOfLeadingZeros(mant);
+		mant <<= clz;
+		//floor(log2(10) * exp), plus the bias and the 64 bit shift
+		long exp2 = ((217706L * exp) >> 16) + 64 + 1023 - clz;
+
+		long powHi = POW10_HI[exp - kMIN_POW10];
+		long powLo = POW10_LO[exp - kMIN_POW10];
+		long xHi = multiplyHigh(mant, powHi);
+		long xLo = mant * powHi;
+
+		//if the low bits could still carry, bring in the rest of 10^exp
+		if ((xHi & 0x1FF) == 0x1FF && unsignedLess(xLo + mant, mant)) {
+			long yHi = multiplyHigh(mant, powLo);
+			long yLo = mant * powLo;
+			long mergedHi = xHi;
+			long mergedLo = xLo + yHi;
+			if (unsignedLess(mergedLo, xLo)) {
+				mergedHi++;
+			}
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0
+				&& unsignedLess(yLo + mant, mant)) {
+				return -1;
+			}
+			xHi = mergedHi;
+			xLo = mergedLo;
+		}
+
+		//keep 54 bits, one more than a double, for rounding
+		long msb = xHi >>> 63;
+		long bits = xHi >>> (msb + 9);
+		exp2 -= 1 ^ msb;
+
+		//exactly halfway as far as we can see; can't pick a side
+		if (xLo == 0 && (xHi & 0x1FF) == 0 && (bits & 3) == 1) {
+			return -1;
+		}
+
+		bits += bits & 1;
+		bits >>>= 1;
+		if ((bits >>> 53) > 0) {
+			bits >>>= 1;
+			exp2++;
+		}
+		if (exp2 <= 0 || exp2 >= 0x7FF) {
+			return -1;
+		}
+		return (exp2 << 52) | (bits & 0x000FFFFFFFFFFFFFL);
+	}
+
+	/**
+	 * @return high 64 bits of the unsigned 128 bit product x * y
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xFFFFFFFFL;
+		long y1 = y >>> 32;
+		long t = x1 * y0 + ((x0 * y0) >>> 32);
+		long w1 = (t & 0xFFFFFFFFL) + x0 * y1;
+		return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+	}
+
+	private static boolean unsignedLess(long a, long b) {
+		return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+	}
+
+	private double slowDouble(int start, int end) {
+		try {
+			return Double.parseDouble(tokenString(start, end));
+		} catch (NumberFormatException nfe) {
+			throw parseError(start, end);
+		}
+	}
+}
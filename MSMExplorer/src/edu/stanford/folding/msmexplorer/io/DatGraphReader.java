@@ -18,16 +18,19 @@
 package edu.stanford.folding.msmexplorer.io;
 
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
-import javax.swing.JOptionPane;
 import prefuse.data.Graph;
 import prefuse.data.Table;
+import prefuse.data.column.Column;
 import prefuse.data.io.DataIOException;
-import prefuse.data.parser.DataParseException;
-import prefuse.data.parser.DoubleArrayParser;
 
 
 
@@ -36,6 +39,14 @@ import prefuse.data.parser.DoubleArrayParser;
  * Should mostly be phased out as of MSMBuilder 2.0, but still fully
  * supported here.
  *
+ * Reading happens in two passes: rows are first parsed into compact
+ * per-row sparse buffers (concurrently, for large local files), and once
+ * the nonzeros are counted the edge table is allocated in one go and
+ * filled in bulk.
+ *
+ * As always, the matrix ends at the first line that isn't all numbers;
+ * anything after it is ignored.
+ *
  * @author brycecr
  */
 public class DatGraphReader extends AbstractMSMReader {
@@ -43,9 +54,10 @@ public class DatGraphReader extends AbstractMSMReader {
 	/**
 	 * Prepare backing graph tables for reading.
 	 * 
-	 * @param length 
+	 * @param length number of states
+	 * @param edges number of nonzero entries in the matrix
 	 */
-	private void init(int length) {
+	private void init(int length, int edges) {
 
 		m_nodeTable = new Table(length, 2);
 
@@ -59,7 +71,7 @@ public class DatGraphReader extends AbstractMSMReader {
 			m_nodeTable.setString(i, 0, Integer.toString(i));
 		}
 
-		m_edgeTable = new Table();
+		m_edgeTable = new Table(edges, 3);
 		m_edgeTable.addColumn(Graph.DEFAULT_SOURCE_KEY, int.class); //0th
 		m_edgeTable.addColumn(Graph.DEFAULT_TARGET_KEY, int.class); //1st
 		m_edgeTable.addColumn(TPROB, double.class); //2nd
@@ -69,52 +81,165 @@ public class DatGraphReader extends AbstractMSMReader {
 	 * Read a dense matrix in from an InputStream
 	 * 
 	 * @param is
-	 * @return the graph read in, or an empty new graph on failure.
+	 * @return the graph read in
 	 * @throws DataIOException 
 	 */
 	public Graph readGraph(InputStream is) throws DataIOException {
-
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
-			DoubleArrayParser dap = new DoubleArrayParser();
-
-			boolean notify = false;
-			String line = null;
-			int edgeId = 0;
-			int node = 0;
-			while ((line = br.readLine()) != null && dap.canParse(line)) {
-					try {
-						double[] d = (double[]) dap.parse(line);
-						if (node == 0)
-							init(d.length);
-
-						for (int target = 0; target < d.length; ++target) {
-							if (d[target] == 0.) 
-								continue;
-
-							if (d[target] > 1.0 || d[target] < 0.0) {
-								notify = true;
-							}
+			SparseRows rows = new SparseRows();
+			rows.parse(new ByteTokenizer(is));
+			return fill(Collections.singletonList(rows));
+		} catch (IOException ioe) {
+			throw new DataIOException("Stream read failure in DatGraphReader", ioe);
+		}
+	}
 
-							m_edgeTable.addRow();
-							m_edgeTable.set(edgeId, 0, node);
-							m_edgeTable.set(edgeId, 1, target);
-							m_edgeTable.set(edgeId, 2, d[target]);
-							edgeId++;
-						}
+	/**
+	 * Parallel load path: rows are cut into newline-aligned chunks of the
+	 * mapped file and each chunk is parsed by a worker.
+	 */
+	@Override
+	protected Graph readMapped(FileChannel fc, long size)
+		throws IOException, DataIOException, InterruptedException {
+		long[] bounds = getChunkBounds(fc, 0, size);
+		List<RowChunk> chunks = new ArrayList<RowChunk>(bounds.length);
+		for (int i = 0; i < bounds.length - 1; ++i) {
+			chunks.add(new RowChunk(fc, bounds[i], bounds[i+1]));
+		}
+		runChunks(chunks);
+		return fill(chunks);
+	}
 
-					} catch (DataParseException dioe) {
-						throw new DataIOException("Double Parse Failure", dioe);
-					}
-				node++;
+	/**
+	 * Second pass: with every row's nonzeros counted we know the size of
+	 * the edge table, so allocate it once and copy the buffers in, in row
+	 * order.
+	 *
+	 * @param parts the parsed rows, in file order
+	 */
+	private Graph fill(List<? extends SparseRows> parts) throws DataIOException {
+		//nothing after the first line that isn't a matrix row counts
+		for (int i = 0; i < parts.size(); ++i) {
+			if (parts.get(i).stopped) {
+				parts = parts.subList(0, i + 1);
+				break;
+			}
+		}
+
+		int width = -1;
+		long nnz = 0;
+		boolean notify = false;
+		for (SparseRows part : parts) {
+			if (width < 0 && part.rows > 0) {
+				width = part.width;
+			}
+			nnz += part.count;
+			notify |= part.notify;
+		}
+		if (width < 0) {
+			throw new DataIOException("No matrix rows found");
+		} else if (nnz > Integer.MAX_VALUE) {
+			throw new DataIOException("Too many nonzero entries: " + nnz);
+		}
+
+		init(width, (int)nnz);
+		Column sources = m_edgeTable.getColumn(0);
+		Column targets = m_edgeTable.getColumn(1);
+		Column probs = m_edgeTable.getColumn(2);
+
+		int node = 0;
+		int edgeId = 0;
+		for (SparseRows part : parts) {
+			int k = 0;
+			for (int r = 0; r < part.rows; ++r, ++node) {
+				for (; k < part.rowEnds[r]; ++k, ++edgeId) {
+					sources.setInt(node, edgeId);
+					targets.setInt(part.targets[k], edgeId);
+					probs.setDouble(part.probs[k], edgeId);
+				}
 			}
-			if (notify) {
-				JOptionPane.showMessageDialog(null, "Some of your transition probabilities are not between 0 and 1..."
-					+ "\nIf that sounds wrong, check the graph you're loading.", "Wonky TProbs", JOptionPane.WARNING_MESSAGE);
+		}
+
+		return buildGraph(notify);
+	}
+
+	/**
+	 * The nonzeros of a run of consecutive rows, kept as flat primitive
+	 * arrays with a row end index (like the row pointers of a CSR matrix).
+	 */
+	private static class SparseRows {
+
+		int rows = 0;
+		int width = 0;  //length of the first row
+		int[] rowEnds = new int[256];
+		int[] targets = new int[1024];
+		double[] probs = new double[1024];
+		int count = 0;
+		boolean notify = false;
+		//set if we stopped at a line that isn't all numbers
+		boolean stopped = false;
+
+		void parse(ByteTokenizer tk) throws IOException {
+			while (tk.nextRecord()) {
+				int start = count;
+				boolean odd = false;
+				int target = 0;
+				try {
+					while (!tk.endOfRecord()) {
+						double d = tk.nextDouble();
+						if (d != 0.) {
+							if (d > 1.0 || d < 0.0) {
+								odd = true;
+							}
+							if (count == targets.length) {
+								int cap = count + (count >> 1);
+								targets = Arrays.copyOf(targets, cap);
+								probs = Arrays.copyOf(probs, cap);
+							}
+							targets[count] = target;
+							probs[count++] = d;
+						}
+						target++;
+					}
+				} catch (NumberFormatException nfe) {
+					//trailing notes and the like end the matrix
+					count = start;
+					stopped = true;
+					return;
+				}
+				notify |= odd;
+
+				if (rows == 0) {
+					width = target;
+				}
+				if (rows == rowEnds.length) {
+					rowEnds = Arrays.copyOf(rowEnds, rows + (rows >> 1));
+				}
+				rowEnds[rows++] = count;
 			}
-			return new Graph(m_nodeTable, m_edgeTable, true);
-		} catch (Exception ex) {
-			throw new DataIOException("Buffered Reader Failure", ex);
+		}
+	}
+
+	/**
+	 * Parses the rows in one newline-aligned byte range of the file.
+	 * Runs on a WorkerPool thread.
+	 */
+	private static class RowChunk extends SparseRows implements Callable<Void> {
+
+		private final FileChannel fc;
+		private final long start;
+		private final long end;
+
+		RowChunk(FileChannel fc, long start, long end) {
+			this.fc = fc;
+			this.start = start;
+			this.end = end;
+		}
+
+		public Void call() throws IOException {
+			parse(new ByteTokenizer(
+				fc.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+			return null;
 		}
 	}
 }
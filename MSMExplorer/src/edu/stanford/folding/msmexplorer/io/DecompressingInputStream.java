@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transparent input for compressed (.gz) model files. Decompression
+ * runs on its own thread, which hands filled blocks to the reading
+ * thread through a small bounded pool of reusable buffers, so
+ * inflating and parsing overlap instead of taking turns.
+ *
+ * Use open(File) to get a stream for any input file; uncompressed files
+ * just get a plain buffered stream.
+ *
+ * @author brycecr
+ */
+public class DecompressingInputStream extends InputStream {
+
+	private static final int kBLOCK_SIZE = 1 << 16;
+	private static final int kNUM_BLOCKS = 8;
+
+	private static final String[] SUFFIXES = {".gz", ".gzip"};
+
+	/** A buffer travelling between the two threads. */
+	private static class Block {
+		final byte[] data;
+		int len;
+
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	//handed over by the decompressor at end of input (or on error)
+	private static final Block END = new Block(0);
+
+	private final BlockingQueue<Block> m_full;
+	private final BlockingQueue<Block> m_free;
+	private final Thread m_worker;
+	private volatile IOException m_error;
+	private volatile boolean m_closed;
+
+	private Block m_current;
+	private int m_pos;
+
+	/**
+	 * @param name file name or path
+	 * @return true if name has a compression suffix we can read
+	 */
+	public static boolean isCompressed(String name) {
+		String lower = name.toLowerCase();
+		for (String suffix : SUFFIXES) {
+			if (lower.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param name file name or path
+	 * @return name without its compression suffix, e.g. tProb.mtx for
+	 * tProb.mtx.gz. Uncompressed names are returned unchanged.
+	 */
+	public static String stripCompression(String name) {
+		String lower = name.toLowerCase();
+		for (String suffix : SUFFIXES) {
+			if (lower.endsWith(suffix)) {
+				return name.substring(0, name.length() - suffix.length());
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Open f for reading, decompressing it on a background thread if its
+	 * name says it is compressed.
+	 *
+	 * @param f file to open
+	 * @return a stream over the (uncompressed) contents of f
+	 */
+	public static InputStream open(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		if (isCompressed(f.getName())) {
+			return new DecompressingInputStream(new GZIPInputStream(is, kBLOCK_SIZE));
+		}
+		return new BufferedInputStream(is, kBLOCK_SIZE);
+	}
+
+	/**
+	 * Start draining source on a background thread.
+	 *
+	 * @param source (decompressing) stream to read ahead from. Closed
+	 * by the background thread when done.
+	 */
+	public DecompressingInputStream(final InputStream source) {
+		m_full = new ArrayBlockingQueue<Block>(kNUM_BLOCKS + 1);
+		m_free = new ArrayBlockingQueue<Block>(kNUM_BLOCKS);
+		for (int i = 0; i < kNUM_BLOCKS; ++i) {
+			m_free.add(new Block(kBLOCK_SIZE));
+		}
+
+		m_worker = new Thread(new Runnable() {
+			public void run() {
+				decompress(source);
+			}
+		}, "MSMExplorer decompressor");
+		m_worker.setDaemon(true);
+		m_worker.start();
+	}
+
+	private void decompress(InputStream source) {
+		try {
+			while (!m_closed) {
+				Block b = m_free.take();
+				b.len = 0;
+				int read;
+				while (b.len < b.data.length
+					&& (read = source.read(b.data, b.len, b.data.length - b.len)) >= 0) {
+					b.len += read;
+				}
+				if (b.len == 0) {
+					break;
+				}
+				m_full.put(b);
+			}
+		} catch (IOException ioe) {
+			m_error = ioe;
+		} catch (InterruptedException ie) {
+			//closed under us; nobody is waiting
+		} finally {
+			try {
+				source.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+			if (!m_closed) {
+				try {
+					m_full.put(END);
+				} catch (InterruptedException ie) {
+					//closed under us
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return false when the input is exhausted
+	 */
+	private boolean nextBlock() throws IOException {
+		if (m_current == END) {
+			return false;
+		}
+		if (m_current != null) {
+			m_free.offer(m_current);
+		}
+		try {
+			m_current = m_full.take();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted waiting for decompressor");
+		}
+		m_pos = 0;
+		if (m_current == END) {
+			if (m_error != null) {
+				throw new IOException("Decompression failed", m_error);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ((m_current == null || m_pos >= m_current.len) && !nextBlock()) {
+			return -1;
+		}
+		return m_current.data[m_pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if ((m_current == null || m_pos >= m_current.len) && !nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, m_current.len - m_pos);
+		System.arraycopy(m_current.data, m_pos, buf, off, n);
+		m_pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return (m_current == null || m_current == END) ? 0 : m_current.len - m_pos;
+	}
+
+	@Override
+	public void close() {
+		m_closed = true;
+		m_worker.interrupt();
+	}
+}
@@ -20,10 +20,12 @@ package edu.stanford.folding.msmexplorer.io;
 import edu.stanford.folding.msmexplorer.MSMConstants;
 import java.awt.Component;
 import java.io.File;
+import java.util.Arrays;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import prefuse.data.Graph;
 import prefuse.data.Table;
+import prefuse.data.io.DataIOException;
 import prefuse.util.io.SimpleFileFilter;
 
 /**
@@ -57,49 +59,107 @@ public class EQProbReader implements MSMConstants {
 	 * on failure, the original unmodified graph g
 	 */
 	public static Graph getEqProbs(Component c, Graph g, String path) {
+		File f = locateEqProbFile(c, path);
+		if (f == null) {
+			return g;
+		}
+		return addEqProbs(g, f);
+	}
+
+	/**
+	 * Prompt the user whether an eqprob file is desired, and, if so,
+	 * present user with an open dialog to select the equilibrium  probabilities
+	 * file.
+	 *
+	 * @param c parent component (or null)
+	 * @param g graph to add eqprobs to
+	 * @return on success, g with added eqprobs; on failure, original
+	 * graph g
+	 */
+	public static Graph getEqProbs(Component c, Graph g) {
+		File f = locateEqProbFile(c);
+		if (f == null) {
+			return g;
+		}
+		return addEqProbs(g, f);
+	}
+
+	/**
+	 * The file-finding half of getEqProbs(Component, Graph, String):
+	 * offers each likely eqProb file in the directory at path, then falls
+	 * back to locateEqProbFile(Component). Useful when the caller needs to
+	 * know which file the eqProbs came from.
+	 *
+	 * @param c parent component
+	 * @param path string denoting directory to search for eqProb files
+	 * @return the file the user accepted, or null if none
+	 */
+	public static File locateEqProbFile(Component c, String path) {
 		File topList[];
 
 		if (path == null) {
-			return getEqProbs(c, g);
+			return locateEqProbFile(c);
 		}
 		try { 
 			File top = new File (path);
 			topList = top.listFiles();
 		} catch (Exception e) {
-			return getEqProbs(c, g);
+			return locateEqProbFile(c);
 		}
 
 		for (File f : topList) {
 			String name = f.getName();
-			if (name.startsWith("Population") ||
-				name.startsWith("eqProb") ||
-				name.startsWith("eqprob") ||
-				name.startsWith("EQPROB") ||
-				name.startsWith("EqProb")) {
+			if (isEqProbName(name)) {
 				int ret = JOptionPane.showConfirmDialog(c, "Found file " + name 
 					+ "\nShould MSMExplorer add the contents of this file"
 					+ "\nas the Equilibruim Probabilities for the graph"
 					+ " being opened?", "Use Auto-found EqProbs?", 
 					JOptionPane.YES_NO_OPTION);
 				if (ret == JOptionPane.YES_OPTION) {
-					return addEqProbs(g, f);
+					return f;
 				}
 			}
 		}
-		return getEqProbs(c, g);
+		return locateEqProbFile(c);
 	}
-	
+
 	/**
-	 * Prompt the user whether an eqprob file is desired, and, if so,
-	 * present user with an open dialog to select the equilibrium  probabilities
-	 * file.
-	 * 
+	 * locateEqProbFile without the questions: the first likely eqProb
+	 * file in dir (in name order), for runs with nobody to ask.
+	 *
+	 * @param dir directory to search
+	 * @return the file found, or null if none
+	 */
+	public static File findEqProbFile(File dir) {
+		File[] list = (dir == null) ? null : dir.listFiles();
+		if (list == null) {
+			return null;
+		}
+		Arrays.sort(list);
+		for (File f : list) {
+			if (f.isFile() && isEqProbName(f.getName())) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	static boolean isEqProbName(String name) {
+		return name.startsWith("Population") ||
+			name.startsWith("eqProb") ||
+			name.startsWith("eqprob") ||
+			name.startsWith("EQPROB") ||
+			name.startsWith("EqProb");
+	}
+
+	/**
+	 * The file-finding half of getEqProbs(Component, Graph): asks whether
+	 * an eqProb file is wanted and, if so, shows an open dialog for it.
+	 *
 	 * @param c parent component (or null)
-	 * @param g graph to add eqprobs to
-	 * @return on success, g with added eqprobs; on failure, original
-	 * graph g
+	 * @return the selected file, or null if none
 	 */
-	public static Graph getEqProbs(Component c, Graph g) {
+	public static File locateEqProbFile(Component c) {
 		Object[] opts = {"Locate", "Not now"};
 		int opt = JOptionPane.showOptionDialog(c, 
 			"Would you like to locate an equilibrium probabilities file? "
@@ -109,7 +169,7 @@ public class EQProbReader implements MSMConstants {
 			JOptionPane.WARNING_MESSAGE, null, opts, opts[0]);
 
 		if (opt == JOptionPane.NO_OPTION) {
-			return g;
+			return null;
 		}
 		
 		JFileChooser jfc = new JFileChooser();
@@ -121,13 +181,10 @@ public class EQProbReader implements MSMConstants {
 
 		int retval = jfc.showOpenDialog(c);
 		if (retval != JFileChooser.APPROVE_OPTION) {
-			return g;
+			return null;
 		}
 
-		File f = jfc.getSelectedFile();
-		g = addEqProbs(g, f);
-
-		return g;
+		return jfc.getSelectedFile();
 	}
 
 	/**
@@ -143,7 +200,7 @@ public class EQProbReader implements MSMConstants {
 			return null;
 		}
 		
-		Object[] probs = NewlineDelimitedReader.read(f);
+		double[] probs = NewlineDelimitedReader.readDoubles(f);
 		Table nt = g.getNodeTable();
 
 
@@ -151,14 +208,28 @@ public class EQProbReader implements MSMConstants {
 			return null;
 		}
 
-		assert Double.class.isAssignableFrom(probs[0].getClass());
-
-		if (nt.getRowCount() != probs.length) {
+		try {
+			setEqProbs(g, probs);
+		} catch (DataIOException dioe) {
 			JOptionPane.showMessageDialog(null, "Equilibrium Probabilities file is"
 				+ " different length than number of nodes in graph.", 
 				"EqProb Read Error",
 				JOptionPane.ERROR_MESSAGE);
-			return g;
+		}
+		return g;
+	}
+
+	/**
+	 * Store probs, normalized, as the eqProb column of g, adding the
+	 * column if need be.
+	 *
+	 * @throws DataIOException if there isn't one value per node
+	 */
+	public static void setEqProbs(Graph g, double[] probs) throws DataIOException {
+		Table nt = g.getNodeTable();
+		if (nt.getRowCount() != probs.length) {
+			throw new DataIOException("Expected " + nt.getRowCount()
+				+ " equilibrium probabilities, found " + probs.length);
 		}
 
 		int ind;
@@ -169,12 +240,10 @@ public class EQProbReader implements MSMConstants {
 
 		double sum = 0.0;
 		for (int row = 0; row < probs.length; ++row) {
-			sum += (Double)probs[row];
+			sum += probs[row];
 		}
 		for (int row = 0; row < probs.length; ++row) {
-			nt.setDouble(row, EQPROB, (Double)probs[row] / sum);
+			nt.setDouble(row, EQPROB, probs[row] / sum);
 		}
-
-		return g;
 	}
 }
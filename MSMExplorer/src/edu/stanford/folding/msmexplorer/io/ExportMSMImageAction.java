@@ -17,16 +17,23 @@
  */
 package edu.stanford.folding.msmexplorer.io;
 
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.filechooser.FileFilter;
 import org.apache.batik.swing.svg.SVGFileFilter;
 import prefuse.Display;
@@ -38,6 +45,10 @@ import prefuse.util.io.SimpleFileFilter;
  * A copy of ExportDisplayAction that adds support for SVG writing via SVGWriter.saveSVG.
  * Because a subclass of ExportDisplayAction can't splice into the SVG stuff at the right point,
  * we make a copy ourselves. 
+ *
+ * Raster exports can also go through TiledImageWriter, which paints and
+ * encodes the image a tile at a time; that is forced for images too big
+ * to hold in memory in one piece.
  * 
  * @author brycecr
  */
@@ -46,6 +57,10 @@ public class ExportMSMImageAction extends AbstractAction {
     private Display display;
     private JFileChooser chooser;
     private ScaleSelector scaler;
+    private JCheckBox tiled;
+
+    /** Above this many pixels, always export in tiles. */
+    private static final long kMAX_SINGLE_PIXELS = 1L << 26;
 
     /**
      * Create a new ExportDisplayAction for the given Display.
@@ -74,7 +89,13 @@ public class ExportMSMImageAction extends AbstractAction {
         }
 	chooser.setFileFilter(new SVGFileFilter());
         seen.clear(); seen = null;
-        chooser.setAccessory(scaler);
+        tiled = new JCheckBox("Render in tiles");
+        tiled.setToolTipText("For poster sizes: PNG is streamed a band at a time, "
+                + "other formats are written as a directory of tiles");
+        JPanel accessory = new JPanel(new BorderLayout());
+        accessory.add(scaler, BorderLayout.CENTER);
+        accessory.add(tiled, BorderLayout.SOUTH);
+        chooser.setAccessory(accessory);
     }
     
     /**
@@ -116,6 +137,9 @@ public class ExportMSMImageAction extends AbstractAction {
         try {
 	    if (ff instanceof SVGFileFilter) {
 		    success = SVGWriter.saveSVG(display, f);
+	    } else if (tiled.isSelected() || (long)(scale * display.getWidth())
+		    * (long)(scale * display.getHeight()) > kMAX_SINGLE_PIXELS) {
+		    success = saveTiled(f, scale);
 	    } else {
 		    OutputStream out = new BufferedOutputStream(
 			    new FileOutputStream(f));
@@ -124,6 +148,7 @@ public class ExportMSMImageAction extends AbstractAction {
 		    out.close();
 	    }
         } catch ( Exception e ) {
+            Logger.getLogger(ExportMSMImageAction.class.getName()).log(Level.SEVERE, null, e);
             success = false;
         }
         // show result dialog on failure
@@ -134,5 +159,27 @@ public class ExportMSMImageAction extends AbstractAction {
                     JOptionPane.ERROR_MESSAGE);
         }
     }
+
+    /**
+     * Export through TiledImageWriter behind a progress dialog.
+     * @return false on failure, true on success or cancel
+     */
+    private boolean saveTiled(final File f, double scale) throws Exception {
+        final TiledImageWriter writer = new TiledImageWriter(display, scale);
+        try {
+            ProgressDialog.run(display, "Exporting Image", "Writing " + f.getName()
+                    + " (" + writer.getWidth() + " x " + writer.getHeight() + ")...",
+                    "tiles", new ProgressDialog.Task<Void>() {
+                public Void run(ProgressDialog.Progress p) throws Exception {
+                    writer.setProgress(p);
+                    writer.write(f);
+                    return null;
+                }
+            });
+        } catch (CancellationException ce) {
+            //writer already removed the partial file
+        }
+        return true;
+    }
     
 } // end of class ExportMSMImageAction
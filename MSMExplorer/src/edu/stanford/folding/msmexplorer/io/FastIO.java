@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bits shared by the streaming GraphML reader and writer and
+ * FastTableWriter: the column type codes they switch on per cell, and
+ * their gzip setup.
+ *
+ * @author brycecr
+ */
+final class FastIO {
+
+	static final int INT = 0;
+	static final int LONG = 1;
+	static final int FLOAT = 2;
+	static final int DOUBLE = 3;
+	static final int BOOLEAN = 4;
+	//strings, and anything else that's written with toString
+	static final int STRING = 5;
+
+	private FastIO() {
+		//prevent instantiation
+	}
+
+	/**
+	 * @return the type code for a column of type
+	 */
+	static int getType(Class<?> type) {
+		if (type == int.class) {
+			return INT;
+		} else if (type == long.class) {
+			return LONG;
+		} else if (type == float.class) {
+			return FLOAT;
+		} else if (type == double.class) {
+			return DOUBLE;
+		} else if (type == boolean.class) {
+			return BOOLEAN;
+		}
+		return STRING;
+	}
+
+	/**
+	 * Gzip onto os at the fastest level. What we write (numbers, XML)
+	 * compresses well even there, and the default level costs more than
+	 * the formatting does.
+	 */
+	static OutputStream gzip(OutputStream os, int bufferSize) throws IOException {
+		return new GZIPOutputStream(os, bufferSize) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		};
+	}
+}
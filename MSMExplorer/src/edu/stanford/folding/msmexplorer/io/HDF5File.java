@@ -0,0 +1,757 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Just enough of HDF5 to read the integer arrays MSMBuilder writes
+ * (through PyTables or h5py), such as the assignments in Assignments.h5,
+ * without the native HDF5 library.
+ *
+ * Supported: version 0 and 1 superblocks with 8 byte offsets and
+ * lengths, version 1 object headers, datasets in the root group (found
+ * through its symbol table or link messages), fixed-point datatypes of
+ * 1-8 bytes in either byte order, contiguous and chunked (version 1
+ * B-tree) layouts, and the deflate, shuffle, fletcher32 and blosc
+ * filters. Anything else fails with a DataIOException naming what it
+ * didn't understand.
+ *
+ * Reads are positional on one FileChannel, so a Dataset can be read
+ * from several threads at once.
+ *
+ * @author brycecr
+ */
+public class HDF5File implements Closeable {
+
+	private static final long kSIGNATURE = 0x894844460D0A1A0AL;
+	private static final long UNDEFINED = -1L;
+
+	//object header message types
+	private static final int MSG_DATASPACE = 0x0001;
+	private static final int MSG_DATATYPE = 0x0003;
+	private static final int MSG_FILL_OLD = 0x0004;
+	private static final int MSG_FILL = 0x0005;
+	private static final int MSG_LINK = 0x0006;
+	private static final int MSG_LAYOUT = 0x0008;
+	private static final int MSG_FILTERS = 0x000B;
+	private static final int MSG_CONTINUATION = 0x0010;
+	private static final int MSG_SYMBOL_TABLE = 0x0011;
+
+	//filter ids
+	private static final int FILTER_DEFLATE = 1;
+	private static final int FILTER_SHUFFLE = 2;
+	private static final int FILTER_FLETCHER32 = 3;
+	private static final int FILTER_BLOSC = 32001;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final String m_name;
+	private final RandomAccessFile m_raf;
+	private final FileChannel m_fc;
+	private final long m_base;
+	private final Map<String, Long> m_members = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Open f and read the names in its root group.
+	 */
+	public HDF5File(File f) throws DataIOException {
+		m_name = f.getName();
+		try {
+			m_raf = new RandomAccessFile(f, "r");
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		}
+		m_fc = m_raf.getChannel();
+		try {
+			ByteBuffer sb = readAbsolute(0, 96);
+			if (sb.order(ByteOrder.BIG_ENDIAN).getLong(0) != kSIGNATURE) {
+				throw fail("not an HDF5 file (or user block present)");
+			}
+			sb.order(ByteOrder.LITTLE_ENDIAN);
+			int version = sb.get(8);
+			if (version != 0 && version != 1) {
+				throw fail("unsupported superblock version " + version);
+			}
+			if (sb.get(13) != 8 || sb.get(14) != 8) {
+				throw fail("only 8 byte offsets and lengths are supported");
+			}
+			//version 1 adds indexed storage K and two reserved bytes
+			int pos = (version == 0) ? 24 : 28;
+			m_base = sb.getLong(pos);
+			//skip free-space, end of file and driver info addresses
+			pos += 32;
+			//root group symbol table entry
+			long rootHeader = sb.getLong(pos + 8);
+			int cacheType = sb.getInt(pos + 16);
+			if (cacheType == 1) {
+				readSymbolTable(sb.getLong(pos + 24), sb.getLong(pos + 32));
+			} else {
+				readGroupHeader(rootHeader);
+			}
+		} catch (IOException ioe) {
+			close();
+			throw new DataIOException(ioe);
+		} catch (DataIOException dioe) {
+			close();
+			throw dioe;
+		}
+	}
+
+	/**
+	 * @return names of the objects in the root group, in file order
+	 */
+	public List<String> getNames() {
+		return new ArrayList<String>(m_members.keySet());
+	}
+
+	/**
+	 * @param name object in the root group
+	 * @return the dataset, or null if there's no object called name
+	 */
+	public Dataset getDataset(String name) throws DataIOException {
+		Long addr = m_members.get(name);
+		if (addr == null) {
+			return null;
+		}
+		try {
+			return new Dataset(name, addr);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		}
+	}
+
+	public void close() {
+		try {
+			m_raf.close();
+		} catch (IOException ioe) {
+			//nothing useful to do
+		}
+	}
+
+	private DataIOException fail(String why) {
+		return new DataIOException(m_name + ": " + why);
+	}
+
+	/**
+	 * Read len bytes at file address addr (relative to the base address).
+	 */
+	private ByteBuffer read(long addr, int len) throws IOException {
+		return readAbsolute(m_base + addr, len);
+	}
+
+	private ByteBuffer readAbsolute(long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (m_fc.read(buf, pos + buf.position()) < 0) {
+				break;
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	// -- groups --------------------------------------------------------------
+
+	private void readGroupHeader(long addr) throws IOException, DataIOException {
+		for (Message m : readMessages(addr)) {
+			if (m.type == MSG_SYMBOL_TABLE) {
+				readSymbolTable(m.data.getLong(0), m.data.getLong(8));
+			} else if (m.type == MSG_LINK) {
+				readLink(m.data);
+			}
+		}
+	}
+
+	private void readSymbolTable(long btree, long heap) throws IOException, DataIOException {
+		ByteBuffer h = read(heap, 32);
+		if (h.getInt(0) != 0x50414548) { // "HEAP"
+			throw fail("bad local heap signature");
+		}
+		int heapSize = (int)h.getLong(8);
+		ByteBuffer names = read(h.getLong(24), heapSize);
+		readGroupNode(btree, names);
+	}
+
+	private void readGroupNode(long addr, ByteBuffer names) throws IOException, DataIOException {
+		ByteBuffer node = read(addr, 24);
+		if (node.getInt(0) != 0x45455254) { // "TREE"
+			throw fail("bad B-tree signature");
+		}
+		int level = node.get(5);
+		int entries = node.getShort(6) & 0xFFFF;
+		//keys are heap offsets (8 bytes) interleaved with child addresses
+		ByteBuffer body = read(addr + 24, 16 * entries + 8);
+		for (int i = 0; i < entries; ++i) {
+			long child = body.getLong(16 * i + 8);
+			if (level > 0) {
+				readGroupNode(child, names);
+			} else {
+				readSymbolNode(child, names);
+			}
+		}
+	}
+
+	private void readSymbolNode(long addr, ByteBuffer names) throws IOException, DataIOException {
+		ByteBuffer head = read(addr, 8);
+		if (head.getInt(0) != 0x444F4E53) { // "SNOD"
+			throw fail("bad symbol table node signature");
+		}
+		int count = head.getShort(6) & 0xFFFF;
+		ByteBuffer entries = read(addr + 8, 40 * count);
+		for (int i = 0; i < count; ++i) {
+			int nameOff = (int)entries.getLong(40 * i);
+			m_members.put(cString(names, nameOff), entries.getLong(40 * i + 8));
+		}
+	}
+
+	private void readLink(ByteBuffer d) {
+		int flags = d.get(1) & 0xFF;
+		int pos = 2;
+		int linkType = 0;
+		if ((flags & 0x08) != 0) {
+			linkType = d.get(pos++);
+		}
+		if ((flags & 0x04) != 0) {
+			pos += 8; //creation order
+		}
+		if ((flags & 0x10) != 0) {
+			pos++; //charset
+		}
+		int lenSize = 1 << (flags & 3);
+		long len = 0;
+		for (int i = 0; i < lenSize; ++i) {
+			len |= (long)(d.get(pos++) & 0xFF) << (8 * i);
+		}
+		byte[] name = new byte[(int)len];
+		d.position(pos);
+		d.get(name);
+		if (linkType == 0) { //hard link
+			m_members.put(new String(name, Charset.forName("UTF-8")), d.getLong());
+		}
+	}
+
+	private static String cString(ByteBuffer b, int off) {
+		int end = off;
+		while (end < b.limit() && b.get(end) != 0) {
+			end++;
+		}
+		byte[] s = new byte[end - off];
+		for (int i = 0; i < s.length; ++i) {
+			s[i] = b.get(off + i);
+		}
+		return new String(s, ASCII);
+	}
+
+	// -- object headers ------------------------------------------------------
+
+	private static class Message {
+		int type;
+		ByteBuffer data;
+	}
+
+	private List<Message> readMessages(long addr) throws IOException, DataIOException {
+		ByteBuffer head = read(addr, 16);
+		if (head.get(0) != 1) {
+			throw fail("unsupported object header version " + head.get(0));
+		}
+		int count = head.getShort(2) & 0xFFFF;
+		int size = head.getInt(8);
+		List<Message> msgs = new ArrayList<Message>(count);
+		//blocks of messages: the header's own, then any continuations
+		List<long[]> blocks = new ArrayList<long[]>();
+		blocks.add(new long[] {addr + 16, size});
+		for (int b = 0; b < blocks.size() && msgs.size() < count; ++b) {
+			ByteBuffer block = read(blocks.get(b)[0], (int)blocks.get(b)[1]);
+			int pos = 0;
+			while (pos + 8 <= block.limit() && msgs.size() < count) {
+				Message m = new Message();
+				m.type = block.getShort(pos) & 0xFFFF;
+				int len = block.getShort(pos + 2) & 0xFFFF;
+				block.position(pos + 8);
+				block.limit(pos + 8 + len);
+				m.data = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+				block.limit(block.capacity());
+				pos += 8 + len;
+				msgs.add(m);
+				if (m.type == MSG_CONTINUATION) {
+					blocks.add(new long[] {m.data.getLong(0), m.data.getLong(8)});
+				}
+			}
+		}
+		return msgs;
+	}
+
+	// -- datasets ------------------------------------------------------------
+
+	private static class Filter {
+		int id;
+		int[] values;
+	}
+
+	private static class Chunk {
+		long[] offset;
+		int size;
+		int mask;
+		long addr;
+	}
+
+	/**
+	 * An integer dataset. Rows are indices along the first dimension
+	 * (trajectories, for assignments); a 1-d dataset is a single row.
+	 */
+	public class Dataset {
+
+		private final String m_dsName;
+		private long[] m_shape;
+		private int m_elemSize;
+		private boolean m_signed = true;
+		private ByteOrder m_order = ByteOrder.LITTLE_ENDIAN;
+		private long m_fill = 0;
+		private final List<Filter> m_filters = new ArrayList<Filter>();
+
+		//contiguous layout
+		private long m_address = UNDEFINED;
+		//chunked layout
+		private int[] m_chunkShape;
+		private List<Chunk> m_chunks;
+
+		private Dataset(String name, long addr) throws IOException, DataIOException {
+			m_dsName = name;
+			boolean typed = false;
+			Message fill = null;
+			for (Message m : readMessages(addr)) {
+				switch (m.type) {
+					case MSG_DATASPACE:
+						readDataspace(m.data);
+						break;
+					case MSG_DATATYPE:
+						readDatatype(m.data);
+						typed = true;
+						break;
+					case MSG_FILL_OLD:
+					case MSG_FILL:
+						//needs the datatype, which may come later
+						if (fill == null || m.type == MSG_FILL) {
+							fill = m;
+						}
+						break;
+					case MSG_LAYOUT:
+						readLayout(m.data);
+						break;
+					case MSG_FILTERS:
+						readFilters(m.data);
+						break;
+					default:
+						break;
+				}
+			}
+			if (m_shape == null || !typed) {
+				throw fail(name + " is not a dataset");
+			} else if (fill != null) {
+				readFill(fill);
+			}
+			if (m_address == UNDEFINED && m_chunks == null) {
+				throw fail(name + " has an unsupported storage layout");
+			}
+			if (m_chunks != null) {
+				//in row order, so a band of rows is a run of chunks
+				Collections.sort(m_chunks, new Comparator<Chunk>() {
+					public int compare(Chunk a, Chunk b) {
+						for (int d = 0; d < a.offset.length; ++d) {
+							if (a.offset[d] != b.offset[d]) {
+								return (a.offset[d] < b.offset[d]) ? -1 : 1;
+							}
+						}
+						return 0;
+					}
+				});
+			}
+		}
+
+		private void readDataspace(ByteBuffer d) {
+			int version = d.get(0);
+			int rank = d.get(1);
+			int pos = (version == 1) ? 8 : 4;
+			m_shape = new long[rank];
+			for (int i = 0; i < rank; ++i) {
+				m_shape[i] = d.getLong(pos + 8 * i);
+			}
+		}
+
+		private void readDatatype(ByteBuffer d) throws DataIOException {
+			int cls = d.get(0) & 0x0F;
+			if (cls != 0) {
+				throw fail(m_dsName + " is not an integer dataset (class " + cls + ")");
+			}
+			int bits = d.get(1);
+			m_order = ((bits & 1) != 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			m_signed = (bits & 8) != 0;
+			m_elemSize = d.getInt(4);
+			if (m_elemSize != 1 && m_elemSize != 2 && m_elemSize != 4 && m_elemSize != 8) {
+				throw fail("unsupported integer size " + m_elemSize);
+			}
+		}
+
+		private void readFill(Message m) {
+			ByteBuffer d = m.data;
+			if (m.type == MSG_FILL_OLD) {
+				if (d.limit() >= 4) {
+					readFillValue(d, 0);
+				}
+				return;
+			}
+			int version = d.get(0);
+			if (version == 1 || version == 2) {
+				if (d.get(3) != 0 && d.limit() >= 8) {
+					readFillValue(d, 4);
+				}
+			} else if (version == 3) {
+				if ((d.get(1) & 0x20) != 0) {
+					readFillValue(d, 2);
+				}
+			}
+		}
+
+		private void readFillValue(ByteBuffer d, int pos) {
+			int size = d.getInt(pos);
+			if (size == m_elemSize && d.limit() >= pos + 4 + size) {
+				ByteBuffer v = d.duplicate();
+				v.position(pos + 4);
+				m_fill = get(v.slice().order(m_order), 0);
+			}
+		}
+
+		private void readLayout(ByteBuffer d) throws IOException, DataIOException {
+			int version = d.get(0);
+			if (version == 3) {
+				int cls = d.get(1);
+				if (cls == 1) {
+					m_address = d.getLong(2);
+				} else if (cls == 2) {
+					int dims = d.get(2);
+					long btree = d.getLong(3);
+					m_chunkShape = new int[dims - 1];
+					for (int i = 0; i < dims - 1; ++i) {
+						m_chunkShape[i] = d.getInt(11 + 4 * i);
+					}
+					readChunks(btree, dims);
+				} else {
+					throw fail("unsupported layout class " + cls);
+				}
+			} else if (version == 1 || version == 2) {
+				int dims = d.get(1);
+				int cls = d.get(2);
+				long addr = d.getLong(8);
+				if (cls == 1) {
+					m_address = addr;
+				} else if (cls == 2) {
+					m_chunkShape = new int[dims - 1];
+					for (int i = 0; i < dims - 1; ++i) {
+						m_chunkShape[i] = d.getInt(16 + 4 * i);
+					}
+					readChunks(addr, dims);
+				} else {
+					throw fail("unsupported layout class " + cls);
+				}
+			} else {
+				throw fail("unsupported layout message version " + version);
+			}
+		}
+
+		private void readFilters(ByteBuffer d) throws DataIOException {
+			int version = d.get(0);
+			int n = d.get(1);
+			int pos = (version == 1) ? 8 : 2;
+			for (int i = 0; i < n; ++i) {
+				Filter f = new Filter();
+				f.id = d.getShort(pos) & 0xFFFF;
+				int nameLen = 0;
+				pos += 2;
+				if (version == 1 || f.id >= 256) {
+					nameLen = d.getShort(pos) & 0xFFFF;
+					pos += 2;
+				}
+				pos += 2; //flags
+				int nvals = d.getShort(pos) & 0xFFFF;
+				pos += 2;
+				if (version == 1) {
+					nameLen = (nameLen + 7) & ~7;
+				}
+				pos += nameLen;
+				f.values = new int[nvals];
+				for (int k = 0; k < nvals; ++k) {
+					f.values[k] = d.getInt(pos);
+					pos += 4;
+				}
+				if (version == 1 && (nvals & 1) != 0) {
+					pos += 4;
+				}
+				if (f.id != FILTER_DEFLATE && f.id != FILTER_SHUFFLE
+					&& f.id != FILTER_FLETCHER32 && f.id != FILTER_BLOSC) {
+					throw fail("unsupported filter " + f.id + " on " + m_dsName);
+				}
+				m_filters.add(f);
+			}
+		}
+
+		/**
+		 * Collect the chunks from the leaves of a version 1 chunk B-tree.
+		 */
+		private void readChunks(long btree, int dims) throws IOException, DataIOException {
+			if (m_chunks == null) {
+				m_chunks = new ArrayList<Chunk>();
+			}
+			if (btree == UNDEFINED) {
+				return; //nothing written yet
+			}
+			ByteBuffer node = read(btree, 24);
+			if (node.getInt(0) != 0x45455254 || node.get(4) != 1) { // "TREE", raw data
+				throw fail("bad chunk B-tree");
+			}
+			int level = node.get(5);
+			int entries = node.getShort(6) & 0xFFFF;
+			int keySize = 8 + 8 * dims;
+			ByteBuffer body = read(btree + 24, entries * (keySize + 8) + keySize);
+			for (int i = 0; i < entries; ++i) {
+				int pos = i * (keySize + 8);
+				long child = body.getLong(pos + keySize);
+				if (level > 0) {
+					readChunks(child, dims);
+				} else {
+					Chunk c = new Chunk();
+					c.size = body.getInt(pos);
+					c.mask = body.getInt(pos + 4);
+					c.offset = new long[dims - 1];
+					for (int k = 0; k < dims - 1; ++k) {
+						c.offset[k] = body.getLong(pos + 8 + 8 * k);
+					}
+					c.addr = child;
+					m_chunks.add(c);
+				}
+			}
+		}
+
+		public String getName() {
+			return m_dsName;
+		}
+
+		/**
+		 * @return the dataset's dimensions
+		 */
+		public long[] getShape() {
+			return m_shape.clone();
+		}
+
+		/**
+		 * @return number of rows (the first dimension, or 1 for 1-d data)
+		 */
+		public int getRowCount() {
+			return (m_shape.length < 2) ? 1 : (int)m_shape[0];
+		}
+
+		/**
+		 * @return number of elements in a row
+		 */
+		public int getRowLength() {
+			long len = 1;
+			for (int d = (m_shape.length < 2) ? 0 : 1; d < m_shape.length; ++d) {
+				len *= m_shape[d];
+			}
+			return (int)len;
+		}
+
+		/**
+		 * @return rows per chunk, i.e. how many rows it's efficient to read
+		 * at once; the whole dataset if it isn't chunked
+		 */
+		public int getRowsPerChunk() {
+			if (m_chunkShape == null || m_shape.length < 2) {
+				return getRowCount();
+			}
+			return m_chunkShape[0];
+		}
+
+		/**
+		 * Read rows [first, first + count) into a flat int array, row after
+		 * row. Values that don't fit in an int are truncated.
+		 */
+		public int[] readRows(int first, int count) throws DataIOException {
+			int len = getRowLength();
+			int[] out = new int[count * len];
+			try {
+				if (m_chunks == null) {
+					readContiguous(out, first, count, len);
+				} else {
+					Arrays.fill(out, (int)m_fill);
+					readChunked(out, first, count, len);
+				}
+			} catch (IOException ioe) {
+				throw new DataIOException(ioe);
+			}
+			return out;
+		}
+
+		private void readContiguous(int[] out, int first, int count, int len) throws IOException {
+			long start = (long)first * len * m_elemSize;
+			int total = out.length;
+			int step = (1 << 20) / m_elemSize;
+			for (int done = 0; done < total; done += step) {
+				int n = Math.min(step, total - done);
+				ByteBuffer b = read(m_address + start + (long)done * m_elemSize, n * m_elemSize)
+					.order(m_order);
+				for (int i = 0; i < n; ++i) {
+					out[done + i] = (int)get(b, i);
+				}
+			}
+		}
+
+		/**
+		 * Decode every chunk overlapping the rows and copy the overlap.
+		 * Only the first two dimensions are split; trailing dimensions
+		 * must be whole in each chunk, which is how MSMBuilder writes them.
+		 */
+		private void readChunked(int[] out, int first, int count, int len)
+			throws IOException, DataIOException {
+			boolean flat = m_shape.length < 2;
+			int chunkRows = flat ? 1 : m_chunkShape[0];
+			int chunkCols = 1;
+			for (int d = flat ? 0 : 1; d < m_chunkShape.length; ++d) {
+				chunkCols *= m_chunkShape[d];
+			}
+			if (m_shape.length > 2) {
+				for (int d = 2; d < m_shape.length; ++d) {
+					if (m_chunkShape[d] != m_shape[d]) {
+						throw fail("chunks split trailing dimensions of " + m_dsName);
+					}
+				}
+			}
+			int chunkBytes = chunkRows * chunkCols * m_elemSize;
+			int colScale = len / (int)(flat ? m_shape[0] : m_shape[1]);
+
+			for (Chunk c : m_chunks) {
+				int row0 = flat ? 0 : (int)c.offset[0];
+				if (row0 >= first + count || row0 + chunkRows <= first) {
+					continue;
+				}
+				int col0 = (int)c.offset[flat ? 0 : 1] * colScale;
+				ByteBuffer raw = read(c.addr, c.size);
+				ByteBuffer b = decode(raw, c.mask, chunkBytes).order(m_order);
+				int rStart = Math.max(first, row0);
+				int rEnd = Math.min(first + count, row0 + chunkRows);
+				int cEnd = Math.min(len, col0 + chunkCols);
+				for (int r = rStart; r < rEnd; ++r) {
+					int src = (r - row0) * chunkCols;
+					int dst = (r - first) * len;
+					for (int col = col0; col < cEnd; ++col) {
+						out[dst + col] = (int)get(b, src + col - col0);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Undo the filter pipeline, last filter first. Filters whose bit
+		 * is set in mask were skipped when the chunk was written.
+		 */
+		private ByteBuffer decode(ByteBuffer raw, int mask, int chunkBytes) throws DataIOException {
+			byte[] data = new byte[raw.remaining()];
+			raw.get(data);
+			for (int i = m_filters.size() - 1; i >= 0; --i) {
+				if ((mask & (1 << i)) != 0) {
+					continue;
+				}
+				Filter f = m_filters.get(i);
+				switch (f.id) {
+					case FILTER_DEFLATE:
+						data = inflate(data, chunkBytes);
+						break;
+					case FILTER_SHUFFLE:
+						data = Blosc.unshuffle(data, m_elemSize);
+						break;
+					case FILTER_FLETCHER32:
+						data = Arrays.copyOf(data, data.length - 4);
+						break;
+					case FILTER_BLOSC:
+						data = Blosc.decompress(data);
+						break;
+					default:
+						throw fail("unsupported filter " + f.id);
+				}
+			}
+			if (data.length < chunkBytes) {
+				throw fail("short chunk in " + m_dsName);
+			}
+			return ByteBuffer.wrap(data);
+		}
+
+		private long get(ByteBuffer b, int i) {
+			switch (m_elemSize) {
+				case 1:
+					return m_signed ? b.get(i) : b.get(i) & 0xFF;
+				case 2:
+					return m_signed ? b.getShort(2 * i) : b.getShort(2 * i) & 0xFFFF;
+				case 4:
+					return m_signed ? b.getInt(4 * i) : b.getInt(4 * i) & 0xFFFFFFFFL;
+				default:
+					return b.getLong(8 * i);
+			}
+		}
+	}
+
+	private byte[] inflate(byte[] in, int size) throws DataIOException {
+		Inflater inf = new Inflater();
+		try {
+			inf.setInput(in);
+			byte[] out = new byte[Math.max(size, 64)];
+			int n = 0;
+			while (!inf.finished()) {
+				if (n == out.length) {
+					out = Arrays.copyOf(out, 2 * out.length);
+				}
+				int got = inf.inflate(out, n, out.length - n);
+				if (got == 0 && (inf.needsInput() || inf.needsDictionary())) {
+					break;
+				}
+				n += got;
+			}
+			return Arrays.copyOf(out, n);
+		} catch (DataFormatException dfe) {
+			throw new DataIOException(m_name + ": corrupt deflated chunk", dfe);
+		} finally {
+			inf.end();
+		}
+	}
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.util.collections.IntIterator;
+
+/**
+ * A compact binary cache (.msmb) of a model as it was loaded from its
+ * text tProb and eqProb files, written next to the source the first time
+ * it is opened and memory-mapped on later opens.
+ *
+ * Layout, all big-endian:
+ * <pre>
+ *   int magic "MSMB", int version
+ *   long source size, long source mtime
+ *   UTF eqProb source path ("" if none), long eqProb size, long eqProb mtime
+ *   int nodes, int edges, byte hasEqProb
+ *   int #extra node cols, int #extra edge cols, {UTF name, byte type} each
+ *   int[nodes+1] CSR row pointers, int[edges] column indices,
+ *   double[edges] probabilities, double[nodes] eqProb (if present),
+ *   then the values of each extra node column and each extra edge column
+ * </pre>
+ * Edges come back in row-major (CSR) order rather than file order.
+ * A cache whose recorded sizes and mtimes don't match the files on disk
+ * is ignored, as is anything we fail to read. So is a cache written
+ * without eqProbs once a likely eqProb file newer than it turns up next
+ * to the source, so that the eqProb question gets asked again.
+ *
+ * The cache is always uncompressed, even for a .gz source: the point is
+ * to map it straight into memory, and it's no bigger than the parsed
+ * model we'd otherwise hold anyway. It sits beside the source so that it
+ * moves and gets deleted along with the model.
+ *
+ * @author brycecr
+ */
+public class MSMBinaryCache implements MSMConstants {
+
+	public static final String EXTENSION = ".msmb";
+
+	private static final int kMAGIC = 0x4D534D42; // "MSMB"
+	private static final int kVERSION = 1;
+
+	private MSMBinaryCache() {
+		//prevent instantiation
+	}
+
+	/**
+	 * @param source tProb file the model was read from
+	 * @return where the cache for source lives
+	 */
+	public static File getCacheFile(File source) {
+		return new File(source.getAbsolutePath() + EXTENSION);
+	}
+
+	/**
+	 * @param source tProb file the model was read from
+	 * @return the eqProb file recorded in source's cache, or null if
+	 * there's no readable cache or it was written without eqProbs
+	 */
+	public static File getEqProbSource(File source) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(getCacheFile(source))));
+			if (in.readInt() != kMAGIC || in.readInt() != kVERSION) {
+				return null;
+			}
+			in.readLong(); //source size
+			in.readLong(); //source mtime
+			String eqPath = in.readUTF();
+			return eqPath.isEmpty() ? null : new File(eqPath);
+		} catch (IOException ioe) {
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Open the cached copy of the model read from source, if there is
+	 * an up to date one.
+	 *
+	 * @param source tProb file the model was originally read from
+	 * @return the cached graph, or null if no usable cache exists
+	 */
+	public static Graph read(File source) {
+		File cache = getCacheFile(source);
+		if (!cache.isFile() || !source.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(cache, "r");
+			FileChannel fc = raf.getChannel();
+			if (fc.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+
+			if (b.getInt() != kMAGIC || b.getInt() != kVERSION) {
+				return null;
+			}
+			if (!isFresh(source, b.getLong(), b.getLong())) {
+				return null;
+			}
+			String eqPath = getString(b);
+			long eqSize = b.getLong();
+			long eqTime = b.getLong();
+			if (!eqPath.isEmpty() && !isFresh(new File(eqPath), eqSize, eqTime)) {
+				return null;
+			}
+			if (eqPath.isEmpty() && hasNewEqProbFile(source, cache)) {
+				return null;
+			}
+
+			int nodes = b.getInt();
+			int edges = b.getInt();
+			boolean hasEqProb = b.get() != 0;
+			String[] nodeCols = new String[b.getInt()];
+			byte[] nodeTypes = new byte[nodeCols.length];
+			String[] edgeCols = new String[b.getInt()];
+			byte[] edgeTypes = new byte[edgeCols.length];
+			for (int i = 0; i < nodeCols.length; ++i) {
+				nodeCols[i] = getString(b);
+				nodeTypes[i] = b.get();
+			}
+			for (int i = 0; i < edgeCols.length; ++i) {
+				edgeCols[i] = getString(b);
+				edgeTypes[i] = b.get();
+			}
+
+			int[] rowPtr = new int[nodes + 1];
+			int[] colIdx = new int[edges];
+			double[] probs = new double[edges];
+			b.asIntBuffer().get(rowPtr);
+			b.position(b.position() + 4 * rowPtr.length);
+			b.asIntBuffer().get(colIdx);
+			b.position(b.position() + 4 * colIdx.length);
+			b.asDoubleBuffer().get(probs);
+			b.position(b.position() + 8 * probs.length);
+
+			Table nt = new Table(nodes, 2);
+			nt.addColumn(LABEL, String.class, "0");
+			nt.addColumn(EQPROB, double.class, 1);
+			for (int i = 0; i < nodes; ++i) {
+				nt.setString(i, 0, Integer.toString(i));
+			}
+			if (hasEqProb) {
+				double[] eqProbs = new double[nodes];
+				b.asDoubleBuffer().get(eqProbs);
+				b.position(b.position() + 8 * nodes);
+				Column eq = nt.getColumn(1);
+				for (int i = 0; i < nodes; ++i) {
+					eq.setDouble(eqProbs[i], i);
+				}
+			}
+
+			Table et = new Table(edges, 3);
+			et.addColumn(Graph.DEFAULT_SOURCE_KEY, int.class);
+			et.addColumn(Graph.DEFAULT_TARGET_KEY, int.class);
+			et.addColumn(TPROB, double.class);
+			Column sources = et.getColumn(0);
+			Column targets = et.getColumn(1);
+			Column probCol = et.getColumn(2);
+			for (int row = 0; row < nodes; ++row) {
+				for (int k = rowPtr[row]; k < rowPtr[row+1]; ++k) {
+					sources.setInt(row, k);
+					targets.setInt(colIdx[k], k);
+					probCol.setDouble(probs[k], k);
+				}
+			}
+
+			for (int i = 0; i < nodeCols.length; ++i) {
+				getColumn(b, nt, nodeCols[i], nodeTypes[i]);
+			}
+			for (int i = 0; i < edgeCols.length; ++i) {
+				getColumn(b, et, edgeCols[i], edgeTypes[i]);
+			}
+
+			return new Graph(nt, et, true);
+		} catch (IOException ioe) {
+			Logger.getLogger(MSMBinaryCache.class.getName()).log(Level.WARNING,
+				"Could not read " + cache, ioe);
+		} catch (BufferUnderflowException bue) {
+			Logger.getLogger(MSMBinaryCache.class.getName()).log(Level.WARNING,
+				"Truncated cache " + cache, bue);
+		} catch (IllegalArgumentException iae) {
+			Logger.getLogger(MSMBinaryCache.class.getName()).log(Level.WARNING,
+				"Corrupt cache " + cache, iae);
+		} finally {
+			close(raf);
+		}
+		return null;
+	}
+
+	/**
+	 * Write g out as the cache for source. Failures (say, a read-only
+	 * model directory, or a column we can't encode) are logged and
+	 * otherwise ignored; we'll just parse the text files again next time.
+	 *
+	 * @param g graph as read from source (plus eqProbs)
+	 * @param source tProb file g was read from
+	 * @param eqSource file the eqProbs came from, or null
+	 * @return true if the cache was written
+	 */
+	public static boolean write(Graph g, File source, File eqSource) {
+		File cache = getCacheFile(source);
+		File tmp = new File(cache.getAbsolutePath() + ".tmp");
+
+		Table nt = g.getNodeTable();
+		Table et = g.getEdgeTable();
+		int nodes = nt.getRowCount();
+		int edges = et.getRowCount();
+
+		DataOutputStream out = null;
+		try {
+			//counting sort of the edges by source gives CSR order while
+			//keeping file order within each row
+			int[] edgeRows = new int[edges];
+			int[] rowPtr = new int[nodes + 1];
+			int n = 0;
+			for (IntIterator rows = et.rows(); rows.hasNext();) {
+				int r = rows.nextInt();
+				edgeRows[n++] = r;
+				rowPtr[et.getInt(r, Graph.DEFAULT_SOURCE_KEY) + 1]++;
+			}
+			for (int i = 0; i < nodes; ++i) {
+				rowPtr[i+1] += rowPtr[i];
+			}
+			int[] order = new int[edges];
+			int[] next = rowPtr.clone();
+			for (int k = 0; k < edges; ++k) {
+				order[next[et.getInt(edgeRows[k], Graph.DEFAULT_SOURCE_KEY)]++] = edgeRows[k];
+			}
+
+			ArrayList<String> nodeCols = getExtraColumns(nt, LABEL, EQPROB);
+			ArrayList<String> edgeCols = getExtraColumns(et,
+				Graph.DEFAULT_SOURCE_KEY, Graph.DEFAULT_TARGET_KEY, TPROB);
+			boolean hasEqProb = (eqSource != null && nt.getColumnNumber(EQPROB) >= 0);
+
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(kMAGIC);
+			out.writeInt(kVERSION);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeUTF(hasEqProb ? eqSource.getAbsolutePath() : "");
+			out.writeLong(hasEqProb ? eqSource.length() : -1);
+			out.writeLong(hasEqProb ? eqSource.lastModified() : -1);
+
+			out.writeInt(nodes);
+			out.writeInt(edges);
+			out.writeByte(hasEqProb ? 1 : 0);
+			out.writeInt(nodeCols.size());
+			out.writeInt(edgeCols.size());
+			for (String name : nodeCols) {
+				out.writeUTF(name);
+				out.writeByte(getTypeCode(nt.getColumnType(name)));
+			}
+			for (String name : edgeCols) {
+				out.writeUTF(name);
+				out.writeByte(getTypeCode(et.getColumnType(name)));
+			}
+
+			for (int i = 0; i <= nodes; ++i) {
+				out.writeInt(rowPtr[i]);
+			}
+			for (int k = 0; k < edges; ++k) {
+				out.writeInt(et.getInt(order[k], Graph.DEFAULT_TARGET_KEY));
+			}
+			for (int k = 0; k < edges; ++k) {
+				out.writeDouble(et.getDouble(order[k], TPROB));
+			}
+			if (hasEqProb) {
+				for (int i = 0; i < nodes; ++i) {
+					out.writeDouble(nt.getDouble(i, EQPROB));
+				}
+			}
+
+			int[] identity = new int[nodes];
+			for (int i = 0; i < nodes; ++i) {
+				identity[i] = i;
+			}
+			for (String name : nodeCols) {
+				putColumn(out, nt, name, identity);
+			}
+			for (String name : edgeCols) {
+				putColumn(out, et, name, order);
+			}
+			out.close();
+			out = null;
+
+			if ((cache.exists() && !cache.delete()) || !tmp.renameTo(cache)) {
+				throw new IOException("Could not move " + tmp + " to " + cache);
+			}
+			return true;
+		} catch (Exception e) {
+			//anything at all; the graph we were handed is still good
+			Logger.getLogger(MSMBinaryCache.class.getName()).log(Level.INFO,
+				"Could not write model cache " + cache, e);
+			close(out);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if a likely eqProb file that's newer than cache sits
+	 * next to source, i.e. one that appeared after we last asked
+	 */
+	private static boolean hasNewEqProbFile(File source, File cache) {
+		File[] list = source.getAbsoluteFile().getParentFile().listFiles();
+		if (list == null) {
+			return false;
+		}
+		for (File f : list) {
+			if (f.isFile() && EQProbReader.isEqProbName(f.getName())
+				&& f.lastModified() > cache.lastModified()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isFresh(File f, long size, long mtime) {
+		return f.isFile() && f.length() == size && f.lastModified() == mtime;
+	}
+
+	/**
+	 * Numeric and boolean columns we know how to cache, minus the ones
+	 * every model has and that get dedicated sections.
+	 */
+	private static ArrayList<String> getExtraColumns(Table t, String... skip) {
+		ArrayList<String> cols = new ArrayList<String>();
+OUTER:
+		for (int c = 0; c < t.getColumnCount(); ++c) {
+			String name = t.getColumnName(c);
+			for (String s : skip) {
+				if (s.equals(name)) {
+					continue OUTER;
+				}
+			}
+			if (getTypeCode(t.getColumnType(c)) != 0) {
+				cols.add(name);
+			}
+		}
+		return cols;
+	}
+
+	private static byte getTypeCode(Class<?> type) {
+		if (type == int.class) {
+			return 'I';
+		} else if (type == long.class) {
+			return 'J';
+		} else if (type == float.class) {
+			return 'F';
+		} else if (type == double.class) {
+			return 'D';
+		} else if (type == boolean.class) {
+			return 'Z';
+		}
+		return 0;
+	}
+
+	private static void putColumn(DataOutputStream out, Table t, String name,
+		int[] rows) throws IOException {
+		Column col = t.getColumn(name);
+		switch (getTypeCode(t.getColumnType(name))) {
+			case 'I':
+				for (int r : rows) {
+					out.writeInt(col.getInt(r));
+				}
+				break;
+			case 'J':
+				for (int r : rows) {
+					out.writeLong(col.getLong(r));
+				}
+				break;
+			case 'F':
+				for (int r : rows) {
+					out.writeFloat(col.getFloat(r));
+				}
+				break;
+			case 'D':
+				for (int r : rows) {
+					out.writeDouble(col.getDouble(r));
+				}
+				break;
+			case 'Z':
+				for (int r : rows) {
+					out.writeByte(col.getBoolean(r) ? 1 : 0);
+				}
+				break;
+		}
+	}
+
+	private static void getColumn(ByteBuffer b, Table t, String name, byte type) {
+		int rows = t.getRowCount();
+		Column col;
+		switch (type) {
+			case 'I':
+				t.addColumn(name, int.class);
+				col = t.getColumn(name);
+				for (int r = 0; r < rows; ++r) {
+					col.setInt(b.getInt(), r);
+				}
+				break;
+			case 'J':
+				t.addColumn(name, long.class);
+				col = t.getColumn(name);
+				for (int r = 0; r < rows; ++r) {
+					col.setLong(b.getLong(), r);
+				}
+				break;
+			case 'F':
+				t.addColumn(name, float.class);
+				col = t.getColumn(name);
+				for (int r = 0; r < rows; ++r) {
+					col.setFloat(b.getFloat(), r);
+				}
+				break;
+			case 'D':
+				t.addColumn(name, double.class);
+				col = t.getColumn(name);
+				for (int r = 0; r < rows; ++r) {
+					col.setDouble(b.getDouble(), r);
+				}
+				break;
+			case 'Z':
+				t.addColumn(name, boolean.class);
+				col = t.getColumn(name);
+				for (int r = 0; r < rows; ++r) {
+					col.setBoolean(b.get() != 0, r);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown column type " + type);
+		}
+	}
+
+	/**
+	 * Read a string written by DataOutputStream.writeUTF. We only ever
+	 * store paths and column names, so plain UTF-8 decoding is enough.
+	 */
+	private static String getString(ByteBuffer b) throws IOException {
+		byte[] bytes = new byte[b.getShort() & 0xFFFF];
+		b.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
+}
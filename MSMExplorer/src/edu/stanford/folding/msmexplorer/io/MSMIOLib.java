@@ -19,12 +19,17 @@ package edu.stanford.folding.msmexplorer.io;
 
 import edu.stanford.folding.msmexplorer.io.hierarchy.HierarchyBundle;
 import edu.stanford.folding.msmexplorer.io.hierarchy.HierarchyIOLib;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
 import java.awt.Component;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
@@ -34,15 +39,10 @@ import javax.swing.filechooser.FileFilter;
 import prefuse.data.Graph;
 import prefuse.data.Table;
 import prefuse.data.Tuple;
-import prefuse.data.io.CSVTableWriter;
 import prefuse.data.io.DataIOException;
-import prefuse.data.io.DelimitedTextTableReader;
-import prefuse.data.io.GraphMLReader;
-import prefuse.data.io.GraphMLWriter;
 import prefuse.data.io.GraphReader;
 import prefuse.data.io.TableReader;
 import prefuse.data.tuple.TupleSet;
-import prefuse.util.io.IOLib;
 import prefuse.util.io.SimpleFileFilter;
 
 /**
@@ -58,6 +58,10 @@ public class MSMIOLib {
 	/** It's kinda funky that this is static...but it's cool I guess */
 	private static final JFileChooser jfc = new JFileChooser();
 
+	//the tProb and eqProb files behind each graph getMSMFile opened
+	private static final Map<Graph, File[]> sourceFiles
+		= Collections.synchronizedMap(new WeakHashMap<Graph, File[]>());
+
 
 	private MSMIOLib() {
 		// disallow instantiation
@@ -126,12 +130,37 @@ public class MSMIOLib {
 			null);
 		ff1.addExtension("txt");
 		filters.add(ff1);
+		if (cls == double.class || cls == int.class) {
+			SimpleFileFilter ff2 = new SimpleFileFilter("npy",
+				"NumPy array (*.npy, *.npz)",
+				null);
+			ff2.addExtension("npz");
+			filters.add(ff2);
+		}
 		
 		File f = getFileFromUser(c, path, "Open newline delimited file...", filters);
 		if (f == null) {
 			return null;
 		}
-		Object[] contents = NewlineDelimitedReader.read(f);
+		// numeric columns are read straight into primitive arrays; anything
+		// else goes through the generic (boxing) reader
+		double[] doubles = null;
+		int[] ints = null;
+		Object[] contents = null;
+		int length;
+		if (cls == double.class) {
+			doubles = NewlineDelimitedReader.readDoubles(f);
+			length = (doubles == null) ? -1 : doubles.length;
+		} else if (cls == int.class) {
+			ints = NewlineDelimitedReader.readInts(f);
+			length = (ints == null) ? -1 : ints.length;
+		} else {
+			contents = NewlineDelimitedReader.read(f);
+			length = (contents == null) ? -1 : contents.length;
+		}
+		if (length < 0) {
+			return null;
+		}
 
 		// if the type is recognized and specified, make a column
 		// of that type
@@ -146,7 +175,7 @@ public class MSMIOLib {
 			}
 		}
 
-		if (g.getTupleCount() != contents.length) {
+		if (g.getTupleCount() != length) {
 			JOptionPane.showMessageDialog(c, "Length of newline delmited file "
 				+ "differs from number of nodes in graph; ambiguity in assigning"
 				+ " values to nodes.", "Newline File Length Error", 
@@ -157,7 +186,13 @@ public class MSMIOLib {
 		Iterator<Tuple> itr = g.tuples();
 		while (itr.hasNext()) {
 			Tuple tup = itr.next();
-			tup.set(name, contents[tup.getRow()]);
+			if (doubles != null) {
+				tup.setDouble(name, doubles[tup.getRow()]);
+			} else if (ints != null) {
+				tup.setInt(name, ints[tup.getRow()]);
+			} else {
+				tup.set(name, contents[tup.getRow()]);
+			}
 		}
 		return f.getParent();
 	}
@@ -171,32 +206,38 @@ public class MSMIOLib {
 
 		ArrayList<FileFilter> filters = new ArrayList<FileFilter>();
 		SimpleFileFilter ff1 = new SimpleFileFilter("dat",
-			"DAT dense matrix (*.dat, *.txt)",
+			"DAT dense matrix (*.dat, *.txt, *.gz)",
 			new DatGraphReader());
 		ff1.addExtension("txt");
+		ff1.addExtension("gz");
 
 		SimpleFileFilter ff2 = new SimpleFileFilter("mtx",
-			"MTX Sparse Format (*.mtx)",
+			"MTX Sparse Format (*.mtx, *.mtx.gz)",
 			new MtxGraphReader());
+		ff2.addExtension("gz");
+		SimpleFileFilter ff3 = new SimpleFileFilter("h5",
+			"MSMBuilder assignments, counted at a lag time (*.h5)",
+			null);
 		filters.add(ff1);
 		filters.add(ff2);
+		filters.add(ff3);
 
 		File f = getFileFromUser(c, path, "Open matrix file...", filters);
 		if (f == null) {
 			return null;
 		}
-		String ext = getExtension(f);
+		String ext = getExtension(new File(
+			DecompressingInputStream.stripCompression(f.getName())));
 		
-		Table t = null;
+		//kept sparse so an extra edge column costs O(nnz), not O(N^2)
+		SparseEdgeTable t = null;
 		try {
-			if (ext.equals("mtx")) {
-				MtxTableReader tr = new MtxTableReader();
-				t = tr.readTable(f);
-				
+			if (ext.equals("h5")) {
+				t = countAssignments(c, f);
+			} else if (ext.equals("mtx")) {
+				t = SparseEdgeTable.readMtx(f);
 			} else {
-				DelimitedTextTableReader  dttr = new DelimitedTextTableReader(" ");
-				dttr.setHasHeader(false);
-				t = dttr.readTable(f);
+				t = SparseEdgeTable.readDense(f);
 			}
 		} catch (Exception ex) {
 			Logger.getLogger(MSMIOLib.class.getName()).log(Level.SEVERE, null, ex);
@@ -212,24 +253,62 @@ public class MSMIOLib {
 			Logger.getLogger(MSMIOLib.class.getName()).log(Level.WARNING, null, ex);
 		}
 
-		int tRows = t.getRowCount();
-		int tCols = t.getColumnCount();
-		Object def = t.getColumn(0).getDefaultValue();
-
 		Iterator<Tuple> itr = g.tuples();
 		while (itr.hasNext()) {
 			Tuple tup = itr.next();
-			int row = tup.getInt("source");
-			int col = tup.getInt("target");
-			if (row >= tRows || col >= tCols) {
-				tup.set(name, def);
+			double val = t.get(tup.getInt("source"), tup.getInt("target"), 0.0);
+			if (cls == double.class) {
+				tup.setDouble(name, val);
+			} else if (cls == int.class) {
+				tup.setInt(name, (int)val);
+			} else if (cls == float.class) {
+				tup.setFloat(name, (float)val);
+			} else if (cls == long.class) {
+				tup.setLong(name, (long)val);
 			} else {
-				tup.set(name, t.get(row, col));
+				tup.set(name, val);
 			}
 		}
 		return name;
 	}
 	
+	/**
+	 * Ask for a lag time and count the transitions in the assignments
+	 * file f, behind a progress dialog.
+	 *
+	 * @return the counts, or null if the user backed out
+	 */
+	private static SparseEdgeTable countAssignments(Component c, final File f)
+		throws Exception {
+		String ans = JOptionPane.showInputDialog(c,
+			"Lag time (in frames) at which to count transitions:", "1");
+		if (ans == null) {
+			return null;
+		}
+		final int lag;
+		try {
+			lag = Integer.parseInt(ans.trim());
+			if (lag < 1) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException nfe) {
+			JOptionPane.showMessageDialog(c, "Lag time must be a positive integer.",
+				"Lag Time Error", JOptionPane.ERROR_MESSAGE);
+			return null;
+		}
+		try {
+			return ProgressDialog.run(c, "Counting Transitions", "Counting transitions in "
+				+ f.getName() + " at lag " + lag + "...", null,
+				new ProgressDialog.Task<SparseEdgeTable>() {
+					public SparseEdgeTable run(ProgressDialog.Progress p) throws Exception {
+						return AssignmentCounts.count(f, lag, true, p);
+					}
+				});
+		} catch (CancellationException ce) {
+			return null;
+		}
+	}
+
 	private static boolean checkApplyFileParams(Component c, TupleSet g, String name) {
 		if (g == null) {
 			JOptionPane.showMessageDialog(c, "Attempting to apply a newline"
@@ -267,6 +346,15 @@ public class MSMIOLib {
 		return jfc.getSelectedFile();
 	}
 
+	/**
+	 * @param g a graph opened with getMSMFile
+	 * @return {tProb file, eqProb file or null} that g was read from,
+	 * or null if g didn't come from getMSMFile
+	 */
+	public static File[] getSourceFiles(Graph g) {
+		return sourceFiles.get(g);
+	}
+
 	/**
 	 * Opens a load dialog to get a new MSM. 
 	 * Starts path at home directory.
@@ -295,20 +383,29 @@ public class MSMIOLib {
 
 		ff = new SimpleFileFilter("xml",
 			"GraphML File (*.xml, *.graphml)",
-			new GraphMLReader());
+			new StreamingGraphMLReader());
 		ff.addExtension("graphml");
 		ff.addExtension("gz");
 		jfc.setFileFilter(ff);
 
 		ff = new SimpleFileFilter("dat",
-			"DAT dense matrix (*.dat, *.txt)",
+			"DAT dense matrix (*.dat, *.txt, *.gz)",
 			new DatGraphReader());
 		ff.addExtension("txt");
+		ff.addExtension("gz");
 		jfc.setFileFilter(ff);
 
 		ff = new SimpleFileFilter("mtx",
-			"MTX Sparse Format (*.mtx)",
+			"MTX Sparse Format (*.mtx, *.mtx.gz)",
 			new MtxGraphReader());
+		ff.addExtension("gz");
+		jfc.setFileFilter(ff);
+
+		ff = new SimpleFileFilter("npy",
+			"NumPy array (*.npy, *.npz)",
+			new NpyGraphReader());
+		ff.addExtension("npz");
+		ff.addExtension("gz");
 		jfc.setFileFilter(ff);
 
 		int opt = jfc.showOpenDialog(c);
@@ -326,10 +423,40 @@ public class MSMIOLib {
 			gr = (GraphReader) ff.getUserData();
 		}
 
+		//every filter takes .gz, so go by the extension under it,
+		//and NumPy files are binary whatever the filter, so don't let
+		//the text readers at them
+		if (DecompressingInputStream.isCompressed(f.getName())
+			|| NpyArray.isNumpyFile(f.getName())) {
+			gr = getReader(f.getName());
+		}
+
 		try {
-			Graph g = gr.readGraph(IOLib.streamFromString(f.getAbsolutePath()));
-			if (!GraphMLReader.class.isAssignableFrom(gr.getClass())) {
-				g = EQProbReader.getEqProbs(null, g, f.getParent());
+			if (StreamingGraphMLReader.class.isAssignableFrom(gr.getClass())) {
+				return gr.readGraph(f.getAbsolutePath());
+			}
+
+			//reopening a model we've seen before: skip the text parse
+			//(NumPy files are binary already; a cache would only cost disk).
+			//A populations file that turns up later voids the cache, so
+			//it gets offered below like on a first open
+			boolean cache = !(gr instanceof NpyGraphReader);
+			Graph g = cache ? MSMBinaryCache.read(f) : null;
+			if (g != null) {
+				sourceFiles.put(g, new File[] {f, MSMBinaryCache.getEqProbSource(f)});
+				return g;
+			}
+
+			g = gr.readGraph(f.getAbsolutePath());
+			File eqFile = EQProbReader.locateEqProbFile(null, f.getParent());
+			if (eqFile != null) {
+				g = EQProbReader.addEqProbs(g, eqFile);
+			}
+			if (g != null && cache) {
+				MSMBinaryCache.write(g, f, eqFile);
+			}
+			if (g != null) {
+				sourceFiles.put(g, new File[] {f, eqFile});
 			}
 			return g;
 		} catch (Exception e) {
@@ -342,6 +469,127 @@ public class MSMIOLib {
 		}
 	}
 
+	/**
+	 * Picks the reader for an MSM file by its extension, looking under
+	 * any compression extension: GraphML for xml/graphml, MTX, NumPy, and
+	 * dense DAT for anything else.
+	 *
+	 * @param name file name
+	 * @return a new reader for the file
+	 */
+	public static GraphReader getReader(String name) {
+		String ext = getExtension(new File(
+			DecompressingInputStream.stripCompression(name)));
+		if (ext.equals("mtx")) {
+			return new MtxGraphReader();
+		} else if (ext.equals("npy") || ext.equals("npz")) {
+			return new NpyGraphReader();
+		} else if (ext.equals("xml") || ext.equals("graphml")) {
+			return new StreamingGraphMLReader();
+		}
+		return new DatGraphReader();
+	}
+
+	/**
+	 * Estimates a new MSM from transition counts.
+	 * Starts path at home directory.
+	 *
+	 * @param c parent component (optional)
+	 * @return the estimated graph, or null if none was estimated
+	 */
+	public static Graph estimateMSM(Component c) {
+		return estimateMSM(c, DEFAULT_DIRECTORY);
+	}
+
+	/**
+	 * Estimates a new MSM from transition counts: a counts matrix
+	 * (e.g. tCounts.UnSym.mtx) or an assignments file counted at a lag
+	 * time the user picks. Counts below a user-chosen threshold are
+	 * dropped, then the reversible maximum likelihood transition matrix
+	 * and its stationary distribution (as eqProb) are computed.
+	 *
+	 * @param c parent component (optional)
+	 * @param path where to start load dialog
+	 * @return the estimated graph, or null if the user backed out or the
+	 * estimate failed
+	 */
+	public static Graph estimateMSM(Component c, String path) {
+		ArrayList<FileFilter> filters = new ArrayList<FileFilter>();
+		SimpleFileFilter ff1 = new SimpleFileFilter("mtx",
+			"MTX Sparse Counts (*.mtx, *.mtx.gz)", null);
+		ff1.addExtension("gz");
+		SimpleFileFilter ff2 = new SimpleFileFilter("dat",
+			"DAT dense counts (*.dat, *.txt, *.gz)", null);
+		ff2.addExtension("txt");
+		ff2.addExtension("gz");
+		SimpleFileFilter ff3 = new SimpleFileFilter("h5",
+			"MSMBuilder assignments, counted at a lag time (*.h5)", null);
+		filters.add(ff2);
+		filters.add(ff3);
+		filters.add(ff1);
+
+		File f = getFileFromUser(c, path, "Estimate MSM from counts...", filters);
+		if (f == null) {
+			return null;
+		}
+		String ext = getExtension(new File(
+			DecompressingInputStream.stripCompression(f.getName())));
+
+		try {
+			final SparseEdgeTable counts;
+			if (ext.equals("h5")) {
+				counts = countAssignments(c, f);
+			} else if (ext.equals("mtx")) {
+				counts = SparseEdgeTable.readMtx(f);
+			} else {
+				counts = SparseEdgeTable.readDense(f);
+			}
+			if (counts == null) {
+				return null;
+			}
+
+			String ans = JOptionPane.showInputDialog(c,
+				"Drop counts below this threshold before estimating:", "0");
+			if (ans == null) {
+				return null;
+			}
+			final double threshold;
+			try {
+				threshold = Double.parseDouble(ans.trim());
+			} catch (NumberFormatException nfe) {
+				JOptionPane.showMessageDialog(c, "Count threshold must be a number.",
+					"Count Threshold Error", JOptionPane.ERROR_MESSAGE);
+				return null;
+			}
+
+			final ReversibleMLE mle = new ReversibleMLE(counts);
+			mle.setCountThreshold(threshold);
+			Graph g = ProgressDialog.run(c, "Estimating MSM", "Estimating reversible "
+				+ "transition matrix from " + f.getName() + "...", null,
+				new ProgressDialog.Task<Graph>() {
+					public Graph run(ProgressDialog.Progress p) throws Exception {
+						mle.setProgress(p);
+						return mle.estimate();
+					}
+				});
+			if (!mle.isConverged()) {
+				Logger.getLogger(MSMIOLib.class.getName()).log(Level.WARNING,
+					"Reversible estimate did not converge in {0} iterations",
+					mle.getIterations());
+			}
+			return g;
+		} catch (CancellationException ce) {
+			return null;
+		} catch (Exception e) {
+			JOptionPane.showMessageDialog(c, "Attempt to estimate MSM "
+				+ "from " + f.getName() + " failed: file not "
+				+ "found or not in the expected format. "
+				+ "Exception: " + e.toString(),
+				"MSM Estimate Error", JOptionPane.ERROR_MESSAGE);
+			return null;
+		}
+	}
+
 	public static HierarchyBundle openMSMHierarchy(Component c) {
 		String path = (jfc.getSelectedFile() != null) ? 
 			jfc.getSelectedFile().getAbsolutePath() : DEFAULT_DIRECTORY;
@@ -360,6 +608,14 @@ public class MSMIOLib {
 		return HierarchyIOLib.getAltHierarchyLabels(gs);
 	}
 
+	public static Dictionary<Integer, JLabel> getHierarchyLabels(HierarchyBundle hb) {
+		return HierarchyIOLib.getHierarchyLabels(hb);
+	}
+
+	public static Dictionary<Integer, JLabel> getAltHierarchyLabels(HierarchyBundle hb) {
+		return HierarchyIOLib.getAltHierarchyLabels(hb);
+	}
+
 	public static boolean setMapping(HierarchyBundle hb, int bottom, int top) {
 		return HierarchyIOLib.setMapping(hb, bottom, top);
 	}
@@ -394,8 +650,9 @@ public class MSMIOLib {
 		SimpleFileFilter ff;
 
 		ff = new SimpleFileFilter("graphml",
-			"GraphML File(*.xml, *.graphml)",
-			new GraphMLReader());
+			"GraphML File(*.xml, *.graphml, *.graphml.gz)",
+			new StreamingGraphMLReader());
+		ff.addExtension("gz");
 
 		jfc.setFileFilter(ff);
 
@@ -407,14 +664,27 @@ public class MSMIOLib {
 		String loc = jfc.getSelectedFile().getAbsolutePath();
 		int pos = -1;
 		//XXX what is this??
-		if (!(loc.matches(".*\056xml") || loc.matches(".*\056graphml"))) {
-			loc += ".graphml";
+		String inner = DecompressingInputStream.stripCompression(loc);
+		if (!(inner.matches(".*\056xml") || inner.matches(".*\056graphml"))) {
+			loc = inner + ".graphml" + loc.substring(inner.length());
 		}
 
-		GraphMLWriter gmlwr = new GraphMLWriter();
+		final File out = new File(loc);
+		final Graph graph = g;
 		try {
-			gmlwr.writeGraph(g, loc);
-		} catch (DataIOException ex) {
+			ProgressDialog.run(c, "Saving GraphML", "Writing " + out.getName() + "...",
+				null, new ProgressDialog.Task<Void>() {
+					public Void run(ProgressDialog.Progress p) throws Exception {
+						StreamingGraphMLWriter gmlwr = new StreamingGraphMLWriter();
+						gmlwr.setProgress(p);
+						gmlwr.writeGraph(graph, out);
+						return null;
+					}
+				});
+		} catch (CancellationException ce) {
+			out.delete();
+			return null;
+		} catch (Exception ex) {
 			Logger.getLogger(MSMIOLib.class.getName()).log(Level.SEVERE, null, ex);
 		}
 
@@ -427,13 +697,17 @@ public class MSMIOLib {
 	}
 
 	/**
-	 * Saves the relevant table
+	 * Saves the relevant table as comma (or, for *.tsv, tab) delimited
+	 * text, gzipped if the name ends in .gz.
 	 */
 	public static String saveCSV(Component c, String path, Table t) {
 		jfc.setDialogType(JFileChooser.SAVE_DIALOG);
 		jfc.setDialogTitle("Save Table as CSV");
 
-		SimpleFileFilter ff = new SimpleFileFilter("csv", "CSV File(*.csv)");
+		SimpleFileFilter ff = new SimpleFileFilter("csv",
+			"CSV File(*.csv, *.tsv, *.csv.gz, *.tsv.gz)");
+		ff.addExtension("tsv");
+		ff.addExtension("gz");
 
 		jfc.setFileFilter(ff);
 
@@ -445,14 +719,28 @@ public class MSMIOLib {
 		String loc = jfc.getSelectedFile().getAbsolutePath();
 		int pos = -1;
 		//XXX what is this??
-		if (!loc.matches(".*\056csv")) {
-			loc += ".csv";
+		String inner = DecompressingInputStream.stripCompression(loc);
+		if (!(inner.matches(".*\056csv") || inner.matches(".*\056tsv"))) {
+			loc = inner + ".csv" + loc.substring(inner.length());
 		}
 
-		CSVTableWriter writer = new CSVTableWriter();
+		final File out = new File(loc);
+		final Table table = t;
 		try {
-			writer.writeTable(t, loc);
-		} catch (DataIOException ex) {
+			ProgressDialog.run(c, "Saving Table", "Writing " + out.getName() + "...",
+				"rows", new ProgressDialog.Task<Void>() {
+					public Void run(ProgressDialog.Progress p) throws Exception {
+						FastTableWriter writer = FastTableWriter.forFile(out.getName());
+						writer.setParallel(true);
+						writer.setProgress(p);
+						writer.writeTable(table, out);
+						return null;
+					}
+				});
+		} catch (CancellationException ce) {
+			out.delete();
+			return null;
+		} catch (Exception ex) {
 			Logger.getLogger(MSMIOLib.class.getName()).log(Level.SEVERE, null, ex);
 		}
 
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.io.DataIOException;
+import prefuse.util.collections.IntIterator;
+import prefuse.visual.VisualGraph;
+
+/**
+ * Watches the files a loaded model came from (its tProb, eqProbs and
+ * any hierarchy mappings) and folds changes to them into the loaded
+ * graph in place, so a model that is being re-estimated can be kept
+ * open rather than reopened by hand.
+ *
+ * A changed tProb is diffed against the edge table: edges whose
+ * probability changed are set, edges that disappeared are removed and
+ * new ones are added, and every other edge (and every node, with its
+ * layout position) is left alone. Changed eqProbs are set the same way.
+ * Mapping files aren't applied here, since which levels they relate
+ * depends on the view; the listener is told and reapplies them.
+ *
+ * Files are read on the watcher's thread once they have stopped
+ * changing for a moment; the diff is applied on the event dispatch
+ * thread while holding the lock given to the constructor (pass the
+ * Visualization, so running actions don't see a half-applied update).
+ * A file whose number of states no longer matches the graph can't be
+ * applied in place, and is reported to the listener as an error.
+ *
+ * @author brycecr
+ */
+public class ModelWatcher implements Closeable, MSMConstants {
+
+	public static final int TPROB_FILE = 0;
+	public static final int EQPROB_FILE = 1;
+	public static final int MAPPING_FILE = 2;
+
+	//a file must be quiet this long before we read it, since
+	//MSMBuilder writes its outputs a piece at a time
+	private static final long kSETTLE_MS = 750;
+	private static final long kPOLL_MS = 200;
+
+	/**
+	 * Told about every change that was applied (or couldn't be).
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the event dispatch thread, after the change has
+		 * been applied.
+		 */
+		void modelChanged(Change c);
+	}
+
+	/**
+	 * What happened to the graph when one watched file changed.
+	 */
+	public static class Change {
+
+		/** The file that changed. */
+		public final File file;
+		/** TPROB_FILE, EQPROB_FILE or MAPPING_FILE. */
+		public final int kind;
+		/** Edges or nodes whose values were set. */
+		public final int updated;
+		/** Edges added. */
+		public final int added;
+		/** Edges removed. */
+		public final int removed;
+		/** Why the change couldn't be applied, or null if it was. */
+		public final String error;
+
+		Change(File file, int kind, int updated, int added, int removed) {
+			this.file = file;
+			this.kind = kind;
+			this.updated = updated;
+			this.added = added;
+			this.removed = removed;
+			this.error = null;
+		}
+
+		Change(File file, int kind, String error) {
+			this.file = file;
+			this.kind = kind;
+			this.updated = 0;
+			this.added = 0;
+			this.removed = 0;
+			this.error = error;
+		}
+	}
+
+	private final Graph m_graph;
+	private final Object m_lock;
+	private final Listener m_listener;
+
+	//watched files (absolute) and their kinds
+	private final Map<File, Integer> m_files = new HashMap<File, Integer>();
+	//{length, mtime} of each file as last read
+	private final Map<File, long[]> m_stamps = new HashMap<File, long[]>();
+	//files with pending events, and when the latest arrived
+	private final Map<File, Long> m_dirty = new HashMap<File, Long>();
+
+	private WatchService m_service = null;
+	private Thread m_thread = null;
+	private volatile boolean m_closed = false;
+
+	/**
+	 * @param g the loaded graph to keep up to date. This has to be the
+	 * model graph itself, not the VisualGraph a Visualization builds on
+	 * it: that one's cascaded tables can't add or remove rows, and
+	 * follow changes to g on their own.
+	 * @param lock held while applying changes to g; usually the
+	 * Visualization showing it
+	 * @param l listener to tell about changes, or null
+	 * @throws IllegalArgumentException if g is a VisualGraph
+	 */
+	public ModelWatcher(Graph g, Object lock, Listener l) {
+		if (g instanceof VisualGraph) {
+			throw new IllegalArgumentException("Watch the model graph, not its VisualGraph");
+		}
+		m_graph = g;
+		m_lock = (lock == null) ? this : lock;
+		m_listener = l;
+	}
+
+	/**
+	 * @param f transition matrix file the graph was read from
+	 */
+	public void watchTProb(File f) {
+		watch(f, TPROB_FILE);
+	}
+
+	/**
+	 * @param f eqProb (populations) file the graph's eqProbs came from
+	 */
+	public void watchEqProb(File f) {
+		watch(f, EQPROB_FILE);
+	}
+
+	/**
+	 * @param f hierarchy mapping file in use with the graph
+	 */
+	public void watchMapping(File f) {
+		watch(f, MAPPING_FILE);
+	}
+
+	private synchronized void watch(File f, int kind) {
+		if (f == null) {
+			return;
+		}
+		if (m_service != null) {
+			throw new IllegalStateException("Add files before starting the watcher");
+		}
+		f = f.getAbsoluteFile();
+		m_files.put(f, kind);
+		m_stamps.put(f, stamp(f));
+	}
+
+	/**
+	 * @return true if any files are being (or will be) watched
+	 */
+	public synchronized boolean hasFiles() {
+		return !m_files.isEmpty();
+	}
+
+	/**
+	 * Start watching, on a daemon thread of our own.
+	 */
+	public synchronized void start() throws IOException {
+		if (m_service != null || m_closed) {
+			return;
+		}
+		m_service = FileSystems.getDefault().newWatchService();
+		Set<File> dirs = new HashSet<File>();
+		for (File f : m_files.keySet()) {
+			dirs.add(f.getParentFile());
+		}
+		try {
+			for (File dir : dirs) {
+				dir.toPath().register(m_service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		} catch (IOException ioe) {
+			m_service.close();
+			m_service = null;
+			throw ioe;
+		}
+
+		m_thread = new Thread(new Runnable() {
+			public void run() {
+				watchLoop();
+			}
+		}, "MSMExplorer model watcher");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * Stop watching. Changes already read but not yet applied are dropped.
+	 */
+	public void close() {
+		m_closed = true;
+		WatchService ws;
+		synchronized (this) {
+			ws = m_service;
+		}
+		if (ws != null) {
+			try {
+				ws.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
+
+	private void watchLoop() {
+		try {
+			while (!m_closed) {
+				WatchKey key = m_service.poll(kPOLL_MS, TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (key != null) {
+					Path dir = (Path)key.watchable();
+					for (WatchEvent<?> ev : key.pollEvents()) {
+						if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+							//lost track; look at everything in the directory
+							for (File f : m_files.keySet()) {
+								if (f.getParentFile().equals(dir.toFile())) {
+									m_dirty.put(f, now);
+								}
+							}
+							continue;
+						}
+						File f = dir.resolve((Path)ev.context()).toFile().getAbsoluteFile();
+						if (m_files.containsKey(f)) {
+							m_dirty.put(f, now);
+						}
+					}
+					key.reset();
+				}
+
+				Iterator<Map.Entry<File, Long>> itr = m_dirty.entrySet().iterator();
+				while (itr.hasNext()) {
+					Map.Entry<File, Long> e = itr.next();
+					if (now - e.getValue() >= kSETTLE_MS) {
+						itr.remove();
+						reload(e.getKey());
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException cwse) {
+			//closed, we're done
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read a settled file and hand it to the EDT to be applied.
+	 */
+	private void reload(final File f) {
+		long[] stamp = stamp(f);
+		if (!f.isFile() || sameStamp(stamp, m_stamps.get(f))) {
+			return; //gone (mid-rename, say) or not really changed
+		}
+
+		final int kind = m_files.get(f);
+		final Object data;
+		try {
+			switch (kind) {
+				case TPROB_FILE:
+					data = readMatrix(f);
+					break;
+				case EQPROB_FILE:
+					data = NewlineDelimitedReader.parseDoubles(f);
+					break;
+				default:
+					//applied by the listener; just make sure it's whole
+					data = NewlineDelimitedReader.parseInts(f);
+					break;
+			}
+		} catch (Exception e) {
+			//most likely still being written; the next event retries
+			Logger.getLogger(ModelWatcher.class.getName()).log(Level.WARNING,
+				"Could not reload " + f, e);
+			return;
+		}
+		m_stamps.put(f, stamp);
+
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (m_closed) {
+					return;
+				}
+				Change c;
+				synchronized (m_lock) {
+					switch (kind) {
+						case TPROB_FILE:
+							c = applyEdges(f, (SparseEdgeTable)data);
+							break;
+						case EQPROB_FILE:
+							c = applyEqProbs(f, (double[])data);
+							break;
+						default:
+							c = new Change(f, kind, 0, 0, 0);
+							break;
+					}
+				}
+				if (m_listener != null) {
+					m_listener.modelChanged(c);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read a transition matrix file the way the reader that opened it
+	 * would, into CSR form.
+	 */
+	static SparseEdgeTable readMatrix(File f) throws DataIOException {
+		String name = DecompressingInputStream.stripCompression(f.getName()).toLowerCase();
+		if (name.endsWith(".mtx")) {
+			return SparseEdgeTable.readMtx(f);
+		} else if (NpyArray.isNumpyFile(f.getName())) {
+			Graph g = new NpyGraphReader().readGraph(f);
+			Table et = g.getEdgeTable();
+			int nnz = et.getRowCount();
+			int[] sources = new int[nnz];
+			int[] targets = new int[nnz];
+			double[] vals = new double[nnz];
+			for (int e = 0; e < nnz; ++e) {
+				sources[e] = g.getSourceNode(e);
+				targets[e] = g.getTargetNode(e);
+				vals[e] = et.getDouble(e, TPROB);
+			}
+			return SparseEdgeTable.fromTriplets(g.getNodeCount(), sources, targets, vals, nnz);
+		}
+		return SparseEdgeTable.readDense(f);
+	}
+
+	/**
+	 * Bring the graph's edges in line with m, touching only what differs.
+	 */
+	Change applyEdges(File f, SparseEdgeTable t) {
+		int n = m_graph.getNodeCount();
+		SparseMatrix m = t.getMatrix();
+		int max = -1;
+		for (int k = 0; k < m.getEntryCount(); ++k) {
+			max = Math.max(max, m.getColumnAt(k));
+		}
+		if (m.getRowCount() != n || max >= n) {
+			return new Change(f, TPROB_FILE, f.getName() + " now has "
+				+ Math.max(m.getRowCount(), max + 1) + " states, but the loaded model has " + n);
+		}
+
+		Table et = m_graph.getEdgeTable();
+		Column probs = et.getColumn(TPROB);
+		boolean[] seen = new boolean[m.getEntryCount()];
+		List<Integer> gone = new ArrayList<Integer>();
+		int updated = 0;
+		IntIterator rows = et.rows();
+		while (rows.hasNext()) {
+			int e = rows.nextInt();
+			int k = m.indexOf(m_graph.getSourceNode(e), m_graph.getTargetNode(e));
+			if (k < 0) {
+				gone.add(e);
+				continue;
+			}
+			seen[k] = true;
+			if (probs.getDouble(e) != m.getValueAt(k)) {
+				probs.setDouble(m.getValueAt(k), e);
+				updated++;
+			}
+		}
+
+		for (int e : gone) {
+			m_graph.removeEdge(e);
+		}
+
+		int added = 0;
+		for (int i = 0; i < n; ++i) {
+			for (int k = m.getRowStart(i); k < m.getRowEnd(i); ++k) {
+				if (!seen[k]) {
+					int e = m_graph.addEdge(i, m.getColumnAt(k));
+					probs.setDouble(m.getValueAt(k), e);
+					added++;
+				}
+			}
+		}
+		return new Change(f, TPROB_FILE, updated, added, gone.size());
+	}
+
+	/**
+	 * Set the eqProbs that differ from probs, normalized as
+	 * EQProbReader.addEqProbs does.
+	 */
+	Change applyEqProbs(File f, double[] probs) {
+		Table nt = m_graph.getNodeTable();
+		if (probs.length != nt.getRowCount()) {
+			return new Change(f, EQPROB_FILE, f.getName() + " now has " + probs.length
+				+ " states, but the loaded model has " + nt.getRowCount());
+		}
+		if (nt.getColumnNumber(EQPROB) < 0) {
+			nt.addColumn(EQPROB, double.class, 1);
+		}
+		Column eq = nt.getColumn(EQPROB);
+
+		double sum = 0.0;
+		for (double p : probs) {
+			sum += p;
+		}
+		int updated = 0;
+		for (int row = 0; row < probs.length; ++row) {
+			double p = probs[row] / sum;
+			if (eq.getDouble(row) != p) {
+				eq.setDouble(p, row);
+				updated++;
+			}
+		}
+		return new Change(f, EQPROB_FILE, updated, 0, 0);
+	}
+
+	private static long[] stamp(File f) {
+		return new long[] {f.length(), f.lastModified()};
+	}
+
+	private static boolean sameStamp(long[] a, long[] b) {
+		return b != null && a[0] == b[0] && a[1] == b[1];
+	}
+}
@@ -18,13 +18,16 @@
 package edu.stanford.folding.msmexplorer.io;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import javax.swing.JOptionPane;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import prefuse.data.Graph;
 import prefuse.data.Table;
+import prefuse.data.column.Column;
 import prefuse.data.io.DataIOException;
 
 /**
@@ -32,6 +35,10 @@ import prefuse.data.io.DataIOException;
  * This format is the primary input format for most
  * MSMs as of MSMBuilder v2.0
  *
+ * Large local files are memory-mapped and split into newline-aligned
+ * chunks that are parsed concurrently on the shared WorkerPool;
+ * see AbstractMSMReader.setParallel.
+ *
  * @author brycecr
  */
 public class MtxGraphReader extends AbstractMSMReader {
@@ -56,10 +63,16 @@ public class MtxGraphReader extends AbstractMSMReader {
 		m_edgeTable.addColumn(TPROB, double.class); //2nd
 	}
 
-	private boolean handleOverviewLine(String line) {
-		String[] splits = line.split(" ");
+	/**
+	 * Read the "rows cols nnz" size line and set up the tables to match.
+	 */
+	private boolean handleOverviewLine(ByteTokenizer tk) throws IOException {
 		try {
-			init(Integer.parseInt(splits[0]), Integer.parseInt(splits[2]));
+			int nodes = tk.nextInt();
+			tk.nextInt();
+			int edges = tk.nextInt();
+			tk.skipRecord();
+			init(nodes, edges);
 		} catch (NumberFormatException nfe) {
 			return false;
 		}
@@ -68,48 +81,157 @@ public class MtxGraphReader extends AbstractMSMReader {
 
 	public Graph readGraph(InputStream is) throws DataIOException {
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			ByteTokenizer tk = new ByteTokenizer(is);
 
-			String line = null;
-			while ((line = br.readLine()) != null && !line.isEmpty() && line.charAt(0) == '%') {
-			}
-			if (line == null || line.isEmpty()) {
+			if (!tk.skipComments('%')) {
 				throw new DataIOException("Unexpected empty line or End of File. "
 					+ "Terminating read.");
 			}
 
-			boolean success = handleOverviewLine(line);
+			boolean success = handleOverviewLine(tk);
 			if (!success) {
-				throw new DataIOException("Integer Parse Failure On: " + line);
+				throw new DataIOException("Integer Parse Failure On line "
+					+ tk.getLineNumber());
 			}
 
+			//write straight into the backing columns; no boxing, no events
+			Column sources = m_edgeTable.getColumn(0);
+			Column targets = m_edgeTable.getColumn(1);
+			Column probs = m_edgeTable.getColumn(2);
+			int numEdges = m_edgeTable.getRowCount();
+
 			boolean notify = false;
 
 			int edgeNum = 0;
-			while ((line = br.readLine()) != null) {
-				if (edgeNum >= m_edgeTable.getRowCount())
+			while (tk.nextRecord()) {
+				if (edgeNum >= numEdges)
 					throw new DataIOException("More edges than specified");
-				String[] splits = line.split(" ");
 				try {
-					double prob = Double.parseDouble(splits[2]);
+					int source = tk.nextInt() - 1;
+					int target = tk.nextInt() - 1;
+					double prob = tk.nextDouble();
+					tk.skipRecord();
 					if (prob > 1.0 || prob < 0.0) {
 						notify = true;
 					}
-					m_edgeTable.set(edgeNum, 0, Integer.parseInt(splits[0])-1);
-					m_edgeTable.set(edgeNum, 1, Integer.parseInt(splits[1])-1);
-					m_edgeTable.set(edgeNum, 2, prob);
+					sources.setInt(source, edgeNum);
+					targets.setInt(target, edgeNum);
+					probs.setDouble(prob, edgeNum);
 					edgeNum++;
 				} catch (NumberFormatException nfe) {
-					throw new DataIOException("Parse failure on: " + line, nfe);
+					throw new DataIOException("Parse failure: " + nfe.getMessage(), nfe);
 				}
 			}
-			if (notify) {
-				JOptionPane.showMessageDialog(null, "Some of your transition probabilities are not between 0 and 1..."
-					+ "\nIf that sounds wrong, check the graph you're loading.", "Wonky TProbs", JOptionPane.WARNING_MESSAGE);
-			}
-			return new Graph(m_nodeTable, m_edgeTable, true);
+			return buildGraph(notify);
 		} catch (IOException ioex) {
-			throw new DataIOException("BufferedReader/InputStreamReader failure in MtxGraphReader", ioex);
+			throw new DataIOException("Stream read failure in MtxGraphReader", ioex);
+		}
+	}
+
+	/**
+	 * Parallel load path. The header is read off a mapping of the start of
+	 * the file, the rest is cut into newline-aligned chunks, each chunk is
+	 * mapped and parsed into primitive arrays by a worker, and the arrays
+	 * are copied into the preallocated edge table in file order.
+	 */
+	@Override
+	protected Graph readMapped(FileChannel fc, long size)
+		throws IOException, DataIOException, InterruptedException {
+		ByteTokenizer tk = new ByteTokenizer(fc.map(
+			FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE)));
+		if (!tk.skipComments('%')) {
+			throw new DataIOException("Unexpected empty line or End of File. "
+				+ "Terminating read.");
+		}
+		if (!handleOverviewLine(tk)) {
+			throw new DataIOException("Integer Parse Failure On line "
+				+ tk.getLineNumber());
+		}
+
+		int numEdges = m_edgeTable.getRowCount();
+		long dataStart = tk.position();
+		long[] bounds = getChunkBounds(fc, dataStart, size);
+
+		List<ChunkParser> chunks = new ArrayList<ChunkParser>(bounds.length);
+		for (int i = 0; i < bounds.length - 1; ++i) {
+			//guess each chunk's share of the edges from its share of bytes
+			long guess = numEdges * (bounds[i+1] - bounds[i]) / (size - dataStart + 1);
+			chunks.add(new ChunkParser(fc, bounds[i], bounds[i+1], (int)guess + 16));
+		}
+		runChunks(chunks);
+
+		//each chunk owns the slot range following its predecessors'
+		Column sources = m_edgeTable.getColumn(0);
+		Column targets = m_edgeTable.getColumn(1);
+		Column probs = m_edgeTable.getColumn(2);
+		boolean notify = false;
+		int offset = 0;
+		for (ChunkParser cp : chunks) {
+			if (cp.count > numEdges - offset) {
+				throw new DataIOException("More edges than specified");
+			}
+			for (int k = 0; k < cp.count; ++k) {
+				sources.setInt(cp.sources[k], offset + k);
+				targets.setInt(cp.targets[k], offset + k);
+				probs.setDouble(cp.probs[k], offset + k);
+			}
+			offset += cp.count;
+			notify |= cp.notify;
+		}
+
+		return buildGraph(notify);
+	}
+
+	/**
+	 * Parses one newline-aligned byte range of the file into primitive
+	 * arrays. Runs on a WorkerPool thread.
+	 */
+	private static class ChunkParser implements Callable<Void> {
+
+		private final FileChannel fc;
+		private final long start;
+		private final long end;
+
+		int[] sources;
+		int[] targets;
+		double[] probs;
+		int count = 0;
+		boolean notify = false;
+
+		ChunkParser(FileChannel fc, long start, long end, int capacity) {
+			this.fc = fc;
+			this.start = start;
+			this.end = end;
+			sources = new int[capacity];
+			targets = new int[capacity];
+			probs = new double[capacity];
+		}
+
+		public Void call() throws IOException, DataIOException {
+			ByteTokenizer tk = new ByteTokenizer(
+				fc.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+			try {
+				while (tk.nextRecord()) {
+					if (count == sources.length) {
+						int cap = count + (count >> 1) + 16;
+						sources = Arrays.copyOf(sources, cap);
+						targets = Arrays.copyOf(targets, cap);
+						probs = Arrays.copyOf(probs, cap);
+					}
+					sources[count] = tk.nextInt() - 1;
+					targets[count] = tk.nextInt() - 1;
+					double prob = tk.nextDouble();
+					tk.skipRecord();
+					if (prob > 1.0 || prob < 0.0) {
+						notify = true;
+					}
+					probs[count++] = prob;
+				}
+			} catch (NumberFormatException nfe) {
+				throw new DataIOException("Parse failure in bytes " + start
+					+ "-" + end + ": " + nfe.getMessage(), nfe);
+			}
+			return null;
 		}
 	}
 }
@@ -19,19 +19,34 @@ package edu.stanford.folding.msmexplorer.io;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.InputMismatchException;
 import javax.swing.JOptionPane;
+import prefuse.data.io.DataIOException;
 
 /**
  * A class to read generic newline delimited files.
  * Should be useful for reading in axes labels, mapping
  * files, other simple one-to-one data files.
  *
+ * When the type of the contents is known ahead of time (populations,
+ * mappings), readDoubles and readInts parse straight into a primitive
+ * array and are much cheaper than the Scanner-based read. They also take
+ * NumPy .npy/.npz arrays (flattened), via NpyArray.
+ *
  * @author brycecr
  */
 public class NewlineDelimitedReader {
+
+	//about the shortest line we expect of each, so the first guess at the
+	//entry count is at most a little high: populations run 11-25 bytes
+	//a line, mapping ids 2-6
+	private static final int kBYTES_PER_DOUBLE = 12;
+	private static final int kBYTES_PER_INT = 4;
 	
 	private NewlineDelimitedReader() {
 		// disallow instantiation
@@ -84,7 +99,7 @@ public class NewlineDelimitedReader {
 		String filePath = f.getAbsolutePath();
 		
 		try {
-			scn = new Scanner (f);
+			scn = new Scanner (DecompressingInputStream.open(f));
 			
 			// There probably is a slicker way to do this
 			// but I don't think you can beat the nominal
@@ -117,7 +132,149 @@ public class NewlineDelimitedReader {
 				+ "data types in file; file must be all one data type.");
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(null, "Generic read failure on " + filePath);
+		} finally {
+			if (scn != null) {
+				scn.close();
+			}
 		}
 		return null;
 	}
+
+	/**
+	 * Read a file of whitespace (usually newline) delimited numbers,
+	 * such as a populations file, into a double array. Failures generate
+	 * dialog warnings, as with read.
+	 *
+	 * @param f the file to open
+	 * @return the contents of the file, or null on failure
+	 */
+	public static double[] readDoubles(File f) {
+		try {
+			return parseDoubles(f);
+		} catch (Exception e) {
+			reportFailure(f, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Read a file of whitespace (usually newline) delimited ints,
+	 * such as a mapping file, into an int array. Failures generate
+	 * dialog warnings, as with read.
+	 *
+	 * @param f the file to open
+	 * @return the contents of the file, or null on failure
+	 */
+	public static int[] readInts(File f) {
+		try {
+			return parseInts(f);
+		} catch (Exception e) {
+			reportFailure(f, e);
+			return null;
+		}
+	}
+
+	/**
+	 * readDoubles, but failures are thrown rather than shown, for
+	 * callers that aren't in a position to put up a dialog.
+	 *
+	 * @param f the file to open
+	 * @return the contents of the file
+	 */
+	public static double[] parseDoubles(File f) throws IOException, DataIOException {
+		if (NpyArray.isNumpyFile(f.getName())) {
+			return NpyArray.read(f).toDoubleArray();
+		}
+
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			ByteTokenizer tk = new ByteTokenizer(is);
+
+			double[] vals = new double[initialCapacity(f, kBYTES_PER_DOUBLE)];
+			int n = 0;
+			while (tk.nextRecord()) {
+				while (!tk.endOfRecord()) {
+					if (n == vals.length) {
+						vals = Arrays.copyOf(vals, n + (n >> 1) + 16);
+					}
+					vals[n++] = tk.nextDouble();
+				}
+			}
+			return Arrays.copyOf(vals, n);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * readInts, but failures are thrown rather than shown.
+	 *
+	 * @param f the file to open
+	 * @return the contents of the file
+	 */
+	public static int[] parseInts(File f) throws IOException, DataIOException {
+		if (NpyArray.isNumpyFile(f.getName())) {
+			return NpyArray.read(f).toIntArray();
+		}
+
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			ByteTokenizer tk = new ByteTokenizer(is);
+
+			int[] vals = new int[initialCapacity(f, kBYTES_PER_INT)];
+			int n = 0;
+			while (tk.nextRecord()) {
+				while (!tk.endOfRecord()) {
+					if (n == vals.length) {
+						vals = Arrays.copyOf(vals, n + (n >> 1) + 16);
+					}
+					vals[n++] = tk.nextInt();
+				}
+			}
+			return Arrays.copyOf(vals, n);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * A guess at the number of entries from the file size. Compressed
+	 * files are too unpredictable to bother.
+	 *
+	 * @param bytesPerEntry typical length of a line of the file
+	 */
+	private static int initialCapacity(File f, int bytesPerEntry) {
+		if (DecompressingInputStream.isCompressed(f.getName())) {
+			return 1024;
+		}
+		return (int)Math.min(Math.max(f.length() / bytesPerEntry, 16), 1 << 24);
+	}
+
+	private static void reportFailure(File f, Exception e) {
+		String filePath = f.getAbsolutePath();
+		if (e instanceof FileNotFoundException) {
+			JOptionPane.showMessageDialog(null, "Something slipped out from under us. "
+				+ " Could not open file at " + filePath);
+		} else if (e instanceof NumberFormatException) {
+			JOptionPane.showMessageDialog(null, "File at " + filePath + " read failure. "
+				+ e.getMessage() + ". File must be all one data type.");
+		} else if (e instanceof DataIOException) {
+			JOptionPane.showMessageDialog(null, "File at " + filePath + " read failure. "
+				+ e.getMessage());
+		} else {
+			JOptionPane.showMessageDialog(null, "Generic read failure on " + filePath);
+		}
+	}
+
+	private static void close(InputStream is) {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
 }
@@ -0,0 +1,605 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import prefuse.data.io.DataIOException;
+
+/**
+ * An array read from a NumPy .npy file (or one entry of an .npz archive),
+ * as written by MSMBuilder and PyEMMA for populations, mappings and
+ * transition matrices.
+ *
+ * The array's raw buffer is kept as-is in a ByteBuffer set to the file's
+ * byte order. For a plain .npy file on disk that buffer is a read-only
+ * memory mapping of the file, so nothing is copied until the values are
+ * asked for; asDoubleBuffer and asIntBuffer give views of float64 and
+ * int32 arrays without copying at all. Compressed files and .npz
+ * archives are read into memory.
+ *
+ * Numeric and boolean dtypes of either byte order are supported, as are
+ * byte and unicode strings (enough for scipy's sparse "format" entry).
+ * Object and structured dtypes are not.
+ *
+ * @author brycecr
+ */
+public class NpyArray {
+
+	private static final byte[] MAGIC = {(byte)0x93, 'N', 'U', 'M', 'P', 'Y'};
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final Pattern DESCR
+		= Pattern.compile("'descr'\\s*:\\s*'([<>|=])([a-zA-Z])(\\d+)'");
+	private static final Pattern FORTRAN
+		= Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+	private static final Pattern SHAPE
+		= Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+	private final char m_kind;
+	private final int m_itemSize;
+	private final int[] m_shape;
+	private final boolean m_fortran;
+	private final long m_size;
+	private final ByteOrder m_order;
+	private ByteBuffer m_data;
+
+	private NpyArray(char kind, int itemSize, int[] shape, boolean fortran, ByteOrder order) {
+		m_kind = kind;
+		m_itemSize = itemSize;
+		m_shape = shape;
+		m_fortran = fortran;
+		long size = 1;
+		for (int d : shape) {
+			size *= d;
+		}
+		m_size = size;
+		m_order = order;
+	}
+
+	/**
+	 * @param name file name, possibly with a compression suffix
+	 * @return true if name looks like a .npy or .npz file
+	 */
+	public static boolean isNumpyFile(String name) {
+		String inner = DecompressingInputStream.stripCompression(name).toLowerCase();
+		return inner.endsWith(".npy") || inner.endsWith(".npz");
+	}
+
+	/**
+	 * Read the single array of a .npy file, or the first array of a .npz.
+	 */
+	public static NpyArray read(File f) throws DataIOException {
+		Map<String, NpyArray> all = readAll(f);
+		if (all.isEmpty()) {
+			throw new DataIOException("No arrays in " + f.getName());
+		}
+		return all.values().iterator().next();
+	}
+
+	/**
+	 * Read every array in f. A .npy file gives a single entry named
+	 * "arr_0", as if it had been saved with numpy.savez; the entries of an
+	 * .npz are named as in the archive, without the .npy suffix, in
+	 * archive order.
+	 *
+	 * An uncompressed .npy file is memory-mapped rather than read.
+	 */
+	public static Map<String, NpyArray> readAll(File f) throws DataIOException {
+		String inner = DecompressingInputStream.stripCompression(f.getName()).toLowerCase();
+		if (inner.endsWith(".npy") && !DecompressingInputStream.isCompressed(f.getName())) {
+			Map<String, NpyArray> one = new LinkedHashMap<String, NpyArray>(2);
+			one.put("arr_0", map(f));
+			return one;
+		}
+
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			return readAll(is);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Read every array from a .npy or .npz stream (told apart by their
+	 * leading bytes), into memory.
+	 */
+	public static Map<String, NpyArray> readAll(InputStream is) throws DataIOException {
+		Map<String, NpyArray> arrays = new LinkedHashMap<String, NpyArray>();
+		try {
+			is = new BufferedInputStream(is, 1 << 16);
+			is.mark(4);
+			int b0 = is.read();
+			int b1 = is.read();
+			is.reset();
+			if (b0 == 'P' && b1 == 'K') {
+				ZipInputStream zis = new ZipInputStream(is);
+				ZipEntry e;
+				while ((e = zis.getNextEntry()) != null) {
+					if (!e.isDirectory()) {
+						arrays.put(entryName(e.getName()), read(zis));
+					}
+				}
+			} else {
+				arrays.put("arr_0", read(is));
+			}
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		}
+		return arrays;
+	}
+
+	/**
+	 * Read just the dtype and shape of one array: the .npy file f, or the
+	 * entry named entry (or the first entry, if null) of the .npz f. The
+	 * returned array may have no data.
+	 *
+	 * @return the header, or null if the .npz has no such entry
+	 */
+	public static NpyArray readHeader(File f, String entry) throws DataIOException {
+		return readEntry(f, entry, true);
+	}
+
+	/**
+	 * Read one array: the .npy file f, or the entry named entry (or the
+	 * first entry, if null) of the .npz f, without reading the rest of
+	 * the archive.
+	 *
+	 * @return the array, or null if the .npz has no such entry
+	 */
+	public static NpyArray readEntry(File f, String entry) throws DataIOException {
+		return readEntry(f, entry, false);
+	}
+
+	private static NpyArray readEntry(File f, String entry, boolean headerOnly)
+		throws DataIOException {
+		String inner = DecompressingInputStream.stripCompression(f.getName()).toLowerCase();
+		if (!inner.endsWith(".npz")) {
+			return headerOnly ? readHeaderOnly(f) : read(f);
+		} else if (DecompressingInputStream.isCompressed(f.getName())) {
+			//no random access into a compressed archive
+			Map<String, NpyArray> all = readAll(f);
+			return (entry == null) ? all.values().iterator().next() : all.get(entry);
+		}
+
+		ZipFile zip = null;
+		InputStream is = null;
+		try {
+			zip = new ZipFile(f);
+			ZipEntry e = (entry == null) ? zip.entries().nextElement()
+				: zip.getEntry(entry + ".npy");
+			if (e == null) {
+				return null;
+			}
+			is = new BufferedInputStream(zip.getInputStream(e), 4096);
+			return headerOnly ? readHeader(new DataInputStream(is)) : read(is);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			close(is);
+			if (zip != null) {
+				try {
+					zip.close();
+				} catch (IOException ioe) {
+					//nothing useful to do
+				}
+			}
+		}
+	}
+
+	private static NpyArray readHeaderOnly(File f) throws DataIOException {
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			return readHeader(new DataInputStream(new BufferedInputStream(is, 4096)));
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Map the data of the .npy file f read-only, in place.
+	 */
+	private static NpyArray map(File f) throws DataIOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel fc = raf.getChannel();
+			return map(fc, fc.size());
+		} catch (IOException ioe) {
+			throw new DataIOException("Memory-mapped read failure on " + f.getName(), ioe);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ioe) {
+					//the mapping stays valid after the channel is closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * Map the data of the .npy file open on fc. The mapping outlives fc.
+	 */
+	static NpyArray map(FileChannel fc, long size) throws IOException, DataIOException {
+		int probe = (int)Math.min(size, 4096);
+		ByteBuffer head = ByteBuffer.allocate(probe);
+		while (head.hasRemaining() && fc.read(head, head.position()) > 0) {
+			//fill
+		}
+		head.flip();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+			head.array(), 0, head.limit()));
+		NpyArray a = readHeader(in);
+		long offset = head.limit() - in.available();
+		long bytes = a.getByteCount();
+		if (offset + bytes > size) {
+			throw new DataIOException("Truncated .npy file: expected " + bytes
+				+ " bytes of data");
+		} else if (bytes > Integer.MAX_VALUE) {
+			throw new DataIOException("Array too large to map: " + bytes + " bytes");
+		}
+		a.m_data = fc.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(a.m_order);
+		return a;
+	}
+
+	/**
+	 * Read a .npy array (header and data) from is, into memory.
+	 */
+	static NpyArray read(InputStream is) throws IOException, DataIOException {
+		DataInputStream in = new DataInputStream(is);
+		NpyArray a = readHeader(in);
+		long bytes = a.getByteCount();
+		if (bytes > Integer.MAX_VALUE) {
+			throw new DataIOException("Array too large to read: " + bytes + " bytes");
+		}
+		byte[] data = new byte[(int)bytes];
+		try {
+			in.readFully(data);
+		} catch (EOFException eof) {
+			throw new DataIOException("Truncated .npy data", eof);
+		}
+		a.m_data = ByteBuffer.wrap(data).order(a.m_order);
+		return a;
+	}
+
+	/**
+	 * Parse the magic string, version and header dict, leaving in at the
+	 * start of the data.
+	 */
+	private static NpyArray readHeader(DataInputStream in) throws IOException, DataIOException {
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < MAGIC.length; ++i) {
+			if (magic[i] != MAGIC[i]) {
+				throw new DataIOException("Not a .npy array");
+			}
+		}
+		int major = in.readUnsignedByte();
+		in.readUnsignedByte(); //minor
+		long len;
+		if (major == 1) {
+			len = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+		} else if (major == 2 || major == 3) {
+			len = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+		} else {
+			throw new DataIOException("Unsupported .npy version " + major);
+		}
+		if (len > (1 << 20)) {
+			throw new DataIOException("Implausible .npy header length " + len);
+		}
+		byte[] dict = new byte[(int)len];
+		in.readFully(dict);
+		//version 3 only differs in allowing utf-8 field names
+		String header = new String(dict, (major == 3) ? Charset.forName("UTF-8") : LATIN1);
+
+		Matcher m = DESCR.matcher(header);
+		if (!m.find()) {
+			throw new DataIOException("Unsupported .npy dtype in header: " + header.trim());
+		}
+		ByteOrder order = m.group(1).equals(">") ? ByteOrder.BIG_ENDIAN
+			: m.group(1).equals("=") ? ByteOrder.nativeOrder() : ByteOrder.LITTLE_ENDIAN;
+		char kind = m.group(2).charAt(0);
+		int itemSize = Integer.parseInt(m.group(3));
+		if (!isSupported(kind, itemSize)) {
+			throw new DataIOException("Unsupported .npy dtype " + m.group());
+		} else if (kind == 'U') {
+			itemSize *= 4; //counted in UCS-4 characters
+		}
+
+		m = FORTRAN.matcher(header);
+		boolean fortran = m.find() && m.group(1).equals("True");
+
+		m = SHAPE.matcher(header);
+		if (!m.find()) {
+			throw new DataIOException("No shape in .npy header: " + header.trim());
+		}
+		String[] dims = m.group(1).split(",");
+		int n = 0;
+		int[] shape = new int[dims.length];
+		for (String d : dims) {
+			d = d.trim();
+			if (d.endsWith("L")) {
+				d = d.substring(0, d.length() - 1); //python 2 longs
+			}
+			if (!d.isEmpty()) {
+				shape[n++] = Integer.parseInt(d);
+			}
+		}
+		int[] trimmed = new int[n];
+		System.arraycopy(shape, 0, trimmed, 0, n);
+		return new NpyArray(kind, itemSize, trimmed, fortran, order);
+	}
+
+	private static boolean isSupported(char kind, int size) {
+		switch (kind) {
+			case 'f':
+				return size == 4 || size == 8;
+			case 'i':
+			case 'u':
+				return size == 1 || size == 2 || size == 4 || size == 8;
+			case 'b':
+				return size == 1;
+			case 'S':
+			case 'U':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static String entryName(String name) {
+		return name.endsWith(".npy") ? name.substring(0, name.length() - 4) : name;
+	}
+
+	/**
+	 * @return the array's dimensions (empty for a scalar)
+	 */
+	public int[] getShape() {
+		return m_shape.clone();
+	}
+
+	/**
+	 * @return total number of elements
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return the numpy dtype kind: 'f', 'i', 'u', 'b', 'S' or 'U'
+	 */
+	public char getKind() {
+		return m_kind;
+	}
+
+	public int getItemSize() {
+		return m_itemSize;
+	}
+
+	public boolean isFortranOrder() {
+		return m_fortran;
+	}
+
+	private long getByteCount() {
+		return m_size * m_itemSize;
+	}
+
+	/**
+	 * Zero-copy view of a float64 array, in storage order.
+	 *
+	 * @return the view, or null if this isn't float64
+	 */
+	public DoubleBuffer asDoubleBuffer() {
+		if (m_kind != 'f' || m_itemSize != 8) {
+			return null;
+		}
+		return m_data.duplicate().order(m_order).asDoubleBuffer();
+	}
+
+	/**
+	 * Zero-copy view of an int32 array, in storage order.
+	 *
+	 * @return the view, or null if this isn't int32
+	 */
+	public IntBuffer asIntBuffer() {
+		if (m_kind != 'i' || m_itemSize != 4) {
+			return null;
+		}
+		return m_data.duplicate().order(m_order).asIntBuffer();
+	}
+
+	/**
+	 * Element i in storage order (row-major unless isFortranOrder), as a
+	 * double.
+	 */
+	public double getDouble(int i) {
+		int pos = i * m_itemSize;
+		switch (m_kind) {
+			case 'f':
+				return (m_itemSize == 8) ? m_data.getDouble(pos) : m_data.getFloat(pos);
+			case 'u':
+				if (m_itemSize == 8) {
+					long v = m_data.getLong(pos);
+					return (v >= 0) ? v : (double)(v >>> 1) * 2.0 + (v & 1);
+				}
+				return getLong(i);
+			case 'b':
+				return (m_data.get(pos) != 0) ? 1.0 : 0.0;
+			default:
+				return getLong(i);
+		}
+	}
+
+	/**
+	 * Element i in storage order as a long. Floats are truncated.
+	 */
+	public long getLong(int i) {
+		int pos = i * m_itemSize;
+		switch (m_kind) {
+			case 'i':
+				switch (m_itemSize) {
+					case 1:
+						return m_data.get(pos);
+					case 2:
+						return m_data.getShort(pos);
+					case 4:
+						return m_data.getInt(pos);
+					default:
+						return m_data.getLong(pos);
+				}
+			case 'u':
+				switch (m_itemSize) {
+					case 1:
+						return m_data.get(pos) & 0xFFL;
+					case 2:
+						return m_data.getShort(pos) & 0xFFFFL;
+					case 4:
+						return m_data.getInt(pos) & 0xFFFFFFFFL;
+					default:
+						return m_data.getLong(pos);
+				}
+			case 'b':
+				return (m_data.get(pos) != 0) ? 1 : 0;
+			case 'f':
+				return (long)getDouble(i);
+			default:
+				throw new UnsupportedOperationException("Not a numeric array");
+		}
+	}
+
+	/**
+	 * Element (row, col) of a 2-d array, whatever its storage order.
+	 */
+	public double getDouble(int row, int col) {
+		return getDouble(m_fortran ? col * m_shape[0] + row : row * m_shape[1] + col);
+	}
+
+	/**
+	 * Element i of a string array ('S' or 'U' dtype), trailing NULs removed.
+	 */
+	public String getString(int i) {
+		int pos = i * m_itemSize;
+		StringBuilder sb = new StringBuilder();
+		if (m_kind == 'S') {
+			for (int k = 0; k < m_itemSize && m_data.get(pos + k) != 0; ++k) {
+				sb.append((char)(m_data.get(pos + k) & 0xFF));
+			}
+		} else if (m_kind == 'U') {
+			for (int k = 0; k < m_itemSize / 4; ++k) {
+				int cp = m_data.getInt(pos + 4 * k);
+				if (cp == 0) {
+					break;
+				}
+				sb.appendCodePoint(cp);
+			}
+		} else {
+			sb.append(getDouble(i));
+		}
+		return sb.toString();
+	}
+
+	private int getElementCount() {
+		if (m_size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Array too large: " + m_size + " elements");
+		}
+		return (int)m_size;
+	}
+
+	/**
+	 * Copy the array, in storage order, into a new double array.
+	 */
+	public double[] toDoubleArray() {
+		int n = getElementCount();
+		double[] vals = new double[n];
+		DoubleBuffer db = asDoubleBuffer();
+		if (db != null) {
+			db.get(vals);
+			return vals;
+		}
+		for (int i = 0; i < n; ++i) {
+			vals[i] = getDouble(i);
+		}
+		return vals;
+	}
+
+	/**
+	 * Copy the array, in storage order, into a new int array.
+	 *
+	 * @throws NumberFormatException if this is a float array or a value
+	 * doesn't fit in an int
+	 */
+	public int[] toIntArray() {
+		if (m_kind == 'f') {
+			throw new NumberFormatException("Expected an integer array, found float"
+				+ (8 * m_itemSize));
+		}
+		int n = getElementCount();
+		int[] vals = new int[n];
+		IntBuffer ib = asIntBuffer();
+		if (ib != null) {
+			ib.get(vals);
+			return vals;
+		}
+		for (int i = 0; i < n; ++i) {
+			long v = getLong(i);
+			if (v != (int)v) {
+				throw new NumberFormatException("Value " + v + " at " + i
+					+ " does not fit in an int");
+			}
+			vals[i] = (int)v;
+		}
+		return vals;
+	}
+
+	private static void close(InputStream is) {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Read a graph from a transition matrix saved by NumPy: either a dense
+ * square array in a .npy file (or the first array of an .npz), or a
+ * scipy.sparse matrix saved with save_npz (csr, csc or coo).
+ *
+ * Large dense .npy files are memory-mapped and scanned in place, so the
+ * only copy made is of the nonzero entries into the edge table.
+ *
+ * @author brycecr
+ */
+public class NpyGraphReader extends AbstractMSMReader {
+
+	/**
+	 * Prepare backing graph tables for reading.
+	 *
+	 * @param length number of states
+	 * @param edges number of nonzero entries in the matrix
+	 */
+	private void init(int length, int edges) {
+
+		m_nodeTable = new Table(length, 2);
+		m_nodeTable.addColumn(LABEL, String.class, "0");
+		m_nodeTable.addColumn(EQPROB, double.class, 1);
+
+		//Initialize axis labels to correspond to row numbers, 0-indexed
+		for (int i = 0; i < length; ++i) {
+			m_nodeTable.setString(i, 0, Integer.toString(i));
+		}
+
+		m_edgeTable = new Table(edges, 3);
+		m_edgeTable.addColumn(Graph.DEFAULT_SOURCE_KEY, int.class); //0th
+		m_edgeTable.addColumn(Graph.DEFAULT_TARGET_KEY, int.class); //1st
+		m_edgeTable.addColumn(TPROB, double.class); //2nd
+	}
+
+	/**
+	 * Number of states and nonzeros of the matrix in f, reading as little
+	 * of it as we can: just the header of a dense array (nonzeros are
+	 * unknown, -1), or the shape and the data header of a sparse one.
+	 *
+	 * @param f .npy or .npz file
+	 * @return {states, nnz}
+	 */
+	public static long[] probe(File f) throws DataIOException {
+		boolean npz = DecompressingInputStream.stripCompression(f.getName())
+			.toLowerCase().endsWith(".npz");
+		NpyArray data = npz ? NpyArray.readHeader(f, "data") : null;
+		NpyArray ptr = npz ? NpyArray.readHeader(f, "indptr") : null;
+		if (data != null && ptr != null) {
+			NpyArray shape = NpyArray.readEntry(f, "shape");
+			long states = (shape != null) ? shape.getLong(0) : ptr.getSize() - 1;
+			return new long[] {states, data.getSize()};
+		}
+		NpyArray dense = NpyArray.readHeader(f, null);
+		int[] dims = dense.getShape();
+		return new long[] {(dims.length > 0) ? dims[0] : 0, -1};
+	}
+
+	@Override
+	public Graph readGraph(String location) throws DataIOException {
+		File f = new File(location);
+		if (f.isFile()) {
+			return readGraph(f);
+		}
+		return super.readGraph(location);
+	}
+
+	/**
+	 * Plain .npy files go through the base class, which maps large ones
+	 * and hands them to readMapped; anything else is read whole.
+	 */
+	@Override
+	public Graph readGraph(File f) throws DataIOException {
+		String inner = DecompressingInputStream.stripCompression(f.getName()).toLowerCase();
+		if (inner.endsWith(".npy") && !DecompressingInputStream.isCompressed(f.getName())) {
+			return super.readGraph(f);
+		}
+		return fromArrays(NpyArray.readAll(f));
+	}
+
+	public Graph readGraph(InputStream is) throws DataIOException {
+		return fromArrays(NpyArray.readAll(is));
+	}
+
+	@Override
+	protected Graph readMapped(FileChannel fc, long size)
+		throws IOException, DataIOException, InterruptedException {
+		return fromDense(NpyArray.map(fc, size));
+	}
+
+	private Graph fromArrays(Map<String, NpyArray> arrays) throws DataIOException {
+		if (arrays.isEmpty()) {
+			throw new DataIOException("No arrays found");
+		}
+		NpyArray data = arrays.get("data");
+		if (data != null && arrays.containsKey("indptr") && arrays.containsKey("indices")) {
+			NpyArray format = arrays.get("format");
+			boolean csc = format != null && format.getString(0).equals("csc");
+			return fromCompressed(arrays.get("indptr"), arrays.get("indices"),
+				data, arrays.get("shape"), csc);
+		} else if (data != null && arrays.containsKey("row") && arrays.containsKey("col")) {
+			return fromCoo(arrays.get("row"), arrays.get("col"), data, arrays.get("shape"));
+		}
+		return fromDense(arrays.values().iterator().next());
+	}
+
+	/**
+	 * Two passes over the (mapped) array: count the nonzeros so the edge
+	 * table can be allocated once, then fill it in row order.
+	 */
+	private Graph fromDense(NpyArray a) throws DataIOException {
+		int[] shape = a.getShape();
+		if (shape.length != 2 || shape[0] != shape[1]) {
+			throw new DataIOException("Expected a square 2-d transition matrix, found shape "
+				+ Arrays.toString(shape));
+		}
+		int n = shape[0];
+
+		long nnz = 0;
+		for (int i = 0; i < a.getSize(); ++i) {
+			if (a.getDouble(i) != 0.) {
+				nnz++;
+			}
+		}
+		if (nnz > Integer.MAX_VALUE) {
+			throw new DataIOException("Too many nonzero entries: " + nnz);
+		}
+
+		init(n, (int)nnz);
+		Column sources = m_edgeTable.getColumn(0);
+		Column targets = m_edgeTable.getColumn(1);
+		Column probs = m_edgeTable.getColumn(2);
+
+		boolean notify = false;
+		int edgeId = 0;
+		for (int row = 0; row < n; ++row) {
+			for (int col = 0; col < n; ++col) {
+				double d = a.getDouble(row, col);
+				if (d != 0.) {
+					if (d > 1.0 || d < 0.0) {
+						notify = true;
+					}
+					sources.setInt(row, edgeId);
+					targets.setInt(col, edgeId);
+					probs.setDouble(d, edgeId++);
+				}
+			}
+		}
+		return buildGraph(notify);
+	}
+
+	/**
+	 * A scipy csr (or, transposed, csc) matrix.
+	 */
+	private Graph fromCompressed(NpyArray indptr, NpyArray indices, NpyArray data,
+		NpyArray shape, boolean csc) throws DataIOException {
+		int outer = (int)indptr.getSize() - 1;
+		int n = getStates(shape, outer);
+		int nnz = (int)data.getSize();
+		if (indices.getSize() != nnz || indptr.getLong(outer) != nnz) {
+			throw new DataIOException("Inconsistent sparse matrix arrays");
+		}
+
+		init(n, nnz);
+		Column sources = m_edgeTable.getColumn(csc ? 1 : 0);
+		Column targets = m_edgeTable.getColumn(csc ? 0 : 1);
+		Column probs = m_edgeTable.getColumn(2);
+
+		boolean notify = false;
+		for (int i = 0; i < outer; ++i) {
+			int end = (int)indptr.getLong(i + 1);
+			for (int k = (int)indptr.getLong(i); k < end; ++k) {
+				int j = (int)indices.getLong(k);
+				if (j < 0 || j >= n) {
+					throw new DataIOException("Index out of bounds: " + j);
+				}
+				double d = data.getDouble(k);
+				if (d > 1.0 || d < 0.0) {
+					notify = true;
+				}
+				sources.setInt(i, k);
+				targets.setInt(j, k);
+				probs.setDouble(d, k);
+			}
+		}
+		return buildGraph(notify);
+	}
+
+	/**
+	 * A scipy coo matrix; entries are kept in file order.
+	 */
+	private Graph fromCoo(NpyArray rows, NpyArray cols, NpyArray data, NpyArray shape)
+		throws DataIOException {
+		int nnz = (int)data.getSize();
+		if (rows.getSize() != nnz || cols.getSize() != nnz) {
+			throw new DataIOException("Inconsistent sparse matrix arrays");
+		}
+		int max = 0;
+		for (int k = 0; k < nnz; ++k) {
+			max = Math.max(max, (int)Math.max(rows.getLong(k), cols.getLong(k)) + 1);
+		}
+		int n = getStates(shape, max);
+
+		init(n, nnz);
+		Column sources = m_edgeTable.getColumn(0);
+		Column targets = m_edgeTable.getColumn(1);
+		Column probs = m_edgeTable.getColumn(2);
+
+		boolean notify = false;
+		for (int k = 0; k < nnz; ++k) {
+			double d = data.getDouble(k);
+			if (d > 1.0 || d < 0.0) {
+				notify = true;
+			}
+			sources.setInt((int)rows.getLong(k), k);
+			targets.setInt((int)cols.getLong(k), k);
+			probs.setDouble(d, k);
+		}
+		return buildGraph(notify);
+	}
+
+	private static int getStates(NpyArray shape, int fallback) throws DataIOException {
+		if (shape == null) {
+			return fallback;
+		} else if (shape.getSize() != 2 || shape.getLong(0) != shape.getLong(1)) {
+			throw new DataIOException("Expected a square transition matrix");
+		}
+		return (int)shape.getLong(0);
+	}
+}
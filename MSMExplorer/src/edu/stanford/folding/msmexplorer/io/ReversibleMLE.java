@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Reversible maximum likelihood estimate of a transition matrix from a
+ * count matrix, by the fixed-point iteration MSMBuilder uses:
+ * <pre>
+ *   x_ij &lt;- (c_ij + c_ji) / (c_i / x_i + c_j / x_j)
+ * </pre>
+ * where c_i and x_i are row sums, starting from x = C + C^T. Then
+ * T_ij = x_ij / x_i and the stationary distribution is x_i / sum(x).
+ *
+ * Everything lives on the sparsity pattern of C + C^T, in CSR form, so
+ * an iteration costs O(nnz); large matrices split each iteration's two
+ * passes (row sums, then the update) across the WorkerPool.
+ *
+ * No ergodic trimming is done, so state indices match the counts (and
+ * any mappings). States without counts come out with no edges and zero
+ * equilibrium probability, and separate connected components each keep
+ * the weight of their own counts.
+ *
+ * @author brycecr
+ */
+public class ReversibleMLE implements MSMConstants {
+
+	private static final double kDEFAULT_TOLERANCE = 1e-10;
+	private static final int kDEFAULT_MAX_ITERATIONS = 1000000;
+
+	//smaller problems run on the calling thread
+	private static final int kPARALLEL_NNZ = 1 << 16;
+	private static final int kREPORT_EVERY = 64;
+
+	private final SparseEdgeTable m_counts;
+	private double m_threshold = 0.0;
+	private double m_tolerance = kDEFAULT_TOLERANCE;
+	private int m_maxIterations = kDEFAULT_MAX_ITERATIONS;
+	private ProgressDialog.Progress m_progress = ProgressDialog.NONE;
+
+	//C + C^T, and the iterate on its pattern
+	private int m_n;
+	private SparseMatrix m_sym;
+	private double[] m_x;
+	private double[] m_rowCounts;
+	private double[] m_rowSums;
+
+	private int m_iterations = 0;
+	private boolean m_converged = false;
+
+	/**
+	 * @param counts transition counts, e.g. from tCounts.UnSym.mtx or
+	 * AssignmentCounts
+	 */
+	public ReversibleMLE(SparseEdgeTable counts) {
+		m_counts = counts;
+	}
+
+	/**
+	 * @param threshold counts below this are dropped before estimating
+	 */
+	public void setCountThreshold(double threshold) {
+		m_threshold = threshold;
+	}
+
+	public double getCountThreshold() {
+		return m_threshold;
+	}
+
+	/**
+	 * @param tol stop once no state's share of the total weight moves by
+	 * more than this in an iteration
+	 */
+	public void setTolerance(double tol) {
+		m_tolerance = tol;
+	}
+
+	public double getTolerance() {
+		return m_tolerance;
+	}
+
+	public void setMaxIterations(int max) {
+		m_maxIterations = max;
+	}
+
+	public int getMaxIterations() {
+		return m_maxIterations;
+	}
+
+	/**
+	 * @param p progress to report to; checked for cancellation as we go
+	 */
+	public void setProgress(ProgressDialog.Progress p) {
+		m_progress = (p == null) ? ProgressDialog.NONE : p;
+	}
+
+	/**
+	 * @return iterations taken by the last estimate
+	 */
+	public int getIterations() {
+		return m_iterations;
+	}
+
+	/**
+	 * @return true if the last estimate reached the tolerance
+	 */
+	public boolean isConverged() {
+		return m_converged;
+	}
+
+	/**
+	 * Estimate, and build the result as a graph with eqProb filled in.
+	 *
+	 * @return the reversible transition matrix as a graph
+	 * @throws CancellationException if the progress was cancelled
+	 */
+	public Graph estimate() throws DataIOException {
+		symmetrize();
+		iterate();
+		return toGraph();
+	}
+
+	/**
+	 * Build C + C^T (after thresholding) by merging
+	 * each row of C with the same row of its transpose, along with the
+	 * row sums of C.
+	 */
+	private void symmetrize() {
+		SparseMatrix c = m_counts.getMatrix();
+		int rows = c.getRowCount();
+
+		int n = rows;
+		for (int k = 0; k < c.getEntryCount(); ++k) {
+			n = Math.max(n, c.getColumnAt(k) + 1);
+		}
+		m_n = n;
+
+		m_rowCounts = new double[n];
+		int kept = 0;
+		for (int i = 0; i < rows; ++i) {
+			for (int k = c.getRowStart(i); k < c.getRowEnd(i); ++k) {
+				if (keep(c.getValueAt(k))) {
+					m_rowCounts[i] += c.getValueAt(k);
+					kept++;
+				}
+			}
+		}
+
+		//merge row i of C with row i of C^T, i.e. column i of C, which
+		//the transposed view gives us sorted by row
+		int[] ptr = new int[n + 1];
+		int cap = 2 * kept;
+		int[] sCol = new int[cap];
+		double[] sVal = new double[cap];
+		int m = 0;
+		for (int i = 0; i < n; ++i) {
+			int a = (i < rows) ? c.getRowStart(i) : 0;
+			int aEnd = (i < rows) ? c.getRowEnd(i) : 0;
+			int b = (i < c.getColumnCount()) ? c.getColumnStart(i) : 0;
+			int bEnd = (i < c.getColumnCount()) ? c.getColumnEnd(i) : 0;
+			while (a < aEnd || b < bEnd) {
+				if (a < aEnd && !keep(c.getValueAt(a))) {
+					a++;
+					continue;
+				}
+				if (b < bEnd && !keep(c.getValueAt(c.getPositionAt(b)))) {
+					b++;
+					continue;
+				}
+				if (b == bEnd || (a < aEnd && c.getColumnAt(a) < c.getRowAt(b))) {
+					sCol[m] = c.getColumnAt(a);
+					sVal[m++] = c.getValueAt(a++);
+				} else if (a == aEnd || c.getRowAt(b) < c.getColumnAt(a)) {
+					sCol[m] = c.getRowAt(b);
+					sVal[m++] = c.getValueAt(c.getPositionAt(b++));
+				} else {
+					sCol[m] = c.getColumnAt(a);
+					sVal[m++] = c.getValueAt(a++) + c.getValueAt(c.getPositionAt(b++));
+				}
+			}
+			ptr[i + 1] = m;
+		}
+		m_sym = SparseMatrix.fromCSR(n, n, ptr, sCol, sVal);
+		m_x = new double[m];
+		System.arraycopy(sVal, 0, m_x, 0, m);
+		m_rowSums = new double[n];
+	}
+
+	private boolean keep(double c) {
+		return c > 0 && c >= m_threshold;
+	}
+
+	private void iterate() throws DataIOException {
+		m_iterations = 0;
+		m_converged = false;
+		boolean parallel = m_sym.getEntryCount() >= kPARALLEL_NNZ && WorkerPool.getParallelism() > 1;
+		List<Callable<Double>> sums = new ArrayList<Callable<Double>>();
+		List<Callable<Double>> updates = new ArrayList<Callable<Double>>();
+		for (int[] range : m_sym.splitRows(parallel ? 4 * WorkerPool.getParallelism() : 1)) {
+			final int lo = range[0];
+			final int hi = range[1];
+			sums.add(new Callable<Double>() {
+				public Double call() {
+					return rowSums(lo, hi);
+				}
+			});
+			updates.add(new Callable<Double>() {
+				public Double call() {
+					update(lo, hi);
+					return 0.0;
+				}
+			});
+		}
+
+		double total = run(sums, parallel);
+		double[] old = new double[m_n];
+		double firstDelta = -1;
+		while (m_iterations < m_maxIterations) {
+			System.arraycopy(m_rowSums, 0, old, 0, m_n);
+			double oldTotal = total;
+			run(updates, parallel);
+			total = run(sums, parallel);
+			m_iterations++;
+
+			double delta = 0;
+			for (int i = 0; i < m_n; ++i) {
+				delta = Math.max(delta, Math.abs(m_rowSums[i] / total - old[i] / oldTotal));
+			}
+			if (delta <= m_tolerance) {
+				m_converged = true;
+				break;
+			}
+			if (m_iterations % kREPORT_EVERY == 0) {
+				if (m_progress.isCanceled()) {
+					throw new CancellationException("Estimate cancelled");
+				}
+				//convergence is roughly linear, so report it on a log scale
+				if (firstDelta < 0) {
+					firstDelta = delta;
+				}
+				double frac = Math.log(firstDelta / delta) / Math.log(firstDelta / m_tolerance);
+				m_progress.setProgress((long)(1000 * Math.max(0, Math.min(1, frac))), 1000);
+			}
+		}
+		m_progress.setProgress(1000, 1000);
+	}
+
+	private double rowSums(int lo, int hi) {
+		double total = 0;
+		for (int i = lo; i < hi; ++i) {
+			double s = 0;
+			for (int k = m_sym.getRowStart(i); k < m_sym.getRowEnd(i); ++k) {
+				s += m_x[k];
+			}
+			m_rowSums[i] = s;
+			total += s;
+		}
+		return total;
+	}
+
+	/**
+	 * The fixed-point step for rows [lo, hi). Only reads the row sums
+	 * from the previous pass, so rows can be updated independently.
+	 */
+	private void update(int lo, int hi) {
+		for (int i = lo; i < hi; ++i) {
+			double qi = (m_rowSums[i] > 0) ? m_rowCounts[i] / m_rowSums[i] : 0;
+			for (int k = m_sym.getRowStart(i); k < m_sym.getRowEnd(i); ++k) {
+				int j = m_sym.getColumnAt(k);
+				double qj = (m_rowSums[j] > 0) ? m_rowCounts[j] / m_rowSums[j] : 0;
+				double denom = qi + qj;
+				if (denom > 0) {
+					m_x[k] = m_sym.getValueAt(k) / denom;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the tasks and add up what they return.
+	 */
+	private static double run(List<Callable<Double>> tasks, boolean parallel)
+		throws DataIOException {
+		double sum = 0;
+		if (!parallel) {
+			for (Callable<Double> task : tasks) {
+				try {
+					sum += task.call();
+				} catch (Exception e) {
+					throw new DataIOException(e);
+				}
+			}
+			return sum;
+		}
+		try {
+			for (Future<Double> f : WorkerPool.get().invokeAll(tasks)) {
+				sum += f.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new DataIOException("Interrupted during estimate", ie);
+		} catch (ExecutionException ee) {
+			throw new DataIOException(ee.getCause());
+		}
+		return sum;
+	}
+
+	private Graph toGraph() {
+		double total = 0;
+		for (int i = 0; i < m_n; ++i) {
+			total += m_rowSums[i];
+		}
+
+		Table nodes = new Table(m_n, 2);
+		nodes.addColumn(LABEL, String.class, "0");
+		nodes.addColumn(EQPROB, double.class, 1);
+		Column eq = nodes.getColumn(1);
+		for (int i = 0; i < m_n; ++i) {
+			nodes.setString(i, 0, Integer.toString(i));
+			eq.setDouble((total > 0) ? m_rowSums[i] / total : 0, i);
+		}
+
+		int nnz = m_sym.getEntryCount();
+		Table edges = new Table(nnz, 3);
+		edges.addColumn(Graph.DEFAULT_SOURCE_KEY, int.class);
+		edges.addColumn(Graph.DEFAULT_TARGET_KEY, int.class);
+		edges.addColumn(TPROB, double.class);
+		Column sources = edges.getColumn(0);
+		Column targets = edges.getColumn(1);
+		Column probs = edges.getColumn(2);
+		for (int i = 0; i < m_n; ++i) {
+			for (int k = m_sym.getRowStart(i); k < m_sym.getRowEnd(i); ++k) {
+				sources.setInt(i, k);
+				targets.setInt(m_sym.getColumnAt(k), k);
+				probs.setDouble(m_x[k] / m_rowSums[i], k);
+			}
+		}
+		return new Graph(nodes, edges, true);
+	}
+}
@@ -19,24 +19,24 @@ package edu.stanford.folding.msmexplorer.io;
 
 import java.awt.Dimension;
 import java.awt.geom.Point2D;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
-import org.apache.batik.dom.GenericDOMImplementation;
-import org.apache.batik.svggen.SVGGraphics2D;
 import org.apache.batik.swing.svg.SVGFileFilter;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
 import prefuse.Display;
 
 /**
  * A nifty class to output SVG files of prefuse graphs.
- * The annoying part is that we have to pull in 8 Batik jars
- * to do this, but that's probably the way to go.
- * For the record, requires batik jars:
- * codec, awt-util, dom, svggen, swing, util, ext, and xml
+ * The display is painted through a StreamingSVGGraphics2D, which writes
+ * each element out as it is drawn, so memory use stays flat however
+ * large the graph. Files ending in .svgz are gzipped.
  * Auto-appends .svg extension.
  * 
  * Adapted from Luis Miguel Rodriguez's code 
@@ -45,6 +45,8 @@ import prefuse.Display;
  */
 public class SVGWriter {
 
+	private static final int kBUFFER = 1 << 16;
+
 	private SVGWriter() {
 		//prevent instantiation
 	}
@@ -57,66 +59,94 @@ public class SVGWriter {
 	 * Displays a dialog to save contents of display as .svg file
 	 * 
 	 * @param display to output as SVG
+	 * @param f file to save to, or null to ask
 	 * @return success or failure of operation
 	 */
 	public static boolean saveSVG(Display display, File f) {
-		try {
-			double scale = display.getScale();
-
-			Dimension d = new Dimension((int) (scale * display.getWidth()),
-				(int) (scale * display.getHeight()));
-
-			// Get a DOMImplementation.
-			DOMImplementation domImpl = GenericDOMImplementation.getDOMImplementation();
-
-			// Create an instance of org.w3c.dom.Document.
-			String svgNS = "http://www.w3.org/2000/svg";
-			Document document = domImpl.createDocument(svgNS, "svg", null);
-
-			// Create an instance of the SVG Generator.
-			SVGGraphics2D svgG = new SVGGraphics2D(document);
-
-			// set up the display, render, then revert to normal settings
-			Point2D p = new Point2D.Double(0, 0);
-			display.zoom(p, scale); // also takes care of damage report
-			boolean q = display.isHighQuality();
-			display.setHighQuality(true);
-			display.paintDisplay(svgG, d);
-			display.setHighQuality(q);
-			display.zoom(p, 1 / scale); // also takes care of damage report
-
-			// Finally, stream out SVG to the standard output using
-			// UTF-8 encoding.
-			boolean useCSS = true; // we want to use CSS style attributes
-
-			//get filename/location to save under
-			int ret;
-			if (f == null) {
-				JFileChooser jfc = new JFileChooser();
-				jfc.setDialogTitle("Save SVG file...");
-				jfc.setFileFilter(new SVGFileFilter());
-				ret = jfc.showSaveDialog(null);
-				f = jfc.getSelectedFile();
-			} else {
-				ret = JFileChooser.APPROVE_OPTION;
+		//get filename/location to save under
+		if (f == null) {
+			JFileChooser jfc = new JFileChooser();
+			jfc.setDialogTitle("Save SVG file...");
+			jfc.setFileFilter(new SVGFileFilter());
+			if (jfc.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
+				return false;
 			}
-			if (ret == JFileChooser.APPROVE_OPTION) {
-				String saveLoc = f.getAbsolutePath();
+			f = jfc.getSelectedFile();
+		}
 
-				//append extension
-				if (!(saveLoc.endsWith(".svg") || saveLoc.endsWith(".svgz"))) {
-					saveLoc = saveLoc + ".svg";
-				}
+		//append extension
+		String saveLoc = f.getAbsolutePath();
+		if (!(saveLoc.endsWith(".svg") || saveLoc.endsWith(".svgz"))) {
+			saveLoc = saveLoc + ".svg";
+		}
+		File out = new File(saveLoc);
 
-				//save!
-				svgG.stream(saveLoc, useCSS);
-				return true;
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(out), kBUFFER);
+			if (saveLoc.endsWith(".svgz")) {
+				os = new GZIPOutputStream(os, kBUFFER);
 			}
+			writeSVG(display, os);
+			os.close();
+			os = null;
+			return true;
 		} catch (Exception ex) {
 			JOptionPane.showMessageDialog(null, "Could not save SVG file, exception: "
-				+ex.getCause().toString()+" "+ex.toString(), "SVG save error", 
+				+ ex.toString(), "SVG save error",
 				JOptionPane.ERROR_MESSAGE);
 			Logger.getLogger(SVGWriter.class.getName()).log(Level.SEVERE, null, ex);
-		}		return false;
+			return false;
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException ioe) {
+					//already failing
+				}
+				out.delete();
+			}
+		}
+	}
+
+	/**
+	 * Paint display as an SVG document onto os, at the display's
+	 * current scale. os is flushed but not closed.
+	 *
+	 * @param display to output as SVG
+	 * @param os where to write the document
+	 */
+	public static void writeSVG(Display display, OutputStream os) throws IOException {
+		writeSVG(display, os, display.getScale());
+	}
+
+	/**
+	 * Paint display as an SVG document onto os, scale times the size of
+	 * the display, as Display.saveImage does for bitmaps. os is flushed
+	 * but not closed.
+	 *
+	 * @param display to output as SVG
+	 * @param os where to write the document
+	 * @param scale size of the document relative to the display
+	 */
+	public static void writeSVG(Display display, OutputStream os, double scale)
+		throws IOException {
+		Dimension d = new Dimension((int) (scale * display.getWidth()),
+			(int) (scale * display.getHeight()));
+
+		StreamingSVGGraphics2D svgG = new StreamingSVGGraphics2D(os, d);
+
+		// set up the display, render, then revert to normal settings
+		Point2D p = new Point2D.Double(0, 0);
+		display.zoom(p, scale); // also takes care of damage report
+		boolean q = display.isHighQuality();
+		display.setHighQuality(true);
+		try {
+			display.paintDisplay(svgG, d);
+		} finally {
+			display.setHighQuality(q);
+			display.zoom(p, 1 / scale); // also takes care of damage report
+		}
+		svgG.finish();
 	}
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Per-edge values read from a matrix file (e.g. tCounts next to an
+ * open tProb). The entries are held as a SparseMatrix, so memory goes
+ * with the number of nonzero entries rather than the square of the
+ * number of states, and looking up the value for an edge is a binary
+ * search within its source row. This class adds the file readers.
+ *
+ * Indices are 0-indexed, like the source and target columns of the
+ * graphs the readers build.
+ *
+ * @author brycecr
+ */
+public class SparseEdgeTable {
+
+	private final SparseMatrix m_matrix;
+
+	private SparseEdgeTable(SparseMatrix matrix) {
+		m_matrix = matrix;
+	}
+
+	/**
+	 * @return the entries, shared rather than copied
+	 */
+	public SparseMatrix getMatrix() {
+		return m_matrix;
+	}
+
+	/**
+	 * @return number of rows in the matrix
+	 */
+	public int getRowCount() {
+		return m_matrix.getRowCount();
+	}
+
+	/**
+	 * @return number of stored (nonzero) entries
+	 */
+	public int getEntryCount() {
+		return m_matrix.getEntryCount();
+	}
+
+	/**
+	 * @param row 0-indexed row (source state)
+	 * @param col 0-indexed column (target state)
+	 * @param def value for entries not in the file
+	 * @return the entry at row, col or def if there isn't one
+	 */
+	public double get(int row, int col, double def) {
+		if (row < 0 || row >= m_matrix.getRowCount()
+			|| col < 0 || col >= m_matrix.getColumnCount()) {
+			return def;
+		}
+		int k = m_matrix.indexOf(row, col);
+		return (k < 0) ? def : m_matrix.getValueAt(k);
+	}
+
+	/**
+	 * Read a MatrixMarket coordinate file, possibly gzipped. An entry
+	 * listed more than once keeps its last value.
+	 *
+	 * @param f file to read
+	 * @return the nonzero entries of f
+	 */
+	public static SparseEdgeTable readMtx(File f) throws DataIOException {
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			ByteTokenizer tk = new ByteTokenizer(is);
+			if (!tk.skipComments('%')) {
+				throw new DataIOException("Unexpected empty line or End of File. "
+					+ "Terminating read.");
+			}
+			int rows = tk.nextInt();
+			int cols = tk.nextInt();
+			int nnz = tk.nextInt();
+			tk.skipRecord();
+
+			int[] sources = new int[nnz];
+			int[] targets = new int[nnz];
+			double[] vals = new double[nnz];
+			int count = 0;
+			while (tk.nextRecord()) {
+				if (count == nnz) {
+					throw new DataIOException("More edges than specified");
+				}
+				sources[count] = tk.nextInt() - 1;
+				targets[count] = tk.nextInt() - 1;
+				vals[count++] = tk.nextDouble();
+				tk.skipRecord();
+			}
+			return fromTriplets(rows, cols, sources, targets, vals, count);
+		} catch (NumberFormatException nfe) {
+			throw new DataIOException("Parse failure: " + nfe.getMessage(), nfe);
+		} catch (IOException ioe) {
+			throw new DataIOException("Stream read failure in SparseEdgeTable", ioe);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Read a dense, whitespace delimited matrix (possibly gzipped),
+	 * keeping only the nonzero entries.
+	 *
+	 * @param f file to read
+	 * @return the nonzero entries of f
+	 */
+	public static SparseEdgeTable readDense(File f) throws DataIOException {
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			ByteTokenizer tk = new ByteTokenizer(is);
+
+			int[] rowPtr = new int[17];
+			int[] colIdx = new int[64];
+			double[] vals = new double[64];
+			int rows = 0;
+			int cols = 0;
+			int count = 0;
+			while (tk.nextRecord()) {
+				int col = 0;
+				while (!tk.endOfRecord()) {
+					double val = tk.nextDouble();
+					if (val != 0.0) {
+						if (count == colIdx.length) {
+							int cap = count + (count >> 1);
+							colIdx = Arrays.copyOf(colIdx, cap);
+							vals = Arrays.copyOf(vals, cap);
+						}
+						colIdx[count] = col;
+						vals[count++] = val;
+					}
+					col++;
+				}
+				cols = Math.max(cols, col);
+				if (++rows == rowPtr.length) {
+					rowPtr = Arrays.copyOf(rowPtr, 2 * rowPtr.length);
+				}
+				rowPtr[rows] = count;
+			}
+			return new SparseEdgeTable(SparseMatrix.fromCSR(rows, cols,
+				Arrays.copyOf(rowPtr, rows + 1), Arrays.copyOf(colIdx, count),
+				Arrays.copyOf(vals, count)));
+		} catch (NumberFormatException nfe) {
+			throw new DataIOException("Parse failure: " + nfe.getMessage(), nfe);
+		} catch (IOException ioe) {
+			throw new DataIOException("Stream read failure in SparseEdgeTable", ioe);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * A square table from (row, col, value) triplets.
+	 */
+	static SparseEdgeTable fromTriplets(int rows, int[] sources, int[] targets,
+		double[] vals, int count) throws DataIOException {
+		return fromTriplets(rows, rows, sources, targets, vals, count);
+	}
+
+	/**
+	 * Bucket (row, col, value) triplets into a table.
+	 */
+	private static SparseEdgeTable fromTriplets(int rows, int cols, int[] sources,
+		int[] targets, double[] vals, int count) throws DataIOException {
+		try {
+			return new SparseEdgeTable(SparseMatrix.fromTriplets(rows, cols,
+				sources, targets, vals, count));
+		} catch (IndexOutOfBoundsException ioobe) {
+			throw new DataIOException(ioobe.getMessage(), ioobe);
+		}
+	}
+
+	private static void close(InputStream is) {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import prefuse.data.Graph;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.io.AbstractGraphReader;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Reads GraphML with a StAX pull parser straight into primitive column
+ * buffers, instead of going through prefuse's GraphMLReader, which
+ * builds Strings and parses every value through a generic parser.
+ *
+ * Keys are typed by their attr.type; the MSM columns (label, eqProb,
+ * probability, flux, mapping) get their usual types when a file leaves
+ * attr.type out. Buffers are sized from the GraphML parse.nodes and
+ * parse.edges hints on the graph element when present (our writer emits
+ * them) and grown as needed otherwise; the tables are built at the
+ * exact size at the end.
+ *
+ * Node ids that run 0, 1, 2... (as both writers emit them) are used
+ * directly; any other ids are resolved through a map.
+ *
+ * @author brycecr
+ */
+public class StreamingGraphMLReader extends AbstractGraphReader implements MSMConstants {
+
+	private static final int kINITIAL_CAPACITY = 1024;
+
+	//scratch space for numeric text, parsed by m_tk
+	private final ByteBuffer m_scratch = ByteBuffer.allocate(256);
+	private final ByteTokenizer m_tk = new ByteTokenizer(m_scratch);
+
+	/**
+	 * Local files (gzipped or not) are read through
+	 * DecompressingInputStream; anything else goes to prefuse.
+	 */
+	@Override
+	public Graph readGraph(String location) throws DataIOException {
+		File f = new File(location);
+		if (!f.isFile()) {
+			return super.readGraph(location);
+		}
+		InputStream is = null;
+		try {
+			is = DecompressingInputStream.open(f);
+			return readGraph(is);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException ioe) {
+					//nothing useful to do
+				}
+			}
+		}
+	}
+
+	public Graph readGraph(InputStream is) throws DataIOException {
+		try {
+			XMLInputFactory xif = XMLInputFactory.newInstance();
+			xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			XMLStreamReader xml = xif.createXMLStreamReader(is);
+			try {
+				return parse(xml);
+			} finally {
+				xml.close();
+			}
+		} catch (XMLStreamException xse) {
+			throw new DataIOException("GraphML parse failure: " + xse.getMessage(), xse);
+		} catch (NumberFormatException nfe) {
+			throw new DataIOException("GraphML value parse failure: " + nfe.getMessage(), nfe);
+		}
+	}
+
+	private Graph parse(XMLStreamReader xml) throws XMLStreamException, DataIOException {
+		Map<String, Buffer> nodeKeys = new HashMap<String, Buffer>();
+		Map<String, Buffer> edgeKeys = new HashMap<String, Buffer>();
+		List<Buffer> nodeCols = new ArrayList<Buffer>();
+		List<Buffer> edgeCols = new ArrayList<Buffer>();
+
+		boolean directed = true;
+		int nodes = 0;
+		int edges = 0;
+		int[] sources = null;
+		int[] targets = null;
+		Map<String, Integer> ids = null; //only for non-canonical node ids
+
+		List<Buffer> keyTargets = new ArrayList<Buffer>(2);
+		Map<String, Buffer> current = null;
+		int row = -1;
+
+		while (xml.hasNext()) {
+			int ev = xml.next();
+			if (ev != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			String tag = xml.getLocalName();
+
+			if (tag.equals("key")) {
+				String id = xml.getAttributeValue(null, "id");
+				String name = xml.getAttributeValue(null, "attr.name");
+				String type = xml.getAttributeValue(null, "attr.type");
+				String group = xml.getAttributeValue(null, "for");
+				if (name == null) {
+					name = id;
+				}
+				int t = getType(name, type);
+				keyTargets.clear();
+				if (group == null || group.equals("node") || group.equals("all")) {
+					Buffer b = new Buffer(name, t);
+					nodeKeys.put(id, b);
+					nodeCols.add(b);
+					keyTargets.add(b);
+				}
+				if (group != null && (group.equals("edge") || group.equals("all"))) {
+					Buffer b = new Buffer(name, t);
+					edgeKeys.put(id, b);
+					edgeCols.add(b);
+					keyTargets.add(b);
+				}
+
+			} else if (tag.equals("default")) {
+				String text = xml.getElementText();
+				for (Buffer b : keyTargets) {
+					b.setDefault(this, text);
+				}
+
+			} else if (tag.equals("graph")) {
+				directed = !"undirected".equals(xml.getAttributeValue(null, "edgedefault"));
+				int nhint = parseHint(xml.getAttributeValue(null, "parse.nodes"));
+				int ehint = parseHint(xml.getAttributeValue(null, "parse.edges"));
+				for (Buffer b : nodeCols) {
+					b.ensure(nhint);
+				}
+				for (Buffer b : edgeCols) {
+					b.ensure(ehint);
+				}
+				sources = new int[ehint];
+				targets = new int[ehint];
+
+			} else if (tag.equals("node")) {
+				String id = xml.getAttributeValue(null, "id");
+				if (ids == null && !isIndex(id, nodes)) {
+					ids = new HashMap<String, Integer>();
+					for (int i = 0; i < nodes; ++i) {
+						ids.put(Integer.toString(i), i);
+					}
+				}
+				if (ids != null) {
+					ids.put(id, nodes);
+				}
+				row = nodes++;
+				for (Buffer b : nodeCols) {
+					b.ensure(nodes);
+				}
+				current = nodeKeys;
+
+			} else if (tag.equals("edge")) {
+				if (sources == null) {
+					throw new DataIOException("Edge outside of a graph element");
+				}
+				if (edges == sources.length) {
+					sources = Arrays.copyOf(sources, 2 * edges + 16);
+					targets = Arrays.copyOf(targets, 2 * edges + 16);
+				}
+				sources[edges] = resolve(xml.getAttributeValue(null, "source"), ids, nodes);
+				targets[edges] = resolve(xml.getAttributeValue(null, "target"), ids, nodes);
+				row = edges++;
+				for (Buffer b : edgeCols) {
+					b.ensure(edges);
+				}
+				current = edgeKeys;
+
+			} else if (tag.equals("data") && current != null) {
+				Buffer b = current.get(xml.getAttributeValue(null, "key"));
+				if (b == null) {
+					xml.getElementText();
+				} else {
+					b.read(this, xml, row);
+				}
+			}
+		}
+
+		Table nt = new Table(nodes, 0);
+		for (Buffer b : nodeCols) {
+			b.addTo(nt, nodes);
+		}
+		Table et = new Table(edges, 0);
+		et.addColumn(Graph.DEFAULT_SOURCE_KEY, int.class);
+		et.addColumn(Graph.DEFAULT_TARGET_KEY, int.class);
+		Column src = et.getColumn(0);
+		Column trg = et.getColumn(1);
+		for (int i = 0; i < edges; ++i) {
+			if (sources[i] < 0 || targets[i] < 0 || sources[i] >= nodes || targets[i] >= nodes) {
+				throw new DataIOException("Edge " + i + " refers to an unknown node");
+			}
+			src.setInt(sources[i], i);
+			trg.setInt(targets[i], i);
+		}
+		for (Buffer b : edgeCols) {
+			b.addTo(et, edges);
+		}
+		return new Graph(nt, et, directed);
+	}
+
+	private static int getType(String name, String type) {
+		if (type == null) {
+			//fill in the columns we know
+			if (name.equals(EQPROB) || name.equals(TPROB) || name.equals("flux")) {
+				return FastIO.DOUBLE;
+			} else if (name.equals("mapping")) {
+				return FastIO.INT;
+			}
+			return FastIO.STRING;
+		} else if (type.equals("int") || type.equals("integer")) {
+			return FastIO.INT;
+		} else if (type.equals("long")) {
+			return FastIO.LONG;
+		} else if (type.equals("float")) {
+			return FastIO.FLOAT;
+		} else if (type.equals("double") || type.equals("real")) {
+			return FastIO.DOUBLE;
+		} else if (type.equals("boolean")) {
+			return FastIO.BOOLEAN;
+		}
+		return FastIO.STRING;
+	}
+
+	private static int parseHint(String hint) {
+		if (hint != null) {
+			try {
+				return Math.max(Integer.parseInt(hint.trim()), 0);
+			} catch (NumberFormatException nfe) {
+				//just a hint
+			}
+		}
+		return kINITIAL_CAPACITY;
+	}
+
+	/**
+	 * @return true if id is the decimal string for index
+	 */
+	private static boolean isIndex(String id, int index) {
+		if (id == null || id.isEmpty() || id.length() > 10) {
+			return false;
+		}
+		long val = 0;
+		for (int i = 0; i < id.length(); ++i) {
+			int d = id.charAt(i) - '0';
+			if (d < 0 || d > 9 || (i == 0 && d == 0 && id.length() > 1)) {
+				return false;
+			}
+			val = val * 10 + d;
+		}
+		return val == index;
+	}
+
+	private static int resolve(String id, Map<String, Integer> ids, int nodes)
+		throws DataIOException {
+		if (id == null) {
+			throw new DataIOException("Edge without a source or target");
+		}
+		if (ids == null) {
+			try {
+				return Integer.parseInt(id);
+			} catch (NumberFormatException nfe) {
+				//fall through to the error below
+			}
+		} else {
+			Integer idx = ids.get(id);
+			if (idx != null) {
+				return idx;
+			}
+		}
+		throw new DataIOException("Edge refers to unknown node " + id);
+	}
+
+	/**
+	 * Copy ASCII text into the scratch buffer and point the tokenizer at
+	 * it.
+	 *
+	 * @return false if the text can't be a number we parse here
+	 */
+	private boolean load(char[] text, int start, int len) {
+		if (len > m_scratch.capacity()) {
+			return false;
+		}
+		byte[] arr = m_scratch.array();
+		for (int i = 0; i < len; ++i) {
+			char ch = text[start + i];
+			if (ch > 127) {
+				return false;
+			}
+			arr[i] = (byte)ch;
+		}
+		m_tk.reset(0, len);
+		return true;
+	}
+
+	/**
+	 * Parse like Double.parseDouble, bit for bit (ByteTokenizer rounds
+	 * correctly), so what StreamingGraphMLWriter saved with
+	 * Double.toString reads back exactly.
+	 */
+	private double parseDouble(char[] text, int start, int len) {
+		try {
+			if (load(text, start, len) && m_tk.nextRecord()) {
+				return m_tk.nextDouble();
+			}
+		} catch (IOException ioe) {
+			//can't happen reading a buffer
+		}
+		return Double.parseDouble(new String(text, start, len).trim());
+	}
+
+	/**
+	 * Parse straight to float, as Float.parseFloat does; going through
+	 * double and then casting rounds twice, which can be an ulp off.
+	 */
+	private static float parseFloat(char[] text, int start, int len) {
+		return Float.parseFloat(new String(text, start, len).trim());
+	}
+
+	private int parseInt(char[] text, int start, int len) {
+		long val = parseLong(text, start, len);
+		if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Out of range for an int: "
+				+ new String(text, start, len).trim());
+		}
+		return (int)val;
+	}
+
+	private long parseLong(char[] text, int start, int len) {
+		int end = start + len;
+		while (start < end && Character.isWhitespace(text[start])) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(text[end - 1])) {
+			end--;
+		}
+		boolean neg = false;
+		int p = start;
+		if (p < end && (text[p] == '-' || text[p] == '+')) {
+			neg = (text[p] == '-');
+			p++;
+		}
+		if (p == end || end - p > 18) {
+			return Long.parseLong(new String(text, start, end - start));
+		}
+		long val = 0;
+		for (; p < end; ++p) {
+			int d = text[p] - '0';
+			if (d < 0 || d > 9) {
+				throw new NumberFormatException("Could not parse \""
+					+ new String(text, start, end - start) + "\"");
+			}
+			val = val * 10 + d;
+		}
+		return neg ? -val : val;
+	}
+
+	/**
+	 * A growable primitive buffer for one column.
+	 */
+	private static class Buffer {
+		final String name;
+		final int type;
+		int[] ints;
+		long[] longs;
+		double[] doubles;
+		boolean[] bools;
+		String[] strings;
+		int capacity = 0;
+
+		int defInt = 0;
+		long defLong = 0;
+		double defDouble = 0.0;
+		boolean defBool = false;
+		String defString = null;
+
+		Buffer(String name, int type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		void setDefault(StreamingGraphMLReader r, String text) {
+			char[] chars = text.toCharArray();
+			switch (type) {
+				case FastIO.INT:
+					defInt = r.parseInt(chars, 0, chars.length);
+					break;
+				case FastIO.LONG:
+					defLong = r.parseLong(chars, 0, chars.length);
+					break;
+				case FastIO.FLOAT:
+					defDouble = parseFloat(chars, 0, chars.length);
+					break;
+				case FastIO.DOUBLE:
+					defDouble = r.parseDouble(chars, 0, chars.length);
+					break;
+				case FastIO.BOOLEAN:
+					defBool = Boolean.parseBoolean(text.trim());
+					break;
+				default:
+					defString = text;
+			}
+		}
+
+		/**
+		 * Make room for at least size rows, filling new rows with the
+		 * default.
+		 */
+		void ensure(int size) {
+			if (size <= capacity) {
+				return;
+			}
+			int cap = Math.max(size, capacity + (capacity >> 1) + 16);
+			switch (type) {
+				case FastIO.INT:
+					ints = (ints == null) ? new int[cap] : Arrays.copyOf(ints, cap);
+					Arrays.fill(ints, capacity, cap, defInt);
+					break;
+				case FastIO.LONG:
+					longs = (longs == null) ? new long[cap] : Arrays.copyOf(longs, cap);
+					Arrays.fill(longs, capacity, cap, defLong);
+					break;
+				case FastIO.FLOAT:
+				case FastIO.DOUBLE:
+					doubles = (doubles == null) ? new double[cap] : Arrays.copyOf(doubles, cap);
+					Arrays.fill(doubles, capacity, cap, defDouble);
+					break;
+				case FastIO.BOOLEAN:
+					bools = (bools == null) ? new boolean[cap] : Arrays.copyOf(bools, cap);
+					Arrays.fill(bools, capacity, cap, defBool);
+					break;
+				default:
+					strings = (strings == null) ? new String[cap] : Arrays.copyOf(strings, cap);
+					Arrays.fill(strings, capacity, cap, defString);
+			}
+			capacity = cap;
+		}
+
+		/**
+		 * Read the text of the current data element into row.
+		 */
+		void read(StreamingGraphMLReader r, XMLStreamReader xml, int row)
+			throws XMLStreamException {
+			if (type == FastIO.STRING) {
+				strings[row] = xml.getElementText();
+				return;
+			}
+
+			//coalescing, so the text is (at most) one event
+			int ev = xml.next();
+			if (ev == XMLStreamConstants.END_ELEMENT) {
+				return;
+			}
+			if (ev != XMLStreamConstants.CHARACTERS) {
+				throw new XMLStreamException("Unexpected content in data for " + name);
+			}
+			char[] text = xml.getTextCharacters();
+			int start = xml.getTextStart();
+			int len = xml.getTextLength();
+			switch (type) {
+				case FastIO.INT:
+					ints[row] = r.parseInt(text, start, len);
+					break;
+				case FastIO.LONG:
+					longs[row] = r.parseLong(text, start, len);
+					break;
+				case FastIO.FLOAT:
+					//exact as a double, so the cast back in addTo is too
+					doubles[row] = parseFloat(text, start, len);
+					break;
+				case FastIO.DOUBLE:
+					doubles[row] = r.parseDouble(text, start, len);
+					break;
+				default:
+					bools[row] = Boolean.parseBoolean(new String(text, start, len).trim());
+			}
+			if (xml.next() != XMLStreamConstants.END_ELEMENT) {
+				throw new XMLStreamException("Unexpected content in data for " + name);
+			}
+		}
+
+		/**
+		 * Add this column to t, which has exactly rows rows.
+		 */
+		void addTo(Table t, int rows) {
+			ensure(rows);
+			switch (type) {
+				case FastIO.INT:
+					t.addColumn(name, int.class, defInt);
+					break;
+				case FastIO.LONG:
+					t.addColumn(name, long.class, defLong);
+					break;
+				case FastIO.FLOAT:
+					t.addColumn(name, float.class, (float)defDouble);
+					break;
+				case FastIO.DOUBLE:
+					t.addColumn(name, double.class, defDouble);
+					break;
+				case FastIO.BOOLEAN:
+					t.addColumn(name, boolean.class, defBool);
+					break;
+				default:
+					t.addColumn(name, String.class, defString);
+			}
+			Column c = t.getColumn(t.getColumnNumber(name));
+			for (int i = 0; i < rows; ++i) {
+				switch (type) {
+					case FastIO.INT:
+						c.setInt(ints[i], i);
+						break;
+					case FastIO.LONG:
+						c.setLong(longs[i], i);
+						break;
+					case FastIO.FLOAT:
+						c.setFloat((float)doubles[i], i);
+						break;
+					case FastIO.DOUBLE:
+						c.setDouble(doubles[i], i);
+						break;
+					case FastIO.BOOLEAN:
+						c.setBoolean(bools[i], i);
+						break;
+					default:
+						c.set(strings[i], i);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import prefuse.data.Graph;
+import prefuse.data.Schema;
+import prefuse.data.Table;
+import prefuse.data.column.Column;
+import prefuse.data.io.AbstractGraphWriter;
+import prefuse.data.io.DataIOException;
+import prefuse.util.collections.IntIterator;
+
+/**
+ * Writes the same GraphML as prefuse's GraphMLWriter, but streams it:
+ * rows are written through a StAX writer straight to a buffered stream
+ * as they are visited, numeric columns are read with the primitive
+ * column getters rather than going through getString, and nothing is
+ * accumulated in memory. Files named *.gz are gzipped on the way out.
+ *
+ * A ProgressDialog.Progress may be set to watch (and cancel) the write;
+ * cancelling throws CancellationException out of writeGraph.
+ *
+ * @author brycecr
+ */
+public class StreamingGraphMLWriter extends AbstractGraphWriter {
+
+	private static final String NS = "http://graphml.graphdrawing.org/xmlns";
+	private static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+	private static final int kBUFFER_SIZE = 1 << 16;
+
+	//rows between progress reports (and cancellation checks)
+	private static final int kREPORT_EVERY = 1 << 12;
+
+	//indexed by FastIO type code
+	private static final String[] TYPE_NAMES = {
+		"int", "long", "float", "double", "boolean", "string"
+	};
+
+	private ProgressDialog.Progress m_progress = ProgressDialog.NONE;
+
+	/**
+	 * @param p progress to report to; checked for cancellation as we go
+	 */
+	public void setProgress(ProgressDialog.Progress p) {
+		m_progress = (p == null) ? ProgressDialog.NONE : p;
+	}
+
+	/**
+	 * Write to f, gzipped if its name ends in .gz.
+	 */
+	@Override
+	public void writeGraph(Graph graph, File f) throws DataIOException {
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(f);
+			if (DecompressingInputStream.isCompressed(f.getName())) {
+				os = FastIO.gzip(os, kBUFFER_SIZE);
+			}
+			writeGraph(graph, new BufferedOutputStream(os, kBUFFER_SIZE));
+			os.close();
+			os = null;
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException ioe) {
+					//already failing
+				}
+			}
+		}
+	}
+
+	public void writeGraph(Graph graph, OutputStream os) throws DataIOException {
+		Table nt = graph.getNodeTable();
+		Table et = graph.getEdgeTable();
+		int[] ntypes = getTypes(nt.getSchema());
+		int[] etypes = getTypes(et.getSchema());
+		String src = graph.getEdgeSourceField();
+		String trg = graph.getEdgeTargetField();
+
+		long total = (long)nt.getRowCount() + et.getRowCount();
+		long done = 0;
+		m_progress.setProgress(0, total);
+
+		try {
+			XMLStreamWriter xml = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(os, "UTF-8");
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeCharacters("\n");
+			xml.writeStartElement("graphml");
+			xml.writeDefaultNamespace(NS);
+			xml.writeNamespace("xsi", XSI);
+			xml.writeAttribute(XSI, "schemaLocation",
+				NS + " http://graphml.graphdrawing.org/xmlns/1.0/graphml.xsd");
+			xml.writeCharacters("\n");
+
+			writeKeys(xml, "node", nt.getSchema(), ntypes, null, null);
+			writeKeys(xml, "edge", et.getSchema(), etypes, src, trg);
+
+			xml.writeCharacters("\n");
+			xml.writeStartElement("graph");
+			xml.writeAttribute("edgedefault", graph.isDirected() ? "directed" : "undirected");
+			//size hints, so readers can allocate up front
+			xml.writeAttribute("parse.nodes", Integer.toString(nt.getRowCount()));
+			xml.writeAttribute("parse.edges", Integer.toString(et.getRowCount()));
+			xml.writeCharacters("\n");
+
+			Column[] ncols = getColumns(nt, null, null);
+			IntIterator rows = nt.rows();
+			while (rows.hasNext()) {
+				int row = rows.nextInt();
+				xml.writeStartElement("node");
+				xml.writeAttribute("id", Integer.toString(row));
+				writeData(xml, nt, ncols, ntypes, row);
+				xml.writeEndElement();
+				xml.writeCharacters("\n");
+				if (++done % kREPORT_EVERY == 0) {
+					report(done, total);
+				}
+			}
+
+			Column[] ecols = getColumns(et, src, trg);
+			rows = et.rows();
+			while (rows.hasNext()) {
+				int row = rows.nextInt();
+				xml.writeStartElement("edge");
+				xml.writeAttribute("id", Integer.toString(row));
+				xml.writeAttribute("source", Integer.toString(graph.getSourceNode(row)));
+				xml.writeAttribute("target", Integer.toString(graph.getTargetNode(row)));
+				writeData(xml, et, ecols, etypes, row);
+				xml.writeEndElement();
+				xml.writeCharacters("\n");
+				if (++done % kREPORT_EVERY == 0) {
+					report(done, total);
+				}
+			}
+
+			xml.writeEndElement(); //graph
+			xml.writeCharacters("\n");
+			xml.writeEndElement(); //graphml
+			xml.writeCharacters("\n");
+			xml.writeEndDocument();
+			xml.flush();
+			os.flush();
+			m_progress.setProgress(total, total);
+		} catch (XMLStreamException xse) {
+			throw new DataIOException(xse);
+		} catch (IOException ioe) {
+			throw new DataIOException(ioe);
+		}
+	}
+
+	private void report(long done, long total) {
+		if (m_progress.isCanceled()) {
+			throw new CancellationException("GraphML write cancelled");
+		}
+		m_progress.setProgress(done, total);
+	}
+
+	/**
+	 * Map each column to its GraphML type, failing on any type GraphML
+	 * can't hold, just as GraphMLWriter does.
+	 */
+	private static int[] getTypes(Schema s) throws DataIOException {
+		int[] types = new int[s.getColumnCount()];
+		for (int i = 0; i < types.length; ++i) {
+			Class<?> type = s.getColumnType(i);
+			types[i] = FastIO.getType(type);
+			if (types[i] == FastIO.STRING && type != String.class) {
+				throw new DataIOException("Data type unsupported by the "
+					+ "GraphML format: " + type.getName());
+			}
+		}
+		return types;
+	}
+
+	/**
+	 * The columns to write as data, with null for skipped columns.
+	 */
+	private static Column[] getColumns(Table t, String skip1, String skip2) {
+		Column[] cols = new Column[t.getColumnCount()];
+		for (int i = 0; i < cols.length; ++i) {
+			String name = t.getColumnName(i);
+			if (!name.equals(skip1) && !name.equals(skip2)) {
+				cols[i] = t.getColumn(i);
+			}
+		}
+		return cols;
+	}
+
+	private static void writeKeys(XMLStreamWriter xml, String group, Schema s,
+		int[] types, String skip1, String skip2) throws XMLStreamException {
+		for (int i = 0; i < s.getColumnCount(); ++i) {
+			String name = s.getColumnName(i);
+			if (name.equals(skip1) || name.equals(skip2)) {
+				continue;
+			}
+			Object dflt = s.getDefault(i);
+			if (dflt == null) {
+				xml.writeEmptyElement("key");
+			} else {
+				xml.writeStartElement("key");
+			}
+			xml.writeAttribute("id", name);
+			xml.writeAttribute("for", group);
+			xml.writeAttribute("attr.name", name);
+			xml.writeAttribute("attr.type", TYPE_NAMES[types[i]]);
+			if (dflt != null) {
+				xml.writeStartElement("default");
+				xml.writeCharacters(dflt.toString());
+				xml.writeEndElement();
+				xml.writeEndElement();
+			}
+			xml.writeCharacters("\n");
+		}
+	}
+
+	private static void writeData(XMLStreamWriter xml, Table t, Column[] cols,
+		int[] types, int row) throws XMLStreamException {
+		for (int i = 0; i < cols.length; ++i) {
+			Column col = cols[i];
+			if (col == null) {
+				continue;
+			}
+			String val;
+			try {
+				switch (types[i]) {
+					case FastIO.INT:
+						val = Integer.toString(col.getInt(row));
+						break;
+					case FastIO.LONG:
+						val = Long.toString(col.getLong(row));
+						break;
+					case FastIO.FLOAT:
+						val = Float.toString(col.getFloat(row));
+						break;
+					case FastIO.DOUBLE:
+						val = Double.toString(col.getDouble(row));
+						break;
+					case FastIO.BOOLEAN:
+						val = Boolean.toString(col.getBoolean(row));
+						break;
+					default:
+						val = col.getString(row);
+				}
+			} catch (Exception e) {
+				//derived or odd columns may not support the primitive getters
+				val = t.getString(row, i);
+			}
+			if (val == null) {
+				continue;
+			}
+			xml.writeStartElement("data");
+			xml.writeAttribute("key", t.getColumnName(i));
+			xml.writeCharacters(val);
+			xml.writeEndElement();
+		}
+	}
+}
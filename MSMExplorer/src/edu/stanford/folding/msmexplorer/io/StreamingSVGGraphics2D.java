@@ -0,0 +1,670 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.AttributedCharacterIterator;
+import javax.imageio.ImageIO;
+import org.apache.batik.ext.awt.g2d.AbstractGraphics2D;
+import org.apache.batik.ext.awt.g2d.GraphicContext;
+import org.apache.batik.util.Base64EncoderStream;
+
+/**
+ * A Graphics2D that writes SVG elements to a stream as they are drawn,
+ * instead of building a DOM to serialize at the end the way Batik's
+ * SVGGraphics2D does. Memory use doesn't grow with the number of
+ * things drawn, so very large graphs can be exported.
+ *
+ * Graphics state (transform, paint, stroke, font, clip) is kept by
+ * Batik's AbstractGraphics2D; every element carries its own
+ * presentation attributes and, when it isn't the identity, its
+ * transform. Elements drawn under the same clip share a clipped group.
+ * Text is written as text, and images are embedded as base64 PNGs.
+ *
+ * Only solid colors are written as paints; a gradient is approximated
+ * by its first color and other paints by gray. XOR mode and copyArea
+ * are ignored.
+ *
+ * Call finish when done painting, then close the stream. Write errors
+ * can't be thrown from Graphics2D methods, so the first one is held
+ * and thrown by finish.
+ *
+ * @author brycecr
+ */
+public class StreamingSVGGraphics2D extends AbstractGraphics2D {
+
+	private static final String SVG_NS = "http://www.w3.org/2000/svg";
+	private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	//decimal places for coordinates and for transform matrices
+	private static final int kCOORD_DIGITS = 3;
+	private static final int kMATRIX_DIGITS = 6;
+	private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+	//for font metrics and the device configuration
+	private static final Graphics2D SCRATCH
+		= new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+
+	/**
+	 * The output and the bookkeeping shared by a graphics and all the
+	 * copies create makes of it.
+	 */
+	private static final class Sink {
+		final OutputStream raw;
+		final Writer out;
+		final StringBuilder sb = new StringBuilder(256);
+		IOException error = null;
+		boolean finished = false;
+		int nextClip = 0;
+		//path data of the clip of the open group, or null if none is open
+		String openClip = null;
+
+		Sink(OutputStream os) {
+			raw = os;
+			try {
+				out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+			} catch (java.io.UnsupportedEncodingException uee) {
+				throw new AssertionError(uee);
+			}
+		}
+	}
+
+	private final Sink m_sink;
+
+	/**
+	 * Start an SVG document of the given size on os.
+	 *
+	 * @param os where to write; not closed by finish
+	 * @param size canvas size in pixels
+	 */
+	public StreamingSVGGraphics2D(OutputStream os, Dimension size) throws IOException {
+		super(false);
+		gc = new GraphicContext(new AffineTransform());
+		m_sink = new Sink(os);
+		Writer w = m_sink.out;
+		w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		w.write("<svg xmlns=\"" + SVG_NS + "\" xmlns:xlink=\"" + XLINK_NS + "\"");
+		w.write(" width=\"" + size.width + "\" height=\"" + size.height + "\"");
+		w.write(" viewBox=\"0 0 " + size.width + " " + size.height + "\"");
+		//Java2D's stroke defaults, so elements only say where they differ
+		w.write(" stroke-linecap=\"square\" stroke-miterlimit=\"10\">\n");
+	}
+
+	private StreamingSVGGraphics2D(StreamingSVGGraphics2D g) {
+		super(g);
+		m_sink = g.m_sink;
+	}
+
+	/**
+	 * Close any open group and the document, and flush. Further drawing
+	 * is ignored.
+	 *
+	 * @throws IOException the first error hit while writing, if any
+	 */
+	public void finish() throws IOException {
+		if (!m_sink.finished) {
+			m_sink.finished = true;
+			if (m_sink.error == null) {
+				try {
+					if (m_sink.openClip != null) {
+						m_sink.out.write("</g>\n");
+					}
+					m_sink.out.write("</svg>\n");
+					m_sink.out.flush();
+				} catch (IOException ioe) {
+					m_sink.error = ioe;
+				}
+			}
+		}
+		if (m_sink.error != null) {
+			throw m_sink.error;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Drawing
+
+	@Override
+	public void draw(Shape s) {
+		Stroke stroke = gc.getStroke();
+		if (!(stroke instanceof BasicStroke)) {
+			fill(stroke.createStrokedShape(s));
+			return;
+		}
+		StringBuilder sb = begin();
+		if (sb == null) {
+			return;
+		}
+		shape(sb, s);
+		sb.append(" fill=\"none\"");
+		paint(sb, "stroke", gc.getPaint());
+		stroke(sb, (BasicStroke)stroke);
+		transform(sb);
+		sb.append("/>\n");
+		end();
+	}
+
+	@Override
+	public void fill(Shape s) {
+		StringBuilder sb = begin();
+		if (sb == null) {
+			return;
+		}
+		shape(sb, s);
+		paint(sb, "fill", gc.getPaint());
+		transform(sb);
+		sb.append("/>\n");
+		end();
+	}
+
+	@Override
+	public void drawString(String str, float x, float y) {
+		if (str == null || str.isEmpty()) {
+			return;
+		}
+		StringBuilder sb = begin();
+		if (sb == null) {
+			return;
+		}
+		Font f = gc.getFont();
+		sb.append("<text x=\"");
+		num(sb, x, kCOORD_DIGITS);
+		sb.append("\" y=\"");
+		num(sb, y, kCOORD_DIGITS);
+		sb.append("\" font-family=\"");
+		escape(sb, f.getFamily());
+		sb.append("\" font-size=\"");
+		num(sb, f.getSize2D(), kCOORD_DIGITS);
+		sb.append('"');
+		if (f.isBold()) {
+			sb.append(" font-weight=\"bold\"");
+		}
+		if (f.isItalic()) {
+			sb.append(" font-style=\"italic\"");
+		}
+		sb.append(" xml:space=\"preserve\"");
+		paint(sb, "fill", gc.getPaint());
+		transform(sb);
+		sb.append('>');
+		escape(sb, str);
+		sb.append("</text>\n");
+		end();
+	}
+
+	@Override
+	public void drawString(AttributedCharacterIterator itr, float x, float y) {
+		StringBuilder text = new StringBuilder();
+		for (char c = itr.first(); c != AttributedCharacterIterator.DONE; c = itr.next()) {
+			text.append(c);
+		}
+		drawString(text.toString(), x, y);
+	}
+
+	@Override
+	public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+		return drawImage(img, x, y, -1, -1, observer);
+	}
+
+	@Override
+	public boolean drawImage(Image img, int x, int y, int width, int height,
+		ImageObserver observer) {
+		if (img == null) {
+			return true;
+		}
+		int iw = img.getWidth(observer);
+		int ih = img.getHeight(observer);
+		if (iw <= 0 || ih <= 0) {
+			return false; //not loaded yet
+		}
+		BufferedImage bi;
+		if (img instanceof BufferedImage) {
+			bi = (BufferedImage)img;
+		} else {
+			bi = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = bi.createGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+		}
+		image(bi, x, y, (width < 0) ? iw : width, (height < 0) ? ih : height);
+		return true;
+	}
+
+	@Override
+	public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+		BufferedImage bi;
+		if (img instanceof BufferedImage) {
+			bi = (BufferedImage)img;
+		} else {
+			bi = new BufferedImage(img.getColorModel(), img.copyData(null),
+				img.getColorModel().isAlphaPremultiplied(), null);
+		}
+		AffineTransform saved = gc.getTransform();
+		if (xform != null) {
+			gc.transform(xform);
+		}
+		image(bi, 0, 0, bi.getWidth(), bi.getHeight());
+		gc.setTransform(saved);
+	}
+
+	@Override
+	public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+		drawRenderedImage(img.createDefaultRendering(), xform);
+	}
+
+	// ------------------------------------------------------------------------
+	// The rest of Graphics2D
+
+	@Override
+	public Graphics create() {
+		return new StreamingSVGGraphics2D(this);
+	}
+
+	@Override
+	public GraphicsConfiguration getDeviceConfiguration() {
+		return SCRATCH.getDeviceConfiguration();
+	}
+
+	@Override
+	public FontMetrics getFontMetrics(Font f) {
+		synchronized (SCRATCH) {
+			return SCRATCH.getFontMetrics(f);
+		}
+	}
+
+	@Override
+	public void setXORMode(Color c) {
+		//no SVG equivalent
+	}
+
+	@Override
+	public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+		//nothing to copy from
+	}
+
+	@Override
+	public void dispose() {
+		//state is per copy; the sink is only finished explicitly
+	}
+
+	// ------------------------------------------------------------------------
+	// Element writing
+
+	/**
+	 * Get the builder for a new element, first opening a clipped group
+	 * if the clip differs from the open group's.
+	 *
+	 * @return the builder, or null if nothing should be written
+	 */
+	private StringBuilder begin() {
+		if (m_sink.finished || m_sink.error != null) {
+			return null;
+		}
+		StringBuilder sb = m_sink.sb;
+		sb.setLength(0);
+
+		Shape clip = gc.getClip();
+		String key = null;
+		if (clip != null) {
+			path(sb, gc.getTransform().createTransformedShape(clip));
+			key = sb.toString();
+			sb.setLength(0);
+		}
+		if (key == null ? m_sink.openClip == null : key.equals(m_sink.openClip)) {
+			return sb;
+		}
+		if (m_sink.openClip != null) {
+			sb.append("</g>\n");
+		}
+		if (key != null) {
+			String id = "clip" + m_sink.nextClip++;
+			sb.append("<clipPath id=\"").append(id).append("\"><path d=\"")
+				.append(key).append("\"/></clipPath>\n");
+			sb.append("<g clip-path=\"url(#").append(id).append(")\">\n");
+		}
+		m_sink.openClip = key;
+		return sb;
+	}
+
+	private void end() {
+		try {
+			StringBuilder sb = m_sink.sb;
+			m_sink.out.append(sb);
+			if (sb.capacity() > (1 << 20)) {
+				//don't hang on to the memory of one huge path
+				m_sink.sb.setLength(0);
+				m_sink.sb.trimToSize();
+			}
+		} catch (IOException ioe) {
+			m_sink.error = ioe;
+		}
+	}
+
+	/**
+	 * The opening of an element for s, in user space, with no attributes
+	 * beyond its geometry.
+	 */
+	private static void shape(StringBuilder sb, Shape s) {
+		if (s instanceof Line2D) {
+			Line2D l = (Line2D)s;
+			sb.append("<line x1=\"");
+			num(sb, l.getX1(), kCOORD_DIGITS);
+			sb.append("\" y1=\"");
+			num(sb, l.getY1(), kCOORD_DIGITS);
+			sb.append("\" x2=\"");
+			num(sb, l.getX2(), kCOORD_DIGITS);
+			sb.append("\" y2=\"");
+			num(sb, l.getY2(), kCOORD_DIGITS);
+			sb.append('"');
+		} else if (s instanceof Rectangle2D) {
+			Rectangle2D r = (Rectangle2D)s;
+			sb.append("<rect x=\"");
+			num(sb, r.getX(), kCOORD_DIGITS);
+			sb.append("\" y=\"");
+			num(sb, r.getY(), kCOORD_DIGITS);
+			sb.append("\" width=\"");
+			num(sb, r.getWidth(), kCOORD_DIGITS);
+			sb.append("\" height=\"");
+			num(sb, r.getHeight(), kCOORD_DIGITS);
+			sb.append('"');
+		} else if (s instanceof Ellipse2D) {
+			Ellipse2D e = (Ellipse2D)s;
+			sb.append("<ellipse cx=\"");
+			num(sb, e.getCenterX(), kCOORD_DIGITS);
+			sb.append("\" cy=\"");
+			num(sb, e.getCenterY(), kCOORD_DIGITS);
+			sb.append("\" rx=\"");
+			num(sb, e.getWidth() / 2, kCOORD_DIGITS);
+			sb.append("\" ry=\"");
+			num(sb, e.getHeight() / 2, kCOORD_DIGITS);
+			sb.append('"');
+		} else {
+			sb.append("<path d=\"");
+			if (path(sb, s) == PathIterator.WIND_EVEN_ODD) {
+				sb.append("\" fill-rule=\"evenodd");
+			}
+			sb.append('"');
+		}
+	}
+
+	/**
+	 * Append s as SVG path data.
+	 *
+	 * @return the path's winding rule
+	 */
+	private static int path(StringBuilder sb, Shape s) {
+		PathIterator itr = s.getPathIterator(null);
+		double[] c = new double[6];
+		while (!itr.isDone()) {
+			int n;
+			switch (itr.currentSegment(c)) {
+				case PathIterator.SEG_MOVETO:
+					sb.append('M');
+					n = 2;
+					break;
+				case PathIterator.SEG_LINETO:
+					sb.append('L');
+					n = 2;
+					break;
+				case PathIterator.SEG_QUADTO:
+					sb.append('Q');
+					n = 4;
+					break;
+				case PathIterator.SEG_CUBICTO:
+					sb.append('C');
+					n = 6;
+					break;
+				default:
+					sb.append('Z');
+					n = 0;
+					break;
+			}
+			for (int i = 0; i < n; ++i) {
+				if (i > 0) {
+					sb.append(' ');
+				}
+				num(sb, c[i], kCOORD_DIGITS);
+			}
+			itr.next();
+		}
+		return itr.getWindingRule();
+	}
+
+	/**
+	 * Append name="color" (and an opacity if needed) for p.
+	 */
+	private void paint(StringBuilder sb, String name, Paint p) {
+		Color c;
+		if (p instanceof Color) {
+			c = (Color)p;
+		} else if (p instanceof GradientPaint) {
+			c = ((GradientPaint)p).getColor1();
+		} else {
+			c = Color.GRAY;
+		}
+		sb.append(' ').append(name).append("=\"");
+		color(sb, c);
+		sb.append('"');
+
+		double alpha = c.getAlpha() / 255.0;
+		Composite comp = gc.getComposite();
+		if (comp instanceof AlphaComposite) {
+			alpha *= ((AlphaComposite)comp).getAlpha();
+		}
+		if (alpha < 1.0) {
+			sb.append(' ').append(name).append("-opacity=\"");
+			num(sb, alpha, kCOORD_DIGITS);
+			sb.append('"');
+		}
+	}
+
+	private static void color(StringBuilder sb, Color c) {
+		sb.append('#');
+		int rgb = c.getRGB() & 0xFFFFFF;
+		for (int shift = 20; shift >= 0; shift -= 4) {
+			sb.append(Character.forDigit((rgb >> shift) & 0xF, 16));
+		}
+	}
+
+	private static void stroke(StringBuilder sb, BasicStroke s) {
+		if (s.getLineWidth() != 1f) {
+			sb.append(" stroke-width=\"");
+			num(sb, s.getLineWidth(), kCOORD_DIGITS);
+			sb.append('"');
+		}
+		switch (s.getEndCap()) {
+			case BasicStroke.CAP_ROUND:
+				sb.append(" stroke-linecap=\"round\"");
+				break;
+			case BasicStroke.CAP_BUTT:
+				sb.append(" stroke-linecap=\"butt\"");
+				break;
+			default:
+				break; //square is set on the root
+		}
+		switch (s.getLineJoin()) {
+			case BasicStroke.JOIN_ROUND:
+				sb.append(" stroke-linejoin=\"round\"");
+				break;
+			case BasicStroke.JOIN_BEVEL:
+				sb.append(" stroke-linejoin=\"bevel\"");
+				break;
+			default:
+				if (s.getMiterLimit() != 10f) {
+					sb.append(" stroke-miterlimit=\"");
+					num(sb, s.getMiterLimit(), kCOORD_DIGITS);
+					sb.append('"');
+				}
+				break;
+		}
+		float[] dash = s.getDashArray();
+		if (dash != null && dash.length > 0) {
+			sb.append(" stroke-dasharray=\"");
+			for (int i = 0; i < dash.length; ++i) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				num(sb, dash[i], kCOORD_DIGITS);
+			}
+			sb.append('"');
+			if (s.getDashPhase() != 0f) {
+				sb.append(" stroke-dashoffset=\"");
+				num(sb, s.getDashPhase(), kCOORD_DIGITS);
+				sb.append('"');
+			}
+		}
+	}
+
+	/**
+	 * Append the current transform as an attribute, unless it's the
+	 * identity.
+	 */
+	private void transform(StringBuilder sb) {
+		AffineTransform at = gc.getTransform();
+		if (at.isIdentity()) {
+			return;
+		}
+		sb.append(" transform=\"matrix(");
+		num(sb, at.getScaleX(), kMATRIX_DIGITS);
+		sb.append(' ');
+		num(sb, at.getShearY(), kMATRIX_DIGITS);
+		sb.append(' ');
+		num(sb, at.getShearX(), kMATRIX_DIGITS);
+		sb.append(' ');
+		num(sb, at.getScaleY(), kMATRIX_DIGITS);
+		sb.append(' ');
+		num(sb, at.getTranslateX(), kMATRIX_DIGITS);
+		sb.append(' ');
+		num(sb, at.getTranslateY(), kMATRIX_DIGITS);
+		sb.append(")\"");
+	}
+
+	/**
+	 * Write an image element with the PNG encoding of bi inline.
+	 */
+	private void image(BufferedImage bi, int x, int y, int width, int height) {
+		StringBuilder sb = begin();
+		if (sb == null) {
+			return;
+		}
+		sb.append("<image x=\"").append(x).append("\" y=\"").append(y)
+			.append("\" width=\"").append(width).append("\" height=\"").append(height)
+			.append("\" preserveAspectRatio=\"none\"");
+		transform(sb);
+		sb.append(" xlink:href=\"data:image/png;base64,");
+		end();
+		try {
+			//straight to the underlying stream; base64 is plain ASCII
+			m_sink.out.flush();
+			Base64EncoderStream b64 = new Base64EncoderStream(m_sink.raw, false);
+			ImageIO.write(bi, "png", b64);
+			b64.close();
+			m_sink.out.write("\"/>\n");
+		} catch (IOException ioe) {
+			m_sink.error = ioe;
+		}
+	}
+
+	/**
+	 * Append v with at most digits decimal places, dropping trailing
+	 * zeros. Much cheaper than going through a NumberFormat.
+	 */
+	private static void num(StringBuilder sb, double v, int digits) {
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			sb.append('0');
+			return;
+		} else if (Math.abs(v) >= 1e12) {
+			sb.append((long)v);
+			return;
+		}
+		long scale = POW10[digits];
+		long scaled = Math.round(v * scale);
+		if (scaled < 0) {
+			sb.append('-');
+			scaled = -scaled;
+		}
+		sb.append(scaled / scale);
+		long frac = scaled % scale;
+		if (frac != 0) {
+			sb.append('.');
+			for (long p = scale / 10; frac < p; p /= 10) {
+				sb.append('0');
+			}
+			while (frac % 10 == 0) {
+				frac /= 10;
+			}
+			sb.append(frac);
+		}
+	}
+
+	/**
+	 * Append s with XML special characters escaped. Control characters
+	 * XML can't carry are dropped.
+	 */
+	private static void escape(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				default:
+					if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+						sb.append(c);
+					}
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import prefuse.Display;
+import prefuse.Visualization;
+
+/**
+ * Exports a display at poster resolution without ever holding the
+ * whole image in memory. The target image is cut into tiles; each is
+ * painted through Display.paintDisplay with the display transform
+ * shifted onto that tile, then handed to the worker pool to encode
+ * while the next tile paints. At most a couple of tiles per worker are
+ * alive at once.
+ *
+ * Painting itself stays on one thread, since paintDisplay locks the
+ * Visualization and works off the display's own transform and clip.
+ * Encoding is the expensive half at these sizes, and that is what runs
+ * in parallel.
+ *
+ * writePNG streams a single PNG: tiles are full-width bands, filtered
+ * and deflated independently, and the compressed pieces are joined into
+ * one zlib stream in order. writeTiles writes a grid of separate
+ * images in any ImageIO format instead.
+ *
+ * @author brycecr
+ */
+public class TiledImageWriter {
+
+	/** Pixels per tile, ~16MB of int RGB. */
+	private static final int kTILE_PIXELS = 1 << 22;
+	/** Largest IDAT chunk written. */
+	private static final int kCHUNK = 1 << 16;
+	private static final int kBUFFER = 1 << 16;
+	private static final byte[] kSIGNATURE = {(byte) 137, 'P', 'N', 'G', 13, 10, 26, 10};
+	private static final int kADLER_BASE = 65521;
+
+	private final Display m_display;
+	private final double m_scale;
+	private final int m_width;
+	private final int m_height;
+	private int m_tileSize = 2048;
+	private int m_level = Deflater.DEFAULT_COMPRESSION;
+	private ProgressDialog.Progress m_progress = ProgressDialog.NONE;
+	/** Display transform from before the export, set in TileLoop.run. */
+	private AffineTransform m_base;
+
+	/**
+	 * @param display display to export
+	 * @param scale ratio of exported pixels to on-screen pixels
+	 */
+	public TiledImageWriter(Display display, double scale) {
+		m_display = display;
+		m_scale = scale;
+		m_width = Math.max(1, (int) (scale * display.getWidth()));
+		m_height = Math.max(1, (int) (scale * display.getHeight()));
+	}
+
+	/**
+	 * @return width of the exported image in pixels
+	 */
+	public int getWidth() {
+		return m_width;
+	}
+
+	/**
+	 * @return height of the exported image in pixels
+	 */
+	public int getHeight() {
+		return m_height;
+	}
+
+	/**
+	 * Side of the square tiles written by writeTiles. Default 2048.
+	 */
+	public void setTileSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Tile size must be positive: " + size);
+		}
+		m_tileSize = size;
+	}
+
+	public int getTileSize() {
+		return m_tileSize;
+	}
+
+	/**
+	 * Deflate level for writePNG, 0-9 or Deflater.DEFAULT_COMPRESSION.
+	 */
+	public void setCompressionLevel(int level) {
+		m_level = level;
+	}
+
+	public void setProgress(ProgressDialog.Progress p) {
+		m_progress = (p == null) ? ProgressDialog.NONE : p;
+	}
+
+	/**
+	 * Write display to f: a streaming PNG if f ends in .png, otherwise
+	 * a directory of tiles named after f in f's format. A partial
+	 * export is removed on failure or cancel.
+	 */
+	public void write(File f) throws IOException {
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		String format = (dot < 0) ? "png" : name.substring(dot + 1).toLowerCase();
+		String base = (dot < 0) ? name : name.substring(0, dot);
+
+		if (format.equals("png")) {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(f), kBUFFER);
+			boolean ok = false;
+			try {
+				writePNG(os);
+				os.close();
+				ok = true;
+			} finally {
+				if (!ok) {
+					try {
+						os.close();
+					} catch (IOException ioe) {
+						//already failing
+					}
+					f.delete();
+				}
+			}
+		} else {
+			File dir = new File(f.getParentFile(), base + "_tiles");
+			boolean ok = false;
+			try {
+				writeTiles(dir, base, format);
+				ok = true;
+			} finally {
+				if (!ok) {
+					File[] written = dir.listFiles();
+					if (written != null) {
+						for (File t : written) {
+							if (t.getName().startsWith(base + "_")) {
+								t.delete();
+							}
+						}
+					}
+					dir.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the display as a single PNG. os is flushed but not closed.
+	 */
+	public void writePNG(OutputStream os) throws IOException {
+		final int rows = Math.max(1, Math.min(m_height, kTILE_PIXELS / m_width));
+		int bands = (m_height + rows - 1) / rows;
+
+		final DataOutputStream out = new DataOutputStream(os);
+		out.write(kSIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream ihdr = new DataOutputStream(header);
+		ihdr.writeInt(m_width);
+		ihdr.writeInt(m_height);
+		ihdr.writeByte(8); //bit depth
+		ihdr.writeByte(2); //truecolor
+		ihdr.writeByte(0); //deflate
+		ihdr.writeByte(0); //adaptive filtering
+		ihdr.writeByte(0); //no interlace
+		writeChunk(out, "IHDR", header.toByteArray(), 0, 13);
+
+		//zlib header for a 32K window at the default level
+		writeChunk(out, "IDAT", new byte[]{0x78, (byte) 0x9c}, 0, 2);
+
+		final long[] adler = {1L};
+		new TileLoop(bands) {
+			private byte[] m_prevRow = null;
+
+			@Override
+			Callable<Band> paint(int i) {
+				final int y0 = i * rows;
+				final int h = Math.min(rows, m_height - y0);
+				final BufferedImage img = render(0, y0, m_width, h);
+				final byte[] prev = m_prevRow;
+				final boolean last = (y0 + h == m_height);
+				//the next band filters its first row against our last
+				m_prevRow = rowBytes(img, h - 1, null);
+				return new Callable<Band>() {
+					public Band call() {
+						return encodeBand(img, prev, last);
+					}
+				};
+			}
+
+			@Override
+			void write(Band b) throws IOException {
+				for (int off = 0; off < b.length; off += kCHUNK) {
+					writeChunk(out, "IDAT", b.data, off, Math.min(kCHUNK, b.length - off));
+				}
+				adler[0] = combineAdler(adler[0], b.adler, b.rawLength);
+			}
+		}.run();
+
+		byte[] trailer = new byte[4];
+		for (int k = 0; k < 4; ++k) {
+			trailer[k] = (byte) (adler[0] >>> (24 - 8 * k));
+		}
+		writeChunk(out, "IDAT", trailer, 0, 4);
+		writeChunk(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	/**
+	 * Write the display as a grid of tileSize square images in dir,
+	 * named prefix_row_col.format (rows and columns from 0).
+	 *
+	 * @return number of tiles written
+	 */
+	public int writeTiles(final File dir, final String prefix,
+		final String format) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+			throw new IOException("No image writer for format " + format);
+		}
+		final int cols = (m_width + m_tileSize - 1) / m_tileSize;
+		int tiles = cols * ((m_height + m_tileSize - 1) / m_tileSize);
+
+		new TileLoop(tiles) {
+			@Override
+			Callable<Band> paint(int i) {
+				final int r = i / cols;
+				final int c = i % cols;
+				int x0 = c * m_tileSize;
+				int y0 = r * m_tileSize;
+				final BufferedImage img = render(x0, y0,
+					Math.min(m_tileSize, m_width - x0),
+					Math.min(m_tileSize, m_height - y0));
+				return new Callable<Band>() {
+					public Band call() throws IOException {
+						File f = new File(dir, prefix + "_" + r + "_" + c + "." + format);
+						if (!ImageIO.write(img, format, f)) {
+							throw new IOException("Could not write " + f);
+						}
+						return null;
+					}
+				};
+			}
+
+			@Override
+			void write(Band b) {
+				//workers wrote their own files
+			}
+		}.run();
+		return tiles;
+	}
+
+	/**
+	 * Paints one w by h tile of the scaled display, with (x0, y0) of
+	 * the full image at its top left corner.
+	 */
+	private BufferedImage render(int x0, int y0, int w, int h) {
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		AffineTransform at = AffineTransform.getTranslateInstance(-x0, -y0);
+		at.scale(m_scale, m_scale);
+		at.concatenate(m_base);
+		Visualization vis = m_display.getVisualization();
+		try {
+			//hold the visualization so a screen repaint can't slip in
+			//between moving the transform and painting
+			synchronized (vis) {
+				m_display.setTransform(at); //also takes care of damage report
+				m_display.paintDisplay(g, new Dimension(w, h));
+			}
+		} catch (NoninvertibleTransformException nte) {
+			throw new IllegalStateException(nte);
+		} finally {
+			g.dispose();
+		}
+		return img;
+	}
+
+	/**
+	 * Paints tiles in order on the calling thread, encodes them on the
+	 * worker pool, and writes the results in order, keeping a bounded
+	 * number in flight.
+	 */
+	private abstract class TileLoop {
+		private final int m_count;
+
+		TileLoop(int count) {
+			m_count = count;
+		}
+
+		/** Paint tile i and return the job that encodes it. */
+		abstract Callable<Band> paint(int i);
+
+		/** Called in tile order with each finished encode. */
+		abstract void write(Band b) throws IOException;
+
+		void run() throws IOException {
+			m_base = m_display.getTransform();
+			boolean q = m_display.isHighQuality();
+			m_display.setHighQuality(true);
+
+			int window = WorkerPool.getParallelism() + 1;
+			ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+			int done = 0;
+			try {
+				for (int i = 0; i < m_count; ++i) {
+					if (m_progress.isCanceled()) {
+						throw new CancellationException();
+					}
+					if (pending.size() >= window) {
+						write(take(pending.poll()));
+						m_progress.setProgress(++done, m_count);
+					}
+					pending.add(WorkerPool.get().submit(paint(i)));
+				}
+				while (!pending.isEmpty()) {
+					write(take(pending.poll()));
+					m_progress.setProgress(++done, m_count);
+				}
+			} finally {
+				for (Future<Band> f : pending) {
+					f.cancel(true);
+				}
+				m_display.setHighQuality(q);
+				try {
+					m_display.setTransform(m_base);
+				} catch (NoninvertibleTransformException nte) {
+					//it was inverted once already
+				}
+				m_display.repaint();
+			}
+		}
+
+		private Band take(Future<Band> f) throws IOException {
+			try {
+				return f.get();
+			} catch (InterruptedException ie) {
+				throw new CancellationException();
+			} catch (ExecutionException ee) {
+				Throwable t = ee.getCause();
+				if (t instanceof IOException) {
+					throw (IOException) t;
+				} else if (t instanceof RuntimeException) {
+					throw (RuntimeException) t;
+				}
+				throw new IOException(t);
+			}
+		}
+	}
+
+	/** A deflated band of PNG scanlines. */
+	private static class Band {
+		byte[] data;
+		int length;
+		long adler;
+		long rawLength;
+	}
+
+	/**
+	 * Filter and deflate one band. The deflate output ends on a byte
+	 * boundary (sync flush) so bands can be concatenated; only the
+	 * final band closes the stream.
+	 */
+	private Band encodeBand(BufferedImage img, byte[] prev, boolean last) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int stride = 3 * w;
+		byte[] raw = new byte[h * (stride + 1)];
+		byte[] cur = new byte[stride];
+		byte[] work = new byte[stride];
+		for (int y = 0; y < h; ++y) {
+			rowBytes(img, y, cur);
+			filterRow(cur, prev, work, raw, y * (stride + 1));
+			if (prev == null) {
+				prev = new byte[stride];
+			}
+			byte[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		Band b = new Band();
+		Adler32 a = new Adler32();
+		a.update(raw);
+		b.adler = a.getValue();
+		b.rawLength = raw.length;
+
+		Deflater def = new Deflater(m_level, true);
+		try {
+			def.setInput(raw);
+			if (last) {
+				def.finish();
+			}
+			byte[] buf = new byte[raw.length / 4 + 1024];
+			int n = 0;
+			while (true) {
+				if (n == buf.length) {
+					buf = Arrays.copyOf(buf, 2 * buf.length);
+				}
+				int room = buf.length - n;
+				int got = last ? def.deflate(buf, n, buf.length - n)
+					: def.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH);
+				n += got;
+				//a sync flush is complete once it stops filling the buffer
+				if (last ? def.finished() : got < room) {
+					break;
+				}
+			}
+			b.data = buf;
+			b.length = n;
+		} finally {
+			def.end();
+		}
+		return b;
+	}
+
+	/**
+	 * Unpack row y of img to RGB bytes in into, or a new array if null.
+	 */
+	private static byte[] rowBytes(BufferedImage img, int y, byte[] into) {
+		int w = img.getWidth();
+		if (into == null) {
+			into = new byte[3 * w];
+		}
+		int[] px = new int[w];
+		img.getRGB(0, y, w, 1, px, 0, w);
+		for (int x = 0, j = 0; x < w; ++x) {
+			int p = px[x];
+			into[j++] = (byte) (p >> 16);
+			into[j++] = (byte) (p >> 8);
+			into[j++] = (byte) p;
+		}
+		return into;
+	}
+
+	/**
+	 * Writes the filter type byte and filtered row at out[off], picking
+	 * whichever of the five PNG filters gives the smallest sum of
+	 * absolute values (the usual heuristic). prev is null for the first
+	 * row of the image.
+	 */
+	private static void filterRow(byte[] cur, byte[] prev, byte[] work,
+		byte[] out, int off) {
+		int n = cur.length;
+		long bestSum = Long.MAX_VALUE;
+		for (int type = 0; type < 5; ++type) {
+			if (prev == null && (type == 2 || type == 4)) {
+				//Up and Paeth reduce to None and Sub on the first row
+				continue;
+			}
+			long sum = 0;
+			for (int i = 0; i < n; ++i) {
+				int a = (i >= 3) ? cur[i - 3] & 0xff : 0;
+				int b = (prev != null) ? prev[i] & 0xff : 0;
+				int c = (i >= 3 && prev != null) ? prev[i - 3] & 0xff : 0;
+				int pred;
+				switch (type) {
+					case 1: pred = a; break;
+					case 2: pred = b; break;
+					case 3: pred = (a + b) >>> 1; break;
+					case 4: pred = paeth(a, b, c); break;
+					default: pred = 0;
+				}
+				byte v = (byte) (cur[i] - pred);
+				work[i] = v;
+				sum += Math.abs(v);
+				if (sum >= bestSum) {
+					break;
+				}
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				out[off] = (byte) type;
+				System.arraycopy(work, 0, out, off + 1, n);
+			}
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return (pb <= pc) ? b : c;
+	}
+
+	/**
+	 * Adler-32 of two byte runs joined, from the checksum of each and
+	 * the length of the second (as zlib's adler32_combine).
+	 */
+	static long combineAdler(long adler1, long adler2, long len2) {
+		long rem = len2 % kADLER_BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (rem * sum1) % kADLER_BASE;
+		sum1 += (adler2 & 0xffff) + kADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + kADLER_BASE - rem;
+		if (sum1 >= kADLER_BASE) {
+			sum1 -= kADLER_BASE;
+		}
+		if (sum1 >= kADLER_BASE) {
+			sum1 -= kADLER_BASE;
+		}
+		if (sum2 >= 2L * kADLER_BASE) {
+			sum2 -= 2L * kADLER_BASE;
+		}
+		if (sum2 >= kADLER_BASE) {
+			sum2 -= kADLER_BASE;
+		}
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void writeChunk(DataOutputStream out, String type,
+		byte[] data, int off, int len) throws IOException {
+		byte[] t = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(t);
+		crc.update(data, off, len);
+		out.writeInt(len);
+		out.write(t);
+		out.write(data, off, len);
+		out.writeInt((int) crc.getValue());
+	}
+}
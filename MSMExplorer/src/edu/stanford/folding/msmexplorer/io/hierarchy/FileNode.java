@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io.hierarchy;
+
+/**
+ * What the HierarchySketcher found for one level of a hierarchy: where
+ * its files are and how big it is.
+ *
+ * @author brycecr
+ */
+class FileNode {
+	public String tProbFilename;
+	public String mmapFilename;
+	public String eqProbFilename;
+	public int numStates;
+	public long nnz = -1; //-1 if unknown
+}
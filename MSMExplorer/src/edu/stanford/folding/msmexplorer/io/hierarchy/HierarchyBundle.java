@@ -17,6 +17,20 @@
  */
 package edu.stanford.folding.msmexplorer.io.hierarchy;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import prefuse.data.Graph;
 
 /**
@@ -26,26 +40,319 @@ import prefuse.data.Graph;
  * height in the hierarchy) and an array of strings of mapping file
  * locations index-aligned with the graph array.
  *
+ * A bundle may also be lazy, in which case levels are read the first
+ * time getGraph asks for them (and the neighbouring levels are read
+ * ahead in the background), and the least recently used levels are
+ * dropped again once the loaded levels exceed a memory budget. Entries
+ * of graphs are null for levels that aren't loaded, so always go
+ * through getGraph.
+ *
  * @author brycecr
  */
 public class HierarchyBundle {
 
+	//rough heap cost of a loaded graph, per node and per edge
+	//(table columns plus prefuse's adjacency bookkeeping)
+	private static final long kBYTES_PER_NODE = 128;
+	private static final long kBYTES_PER_EDGE = 64;
+
 	public final Graph[] graphs;
 	public final String[] mappings;
 
-	/** 
-	 * Construct an empty HierarchyBundle 
+	private final FileNode[] m_nodes;
+	private final File[] m_eqProbs;
+	private final boolean m_lazy;
+	private long m_budget;
+	private long m_used = 0;
+
+	//loaded levels in least- to most-recently used order
+	private final LinkedHashMap<Integer, Long> m_loaded
+		= new LinkedHashMap<Integer, Long>(16, 0.75f, true);
+	private final Map<Integer, Future<Graph>> m_pending
+		= new HashMap<Integer, Future<Graph>>();
+	//why each level's last load failed, if it did
+	private final Map<Integer, Throwable> m_failures
+		= new HashMap<Integer, Throwable>();
+	private ExecutorService m_prefetcher = null;
+
+	/**
+	 * Construct an empty HierarchyBundle
 	 */
 	protected HierarchyBundle() {
 		graphs = null;
 		mappings = null;
+		m_nodes = null;
+		m_eqProbs = null;
+		m_lazy = false;
 	}
-	
-	HierarchyBundle(Graph[] gs, FileNode[] fs) {
+
+	HierarchyBundle(Graph[] gs, FileNode[] fs, File[] eqProbs) {
 		graphs = gs;
 		mappings = new String[fs.length];
 		for (int i = 0; i < fs.length; ++i) {
 			mappings[i] = fs[i].mmapFilename;
 		}
+		m_nodes = fs;
+		m_eqProbs = eqProbs;
+		m_lazy = false;
+	}
+
+	/**
+	 * Construct a lazy bundle. Nothing is read until getGraph.
+	 *
+	 * @param fs sketched levels
+	 * @param eqProbs eqProb file for each level, or null entries
+	 * @param budget bytes of loaded levels to keep before evicting
+	 */
+	HierarchyBundle(FileNode[] fs, File[] eqProbs, long budget) {
+		graphs = new Graph[fs.length];
+		mappings = new String[fs.length];
+		for (int i = 0; i < fs.length; ++i) {
+			mappings[i] = fs[i].mmapFilename;
+		}
+		m_nodes = fs;
+		m_eqProbs = eqProbs;
+		m_lazy = true;
+		m_budget = budget;
+	}
+
+	/**
+	 * @return number of levels in the hierarchy
+	 */
+	public int getLevelCount() {
+		return mappings.length;
+	}
+
+	/**
+	 * @param level index into the hierarchy
+	 * @return number of states in the model at level, without loading it,
+	 * or -1 if its file couldn't be sized and it isn't loaded
+	 */
+	public synchronized int getNumStates(int level) {
+		if (m_nodes != null && m_nodes[level].numStates > 0) {
+			return m_nodes[level].numStates;
+		}
+		Graph g = graphs[level];
+		return (g == null) ? -1 : g.getNodeCount();
+	}
+
+	/**
+	 * @param level index into the hierarchy
+	 * @return the tProb file the level is read from, or null if unknown
+	 */
+	public File getTProbFile(int level) {
+		return (m_nodes == null) ? null : new File(m_nodes[level].tProbFilename);
+	}
+
+	/**
+	 * @param level index into the hierarchy
+	 * @return the level's eqProb file, or null if it has none
+	 */
+	public File getEqProbFile(int level) {
+		return (m_eqProbs == null) ? null : m_eqProbs[level];
+	}
+
+	/**
+	 * @param level index into the hierarchy
+	 * @return true if getGraph(level) won't have to read anything
+	 */
+	public synchronized boolean isLoaded(int level) {
+		return !m_lazy || m_loaded.containsKey(level);
+	}
+
+	/**
+	 * @return true if levels are loaded on demand
+	 */
+	public boolean isLazy() {
+		return m_lazy;
+	}
+
+	/**
+	 * Set the number of bytes of loaded levels a lazy bundle may keep.
+	 * Least recently used levels are dropped to get under it.
+	 *
+	 * @param budget memory budget in bytes
+	 */
+	public synchronized void setMemoryBudget(long budget) {
+		m_budget = budget;
+		evict(-1);
+	}
+
+	public synchronized long getMemoryBudget() {
+		return m_budget;
+	}
+
+	/**
+	 * Get the graph at level, reading it first if this is a lazy bundle
+	 * that doesn't have it loaded. Also starts reading the levels on
+	 * either side, if they fit in the budget.
+	 *
+	 * @param level index into the hierarchy
+	 * @return the graph, or null if it could not be read
+	 */
+	public Graph getGraph(int level) {
+		if (!m_lazy) {
+			return graphs[level];
+		}
+
+		FutureTask<Graph> mine = null;
+		Future<Graph> f;
+		synchronized (this) {
+			if (m_loaded.containsKey(level)) {
+				m_loaded.get(level); //touch
+				prefetchAround(level);
+				return graphs[level];
+			}
+			f = m_pending.get(level);
+			if (f == null) {
+				mine = new FutureTask<Graph>(loader(level));
+				m_pending.put(level, mine);
+				f = mine;
+			}
+		}
+
+		if (mine != null) {
+			mine.run();
+		}
+
+		Graph g;
+		try {
+			g = f.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			synchronized (this) {
+				m_failures.put(level, ie);
+			}
+			return null;
+		} catch (ExecutionException ee) {
+			Logger.getLogger(HierarchyBundle.class.getName()).log(Level.WARNING,
+				"Could not load hierarchy level " + level, ee.getCause());
+			synchronized (this) {
+				m_pending.remove(level);
+				m_failures.put(level, ee.getCause());
+			}
+			return null;
+		}
+
+		synchronized (this) {
+			m_pending.remove(level);
+			m_failures.remove(level);
+			if (!m_loaded.containsKey(level)) {
+				add(level, g);
+			}
+			m_loaded.get(level); //touch
+			evict(level);
+			prefetchAround(level);
+		}
+		return g;
+	}
+
+	/**
+	 * @return why the last getGraph(level) returned null (an
+	 * InterruptedException if it was interrupted), or null if it didn't
+	 */
+	public synchronized Throwable getLoadFailure(int level) {
+		return m_failures.get(level);
+	}
+
+	private Callable<Graph> loader(final int level) {
+		return new Callable<Graph>() {
+			public Graph call() throws Exception {
+				return HierarchyLoader.loadLevel(m_nodes[level], m_eqProbs[level]);
+			}
+		};
+	}
+
+	private static long estimateSize(Graph g) {
+		return kBYTES_PER_NODE * g.getNodeCount() + kBYTES_PER_EDGE * g.getEdgeCount();
+	}
+
+	/**
+	 * Guess a level's loaded size from its file before reading it.
+	 */
+	private long estimateSize(int level) {
+		FileNode node = m_nodes[level];
+		if (node.nnz >= 0) {
+			return kBYTES_PER_NODE * node.numStates + kBYTES_PER_EDGE * node.nnz;
+		}
+		File f = new File(node.tProbFilename);
+		//a text matrix entry is ~30-40 bytes on disk, about half its heap cost
+		return 2 * f.length();
+	}
+
+	private void add(int level, Graph g) {
+		long size = estimateSize(g);
+		graphs[level] = g;
+		m_loaded.put(level, size);
+		m_used += size;
+	}
+
+	/**
+	 * Drop least recently used levels until we're under budget, always
+	 * keeping at least one level and never dropping keep.
+	 */
+	private void evict(int keep) {
+		Iterator<Map.Entry<Integer, Long>> itr = m_loaded.entrySet().iterator();
+		while (m_used > m_budget && m_loaded.size() > 1 && itr.hasNext()) {
+			Map.Entry<Integer, Long> e = itr.next();
+			if (e.getKey() == keep) {
+				continue;
+			}
+			graphs[e.getKey()] = null;
+			m_used -= e.getValue();
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Read the levels next to level in the background, but only into
+	 * room that is already free; prefetching never evicts anything.
+	 */
+	private void prefetchAround(int level) {
+		for (int n = level - 1; n <= level + 1; n += 2) {
+			if (n < 0 || n >= graphs.length
+				|| m_loaded.containsKey(n) || m_pending.containsKey(n)
+				|| m_used + estimateSize(n) > m_budget) {
+				continue;
+			}
+			final int next = n;
+			final FutureTask<Graph> task = new FutureTask<Graph>(loader(next)) {
+				@Override
+				protected void done() {
+					prefetched(next, this);
+				}
+			};
+			m_pending.put(next, task);
+			getPrefetcher().execute(task);
+		}
+	}
+
+	private synchronized void prefetched(int level, Future<Graph> task) {
+		if (m_pending.get(level) != task) {
+			return;
+		}
+		m_pending.remove(level);
+		try {
+			Graph g = task.get();
+			if (!m_loaded.containsKey(level) && m_used + estimateSize(g) <= m_budget) {
+				add(level, g);
+			}
+		} catch (Exception e) {
+			//it'll be retried (and reported) if someone asks for it
+		}
+	}
+
+	private ExecutorService getPrefetcher() {
+		if (m_prefetcher == null) {
+			m_prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MSMExplorer level prefetch");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return m_prefetcher;
 	}
 }
@@ -17,17 +17,15 @@
  */
 package edu.stanford.folding.msmexplorer.io.hierarchy;
 
-import edu.stanford.folding.msmexplorer.io.DatGraphReader;
 import edu.stanford.folding.msmexplorer.io.EQProbReader;
 import edu.stanford.folding.msmexplorer.io.MSMIOLib;
-import edu.stanford.folding.msmexplorer.io.MtxGraphReader;
 import edu.stanford.folding.msmexplorer.io.NewlineDelimitedReader;
 
 import java.awt.Component;
 import java.io.File;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
 
 //supposedly the Hashtable class is obsolete, but
 //it seems to be the only reasonable implementation
@@ -42,9 +40,7 @@ import javax.swing.JOptionPane;
 
 import prefuse.data.Graph;
 import prefuse.data.Table;
-import prefuse.data.io.GraphReader;
 import prefuse.util.StringLib;
-import prefuse.util.io.IOLib;
 
 /**
  * Hierarchy-oriented I/O operations. Most if not all of these are exposed
@@ -60,10 +56,36 @@ public class HierarchyIOLib {
 
 	protected static final JFileChooser jfc = new JFileChooser();
 
+	//bytes of loaded levels a lazy hierarchy may hold on to
+	private static long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	private static boolean alwaysLazy = false;
+
 	private HierarchyIOLib() {
 		//prevent instantiation
 	}
 
+	/**
+	 * Hierarchies whose tProb files look like they won't fit in the memory
+	 * budget are always opened lazily; this makes every hierarchy lazy.
+	 *
+	 * @param lazy true to load levels only when they're shown
+	 */
+	public static void setLazyLoading(boolean lazy) {
+		alwaysLazy = lazy;
+	}
+
+	/**
+	 * @param budget bytes of loaded levels newly opened lazy hierarchies
+	 * keep before dropping the least recently used ones
+	 */
+	public static void setMemoryBudget(long budget) {
+		memoryBudget = budget;
+	}
+
+	public static long getMemoryBudget() {
+		return memoryBudget;
+	}
+
 	public static HierarchyBundle openMSMHierarchy(Component c) {
 		return openMSMHierarchy(c, DEFAULT_DIRECTORY);
 	}
@@ -93,35 +115,41 @@ public class HierarchyIOLib {
 
 		assert newNode.length > 0;
 
-		GraphReader gr;
-		if (newNode[0].tProbFilename.endsWith(".mtx")
-				|| newNode[0].tProbFilename.endsWith(".MTX")) {
-			gr = new MtxGraphReader();
-		} else {
-			gr = new DatGraphReader();
+		//settle the eqProb files up front; finding one may involve asking
+		//the user, which can't happen from the loading threads
+		File[] eqProbFiles = new File[newNode.length];
+		for (int i = 0; i < newNode.length; ++i) {
+			if (newNode[i].eqProbFilename == null) {
+				eqProbFiles[i] = EQProbReader.locateEqProbFile(null);
+			} else {
+				eqProbFiles[i] = new File(newNode[i].eqProbFilename);
+			}
 		}
 
-		Graph[] graphs = new Graph[newNode.length];
-		for (int i = 0; i < newNode.length; ++i) {
-			try {
-				graphs[i] = gr.readGraph(IOLib.streamFromString(newNode[i].tProbFilename));
-				if (newNode[i].eqProbFilename == null) {
-					graphs[i] = EQProbReader.getEqProbs(null, graphs[i]);
-				} else {
-					graphs[i] = EQProbReader.addEqProbs(graphs[i], 
-						new File(newNode[i].eqProbFilename));
-				}
+		//text matrices take roughly twice their file size once loaded
+		long total = 0;
+		for (FileNode node : newNode) {
+			total += 2 * new File(node.tProbFilename).length();
+		}
+		if (alwaysLazy || total > memoryBudget) {
+			return new HierarchyBundle(newNode, eqProbFiles, memoryBudget);
+		}
 
-			} catch (Exception e) {
-				Logger.getLogger(MSMIOLib.class.getName()).log(
-					Level.WARNING, "{0}\n{1}",
-					new Object[]{e.getMessage(), StringLib.getStackTrace(e)});
-				return null;
-			}
+		try {
+			return HierarchyLoader.load(c, newNode, eqProbFiles);
+		} catch (ExecutionException ee) {
+			Throwable e = (ee.getCause() == null) ? ee : ee.getCause();
+			Logger.getLogger(MSMIOLib.class.getName()).log(
+				Level.WARNING, "{0}\n{1}",
+				new Object[]{e.getMessage(), StringLib.getStackTrace(e)});
+			JOptionPane.showMessageDialog(c, "Could not load the hierarchy at "
+				+ f.getAbsolutePath() + "\n" + e.toString(),
+				"Hierarchy Open Error", JOptionPane.ERROR_MESSAGE);
+			return null;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		HierarchyBundle hb = new HierarchyBundle(graphs, newNode);
-		assert hb != null;
-		return hb;
 	}
 
 	/**
@@ -142,6 +170,37 @@ public class HierarchyIOLib {
 		return dict;
 	}
 
+	/**
+	 * Generates hierarchy labels for a bundle, as for getHierarchyLabels(Graph[]),
+	 * without loading any levels of a lazy bundle. Levels whose size
+	 * couldn't be read from their files are labelled "?".
+	 *
+	 * @param hb the hierarchy to generate labels for
+	 * @return Dictionary of level index to JLabel of its number of states
+	 */
+	public static Dictionary<Integer, JLabel> getHierarchyLabels(HierarchyBundle hb) {
+		Dictionary<Integer, JLabel> dict = new Hashtable<Integer, JLabel>(hb.getLevelCount());
+		for (int i = 0; i < hb.getLevelCount(); ++i) {
+			int n = hb.getNumStates(i);
+			dict.put(i, new JLabel((n < 0) ? "?" : Integer.toString(n)));
+		}
+		return dict;
+	}
+
+	/**
+	 * Overlay slider labels for a bundle, as for getAltHierarchyLabels(Graph[]).
+	 *
+	 * @param hb the hierarchy to generate labels for
+	 * @return Dictionary of labels
+	 */
+	public static Dictionary<Integer, JLabel> getAltHierarchyLabels(HierarchyBundle hb) {
+		Dictionary<Integer, JLabel> dict = getHierarchyLabels(hb);
+		int top = hb.getLevelCount() - 1;
+		dict.remove(top);
+		dict.put(top, new JLabel("None"));
+		return dict;
+	}
+
 	/**
 	 * Used to label the overlay slider. Replaces the top (highest population)
 	 * member of the dictionary with the label "None".
@@ -166,35 +225,51 @@ public class HierarchyIOLib {
 
 	public static boolean setMapping(HierarchyBundle hb, int bottom, int top) {
 		
-		Object[] top_mappings = NewlineDelimitedReader.read(hb.mappings[top]);
+		int[] top_mappings = NewlineDelimitedReader.readInts(new File(hb.mappings[top]));
+		if (top_mappings == null) {
+			return false;
+		}
 
-		Table nt = hb.graphs[bottom].getNodeTable();
+		Graph bottomGraph = hb.getGraph(bottom);
+		if (bottomGraph == null) {
+			return false;
+		}
+		Table nt = bottomGraph.getNodeTable();
 		if (nt.getColumnNumber(MAPPING) < 0) {
 			nt.addColumn(MAPPING, int.class);
 		}
+		int col = nt.getColumnNumber(MAPPING);
 
 		// The simple case: we're mapping to the model with the most
 		// states, so we can just copy from the file
 		if (bottom == hb.mappings.length - 1) {
 			for (int j = 0; j < top_mappings.length; ++j) {
-				hb.graphs[bottom].getNode(j).setInt(MAPPING, (Integer)top_mappings[j]);
+				if (nt.getInt(j, col) != top_mappings[j]) {
+					nt.setInt(j, col, top_mappings[j]);
+				}
 			}
 			return true;
 		}
 
 		//The more complex case: generate the mapping
-		Object[] bottom_mappings = NewlineDelimitedReader.read(hb.mappings[bottom]);
+		int[] bottom_mappings = NewlineDelimitedReader.readInts(new File(hb.mappings[bottom]));
+		if (bottom_mappings == null) {
+			return false;
+		}
 		
 		//if no mapping column currently available
 		try {
-			HashMap<Integer, Integer> seen_mappings = new HashMap<Integer, Integer>();
+			//indexed by bottom state; states out of range land in the catch
+			int[] seen_mappings = new int[nt.getRowCount()];
+			boolean[] seen = new boolean[nt.getRowCount()];
 			boolean nonnested = false;
 			for (int row = 0; row < bottom_mappings.length; ++row) {
-				int top_state = (Integer)top_mappings[row];
-				int bottom_state = (Integer)bottom_mappings[row];
-				if (!seen_mappings.containsKey(bottom_state)) {
-					seen_mappings.put(bottom_state, top_state);
-				} else if (top_state != seen_mappings.get(bottom_state) && !nonnested) {
+				int top_state = top_mappings[row];
+				int bottom_state = bottom_mappings[row];
+				if (!seen[bottom_state]) {
+					seen[bottom_state] = true;
+					seen_mappings[bottom_state] = top_state;
+				} else if (top_state != seen_mappings[bottom_state] && !nonnested) {
 					//FIXME handle this case...with arrays?
 					nonnested = true;
 					JOptionPane.showMessageDialog(null, 
@@ -207,8 +282,11 @@ public class HierarchyIOLib {
 						MAPPING, JOptionPane.ERROR_MESSAGE);
 				}
 			}
-			for (Integer i : seen_mappings.keySet()) {
-				nt.set(i, MAPPING, seen_mappings.get(i));
+			for (int i = 0; i < seen.length; ++i) {
+				//only touch what changed, so a reapplied mapping is cheap
+				if (seen[i] && nt.getInt(i, col) != seen_mappings[i]) {
+					nt.setInt(i, col, seen_mappings[i]);
+				}
 			}
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(null, 
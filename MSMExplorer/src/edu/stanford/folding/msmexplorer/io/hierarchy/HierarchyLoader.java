@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io.hierarchy;
+
+import edu.stanford.folding.msmexplorer.io.EQProbReader;
+import edu.stanford.folding.msmexplorer.io.MSMIOLib;
+import edu.stanford.folding.msmexplorer.io.NewlineDelimitedReader;
+import edu.stanford.folding.msmexplorer.util.ui.ProgressDialog;
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import prefuse.data.Graph;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Loads the levels of a sketched hierarchy concurrently: every level's
+ * tProb and eqProb files are parsed as an independent task, and the
+ * bundle is assembled once all of them are done.
+ *
+ * When called on the event dispatch thread, the load runs behind a
+ * ProgressDialog, so the UI keeps painting while the levels come in.
+ * Levels are read off the EDT, so nothing here puts up a dialog; read
+ * failures are thrown for the caller to report once loading is over.
+ *
+ * @author brycecr
+ */
+public class HierarchyLoader {
+
+	//how often a waiting load checks for cancellation
+	private static final long kPOLL_MS = 100;
+
+	private HierarchyLoader() {
+		//prevent instantiation
+	}
+
+	/**
+	 * Load all levels, showing a progress dialog if called on the EDT.
+	 *
+	 * @param c parent component for the progress dialog
+	 * @param nodes sketched levels
+	 * @param eqProbFiles eqProb file for each level, or null entries
+	 * for levels without one
+	 * @return the loaded bundle, or null if the user cancelled
+	 * @throws ExecutionException wrapping the first level that failed
+	 */
+	static HierarchyBundle load(Component c, final FileNode[] nodes,
+		final File[] eqProbFiles) throws ExecutionException, InterruptedException {
+		try {
+			return ProgressDialog.run(c, "Opening Hierarchy",
+				"Loading hierarchy levels...", "levels",
+				new ProgressDialog.Task<HierarchyBundle>() {
+					public HierarchyBundle run(ProgressDialog.Progress p) throws Exception {
+						return load(nodes, eqProbFiles, p);
+					}
+				});
+		} catch (ExecutionException ee) {
+			throw ee;
+		} catch (InterruptedException ie) {
+			throw ie;
+		} catch (Exception e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * Load all levels on the calling thread's behalf, one task per level.
+	 *
+	 * @param nodes sketched levels
+	 * @param eqProbFiles eqProb file for each level, or null entries
+	 * @param progress progress hook, may be null
+	 * @return the loaded bundle, or null if cancelled
+	 * @throws ExecutionException wrapping the first level that failed
+	 */
+	static HierarchyBundle load(FileNode[] nodes, File[] eqProbFiles,
+		final ProgressDialog.Progress progress) throws ExecutionException, InterruptedException {
+		final int total = nodes.length;
+		final AtomicInteger loaded = new AtomicInteger();
+
+		int threads = Math.min(total, Runtime.getRuntime().availableProcessors());
+		ExecutorService exec = Executors.newFixedThreadPool(Math.max(threads, 1),
+			new ThreadFactory() {
+				private int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MSMExplorer level loader " + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+		List<Future<Graph>> futures = new ArrayList<Future<Graph>>(total);
+		try {
+			for (int i = 0; i < total; ++i) {
+				final FileNode node = nodes[i];
+				final File eqProb = eqProbFiles[i];
+				futures.add(exec.submit(new Callable<Graph>() {
+					public Graph call() throws Exception {
+						if (progress != null && progress.isCanceled()) {
+							throw new CancellationException();
+						}
+						Graph g = loadLevel(node, eqProb);
+						if (progress != null) {
+							progress.setProgress(loaded.incrementAndGet(), total);
+						}
+						return g;
+					}
+				}));
+			}
+
+			Graph[] graphs = new Graph[total];
+			for (int i = 0; i < total; ++i) {
+				try {
+					boolean done = false;
+					while (!done) {
+						try {
+							graphs[i] = futures.get(i).get(kPOLL_MS, TimeUnit.MILLISECONDS);
+							done = true;
+						} catch (TimeoutException te) {
+							if (progress != null && progress.isCanceled()) {
+								return null;
+							}
+						}
+					}
+				} catch (CancellationException ce) {
+					return null;
+				} catch (ExecutionException ee) {
+					if (ee.getCause() instanceof CancellationException) {
+						return null;
+					}
+					throw ee;
+				}
+			}
+			return new HierarchyBundle(graphs, nodes, eqProbFiles);
+		} finally {
+			//on failure or cancel, stop whatever is still queued
+			for (Future<Graph> f : futures) {
+				f.cancel(true);
+			}
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read a single level's tProb and eqProbs on the calling thread,
+	 * which needn't be the EDT: failures are thrown, never shown.
+	 *
+	 * @param node sketched level
+	 * @param eqProb eqProb file for the level, or null
+	 * @return the level's graph
+	 */
+	static Graph loadLevel(FileNode node, File eqProb) throws IOException, DataIOException {
+		//readers keep the tables they are building as state, so every
+		//level gets its own
+		Graph g = MSMIOLib.getReader(node.tProbFilename).readGraph(node.tProbFilename);
+		if (eqProb != null) {
+			EQProbReader.setEqProbs(g, NewlineDelimitedReader.parseDoubles(eqProb));
+		}
+		return g;
+	}
+}
@@ -21,19 +21,10 @@ import javax.swing.JOptionPane;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.Comparator;
 import java.io.File;
-import java.io.FileNotFoundException;
 
 
-class FileNode {
-	public String tProbFilename;
-	public String mmapFilename;
-	public String eqProbFilename;
-	public int numStates;
-}
-
 /**
  * The HierarchySketcher is responsible for combing a directory hierarchy and
  * indexing the available MSMs and their relative relationship.
@@ -42,9 +33,10 @@ class FileNode {
  * When prompted users should select a FOLDER that contains a selection of FOLDERS
  * where each folder that participates in the hierarchy contains:
  *	> a file that starts with the exact characters "tProb" . If this file has the extension ".mtx"
- * 		the sketcher assumes it is a sparse matrix file; otherwise, it assumes it is a dense matrix file.
+ * 		the sketcher assumes it is a sparse matrix file; ".npy" or ".npz" files are read as NumPy
+ * 		arrays (dense, or scipy.sparse); otherwise, it assumes it is a dense matrix file.
  *  > a file that starts with the exact characters "MacroMapping" which contains a newline-delimited
- * 		mapping of each microstate to some macrostate in the model represented by tProb (i.e. in this macrostate model)
+ * 		(or .npy) mapping of each microstate to some macrostate in the model represented by tProb (i.e. in this macrostate model)
  *		The MacroMapping file can not exist in the model in the hierarchy with the largest number of states
  */
 public class HierarchySketcher {
@@ -66,6 +58,7 @@ public class HierarchySketcher {
 				"Hierarchy Read Error", JOptionPane.ERROR_MESSAGE);
 		}
 
+		SketchCache cache = new SketchCache(new File(pathToHierarchy));
 		ArrayList<File> fileList = new ArrayList<File>(Arrays.asList(topList));		
 		ArrayList<FileNode> nodes = new ArrayList<FileNode>(5);
 		for (File f : fileList) {
@@ -84,7 +77,9 @@ public class HierarchySketcher {
 						assert !hasTProb;
 						hasTProb = true;
 						node.tProbFilename = f.getAbsolutePath() + '/' + str;
-						node.numStates = getNumStates(node.tProbFilename);
+						SketchCache.Probe probe = cache.get(new File(node.tProbFilename));
+						node.numStates = probe.numStates;
+						node.nnz = probe.nnz;
 						if (node.numStates > maxStates) {
 							maxStates = node.numStates;
 						}
@@ -115,6 +110,8 @@ public class HierarchySketcher {
 			}
 		}
 
+		cache.save();
+
 		FileNode nodeArray[] = nodes.toArray(new FileNode[nodes.size()]);
 		Arrays.sort(nodeArray, new FileNodeComparator());
 
@@ -130,31 +127,6 @@ public class HierarchySketcher {
 		return nodeArray;
 	}
 
-	private static int getNumStates(String filePath) {
-		int i = 0;
-		Scanner scn = null;
-		try {
-				scn = new Scanner (new File(filePath)); 
-			} catch (FileNotFoundException fnfe) {
-				JOptionPane.showMessageDialog(null, "Something slipped out from under us. Could not open file at " + filePath);
-			}
-		if (filePath.endsWith(".mtx")) {
-			while (!scn.hasNextInt() && scn.hasNextLine()) {
-				scn.nextLine();
-			}
-			if (scn.hasNextInt()) {
-				i = scn.nextInt();
-			}
-
-		} else { //I guess we can pretend anything else is a dense matrix, but it might not go well later on...XXX should fix this
-			while (scn.hasNextLine()) {
-				scn.nextLine();
-				i++;
-			}
-		}
-		return i;
-	}
-
 	private static class FileNodeComparator implements Comparator<FileNode> {
 		public int compare (FileNode a, FileNode b) {
 			return a.numStates - b.numStates;
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io.hierarchy;
+
+import edu.stanford.folding.msmexplorer.io.ByteTokenizer;
+import edu.stanford.folding.msmexplorer.io.DecompressingInputStream;
+import edu.stanford.folding.msmexplorer.io.NpyArray;
+import edu.stanford.folding.msmexplorer.io.NpyGraphReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import prefuse.data.io.DataIOException;
+
+/**
+ * Sizes of the tProb matrices in a hierarchy directory, found by reading
+ * just the MatrixMarket size line or .npy header, or by counting the
+ * newlines of a dense text file, and remembered in a small file
+ * (FILENAME) in the hierarchy directory. An entry is used again only
+ * while the matrix file's size and modification time are unchanged, so
+ * re-sketching a hierarchy that hasn't changed doesn't open any of its
+ * matrices. Entries for matrices that no longer exist are dropped when
+ * the cache is saved.
+ *
+ * The cache is best effort: if the directory isn't writable we just
+ * probe every time.
+ *
+ * @author brycecr
+ */
+class SketchCache {
+
+	static final String FILENAME = ".msmsketch";
+
+	private static final int kSCAN_BUFFER = 1 << 16;
+
+	/** What we know about one matrix file without loading it. */
+	static class Probe {
+		int numStates;
+		long nnz; //-1 if unknown (dense files)
+	}
+
+	private final File m_file;
+	private final Properties m_entries = new Properties();
+	private boolean m_dirty = false;
+
+	/**
+	 * Open the cache for the hierarchy rooted at dir.
+	 */
+	SketchCache(File dir) {
+		m_file = new File(dir, FILENAME);
+		if (!m_file.isFile()) {
+			return;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(m_file);
+			m_entries.load(is);
+		} catch (IOException ioe) {
+			m_entries.clear();
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Size of the matrix in f, from the cache if it's still current.
+	 *
+	 * @param f tProb matrix file
+	 * @return the probe, with numStates 0 if f couldn't be read
+	 */
+	Probe get(File f) {
+		String key = f.getAbsolutePath();
+		String entry = m_entries.getProperty(key);
+		if (entry != null) {
+			String[] parts = entry.split(" ");
+			try {
+				if (parts.length == 4 && Long.parseLong(parts[0]) == f.length()
+					&& Long.parseLong(parts[1]) == f.lastModified()) {
+					Probe p = new Probe();
+					p.numStates = Integer.parseInt(parts[2]);
+					p.nnz = Long.parseLong(parts[3]);
+					return p;
+				}
+			} catch (NumberFormatException nfe) {
+				//stale garbage; probe again
+			}
+		}
+
+		Probe p = probe(f);
+		if (p.numStates > 0) {
+			m_entries.setProperty(key, f.length() + " " + f.lastModified()
+				+ " " + p.numStates + " " + p.nnz);
+			m_dirty = true;
+		}
+		return p;
+	}
+
+	/**
+	 * Write the cache back if anything new was probed or any matrix
+	 * has gone away.
+	 */
+	void save() {
+		for (String key : m_entries.stringPropertyNames()) {
+			if (!new File(key).isFile()) {
+				m_entries.remove(key);
+				m_dirty = true;
+			}
+		}
+		if (!m_dirty) {
+			return;
+		}
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(m_file);
+			m_entries.store(os, "MSMExplorer hierarchy sketch: size mtime states nnz");
+			m_dirty = false;
+		} catch (IOException ioe) {
+			//read-only hierarchy; we'll probe again next time
+		} finally {
+			close(os);
+		}
+	}
+
+	/**
+	 * Read only as much of f as needed to size the matrix: the
+	 * MatrixMarket size line, the NumPy header(s), or a newline count for
+	 * a dense text matrix.
+	 */
+	static Probe probe(File f) {
+		Probe p = new Probe();
+		p.nnz = -1;
+		InputStream is = null;
+		try {
+			if (NpyArray.isNumpyFile(f.getName())) {
+				long[] sizes = NpyGraphReader.probe(f);
+				p.numStates = (int)sizes[0];
+				p.nnz = sizes[1];
+				return p;
+			}
+			is = DecompressingInputStream.open(f);
+			if (DecompressingInputStream.stripCompression(f.getName()).endsWith(".mtx")) {
+				ByteTokenizer tk = new ByteTokenizer(is, 1024);
+				if (tk.skipComments('%')) {
+					p.numStates = tk.nextInt();
+					tk.nextInt();
+					p.nnz = tk.nextInt();
+				}
+			} else {
+				//I guess we can pretend anything else is a dense matrix
+				p.numStates = countLines(is);
+			}
+		} catch (IOException ioe) {
+			p.numStates = 0;
+		} catch (NumberFormatException nfe) {
+			p.numStates = 0;
+		} catch (DataIOException dioe) {
+			p.numStates = 0;
+		} finally {
+			close(is);
+		}
+		return p;
+	}
+
+	private static int countLines(InputStream is) throws IOException {
+		byte[] buf = new byte[kSCAN_BUFFER];
+		int lines = 0;
+		byte last = '\n';
+		int read;
+		while ((read = is.read(buf)) > 0) {
+			for (int i = 0; i < read; ++i) {
+				if (buf[i] == '\n') {
+					lines++;
+				}
+			}
+			last = buf[read - 1];
+		}
+		//a last line without a newline still counts
+		return (last == '\n') ? lines : lines + 1;
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException ioe) {
+				//nothing useful to do
+			}
+		}
+	}
+}
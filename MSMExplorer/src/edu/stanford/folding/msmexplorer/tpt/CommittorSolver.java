@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.tpt;
+
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import java.util.Arrays;
+
+/**
+ * Solves for forward committors on a sparse transition matrix.
+ *
+ * The committor q is 0 on the source states, 1 on the target states,
+ * and everywhere else satisfies q_i = sum_j T_ij q_j. Fixing the
+ * boundary values and moving them to the right hand side leaves
+ *
+ *     q_i - sum_{j interior} T_ij q_j = sum_{j in target} T_ij
+ *
+ * over just the interior states, which has the sparsity of T. That is
+ * solved with BiCGSTAB, right-preconditioned by an incomplete LU
+ * factorization with no fill (ILU(0)); if the factorization hits a
+ * zero pivot we fall back on the diagonal (Jacobi).
+ *
+ * An interior state that can reach neither the source nor the target
+ * makes the system singular, and the solve won't converge. Check
+ * isConverged and getResidual afterwards.
+ *
+ * @author brycecr
+ */
+public class CommittorSolver {
+
+	public static final double kDEFAULT_TOLERANCE = 1e-10;
+	private static final int kDEFAULT_MAX_ITERATIONS = 1000;
+
+	private final SparseMatrix m_tProb;
+	private final boolean[] m_isSource;
+	private final boolean[] m_isTarget;
+	private double m_tolerance = kDEFAULT_TOLERANCE;
+	private int m_maxIterations = kDEFAULT_MAX_ITERATIONS;
+
+	//the interior system, in CSR, and its preconditioner
+	private int m_n;
+	private int[] m_ptr;
+	private int[] m_col;
+	private double[] m_val;
+	private int[] m_diag;       //position of each row's diagonal entry
+	private double[] m_lu;      //ILU(0) factors on the same pattern, or null
+	private double[] m_invDiag; //Jacobi, when ILU(0) broke down
+
+	private int m_iterations = 0;
+	private double m_residual = Double.NaN;
+	private boolean m_converged = false;
+
+	/**
+	 * @param tProb row-stochastic transition matrix
+	 * @param isSource source membership by state
+	 * @param isTarget target membership by state. A state in both
+	 * counts as a target.
+	 */
+	public CommittorSolver(SparseMatrix tProb, boolean[] isSource, boolean[] isTarget) {
+		m_tProb = tProb;
+		m_isSource = isSource;
+		m_isTarget = isTarget;
+	}
+
+	/**
+	 * @param tol stop once the residual norm, relative to the right
+	 * hand side's, is at most this
+	 */
+	public void setTolerance(double tol) {
+		m_tolerance = tol;
+	}
+
+	public double getTolerance() {
+		return m_tolerance;
+	}
+
+	public void setMaxIterations(int max) {
+		m_maxIterations = max;
+	}
+
+	public int getMaxIterations() {
+		return m_maxIterations;
+	}
+
+	/**
+	 * @return BiCGSTAB iterations taken by the last solve
+	 */
+	public int getIterations() {
+		return m_iterations;
+	}
+
+	/**
+	 * @return relative residual of the last solve over the interior
+	 * states
+	 */
+	public double getResidual() {
+		return m_residual;
+	}
+
+	/**
+	 * @return true if the last solve reached the tolerance
+	 */
+	public boolean isConverged() {
+		return m_converged;
+	}
+
+	/**
+	 * @return true if the last solve was preconditioned by ILU(0) rather
+	 * than Jacobi
+	 */
+	public boolean isILU() {
+		return m_lu != null;
+	}
+
+	/**
+	 * @return forward committors, indexed by state
+	 */
+	public double[] solve() {
+		int size = m_tProb.getRowCount();
+		int[] interior = new int[size]; //state -> interior index, or -1
+		int[] states = new int[size];   //interior index -> state
+		m_n = 0;
+		for (int i = 0; i < size; ++i) {
+			if (m_isSource[i] || m_isTarget[i]) {
+				interior[i] = -1;
+			} else {
+				states[m_n] = i;
+				interior[i] = m_n++;
+			}
+		}
+
+		double[] b = buildSystem(interior, states);
+		factor();
+
+		double[] x = new double[m_n];
+		bicgstab(b, x);
+
+		double[] q = new double[size];
+		for (int i = 0; i < size; ++i) {
+			if (m_isTarget[i]) {
+				q[i] = 1.0d;
+			}
+		}
+		for (int r = 0; r < m_n; ++r) {
+			q[states[r]] = x[r];
+		}
+		return q;
+	}
+
+	/**
+	 * Fill in I - T restricted to the interior, always with a diagonal
+	 * entry, and return the right hand side.
+	 */
+	private double[] buildSystem(int[] interior, int[] states) {
+		int nnz = 0;
+		for (int r = 0; r < m_n; ++r) {
+			int i = states[r];
+			nnz++; //the diagonal
+			for (int k = m_tProb.getRowStart(i); k < m_tProb.getRowEnd(i); ++k) {
+				int j = m_tProb.getColumnAt(k);
+				if (j != i && interior[j] >= 0) {
+					nnz++;
+				}
+			}
+		}
+
+		m_ptr = new int[m_n + 1];
+		m_col = new int[nnz];
+		m_val = new double[nnz];
+		m_diag = new int[m_n];
+		double[] b = new double[m_n];
+
+		int p = 0;
+		for (int r = 0; r < m_n; ++r) {
+			int i = states[r];
+			m_ptr[r] = p;
+			double diag = 1.0d;
+			boolean placed = false;
+			//interior renumbering keeps state order, so columns stay sorted
+			for (int k = m_tProb.getRowStart(i); k < m_tProb.getRowEnd(i); ++k) {
+				int j = m_tProb.getColumnAt(k);
+				double t = m_tProb.getValueAt(k);
+				if (j == i) {
+					diag -= t;
+				} else if (m_isTarget[j]) {
+					b[r] += t;
+				} else if (interior[j] >= 0) {
+					if (!placed && interior[j] > r) {
+						m_diag[r] = p++;
+						placed = true;
+					}
+					m_col[p] = interior[j];
+					m_val[p++] = -t;
+				}
+			}
+			if (!placed) {
+				m_diag[r] = p++;
+			}
+			m_col[m_diag[r]] = r;
+			m_val[m_diag[r]] = diag;
+		}
+		m_ptr[m_n] = p;
+		return b;
+	}
+
+	/**
+	 * ILU(0): Gaussian elimination that drops anything outside the
+	 * pattern, so L (unit diagonal, below) and U (diagonal and above)
+	 * overwrite a copy of the values in place.
+	 */
+	private void factor() {
+		m_lu = m_val.clone();
+		m_invDiag = null;
+		int[] where = new int[m_n]; //column -> position in the current row
+		Arrays.fill(where, -1);
+
+		for (int i = 0; i < m_n; ++i) {
+			for (int k = m_ptr[i]; k < m_ptr[i + 1]; ++k) {
+				where[m_col[k]] = k;
+			}
+			for (int k = m_ptr[i]; k < m_diag[i]; ++k) {
+				int c = m_col[k];
+				double l = m_lu[k] / m_lu[m_diag[c]];
+				m_lu[k] = l;
+				for (int kk = m_diag[c] + 1; kk < m_ptr[c + 1]; ++kk) {
+					int w = where[m_col[kk]];
+					if (w >= 0) {
+						m_lu[w] -= l * m_lu[kk];
+					}
+				}
+			}
+			for (int k = m_ptr[i]; k < m_ptr[i + 1]; ++k) {
+				where[m_col[k]] = -1;
+			}
+
+			double pivot = m_lu[m_diag[i]];
+			if (pivot == 0.0d || Double.isNaN(pivot) || Double.isInfinite(pivot)) {
+				m_lu = null;
+				break;
+			}
+		}
+
+		if (m_lu == null) {
+			m_invDiag = new double[m_n];
+			for (int i = 0; i < m_n; ++i) {
+				double d = m_val[m_diag[i]];
+				m_invDiag[i] = (d == 0.0d) ? 1.0d : 1.0d / d;
+			}
+		}
+	}
+
+	/**
+	 * z = M^-1 r
+	 */
+	private void precondition(double[] r, double[] z) {
+		if (m_lu == null) {
+			for (int i = 0; i < m_n; ++i) {
+				z[i] = m_invDiag[i] * r[i];
+			}
+			return;
+		}
+		//forward, with L
+		for (int i = 0; i < m_n; ++i) {
+			double s = r[i];
+			for (int k = m_ptr[i]; k < m_diag[i]; ++k) {
+				s -= m_lu[k] * z[m_col[k]];
+			}
+			z[i] = s;
+		}
+		//back, with U
+		for (int i = m_n - 1; i >= 0; --i) {
+			double s = z[i];
+			for (int k = m_diag[i] + 1; k < m_ptr[i + 1]; ++k) {
+				s -= m_lu[k] * z[m_col[k]];
+			}
+			z[i] = s / m_lu[m_diag[i]];
+		}
+	}
+
+	/**
+	 * y = A x
+	 */
+	private void multiply(double[] x, double[] y) {
+		for (int i = 0; i < m_n; ++i) {
+			double s = 0;
+			for (int k = m_ptr[i]; k < m_ptr[i + 1]; ++k) {
+				s += m_val[k] * x[m_col[k]];
+			}
+			y[i] = s;
+		}
+	}
+
+	/**
+	 * Right-preconditioned BiCGSTAB, from x's initial value.
+	 */
+	private void bicgstab(double[] b, double[] x) {
+		m_iterations = 0;
+		m_converged = false;
+
+		double bNorm = norm(b);
+		if (bNorm == 0.0d) {
+			//nothing interior touches the target, so q is 0 there
+			Arrays.fill(x, 0.0d);
+			m_residual = 0.0d;
+			m_converged = true;
+			return;
+		}
+
+		double[] r = new double[m_n];
+		multiply(x, r);
+		for (int i = 0; i < m_n; ++i) {
+			r[i] = b[i] - r[i];
+		}
+		double[] rHat = r.clone();
+		double[] p = new double[m_n];
+		double[] v = new double[m_n];
+		double[] pHat = new double[m_n];
+		double[] sHat = new double[m_n];
+		double[] t = new double[m_n];
+
+		double rho = 1.0d;
+		double alpha = 1.0d;
+		double omega = 1.0d;
+		m_residual = norm(r) / bNorm;
+
+		while (m_residual > m_tolerance && m_iterations < m_maxIterations) {
+			double rhoNext = dot(rHat, r);
+			if (rhoNext == 0.0d) {
+				break; //breakdown
+			}
+			double beta = (rhoNext / rho) * (alpha / omega);
+			rho = rhoNext;
+			for (int i = 0; i < m_n; ++i) {
+				p[i] = r[i] + beta * (p[i] - omega * v[i]);
+			}
+
+			precondition(p, pHat);
+			multiply(pHat, v);
+			double rv = dot(rHat, v);
+			if (rv == 0.0d) {
+				break;
+			}
+			alpha = rho / rv;
+
+			//r becomes s
+			for (int i = 0; i < m_n; ++i) {
+				r[i] -= alpha * v[i];
+				x[i] += alpha * pHat[i];
+			}
+			m_iterations++;
+			m_residual = norm(r) / bNorm;
+			if (m_residual <= m_tolerance) {
+				break;
+			}
+
+			precondition(r, sHat);
+			multiply(sHat, t);
+			double tt = dot(t, t);
+			if (tt == 0.0d) {
+				break;
+			}
+			omega = dot(t, r) / tt;
+			for (int i = 0; i < m_n; ++i) {
+				x[i] += omega * sHat[i];
+				r[i] -= omega * t[i];
+			}
+			m_residual = norm(r) / bNorm;
+			if (omega == 0.0d) {
+				break;
+			}
+		}
+
+		//the recurrence drifts from the true residual, so report that
+		multiply(x, r);
+		for (int i = 0; i < m_n; ++i) {
+			r[i] = b[i] - r[i];
+		}
+		m_residual = norm(r) / bNorm;
+		m_converged = m_residual <= m_tolerance;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double s = 0;
+		for (int i = 0; i < a.length; ++i) {
+			s += a[i] * b[i];
+		}
+		return s;
+	}
+
+	private static double norm(double[] a) {
+		return Math.sqrt(dot(a, a));
+	}
+}
@@ -18,13 +18,17 @@
 package edu.stanford.folding.msmexplorer.tpt;
 
 import edu.stanford.folding.msmexplorer.MSMExplorer;
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import edu.stanford.folding.msmexplorer.util.WorkerPool;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ArrayDeque;
-import java.util.PriorityQueue;
-import java.util.HashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,22 +41,25 @@ import prefuse.data.Tuple;
 import prefuse.data.tuple.TupleSet;
 import prefuse.data.column.Column;
 
-import org.apache.commons.math.linear.RealMatrix;
-import org.apache.commons.math.linear.OpenMapRealMatrix;
-import org.apache.commons.math.linear.ArrayRealVector;
-import org.apache.commons.math.linear.RealVector;
-import org.apache.commons.math.linear.DecompositionSolver;
-import org.apache.commons.math.linear.LUDecompositionImpl;
-import org.apache.commons.math.linear.DefaultRealMatrixPreservingVisitor;
 
 
 /**
  * Does the actual work of doing TPT calculations.
- * Uses the Apache Commons Math package.
+ * The committors come from a CommittorSolver: BiCGSTAB on the sparse
+ * interior system, preconditioned by ILU(0) (or Jacobi if that breaks
+ * down). Check isCommittorConverged before trusting the fluxes.
  *
- * We store matricies as OpenMapRealMatrix objects because that's
- * the only instantiation of the SparseRealMatrix interface in the
- * commons math library currently. 
+ * The transition and flux matrices are SparseMatrix objects: primitive
+ * compressed sparse rows, so an entry lookup is a short binary search
+ * rather than a hash probe, walking a row is an array scan, and reset
+ * copies one array of values. All the flux matrices share the
+ * transition matrix's sparsity pattern, since flux can only run along
+ * an edge.
+ *
+ * Paths are extracted lazily and cached in order, along with the flux
+ * each carries, while m_fFluxes holds what's left after all of them.
+ * Asking for more paths extracts only the new ones; asking for fewer
+ * just shows a shorter prefix of the cache.
  *
  * I make no claim to the correctness or good performance of this
  * implementation, but it does seem to provide reasonable results.
@@ -62,52 +69,34 @@ import org.apache.commons.math.linear.DefaultRealMatrixPreservingVisitor;
 public class TPTFactoryCM {
 
 
-	/**
-	 * A simple pair class representing an edge by a pair
-	 * of source, target indicies into the flux matrix.
-	 *
-	 * The instance vars are public because java syntax
-	 * is annoying and long winded.
-	 */
-	private static class DijkstraEdge {
-		public int row;
-		public int col;
-
-		public DijkstraEdge (int r, int c) {
-			row = r;
-			col = c;
-		}
-
-		public void setRow (int r) {
-			row = r;
-		}
-
-		public void setCol (int c) {
-			col = c;
-		}
-
-		public void set (int r, int c) {
-			row = r;
-			col = c;
-		}
-	}
-
 	private static final int kSTROKE_INCREMENT = 2;
 
-	private static final int kDEFAULT_PQUEUE_SIZE = 50;
-
 	//getHighFluxPathV2 will give up after this many iterations
 	private static final int kMAX_ITERS = 100000;
 
+	//flux matrices with fewer nonzeros are built on the calling thread
+	private static final int kPARALLEL_NNZ = 1 << 16;
+
 	private boolean error;
 	private final Graph m_graph;               //graph
 	private final TupleSet m_source;           //source node(s)
 	private final TupleSet m_target;           //target node(s)
-	private final OpenMapRealMatrix m_tProb;   //transition probability matrix
+	private final SparseMatrix m_tProb;        //transition probability matrix
 	private final int kNumKStates;             //number target states;
 	private final int kMatSize;
-	private OpenMapRealMatrix m_fFluxes;       //current flux matrix. Changes as paths are extracted 
-	private OpenMapRealMatrix m_old_fFluxes;   //we keep this so we can reset fluxes
+	private final boolean[] m_isSource;        //source membership by node row
+	private final boolean[] m_isTarget;        //target membership by node row
+	private final SparseMatrix m_fFluxes;      //current flux matrix. Changes as paths are extracted
+	private final SparseMatrix m_old_fFluxes;  //we keep this so we can reset fluxes
+	private final WidestPathFinder m_pathFinder; //searches m_fFluxes for getHighFluxPathV3
+	private final double m_totalFlux;          //net flux out of the source set
+	private final ArrayList<ArrayList<Edge>> m_paths = new ArrayList<ArrayList<Edge>>(); //extracted so far, in order
+	private final ArrayList<Double> m_pathFluxes = new ArrayList<Double>(); //flux carried by each of m_paths
+	private boolean m_exhausted = false;       //no paths left in m_fFluxes
+	private int m_numShown = 0;                //leading paths whose flux is in the graph
+	private int m_committorIterations;
+	private double m_committorResidual;
+	private boolean m_committorConverged;
 
 	/**
 	 * Constructor for TPTFactry. Sets graph to use
@@ -119,44 +108,203 @@ public class TPTFactoryCM {
 	 * @param target, Group of Target Nodes
 	 */
 	public TPTFactoryCM(Graph g, TupleSet source, TupleSet target) {
+		this(g, source, target, CommittorSolver.kDEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param g, Graph to analyze
+	 * @param source, Group of source Nodes
+	 * @param target, Group of Target Nodes
+	 * @param tolerance, relative residual to solve committors to
+	 */
+	public TPTFactoryCM(Graph g, TupleSet source, TupleSet target, double tolerance) {
 
 		this.m_graph = g;
 		this.m_source = source;
 		this.m_target = target;
 		this.kMatSize = m_graph.getNodeCount();
+		this.m_isSource = getMembership(source);
+		this.m_isTarget = getMembership(target);
 
 		this.m_tProb = transitionMatrix();
 
 
 		this.kNumKStates = target.getTupleCount();
 
-		double[] forwardCommittors = getForwardCommittors();
+		double[] forwardCommittors = getForwardCommittors(tolerance);
 		double[] backwardCommittors = getBackwardCommittors(forwardCommittors);
 		double[] eqProbs = getEqProbs();
 		eqProbs = normalize(eqProbs);
 
 		this.m_old_fFluxes = getFluxes(forwardCommittors, backwardCommittors, eqProbs);
-		this.m_fFluxes = deepCopy(m_old_fFluxes);
+		this.m_fFluxes = m_old_fFluxes.copy();
+		this.m_pathFinder = new WidestPathFinder(m_fFluxes);
+		this.m_totalFlux = getTotalFlux(m_old_fFluxes);
 
 	}
 
 	/**
-	 * Extract an edge from the current m_fFluxes. That is, keeps the current
-	 * state of the flux matrix so as to respect paths that have already
-	 * been extracted. 
+	 * @return iterations the committor solve took
+	 */
+	public int getCommittorIterations() {
+		return m_committorIterations;
+	}
+
+	/**
+	 * @return relative residual the committor solve reached
+	 */
+	public double getCommittorResidual() {
+		return m_committorResidual;
+	}
+
+	/**
+	 * @return true if the committor solve reached its tolerance. If not,
+	 * the committors, and so the fluxes and paths, may be meaningless.
+	 */
+	public boolean isCommittorConverged() {
+		return m_committorConverged;
+	}
+
+	/**
+	 * Show the next path: extract one from the current m_fFluxes if it
+	 * isn't cached already, and add its flux to the graph.
 	 *
-	 * @return an ArrayList of edges that represents the subset of the graph to draw.
+	 * @return an ArrayList of edges that represents the subset of the graph
+	 * to draw, empty if there are no more paths.
 	 */
 	public ArrayList<Edge> getNextEdge() {
-		return getHighFluxPathV3();
+		int shown = m_numShown;
+		if (setNumPaths(shown + 1) == shown) {
+			return new ArrayList<Edge>();
+		}
+		return m_paths.get(shown);
+	}
+
+	/**
+	 * Show the top numPaths paths, so the graph's flux columns hold just
+	 * their flux. Only paths past those already extracted are pulled out
+	 * of the flux matrix; showing fewer than before leaves it alone.
+	 *
+	 * @return the number of paths shown, less than numPaths if the flux
+	 * ran out first
+	 */
+	public int setNumPaths(int numPaths) {
+		numPaths = Math.max(0, numPaths);
+		while (m_paths.size() < numPaths && !m_exhausted) {
+			ArrayList<Edge> path = getHighFluxPathV3();
+			if (path.isEmpty()) {
+				m_exhausted = true;
+			} else {
+				m_paths.add(path);
+				m_pathFluxes.add(m_pathFinder.getBottleneck());
+			}
+		}
+
+		int shown = Math.min(numPaths, m_paths.size());
+		if (shown < m_numShown) {
+			//rebuild rather than subtract, so no rounding is left behind
+			clearGraphFlux();
+			m_numShown = 0;
+		}
+		for (int i = m_numShown; i < shown; ++i) {
+			double f = m_pathFluxes.get(i);
+			for (Edge e : m_paths.get(i)) {
+				Node source = e.getSourceNode();
+				Node targ = e.getTargetNode();
+				source.setDouble("flux", source.getDouble("flux") + f);
+				targ.setDouble("flux", targ.getDouble("flux") + f);
+				e.setDouble("flux", e.getDouble("flux") + f);
+			}
+		}
+		m_numShown = shown;
+		return shown;
 	}
 
 	/**
-	 * Set the flux matrix to the saved original copy.
+	 * @return number of paths currently shown
+	 */
+	public int getNumPaths() {
+		return m_numShown;
+	}
+
+	/**
+	 * @return edges of the ith path, source first
+	 */
+	public ArrayList<Edge> getPath(int i) {
+		return m_paths.get(i);
+	}
+
+	/**
+	 * @return flux carried by the ith path
+	 */
+	public double getPathFlux(int i) {
+		return m_pathFluxes.get(i);
+	}
+
+	/**
+	 * @return net reactive flux out of the source set
+	 */
+	public double getTotalFlux() {
+		return m_totalFlux;
+	}
+
+	/**
+	 * @return fraction of the total flux carried by the paths shown
+	 */
+	public double getFluxFraction() {
+		if (m_totalFlux <= 0.0d) {
+			return 0.0d;
+		}
+		double sum = 0.0d;
+		for (int i = 0; i < m_numShown; ++i) {
+			sum += m_pathFluxes.get(i);
+		}
+		return sum / m_totalFlux;
+	}
+
+	/**
+	 * Set the flux matrix to the saved original copy, and drop every
+	 * extracted path.
 	 */
 	public void reset() {
-		this.m_fFluxes = deepCopy(m_old_fFluxes);
+		this.m_fFluxes.setValues(m_old_fFluxes);
+		m_paths.clear();
+		m_pathFluxes.clear();
+		m_exhausted = false;
+		if (m_numShown > 0) {
+			clearGraphFlux();
+			m_numShown = 0;
+		}
+	}
 
+	private void clearGraphFlux() {
+		Column nodeFlux = m_graph.getNodeTable().getColumn("flux");
+		Column edgeFlux = m_graph.getEdgeTable().getColumn("flux");
+		for (int i = 0; i < nodeFlux.getRowCount(); ++i) {
+			nodeFlux.revertToDefault(i);
+		}
+		for (int i = 0; i < edgeFlux.getRowCount(); ++i) {
+			edgeFlux.revertToDefault(i);
+		}
+	}
+
+	/**
+	 * Sum of net flux from source states to everything outside the
+	 * source set.
+	 */
+	private double getTotalFlux(SparseMatrix nFluxes) {
+		double total = 0.0d;
+		for (int i = 0; i < kMatSize; ++i) {
+			if (!m_isSource[i]) {
+				continue;
+			}
+			for (int k = nFluxes.getRowStart(i); k < nFluxes.getRowEnd(i); ++k) {
+				if (!m_isSource[nFluxes.getColumnAt(k)]) {
+					total += nFluxes.getValueAt(k);
+				}
+			}
+		}
+		return total;
 	}
 
 	private double[] normalize(double[] arr) {
@@ -178,64 +326,53 @@ public class TPTFactoryCM {
 	 * file was created (or equivalently, the corresponding
 	 * tProb.dat for whatever input data was provided)
 	 */
-	private OpenMapRealMatrix transitionMatrix() {
-
-		//        double[][] tProb = new double[kMatSize][kMatSize];
-		OpenMapRealMatrix tProb = new OpenMapRealMatrix(kMatSize, kMatSize);
-
-		for (int i = 0; i < m_graph.getEdgeCount(); ++i) {
-			Edge e = m_graph.getEdge(i);
-			int source = e.getSourceNode().getRow();
-			int target = e.getTargetNode().getRow();
-
-			Double prob = e.getDouble("probability");
-			if (prob != 0.0)
-				tProb.setEntry(source, target, prob);
+	private SparseMatrix transitionMatrix() {
+
+		int numEdges = m_graph.getEdgeCount();
+		int[] sources = new int[numEdges];
+		int[] targets = new int[numEdges];
+		double[] probs = new double[numEdges];
+		int count = 0;
+
+		//edge rows can have holes once the model watcher removes edges
+		Iterator<?> edges = m_graph.edges();
+		while (edges.hasNext()) {
+			Edge e = (Edge) edges.next();
+			double prob = e.getDouble("probability");
+			if (prob != 0.0) {
+				sources[count] = e.getSourceNode().getRow();
+				targets[count] = e.getTargetNode().getRow();
+				probs[count++] = prob;
+			}
 		}
 
-		return tProb;
+		return SparseMatrix.fromTriplets(kMatSize, kMatSize, sources, targets, probs, count);
 	}
 
 	/**
 	 * Calculates forward committors and returns them in an array. Index into
 	 * array corresponds to graph Node id and tProb row (ith state, standardly)
 	 */
-	private double[] getForwardCommittors() {
-
-		ArrayList<Integer> source = getIndicies(m_source);
-		ArrayList<Integer> target = getIndicies(m_target);
-
-		//Copy of tProb in RealMatrix form
-		OpenMapRealMatrix tProbRM = new OpenMapRealMatrix(m_tProb.copy());
-
-		RealVector aug = new ArrayRealVector(kMatSize); //Holds "augmented" col
-
-		for (int i = 0; i < kMatSize; ++i)
-			tProbRM.addToEntry(i, i, -1);
-		//        tProbRM.subtract(MatrixUtils.createRealIdentityMatrix(kMatSize));
-
-		for (int i = 0; i < kMatSize; ++i) {
-
-			if ( target.contains(new Integer(i)) ) {
-				tProbRM.setColumn(i, new double[kMatSize]);
-				tProbRM.setRow(i, new double[kMatSize]);
-				tProbRM.setEntry(i, i, 1);
-				aug.setEntry(i, 1);
-
-			} else if ( source.contains(new Integer(i)) ) {
-				tProbRM.setColumn(i, new double[kMatSize]);
-				tProbRM.setRow(i, new double[kMatSize]);
-				tProbRM.setEntry(i, i, 1); //Note that aug[i] is already 0.0
-
-			} else {
-				aug.setEntry(i, -sumOverTarget(i));
-			}
+	private double[] getForwardCommittors(double tolerance) {
+
+		CommittorSolver solver = new CommittorSolver(m_tProb, m_isSource, m_isTarget);
+		solver.setTolerance(tolerance);
+		double[] committors = solver.solve();
+
+		m_committorIterations = solver.getIterations();
+		m_committorResidual = solver.getResidual();
+		m_committorConverged = solver.isConverged();
+		Logger logger = Logger.getLogger(TPTFactoryCM.class.getName());
+		if (solver.isConverged()) {
+			logger.log(Level.FINE, "Committors converged in {0} iterations, residual {1}",
+				new Object[] {m_committorIterations, m_committorResidual});
+		} else {
+			logger.log(Level.WARNING, "Committor solve stopped after {0} iterations with "
+				+ "residual {1}; is every state connected to the source or target?",
+				new Object[] {m_committorIterations, m_committorResidual});
 		}
 
-
-		DecompositionSolver solver = new LUDecompositionImpl(tProbRM).getSolver();
-
-		return (solver.solve(aug)).getData();
+		return committors;
 	}
 
 
@@ -264,14 +401,24 @@ public class TPTFactoryCM {
 	}
 
 
-	private double sumOverTarget(int index) {
+	private boolean[] getMembership(TupleSet ts) {
 
-		ArrayList<Integer> indicies = getIndicies(m_target);
+		boolean[] member = new boolean[kMatSize];
+
+		for (Integer i : getIndicies(ts))
+			member[i.intValue()] = true;
+
+		return member;
+	}
+
+
+	private double sumOverTarget(int index) {
 
 		double sum = 0;
 
-		for (Integer i : indicies)
-			sum += m_tProb.getEntry(index, i);
+		for (int k = m_tProb.getRowStart(index); k < m_tProb.getRowEnd(index); ++k)
+			if ( m_isTarget[m_tProb.getColumnAt(k)] )
+				sum += m_tProb.getValueAt(k);
 
 		return sum;
 	}
@@ -290,26 +437,104 @@ public class TPTFactoryCM {
 	}
 
 
-	private OpenMapRealMatrix getFluxes( double[] fCommittors, double[] bCommittors, double[] eqProbs ) {
+	/**
+	 * Net reactive flux along each edge. Gross flux is
+	 * eq_i * qb_i * T_ij * qf_j off the diagonal; the net flux i -> j is
+	 * what's left after subtracting the gross flux j -> i, where positive.
+	 *
+	 * Everything stays on T's pattern. The reverse entries for row i are
+	 * column i, which the transposed view holds sorted by row, so each
+	 * row is matched up against them in a single merge. Both passes are
+	 * split into row blocks across the WorkerPool on large matrices.
+	 */
+	private SparseMatrix getFluxes( final double[] fCommittors, final double[] bCommittors,
+			final double[] eqProbs ) {
+
+		final SparseMatrix fFluxes = m_tProb.zerosLike();
+		final SparseMatrix nFluxes = m_tProb.zerosLike();
+
+		boolean parallel = m_tProb.getEntryCount() >= kPARALLEL_NNZ
+			&& WorkerPool.getParallelism() > 1;
+		List<Callable<Void>> gross = new ArrayList<Callable<Void>>();
+		List<Callable<Void>> net = new ArrayList<Callable<Void>>();
+		for (int[] range : m_tProb.splitRows(parallel ? 4 * WorkerPool.getParallelism() : 1)) {
+			final int lo = range[0];
+			final int hi = range[1];
+			gross.add(new Callable<Void>() {
+				public Void call() {
+					grossFluxes(lo, hi, fFluxes, fCommittors, bCommittors, eqProbs);
+					return null;
+				}
+			});
+			net.add(new Callable<Void>() {
+				public Void call() {
+					netFluxes(lo, hi, fFluxes, nFluxes);
+					return null;
+				}
+			});
+		}
+
+		run(gross, parallel);
+		fFluxes.getColumnStart(0); //build the shared transpose up front
+		run(net, parallel);
 
-		OpenMapRealMatrix fFluxes = new OpenMapRealMatrix(kMatSize,kMatSize);
-		OpenMapRealMatrix nFluxes = new OpenMapRealMatrix(kMatSize,kMatSize);
+		return nFluxes;
+	}
 
-		for ( int i = 0; i < kMatSize; ++i)
-			for (int j = 0; j < kMatSize; ++j)
-				if ( m_tProb.getEntry(i,j) != 0.0d && i != j )
-					fFluxes.setEntry(i, j, eqProbs[i]*bCommittors[i]*m_tProb.getEntry(i,j)*fCommittors[j]);
+	private void grossFluxes( int lo, int hi, SparseMatrix fFluxes,
+			double[] fCommittors, double[] bCommittors, double[] eqProbs ) {
 
-		for ( int i = 0; i < kMatSize; ++i )
-			for( int j = 0; j < kMatSize; ++j ) {
-				double netFlux = fFluxes.getEntry(i, j) - fFluxes.getEntry(j, i);
-				if (netFlux < 0.0)
-					nFluxes.setEntry(i,j,0.0d);
-				else
-					nFluxes.setEntry(i, j, netFlux);
+		for ( int i = lo; i < hi; ++i ) {
+			double out = eqProbs[i]*bCommittors[i];
+			for ( int k = m_tProb.getRowStart(i); k < m_tProb.getRowEnd(i); ++k ) {
+				int j = m_tProb.getColumnAt(k);
+				if ( i != j )
+					fFluxes.setValueAt(k, out*m_tProb.getValueAt(k)*fCommittors[j]);
+			}
+		}
+	}
+
+	private static void netFluxes( int lo, int hi, SparseMatrix fFluxes, SparseMatrix nFluxes ) {
+
+		for ( int i = lo; i < hi; ++i ) {
+			//walk row i (i -> j) alongside column i (j -> i), both sorted by j
+			int s = fFluxes.getColumnStart(i);
+			int sEnd = fFluxes.getColumnEnd(i);
+			for ( int k = fFluxes.getRowStart(i); k < fFluxes.getRowEnd(i); ++k ) {
+				int j = fFluxes.getColumnAt(k);
+				while ( s < sEnd && fFluxes.getRowAt(s) < j )
+					++s;
+				double back = ( s < sEnd && fFluxes.getRowAt(s) == j )
+					? fFluxes.getValueAt(fFluxes.getPositionAt(s)) : 0.0d;
+				double netFlux = fFluxes.getValueAt(k) - back;
+				if (netFlux > 0.0)
+					nFluxes.setValueAt(k, netFlux);
 			}
+		}
+	}
 
-		return nFluxes;
+	/**
+	 * Run the tasks, on the WorkerPool if parallel, and wait for all of them.
+	 */
+	private static void run( List<Callable<Void>> tasks, boolean parallel ) {
+		try {
+			if (!parallel) {
+				for (Callable<Void> task : tasks)
+					task.call();
+				return;
+			}
+			for (Future<Void> f : WorkerPool.get().invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted during TPT setup");
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException(ee.getCause());
+		} catch (RuntimeException re) {
+			throw re;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
@@ -320,7 +545,7 @@ public class TPTFactoryCM {
 	 */
 	private ArrayList<Edge> GetHighFluxPath() {
 
-		OpenMapRealMatrix fluxes = new OpenMapRealMatrix(m_fFluxes);
+		SparseMatrix fluxes = m_fFluxes.copy();
 
 		ArrayList<Integer> indicies = getIndicies(m_source);
 
@@ -332,10 +557,10 @@ public class TPTFactoryCM {
 		iList.add(index);
 
 		// int itr = 0;
-		final int maxItr = m_fFluxes.getRowDimension();
+		final int maxItr = m_fFluxes.getRowCount();
 		do {
 
-			double[] arr = fluxes.getColumnVector(index).getData();
+			double[] arr = fluxes.getColumn(index);
 			index = argmax(arr);
 
 			int numTimes = 0;
@@ -364,7 +589,7 @@ public class TPTFactoryCM {
 			int i = iList.get(k);
 			int j = iList.get(k-1);
 
-			this.m_fFluxes.addToEntry(i, j, -f);
+			this.m_fFluxes.add(i, j, -f);
 
 			Node source = m_graph.getNode(i);
 			Node target = m_graph.getNode(j);
@@ -387,7 +612,7 @@ public class TPTFactoryCM {
 	 * small.
 	 */
 	private ArrayList<Edge> getHighFluxPathV1() {
-		OpenMapRealMatrix fluxes = new OpenMapRealMatrix(this.m_fFluxes);
+		SparseMatrix fluxes = this.m_fFluxes.copy();
 
 		ArrayList<Integer> indicies = getIndicies(m_target);
 
@@ -427,7 +652,7 @@ public class TPTFactoryCM {
 			int j = iList.get(k);
 			int i = iList.get(k+1);
 
-			this.m_fFluxes.addToEntry(i, j, -f);
+			this.m_fFluxes.add(i, j, -f);
 
 			Node source = m_graph.getNode(i);
 			Node target = m_graph.getNode(j);
@@ -444,25 +669,30 @@ public class TPTFactoryCM {
 	}
 
 	final private boolean decompose( int index, ArrayList<Integer> iList,
-			ArrayList<Double> fList, ArrayList<Integer> target, RealMatrix fluxes ) {
+			ArrayList<Double> fList, ArrayList<Integer> target, SparseMatrix fluxes ) {
 
 		if ( target.contains(index) )
 			return true;
 
-		OpenMapRealMatrix arr = (OpenMapRealMatrix)fluxes.getRowMatrix(index);
+		//a copy of the row, which we can knock entries out of
+		int start = fluxes.getRowStart(index);
+		double[] arr = new double[fluxes.getRowEnd(index) - start];
+		for (int k = 0; k < arr.length; ++k)
+			arr[k] = fluxes.getValueAt(start + k);
 
 		while (true) {
 
-			index = argmax(arr);
-			if (index < 0)
+			int k = argmaxPositive(arr);
+			if (k < 0)
 				break;
+			index = fluxes.getColumnAt(start + k);
 
 			if (decompose(index, iList, fList, target, fluxes)) {
 				iList.add(index);
-				fList.add(arr.getEntry(0,index));
+				fList.add(arr[k]);
 				return true;
 			} else {
-				arr.setEntry (0, index, 0);
+				arr[k] = 0;
 			}
 		}
 
@@ -471,7 +701,7 @@ public class TPTFactoryCM {
 
 
 	private ArrayList<Edge> getHighFluxPathV2() {
-		OpenMapRealMatrix fluxes = new OpenMapRealMatrix(this.m_fFluxes.copy());
+		SparseMatrix fluxes = this.m_fFluxes.copy();
 
 		ArrayList<Integer> target = getIndicies(m_target);
 
@@ -480,7 +710,7 @@ public class TPTFactoryCM {
 
 		int index = getIndicies(m_source).get(0).intValue();
 		iList.push(index);
-		OpenMapRealMatrix arr = (OpenMapRealMatrix)fluxes.getRowMatrix(index);
+		int row = index; //the row of fluxes we're choosing from
 
 		boolean pathFound = false;
 
@@ -495,7 +725,7 @@ FIND_PATH:
 				}
 
 
-				index = argmax (arr);
+				index = argmax (fluxes, row);
 				while (index < 0) { //row is out of paths
 
 					int dead_index = -1;
@@ -513,17 +743,17 @@ FIND_PATH:
 					} else {
 						assert dead_index >= 0;
 						//Reset this row
-						fluxes.setRowMatrix (dead_index, this.m_fFluxes.getRowMatrix(dead_index));
+						for (int k = fluxes.getRowStart(dead_index); k < fluxes.getRowEnd(dead_index); ++k)
+							fluxes.setValueAt(k, this.m_fFluxes.getValueAt(k));
 						int backup_index = iList.peek();
-						arr = (OpenMapRealMatrix)fluxes.getRowMatrix(backup_index);
-						arr.setEntry(0, dead_index, 0.0d);
-						fluxes.setEntry(backup_index, dead_index, 0.0d);
-						index = argmax(arr);
+						row = backup_index;
+						fluxes.set(backup_index, dead_index, 0.0d);
+						index = argmax(fluxes, row);
 					}
 				}
 				iList.push(index);
-				fList.push(arr.getEntry(0, index));
-				arr = (OpenMapRealMatrix)fluxes.getRowMatrix(index);
+				fList.push(fluxes.get(row, index));
+				row = index;
 				iters++;
 			}
 			if (iters >= kMAX_ITERS) {
@@ -555,7 +785,7 @@ FIND_PATH:
 			}
 			int i = iList.peek();
 
-			this.m_fFluxes.addToEntry(i, j, -f);
+			this.m_fFluxes.add(i, j, -f);
 
 			Node source = m_graph.getNode(i);
 			Node targ = m_graph.getNode(j);
@@ -576,125 +806,34 @@ FIND_PATH:
 	/**
 	 * Yet another path extraction algorithm. This one basically follows
 	 * Dijkstra's algorithm, which is nifty because it's pretty fast
-	 * and is not greedy. The paths returned here should be optimal.
+	 * and is not greedy. The paths returned here should be optimal:
+	 * of all source to target paths, the one whose smallest remaining
+	 * flux is largest. That bottleneck flux (left in
+	 * m_pathFinder.getBottleneck()) is then taken off every edge along
+	 * it; the graph's flux columns are left to setNumPaths.
 	 */
 	private ArrayList<Edge> getHighFluxPathV3() {
 
-		ArrayDeque<DijkstraEdge> path = new ArrayDeque<DijkstraEdge>();
-		PriorityQueue< ArrayDeque<DijkstraEdge> > queue = 
-			new PriorityQueue< ArrayDeque<DijkstraEdge> >(kDEFAULT_PQUEUE_SIZE, new DPathComparator());
-		HashMap<Integer, Double> fixed = new HashMap<Integer, Double>();
-
-		int index;
-		ArrayList<Integer> target = getIndicies(m_target);
-		for (int i = 0; i < m_source.getTupleCount(); ++i) {
-			index = getIndicies(m_source).get(i).intValue();
-			
-			if (!fixed.containsKey(index)) {
-				fixed.put(index, getCost(path));
-				
-				//For each edge leaving from index
-				OpenMapRealMatrix outedges = (OpenMapRealMatrix)this.m_fFluxes.getRowMatrix(index);
-				DijkstraRowVisitor drv = new DijkstraRowVisitor();
-				drv.path = path;
-				drv.queue = queue;
-				drv.fixed = fixed;
-				drv.index = index;
-				outedges.walkInOptimizedOrder(drv);
-			}
-		}
-		path = queue.remove();
-		index = path.peekLast().col; 
-
-		while (!target.contains(index)) {
-			if (!fixed.containsKey(index)) {
-				fixed.put(index, getCost(path));
-
-				//For each edge leaving from index
-				OpenMapRealMatrix outedges = (OpenMapRealMatrix)this.m_fFluxes.getRowMatrix(index);
-				DijkstraRowVisitor drv = new DijkstraRowVisitor();
-				drv.path = path;
-				drv.queue = queue;
-				drv.fixed = fixed;
-				drv.index = index;
-				outedges.walkInOptimizedOrder(drv);
-			}
-			if (queue.isEmpty()) {
-				return new ArrayList<Edge>();
-			}
-
-			path = queue.remove(); //means dequeue. weird interface.
-			index = path.peekLast().col; 
+		int[] path = m_pathFinder.find(m_isSource, m_isTarget);
+		if (path == null) {
+			return new ArrayList<Edge>();
 		}
 
 		ArrayList<Edge> edgeList = new ArrayList<Edge>();
-		double cost = getCost(path);
-		for (DijkstraEdge de : path) {
-
-			this.m_fFluxes.setEntry(de.row, de.col, Math.max (0.0d, 
-						this.m_fFluxes.getEntry(de.row, de.col) - cost));
-
-			Node source = m_graph.getNode(de.row);
-			Node targ = m_graph.getNode(de.col);
-			Edge e = m_graph.getEdge(source, targ);
+		double cost = m_pathFinder.getBottleneck();
+		for (int i = 1; i < path.length; ++i) {
 
-			source.setDouble("flux", source.getDouble("flux") + cost);
-			targ.setDouble("flux", targ.getDouble("flux") + cost);
-			e.setDouble("flux", e.getDouble("flux") + cost);
+			int k = this.m_fFluxes.indexOf(path[i - 1], path[i]);
+			this.m_fFluxes.setValueAt(k, Math.max (0.0d,
+						this.m_fFluxes.getValueAt(k) - cost));
 
-			edgeList.add(e);
+			edgeList.add(m_graph.getEdge(m_graph.getNode(path[i - 1]),
+						m_graph.getNode(path[i])));
 		}
 
 		return edgeList;
 	} 
 
-	private class DPathComparator implements Comparator< ArrayDeque<DijkstraEdge> > {
-		public int compare (ArrayDeque<DijkstraEdge> a, ArrayDeque<DijkstraEdge> b) {
-			return (int)Math.signum(getCost(b) - getCost(a)); //purposefully switched to get opposite order	
-		}
-	}
-
-	private class DijkstraRowVisitor extends DefaultRealMatrixPreservingVisitor {
-		public ArrayDeque<DijkstraEdge> path = new ArrayDeque<DijkstraEdge>();
-		public PriorityQueue< ArrayDeque<DijkstraEdge> > queue = 
-			new PriorityQueue< ArrayDeque<DijkstraEdge> >(kDEFAULT_PQUEUE_SIZE, new DPathComparator());
-		HashMap<Integer, Double> fixed;
-		public int index; //The row this visitor is traversing
-
-		@Override
-			public void visit (int row, int column, double value) {
-				if (!fixed.containsKey(column) && value > 0.0d) {
-					path.addLast(new DijkstraEdge(index, column));
-					queue.add(path.clone());
-					path.removeLast();
-				}
-			}
-	}
-
-	/**
-	 * Should return the minimum flux along the path
-	 * passed as parameter.
-	 *
-	 * @param ArrayDeque representing the path to extract cost from
-	 */
-	private double getCost (ArrayDeque<DijkstraEdge> path) {
-		assert path != null;
-		if (path.isEmpty()) {
-			return 0.0d;
-		}
-		DijkstraEdge first = path.peekFirst();
-
-		double cost = this.m_fFluxes.getEntry(first.row, first.col);
-		assert (cost > 0.0d) : cost + "" + first.row + "" + first.col;
-		for (DijkstraEdge de : path) {
-			double edgeFlux = m_fFluxes.getEntry(de.row, de.col);
-			if (edgeFlux < cost) {
-				cost = edgeFlux;
-			}
-		}
-		return cost;
-	}
-
 	/*-_-_-_-_-_-_-_-_-/  Dijkstra End /-_-_-_-_-_-_-_-_-_-_-*/
 
 
@@ -709,8 +848,38 @@ FIND_PATH:
 		return false;
 	}
 
-	private int argmax ( OpenMapRealMatrix row ) {
-		return (int)row.walkInOptimizedOrder( new ArgMaxRowVisitor() );
+	/**
+	 * @return the column of the largest positive entry in row of m,
+	 * or -1 if there isn't one
+	 */
+	private int argmax ( SparseMatrix m, int row ) {
+		int index = -1;
+		double max = 0.0d;
+
+		for (int k = m.getRowStart(row); k < m.getRowEnd(row); ++k)
+			if ( m.getValueAt(k) > max ) {
+				index = m.getColumnAt(k);
+				max = m.getValueAt(k);
+			}
+
+		return index;
+	}
+
+	/**
+	 * @return the index of the largest positive value in arr, or -1 if
+	 * there isn't one
+	 */
+	private int argmaxPositive( double[] arr ) {
+		int index = -1;
+		double max = 0.0d;
+
+		for (int i = 0; i < arr.length; ++i)
+			if ( arr[i] > max ) {
+				index = i;
+				max = arr[i];
+			}
+
+		return index;
 	}
 
 	private int argmax( double[] arr ) {
@@ -775,45 +944,4 @@ FIND_PATH:
 		return target;
 	}
 
-	public static OpenMapRealMatrix deepCopy( OpenMapRealMatrix source) {
-
-		OpenMapRealMatrix target = new OpenMapRealMatrix(source.copy());
-
-		return target;
-	}
-
-	/**
-	 * A utility class that does the visiting for a walk over a RealMatrix
-	 * to perform ArgMax.
-	 * Here we assume we are walking over a row, so we return the index
-	 * max.
-	 * We extend the Default...Visitor so we don't have to implement start.
-	 */
-	private static class ArgMaxRowVisitor extends DefaultRealMatrixPreservingVisitor {
-
-		private int index = -1; //-1 is sentinal for failure
-		private double max = 0.0d;
-
-		/**
-		 * Override of empty function. Does the little bit of work for argmax.
-		 */
-		@Override
-			public void visit (int row, int column, double value) {
-				if (value > max) {
-					index = column;
-					max = value;
-				}
-			}
-
-		/**
-		 * Override of empty function. the walk function has
-		 * to return a double, so we need to perform the annoying
-		 * cast. This is argmax, so we return the column index at which the
-		 * max is found in the row.
-		 */
-		@Override
-			public double end () {
-				return (double)index;
-			}
-	}
 }
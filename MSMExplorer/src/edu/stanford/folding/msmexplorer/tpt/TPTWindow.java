@@ -131,24 +131,16 @@ public class TPTWindow extends JFrame {
 
 		//should create a deep copy of the graph XXX is this necessary? Kind of not nice for resources...
 		final Graph gra = new Graph(g.getNodeTable(), g.getEdgeTable(), g.isDirected(), g.getNodeKeyField(), g.getEdgeSourceField(), g.getEdgeTargetField());
-		//create data columns
-		if (gra.getNodeTable().getColumnNumber("tptGroup") != -1) {
-			revert(gra.getEdgeTable().getColumn("flux"));
-			revert(gra.getNodeTable().getColumn("flux"));
-			revert(gra.getNodeTable().getColumn("tptGroup"));
-			revert(gra.getNodeTable().getColumn("inTPT"));
-			revert(gra.getEdgeTable().getColumn("inTPT"));
-			revert(gra.getNodeTable().getColumn("TPT Distance"));
-		} else {
-
-			gra.getNodeTable().addColumn("tptGroup", int.class, 0);
-			gra.getNodeTable().addColumn("inTPT", boolean.class, false);
-			gra.getEdgeTable().addColumn("inTPT", boolean.class, false);
-			gra.addColumn("flux", double.class, 0.0d);
-			gra.getNodeTable().addColumn("TPT Distance", int.class);
-		}
+		initTPTColumns(gra);
 
 		final TPTFactoryCM tptCalc = new TPTFactoryCM(gra, source, target);
+		if (!tptCalc.isCommittorConverged()) {
+			JOptionPane.showMessageDialog(this, "The committor solve did not converge "
+				+ "(relative residual " + tptCalc.getCommittorResidual() + " after "
+				+ tptCalc.getCommittorIterations() + " iterations),\nso the fluxes and "
+				+ "paths shown may be wrong. Check that every state can reach "
+				+ "the source or target.", "TPT Warning", JOptionPane.WARNING_MESSAGE);
+		}
 
 		for (Iterator tuples = source.tuples(); tuples.hasNext();) {
 			((Tuple) tuples.next()).set("tptGroup", 1);
@@ -370,6 +362,10 @@ public class TPTWindow extends JFrame {
 			}
 		});
 
+		final JLabel fluxLabel = new JLabel(getFluxText(tptCalc));
+		fluxLabel.setToolTipText("<html>Number of paths shown, and the fraction"
+				+"<br>of the total reactive flux they carry.</html>");
+
 		JTextField numPathInput = new JTextField("Num Paths");
 		numPathInput.addActionListener(new ActionListener() {
 
@@ -384,8 +380,8 @@ public class TPTWindow extends JFrame {
 						+ "in Num Paths input", "Enter a Normal Number", JOptionPane.WARNING_MESSAGE);
 				}
 				numPaths = d;
-				tptCalc.reset();
 				setNumPaths(tptCalc, gra, numPaths);
+				fluxLabel.setText(getFluxText(tptCalc));
 
 				m_vis.run("tptLayout");
 				m_vis.run("axes");
@@ -694,6 +690,9 @@ public class TPTWindow extends JFrame {
 		buttonPanel.add(openAdj);
 		buttonPanel.add(nodeMode);
 		buttonPanel.add(numPathInput);
+		buttonPanel.add(Box.createHorizontalStrut(10));
+		buttonPanel.add(fluxLabel);
+		buttonPanel.add(Box.createHorizontalStrut(10));
 
 		Box sliderPanel = new Box(BoxLayout.X_AXIS);
 		sliderPanel.add(new JLabel("Edge Weight "));
@@ -737,7 +736,37 @@ public class TPTWindow extends JFrame {
 		m_vis.setInteractive(ylabels.getGroup(), null, false);
 	}
 
-	private void setNumPaths(TPTFactoryCM tptCalc, Graph g, int numPaths) {
+	/**
+	 * Adds the columns TPT results are written to (flux, tptGroup,
+	 * inTPT, TPT Distance), or clears them if g already has them.
+	 *
+	 * @param g graph to analyze
+	 */
+	public static void initTPTColumns(Graph g) {
+		if (g.getNodeTable().getColumnNumber("tptGroup") != -1) {
+			revert(g.getEdgeTable().getColumn("flux"));
+			revert(g.getNodeTable().getColumn("flux"));
+			revert(g.getNodeTable().getColumn("tptGroup"));
+			revert(g.getNodeTable().getColumn("inTPT"));
+			revert(g.getEdgeTable().getColumn("inTPT"));
+			revert(g.getNodeTable().getColumn("TPT Distance"));
+		} else {
+			g.getNodeTable().addColumn("tptGroup", int.class, 0);
+			g.getNodeTable().addColumn("inTPT", boolean.class, false);
+			g.getEdgeTable().addColumn("inTPT", boolean.class, false);
+			g.addColumn("flux", double.class, 0.0d);
+			g.getNodeTable().addColumn("TPT Distance", int.class);
+		}
+	}
+
+	/**
+	 * Marks the nodes and edges of the top numPaths paths from tptCalc
+	 * as inTPT, clearing any earlier marks. Paths tptCalc has already
+	 * extracted are reused.
+	 */
+	public static void setNumPaths(TPTFactoryCM tptCalc, Graph g, int numPaths) {
+
+		int shown = tptCalc.setNumPaths(numPaths);
 
 		Column edgeField = g.getEdgeTable().getColumn("inTPT");
 		Column nodeField = g.getNodeTable().getColumn("inTPT");
@@ -750,12 +779,9 @@ public class TPTWindow extends JFrame {
 			nodeField.revertToDefault(i);
 		}
 
-		for (int i = 0; i < numPaths; ++i) {
+		for (int i = 0; i < shown; ++i) {
 
-			ArrayList<Edge> path = tptCalc.getNextEdge();
-			if (path.isEmpty()) {
-				continue;
-			}
+			ArrayList<Edge> path = tptCalc.getPath(i);
 
 			//currently we aren't sure which order the paths are in
 			//path.get(0).getTargetNode().set("inTPT", true);
@@ -767,6 +793,15 @@ public class TPTWindow extends JFrame {
 		}
 	}
 
+	/**
+	 * @return e.g. "3 paths, 41.2% of flux"
+	 */
+	private static String getFluxText(TPTFactoryCM tptCalc) {
+		int n = tptCalc.getNumPaths();
+		return String.format("%d path%s, %.1f%% of flux", n, (n == 1) ? "" : "s",
+				100.0d * tptCalc.getFluxFraction());
+	}
+
 	private void zoomToFit(Display display, String group) {
 		if (!display.isTranformInProgress()) {
 			Rectangle2D bounds = m_vis.getBounds(group);
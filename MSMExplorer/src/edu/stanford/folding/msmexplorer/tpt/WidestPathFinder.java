@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.tpt;
+
+import edu.stanford.folding.msmexplorer.util.SparseMatrix;
+import java.util.Arrays;
+
+/**
+ * Finds the path from a source set to a target set whose smallest edge
+ * weight (its bottleneck) is as large as possible, over the positive
+ * entries of a SparseMatrix. It is Dijkstra's algorithm with min in
+ * place of + and the largest label settled first.
+ *
+ * Each node keeps its best bottleneck so far and the node it was
+ * reached from, and unsettled nodes sit in an indexed 4-ary max-heap
+ * of primitive ints, so a search is O(E log V). All of that is
+ * allocated once and reused, with a search counter standing in for
+ * clearing it, so repeated searches on the same matrix (as the values
+ * change between them) allocate nothing but the returned path.
+ *
+ * @author brycecr
+ */
+public class WidestPathFinder {
+
+	private static final int kARITY = 4;
+
+	private final SparseMatrix m_weights;
+	private final double[] m_best;  //best bottleneck to each node
+	private final int[] m_pred;     //node each was best reached from, -1 at a source
+	private final int[] m_seen;     //search that last touched each node
+	private final int[] m_heap;     //nodes, heap ordered on m_best
+	private final int[] m_where;    //node -> heap slot, -1 once settled
+	private int m_size;
+	private int m_search = 0;
+	private double m_bottleneck = 0.0d;
+
+	/**
+	 * @param weights square matrix to search; entries that aren't
+	 * positive are treated as missing edges. Searches see its current
+	 * values.
+	 */
+	public WidestPathFinder(SparseMatrix weights) {
+		int n = weights.getRowCount();
+		m_weights = weights;
+		m_best = new double[n];
+		m_pred = new int[n];
+		m_seen = new int[n];
+		m_heap = new int[n];
+		m_where = new int[n];
+	}
+
+	/**
+	 * @return bottleneck of the last path found, or 0 if there wasn't one
+	 */
+	public double getBottleneck() {
+		return m_bottleneck;
+	}
+
+	/**
+	 * Find a widest path from any source to any target. Among targets,
+	 * the first one settled (i.e. a widest reachable one) ends it.
+	 *
+	 * @return nodes along the path, source first, or null if no target
+	 * is reachable over positive entries
+	 */
+	public int[] find(boolean[] isSource, boolean[] isTarget) {
+		if (++m_search == 0) {
+			//wrapped around; forget every old search for real
+			Arrays.fill(m_seen, 0);
+			m_search = 1;
+		}
+		m_size = 0;
+		m_bottleneck = 0.0d;
+
+		for (int i = 0; i < isSource.length; ++i) {
+			if (isSource[i]) {
+				m_seen[i] = m_search;
+				m_best[i] = Double.POSITIVE_INFINITY;
+				m_pred[i] = -1;
+				m_where[i] = m_size;
+				m_heap[m_size++] = i;
+			}
+		}
+
+		while (m_size > 0) {
+			int u = pop();
+			if (isTarget[u]) {
+				if (m_pred[u] < 0) {
+					return null; //a source in the target set
+				}
+				m_bottleneck = m_best[u];
+				return pathTo(u);
+			}
+
+			double width = m_best[u];
+			for (int k = m_weights.getRowStart(u); k < m_weights.getRowEnd(u); ++k) {
+				double w = m_weights.getValueAt(k);
+				if (w <= 0.0d) {
+					continue;
+				}
+				int v = m_weights.getColumnAt(k);
+				double cand = Math.min(width, w);
+				if (m_seen[v] != m_search) {
+					m_seen[v] = m_search;
+					m_best[v] = cand;
+					m_pred[v] = u;
+					m_where[v] = m_size;
+					m_heap[m_size++] = v;
+					siftUp(m_where[v]);
+				} else if (m_where[v] >= 0 && cand > m_best[v]) {
+					m_best[v] = cand;
+					m_pred[v] = u;
+					siftUp(m_where[v]);
+				}
+			}
+		}
+		return null;
+	}
+
+	private int[] pathTo(int target) {
+		int length = 1;
+		for (int v = target; m_pred[v] >= 0; v = m_pred[v]) {
+			length++;
+		}
+		int[] path = new int[length];
+		for (int v = target; length > 0; v = m_pred[v]) {
+			path[--length] = v;
+		}
+		return path;
+	}
+
+	/*-_-_-_-_-_-_-_-_-/  Heap /-_-_-_-_-_-_-_-_-_-_-*/
+
+	private int pop() {
+		int top = m_heap[0];
+		m_where[top] = -1;
+		int last = m_heap[--m_size];
+		if (m_size > 0) {
+			m_heap[0] = last;
+			m_where[last] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int slot) {
+		int node = m_heap[slot];
+		double key = m_best[node];
+		while (slot > 0) {
+			int parent = (slot - 1) / kARITY;
+			int p = m_heap[parent];
+			if (m_best[p] >= key) {
+				break;
+			}
+			m_heap[slot] = p;
+			m_where[p] = slot;
+			slot = parent;
+		}
+		m_heap[slot] = node;
+		m_where[node] = slot;
+	}
+
+	private void siftDown(int slot) {
+		int node = m_heap[slot];
+		double key = m_best[node];
+		while (true) {
+			int first = kARITY * slot + 1;
+			if (first >= m_size) {
+				break;
+			}
+			int last = Math.min(first + kARITY, m_size);
+			int child = first;
+			for (int c = first + 1; c < last; ++c) {
+				if (m_best[m_heap[c]] > m_best[m_heap[child]]) {
+					child = c;
+				}
+			}
+			if (m_best[m_heap[child]] <= key) {
+				break;
+			}
+			m_heap[slot] = m_heap[child];
+			m_where[m_heap[slot]] = slot;
+			slot = child;
+		}
+		m_heap[slot] = node;
+		m_where[node] = slot;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compressed sparse row matrix of primitive doubles, for matrices
+ * read from files (see io.SparseEdgeTable) and the TPT calculations.
+ * Row r's entries sit at positions [getRowStart(r), getRowEnd(r)) of
+ * the column index and value arrays, sorted by column, so walking a row
+ * is a plain array scan and looking up an entry is a binary search
+ * within its row.
+ *
+ * The sparsity pattern is fixed once built; only values change. Copies
+ * share the pattern and clone just the values, so a working copy of a
+ * flux matrix costs one double per nonzero, and setValues resets one
+ * without allocating. Entries outside the pattern read as zero and
+ * can't be written.
+ *
+ * Columns can be walked too, through a transposed view of the pattern
+ * that is built on first use and shared between copies. It maps each
+ * column slot back to a position in the row arrays, so it always sees
+ * current values.
+ *
+ * @author brycecr
+ */
+public class SparseMatrix {
+
+	private final int m_rows;
+	private final int m_cols;
+	private final int[] m_rowPtr;
+	private final int[] m_colIdx;
+	private final double[] m_values;
+	/** Holds the transposed pattern, shared by all copies. */
+	private final Transpose m_transpose;
+
+	/**
+	 * Column-major index of a pattern: column c's entries are
+	 * [colPtr[c], colPtr[c+1]), sorted by row, and pos maps each back
+	 * to its position in the row arrays.
+	 */
+	private static class Transpose {
+		int[] colPtr;
+		int[] rowIdx;
+		/** Set last, so non-null means the rest are ready. */
+		volatile int[] pos;
+	}
+
+	private SparseMatrix(int rows, int cols, int[] rowPtr, int[] colIdx,
+		double[] values, Transpose transpose) {
+		m_rows = rows;
+		m_cols = cols;
+		m_rowPtr = rowPtr;
+		m_colIdx = colIdx;
+		m_values = values;
+		m_transpose = transpose;
+	}
+
+	/**
+	 * Build a rows x cols matrix from (row, col, value) triplets. Where
+	 * the same entry appears more than once, the last one wins.
+	 *
+	 * @param count number of triplets to take from the arrays
+	 */
+	public static SparseMatrix fromTriplets(int rows, int cols, int[] r,
+		int[] c, double[] v, int count) {
+		int[] rowPtr = new int[rows + 1];
+		for (int k = 0; k < count; ++k) {
+			if (r[k] < 0 || r[k] >= rows || c[k] < 0 || c[k] >= cols) {
+				throw new IndexOutOfBoundsException("Entry " + r[k] + ", " + c[k]
+					+ " is outside a " + rows + " x " + cols + " matrix");
+			}
+			rowPtr[r[k] + 1]++;
+		}
+		for (int i = 0; i < rows; ++i) {
+			rowPtr[i + 1] += rowPtr[i];
+		}
+
+		int[] next = Arrays.copyOf(rowPtr, rows);
+		long[] keys = new long[count];
+		for (int k = 0; k < count; ++k) {
+			//column in the high bits, triplet number in the low, so
+			//sorting a row orders by column and keeps input order
+			keys[next[r[k]]++] = ((long) c[k] << 32) | k;
+		}
+
+		int[] colIdx = new int[count];
+		double[] values = new double[count];
+		int nnz = 0;
+		for (int i = 0; i < rows; ++i) {
+			int start = rowPtr[i];
+			int end = rowPtr[i + 1];
+			Arrays.sort(keys, start, end);
+			rowPtr[i] = nnz;
+			for (int k = start; k < end; ++k) {
+				int col = (int) (keys[k] >>> 32);
+				double val = v[(int) keys[k]];
+				if (nnz > rowPtr[i] && colIdx[nnz - 1] == col) {
+					values[nnz - 1] = val;
+				} else {
+					colIdx[nnz] = col;
+					values[nnz++] = val;
+				}
+			}
+		}
+		rowPtr[rows] = nnz;
+		if (nnz < count) {
+			colIdx = Arrays.copyOf(colIdx, nnz);
+			values = Arrays.copyOf(values, nnz);
+		}
+		return new SparseMatrix(rows, cols, rowPtr, colIdx, values, new Transpose());
+	}
+
+	/**
+	 * Wrap arrays that are already in CSR form, without copying them.
+	 *
+	 * @param rowPtr row r's entries are [rowPtr[r], rowPtr[r+1])
+	 * @param colIdx column of each entry, sorted and distinct within a row
+	 * @param values value of each entry
+	 */
+	public static SparseMatrix fromCSR(int rows, int cols, int[] rowPtr,
+		int[] colIdx, double[] values) {
+		return new SparseMatrix(rows, cols, rowPtr, colIdx, values, new Transpose());
+	}
+
+	/**
+	 * @return a matrix with this one's pattern and all values zero
+	 */
+	public SparseMatrix zerosLike() {
+		return new SparseMatrix(m_rows, m_cols, m_rowPtr, m_colIdx,
+			new double[m_values.length], m_transpose);
+	}
+
+	/**
+	 * @return a copy sharing this matrix's pattern, with its own values
+	 */
+	public SparseMatrix copy() {
+		return new SparseMatrix(m_rows, m_cols, m_rowPtr, m_colIdx,
+			m_values.clone(), m_transpose);
+	}
+
+	/**
+	 * Overwrite this matrix's values with src's.
+	 *
+	 * @param src a copy of this matrix (or this matrix a copy of it)
+	 * @throws IllegalArgumentException if the patterns differ
+	 */
+	public void setValues(SparseMatrix src) {
+		if (src.m_colIdx != m_colIdx) {
+			throw new IllegalArgumentException("Matrices don't share a sparsity pattern");
+		}
+		System.arraycopy(src.m_values, 0, m_values, 0, m_values.length);
+	}
+
+	public int getRowCount() {
+		return m_rows;
+	}
+
+	public int getColumnCount() {
+		return m_cols;
+	}
+
+	/**
+	 * @return number of stored entries
+	 */
+	public int getEntryCount() {
+		return m_rowPtr[m_rows];
+	}
+
+	/**
+	 * @return position of row's first entry
+	 */
+	public int getRowStart(int row) {
+		return m_rowPtr[row];
+	}
+
+	/**
+	 * @return one past the position of row's last entry
+	 */
+	public int getRowEnd(int row) {
+		return m_rowPtr[row + 1];
+	}
+
+	/**
+	 * @return column of the entry at position k
+	 */
+	public int getColumnAt(int k) {
+		return m_colIdx[k];
+	}
+
+	/**
+	 * @return value of the entry at position k
+	 */
+	public double getValueAt(int k) {
+		return m_values[k];
+	}
+
+	public void setValueAt(int k, double value) {
+		m_values[k] = value;
+	}
+
+	/**
+	 * @return position of the entry at row, col, or -1 if it isn't in
+	 * the pattern
+	 */
+	public int indexOf(int row, int col) {
+		int k = Arrays.binarySearch(m_colIdx, m_rowPtr[row], m_rowPtr[row + 1], col);
+		return (k < 0) ? -1 : k;
+	}
+
+	/**
+	 * @return the entry at row, col; zero if it isn't stored
+	 */
+	public double get(int row, int col) {
+		int k = indexOf(row, col);
+		return (k < 0) ? 0.0d : m_values[k];
+	}
+
+	/**
+	 * @throws IllegalArgumentException if row, col isn't in the pattern
+	 */
+	public void set(int row, int col, double value) {
+		m_values[getIndex(row, col)] = value;
+	}
+
+	/**
+	 * Add delta to the entry at row, col.
+	 *
+	 * @throws IllegalArgumentException if row, col isn't in the pattern
+	 */
+	public void add(int row, int col, double delta) {
+		m_values[getIndex(row, col)] += delta;
+	}
+
+	private int getIndex(int row, int col) {
+		int k = indexOf(row, col);
+		if (k < 0) {
+			throw new IllegalArgumentException("No entry at " + row + ", " + col);
+		}
+		return k;
+	}
+
+	/**
+	 * @return row as a dense array
+	 */
+	public double[] getRow(int row) {
+		double[] arr = new double[m_cols];
+		for (int k = m_rowPtr[row]; k < m_rowPtr[row + 1]; ++k) {
+			arr[m_colIdx[k]] = m_values[k];
+		}
+		return arr;
+	}
+
+	/**
+	 * @return column as a dense array
+	 */
+	public double[] getColumn(int col) {
+		Transpose t = getTranspose();
+		double[] arr = new double[m_rows];
+		for (int s = t.colPtr[col]; s < t.colPtr[col + 1]; ++s) {
+			arr[t.rowIdx[s]] = m_values[t.pos[s]];
+		}
+		return arr;
+	}
+
+	/**
+	 * Split the rows into at most parts contiguous ranges holding roughly
+	 * equal numbers of entries, for dividing work between threads.
+	 *
+	 * @return {lo, hi} row ranges, in order, covering every row
+	 */
+	public List<int[]> splitRows(int parts) {
+		List<int[]> ranges = new ArrayList<int[]>(parts);
+		long per = Math.max(1, (long) getEntryCount() / parts);
+		int lo = 0;
+		for (int i = 0; i < m_rows; ++i) {
+			if (m_rowPtr[i + 1] - m_rowPtr[lo] >= per) {
+				ranges.add(new int[] {lo, i + 1});
+				lo = i + 1;
+			}
+		}
+		if (lo < m_rows || ranges.isEmpty()) {
+			ranges.add(new int[] {lo, m_rows});
+		}
+		return ranges;
+	}
+
+	/*-_-_-_-_-_-_-_-_-/  Transposed view /-_-_-_-_-_-_-_-_-_-_-*/
+
+	/**
+	 * @return first slot of column col in the transposed view
+	 */
+	public int getColumnStart(int col) {
+		return getTranspose().colPtr[col];
+	}
+
+	/**
+	 * @return one past the last slot of column col in the transposed view
+	 */
+	public int getColumnEnd(int col) {
+		return getTranspose().colPtr[col + 1];
+	}
+
+	/**
+	 * @return row of the entry in transposed slot s
+	 */
+	public int getRowAt(int s) {
+		return getTranspose().rowIdx[s];
+	}
+
+	/**
+	 * @return position in the row arrays (for getValueAt) of the entry
+	 * in transposed slot s
+	 */
+	public int getPositionAt(int s) {
+		return getTranspose().pos[s];
+	}
+
+	private Transpose getTranspose() {
+		Transpose t = m_transpose;
+		if (t.pos != null) {
+			return t;
+		}
+		synchronized (t) {
+			if (t.pos == null) {
+				int nnz = getEntryCount();
+				int[] colPtr = new int[m_cols + 1];
+				for (int k = 0; k < nnz; ++k) {
+					colPtr[m_colIdx[k] + 1]++;
+				}
+				for (int c = 0; c < m_cols; ++c) {
+					colPtr[c + 1] += colPtr[c];
+				}
+				//rows are visited in order, so each column comes out sorted
+				int[] next = Arrays.copyOf(colPtr, m_cols);
+				int[] rowIdx = new int[nnz];
+				int[] pos = new int[nnz];
+				for (int r = 0; r < m_rows; ++r) {
+					for (int k = m_rowPtr[r]; k < m_rowPtr[r + 1]; ++k) {
+						int s = next[m_colIdx[k]]++;
+						rowIdx[s] = r;
+						pos[s] = k;
+					}
+				}
+				t.colPtr = colPtr;
+				t.rowIdx = rowIdx;
+				t.pos = pos;
+			}
+		}
+		return t;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.util.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs a long job (opening a hierarchy, saving a big model) on a
+ * background thread behind a modal progress bar with a Cancel button.
+ * Because the dialog is modal, run blocks like a plain method call, but
+ * the event dispatch thread keeps painting while it waits.
+ *
+ * Off the EDT (e.g. from a batch run), the job just runs on the calling
+ * thread with no dialog.
+ *
+ * @author brycecr
+ */
+public class ProgressDialog extends JDialog {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Handed to a running job. Safe to call from any thread.
+	 */
+	public interface Progress {
+		/**
+		 * @param done units of work finished so far
+		 * @param total total units of work
+		 */
+		void setProgress(long done, long total);
+
+		/**
+		 * @return true once the user has hit Cancel
+		 */
+		boolean isCanceled();
+	}
+
+	/**
+	 * A job to run behind the dialog.
+	 */
+	public interface Task<T> {
+		T run(Progress p) throws Exception;
+	}
+
+	/** For jobs run without a dialog. */
+	public static final Progress NONE = new Progress() {
+		public void setProgress(long done, long total) {
+		}
+
+		public boolean isCanceled() {
+			return false;
+		}
+	};
+
+	private final JProgressBar m_bar;
+	private final String m_units;
+	private volatile boolean m_canceled = false;
+	private final Progress m_progress = new Progress() {
+		public void setProgress(final long done, final long total) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					update(done, total);
+				}
+			});
+		}
+
+		public boolean isCanceled() {
+			return m_canceled;
+		}
+	};
+
+	private ProgressDialog(Component c, String title, String message, String units) {
+		super(c == null ? null : SwingUtilities.getWindowAncestor(c),
+			title, ModalityType.APPLICATION_MODAL);
+		m_units = units;
+		setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+
+		m_bar = new JProgressBar(0, 1000);
+		m_bar.setStringPainted(true);
+		m_bar.setString("");
+
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ae) {
+				m_canceled = true;
+				m_bar.setString("Cancelling...");
+			}
+		});
+
+		JPanel panel = new JPanel(new BorderLayout(5, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		panel.add(new JLabel(message), BorderLayout.NORTH);
+		panel.add(m_bar, BorderLayout.CENTER);
+		panel.add(cancel, BorderLayout.SOUTH);
+		setContentPane(panel);
+		pack();
+		setLocationRelativeTo(c);
+	}
+
+	private void update(long done, long total) {
+		if (m_canceled || total <= 0) {
+			return;
+		}
+		m_bar.setValue((int)(1000 * done / total));
+		m_bar.setString((m_units == null) ? (100 * done / total) + "%"
+			: done + " of " + total + " " + m_units);
+	}
+
+	/**
+	 * Run task, behind a progress dialog if we're on the EDT.
+	 *
+	 * @param c parent component for the dialog
+	 * @param title dialog title
+	 * @param message text shown above the progress bar
+	 * @param units what the progress counts (e.g. "levels"), or null to
+	 * show a percentage
+	 * @param task job to run
+	 * @return whatever task returned
+	 * @throws Exception whatever task threw (Errors are rethrown as is)
+	 */
+	public static <T> T run(Component c, String title, String message,
+		String units, final Task<T> task) throws Exception {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			return task.run(NONE);
+		}
+
+		final ProgressDialog dialog = new ProgressDialog(c, title, message, units);
+		final Object[] result = new Object[1];
+		final Throwable[] error = new Throwable[1];
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					result[0] = task.run(dialog.m_progress);
+				} catch (Throwable t) {
+					error[0] = t;
+				} finally {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							dialog.dispose();
+						}
+					});
+				}
+			}
+		}, "MSMExplorer " + title);
+		worker.setDaemon(true);
+		worker.start();
+
+		//blocks, pumping events, until the worker disposes the dialog
+		dialog.setVisible(true);
+		worker.join();
+
+		if (error[0] instanceof Exception) {
+			throw (Exception)error[0];
+		} else if (error[0] instanceof Error) {
+			throw (Error)error[0];
+		} else if (error[0] != null) {
+			throw new Exception(error[0]);
+		}
+		@SuppressWarnings("unchecked")
+		T t = (T)result[0];
+		return t;
+	}
+}
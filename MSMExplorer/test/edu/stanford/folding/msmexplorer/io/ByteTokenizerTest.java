@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks ByteTokenizer.nextDouble against Double.parseDouble, bit for
+ * bit, over random values printed the ways our files print them.
+ *
+ * @author brycecr
+ */
+public class ByteTokenizerTest {
+
+	private static final int kCOUNT = 200000;
+	//the tokenizer's own limit is 128 bytes
+	private static final int kMAX_TOKEN = 100;
+	private static final Charset kASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * @return a random finite double, spread over the whole exponent range
+	 */
+	private static double randomDouble(Random rand) {
+		while (true) {
+			double d = Double.longBitsToDouble(rand.nextLong());
+			if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+				return d;
+			}
+		}
+	}
+
+	/**
+	 * Parse every token with both a stream and a buffer tokenizer and
+	 * compare each with Double.parseDouble.
+	 */
+	private static void check(List<String> tokens) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String t : tokens) {
+			sb.append(t).append('\n');
+		}
+		byte[] bytes = sb.toString().getBytes(kASCII);
+
+		ByteTokenizer stream = new ByteTokenizer(new ByteArrayInputStream(bytes), 4096);
+		ByteTokenizer buffer = new ByteTokenizer(ByteBuffer.wrap(bytes));
+		for (String t : tokens) {
+			long expected = Double.doubleToRawLongBits(Double.parseDouble(t));
+			stream.nextRecord();
+			buffer.nextRecord();
+			assertEquals(t, expected, Double.doubleToRawLongBits(stream.nextDouble()));
+			assertEquals(t, expected, Double.doubleToRawLongBits(buffer.nextDouble()));
+		}
+	}
+
+	@Test
+	public void testShortestRepr() throws IOException {
+		Random rand = new Random(1);
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < kCOUNT; ++i) {
+			tokens.add(Double.toString(randomDouble(rand)));
+			tokens.add(Double.toString(rand.nextDouble()));
+		}
+		check(tokens);
+	}
+
+	@Test
+	public void testFormatted() throws IOException {
+		Random rand = new Random(2);
+		String[] formats = {"%.17g", "%.18e", "%.16e", "%.15g", "%.6f", "%.3e"};
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < kCOUNT; ++i) {
+			String f = formats[i % formats.length];
+			double d = (i % 2 == 0) ? randomDouble(rand) : rand.nextDouble();
+			String t = String.format(Locale.US, f, d);
+			if (t.length() <= kMAX_TOKEN) {
+				tokens.add(t);
+			}
+		}
+		check(tokens);
+	}
+
+	@Test
+	public void testLongMantissas() throws IOException {
+		Random rand = new Random(3);
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < kCOUNT; ++i) {
+			StringBuilder sb = new StringBuilder();
+			int digits = 1 + rand.nextInt(40);
+			for (int k = 0; k < digits; ++k) {
+				sb.append((char) ('0' + rand.nextInt(10)));
+			}
+			if (rand.nextBoolean()) {
+				sb.insert(rand.nextInt(digits + 1), '.');
+			}
+			sb.append('e').append(rand.nextInt(700) - 350);
+			tokens.add(sb.toString());
+		}
+		check(tokens);
+	}
+
+	@Test
+	public void testHalfway() throws IOException {
+		//exact decimal expansions of the midpoints between neighbouring
+		//doubles, and their neighbours a hair either side
+		Random rand = new Random(4);
+		List<String> tokens = new ArrayList<String>();
+		for (int i = 0; i < kCOUNT / 10; ++i) {
+			double d = (i % 2 == 0) ? randomDouble(rand) : rand.nextDouble();
+			BigDecimal lo = new BigDecimal(Math.abs(d));
+			BigDecimal hi = new BigDecimal(Math.nextUp(Math.abs(d)));
+			BigDecimal mid = lo.add(hi).divide(BigDecimal.valueOf(2));
+			if (mid.toString().length() <= kMAX_TOKEN) {
+				tokens.add(mid.toString());
+			}
+			tokens.add(mid.round(new MathContext(25)).toString());
+			tokens.add(mid.round(new MathContext(19)).toString());
+		}
+		check(tokens);
+	}
+
+	@Test
+	public void testSpecialCases() throws IOException {
+		List<String> tokens = new ArrayList<String>();
+		String[] special = {
+			"0", "-0", "0.0", "-0.0e10", "1", "-1", "+1.5", "9007199254740993",
+			"9007199254740992.5", "18446744073709551615", "99999999999999999999",
+			"1e22", "1e23", "8.98846567431158e307", "1.7976931348623157e308",
+			"1.7976931348623159e308", "2.2250738585072014e-308",
+			"2.2250738585072011e-308", "4.9e-324", "2.4703282292062327e-324",
+			"1e-400", "1e400", "0.000000000000000000000000000001",
+			"123456789012345678901234567890", "NaN", "-Infinity", "Infinity"
+		};
+		for (String s : special) {
+			tokens.add(s);
+		}
+		check(tokens);
+	}
+}
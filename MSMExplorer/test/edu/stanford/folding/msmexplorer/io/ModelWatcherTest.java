@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import edu.stanford.folding.msmexplorer.tpt.TPTFactoryCM;
+import edu.stanford.folding.msmexplorer.tpt.TPTWindow;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import prefuse.data.Edge;
+import prefuse.data.Graph;
+import prefuse.data.tuple.DefaultTupleSet;
+import prefuse.data.tuple.TupleSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A watched tProb that changes has to leave the graph looking like one
+ * freshly read from it.
+ *
+ * @author brycecr
+ */
+public class ModelWatcherTest implements MSMConstants {
+
+	private static final String kTPROB = "demos/tutorial/tProb.mtx";
+
+	/**
+	 * Write kTPROB to a temporary .mtx, dropping every dropEvery-th
+	 * entry.
+	 */
+	private static File rewrite(int dropEvery) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		String header = null;
+		BufferedReader br = new BufferedReader(new FileReader(kTPROB));
+		try {
+			for (String l; (l = br.readLine()) != null;) {
+				if (l.startsWith("%")) {
+					continue;
+				} else if (header == null) {
+					header = l;
+				} else if (entries.size() % dropEvery != 0 || l.isEmpty()) {
+					entries.add(l);
+				} else {
+					entries.add(null);
+				}
+			}
+		} finally {
+			br.close();
+		}
+
+		File f = File.createTempFile("tProb", ".mtx");
+		f.deleteOnExit();
+		PrintWriter pw = new PrintWriter(f);
+		try {
+			String[] dims = header.trim().split("\\s+");
+			int nnz = 0;
+			for (String e : entries) {
+				nnz += (e == null) ? 0 : 1;
+			}
+			pw.println("%%MatrixMarket matrix coordinate real general");
+			pw.println(dims[0] + " " + dims[1] + " " + nnz);
+			for (String e : entries) {
+				if (e != null) {
+					pw.println(e);
+				}
+			}
+		} finally {
+			pw.close();
+		}
+		return f;
+	}
+
+	@Test
+	public void testNetEdgeRemoval() throws Exception {
+		Graph g = new MtxGraphReader().readGraph(kTPROB);
+		int before = g.getEdgeCount();
+		File f = rewrite(5);
+
+		ModelWatcher w = new ModelWatcher(g, null, null);
+		SparseEdgeTable t = ModelWatcher.readMatrix(f);
+		ModelWatcher.Change c = w.applyEdges(f, t);
+		assertEquals(null, c.error);
+		assertEquals(0, c.added);
+		assertTrue(c.removed > 0);
+		assertEquals(before - c.removed, g.getEdgeCount());
+		assertEquals(t.getEntryCount(), g.getEdgeCount());
+
+		Iterator<?> edges = g.edges();
+		while (edges.hasNext()) {
+			Edge e = (Edge) edges.next();
+			double p = t.get(e.getSourceNode().getRow(), e.getTargetNode().getRow(), -1);
+			assertEquals(p, e.getDouble(TPROB), 0.0);
+		}
+
+		//the removed edges leave holes in the edge rows, which TPT has to skip
+		assertTrue(g.getEdgeTable().getMaximumRow() >= g.getEdgeCount());
+		EQProbReader.setEqProbs(g, NewlineDelimitedReader.parseDoubles(
+			new File("demos/tutorial/Populations.dat")));
+		TPTWindow.initTPTColumns(g);
+		TupleSet source = new DefaultTupleSet();
+		TupleSet target = new DefaultTupleSet();
+		source.addTuple(g.getNode(0));
+		target.addTuple(g.getNode(g.getNodeCount() - 1));
+		new TPTFactoryCM(g, source, target);
+	}
+}
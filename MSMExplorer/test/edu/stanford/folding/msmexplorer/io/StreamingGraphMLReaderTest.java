@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Stanford University
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package edu.stanford.folding.msmexplorer.io;
+
+import edu.stanford.folding.msmexplorer.MSMConstants;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import org.junit.Test;
+import prefuse.data.Graph;
+import prefuse.data.Node;
+import prefuse.data.io.DataIOException;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A graph saved by StreamingGraphMLWriter has to read back exactly.
+ *
+ * @author brycecr
+ */
+public class StreamingGraphMLReaderTest implements MSMConstants {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Random rand = new Random(6);
+		int numNodes = 1000;
+		int numEdges = 50000;
+
+		Graph g = new Graph(true);
+		g.getNodeTable().addColumn(LABEL, String.class);
+		g.getNodeTable().addColumn(EQPROB, double.class);
+		g.getEdgeTable().addColumn(TPROB, double.class);
+		for (int i = 0; i < numNodes; ++i) {
+			Node n = g.addNode();
+			n.setString(LABEL, Integer.toString(i));
+			n.setDouble(EQPROB, rand.nextDouble() * Math.pow(10, -rand.nextInt(12)));
+		}
+		for (int i = 0; i < numEdges; ++i) {
+			int e = g.addEdge(rand.nextInt(numNodes), rand.nextInt(numNodes));
+			g.getEdge(e).setDouble(TPROB, rand.nextDouble() * Math.pow(10, -rand.nextInt(12)));
+		}
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new StreamingGraphMLWriter().writeGraph(g, os);
+		Graph h = new StreamingGraphMLReader().readGraph(
+			new ByteArrayInputStream(os.toByteArray()));
+
+		assertEquals(numNodes, h.getNodeCount());
+		assertEquals(numEdges, h.getEdgeCount());
+		for (int i = 0; i < numNodes; ++i) {
+			assertEquals(Double.doubleToLongBits(g.getNode(i).getDouble(EQPROB)),
+				Double.doubleToLongBits(h.getNode(i).getDouble(EQPROB)));
+		}
+		for (int i = 0; i < numEdges; ++i) {
+			assertEquals(Double.doubleToLongBits(g.getEdge(i).getDouble(TPROB)),
+				Double.doubleToLongBits(h.getEdge(i).getDouble(TPROB)));
+		}
+	}
+
+	/**
+	 * One node with a float and an int value.
+	 */
+	private static Graph readOne(String f, String i) throws Exception {
+		String xml = "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">"
+			+ "<graph edgedefault=\"directed\">"
+			+ "<key id=\"f\" for=\"node\" attr.name=\"f\" attr.type=\"float\"/>"
+			+ "<key id=\"i\" for=\"node\" attr.name=\"i\" attr.type=\"int\"/>"
+			+ "<node id=\"0\"><data key=\"f\">" + f + "</data>"
+			+ "<data key=\"i\">" + i + "</data></node>"
+			+ "</graph></graphml>";
+		return new StreamingGraphMLReader().readGraph(
+			new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testFloatRoundsOnce() throws Exception {
+		//just under the midpoint of two floats, but the nearest double is
+		//the midpoint itself, which rounds the other way
+		String f = "1.0000001788139343261718749";
+		Graph g = readOne(f, "0");
+		assertEquals(Float.floatToIntBits(Float.parseFloat(f)),
+			Float.floatToIntBits(g.getNode(0).getFloat("f")));
+	}
+
+	@Test
+	public void testIntRange() throws Exception {
+		assertEquals(Integer.MIN_VALUE, readOne("0", "-2147483648").getNode(0).getInt("i"));
+		assertEquals(Integer.MAX_VALUE, readOne("0", "2147483647").getNode(0).getInt("i"));
+	}
+
+	@Test(expected = DataIOException.class)
+	public void testIntOverflow() throws Exception {
+		readOne("0", "2147483648");
+	}
+}